@@ -16,7 +16,13 @@
 														}
 														
 	#define close(handle) CloseHandle(handle)
+
+	typedef DCB serial_settings;
 #else
+	#ifdef __linux__
+		//for ppoll()
+		#define _GNU_SOURCE
+	#endif
 	#include <termios.h>
 	#include <unistd.h>
 	#include <fcntl.h>
@@ -26,6 +32,18 @@
 	#include <sys/ioctl.h>
 	#include <errno.h>
 	#include <poll.h>
+	#include <time.h>
+	#include <sys/socket.h>
+	#include <sys/un.h>
+	#include <netinet/in.h>
+	#include <netinet/tcp.h>
+	#include <netdb.h>
+	#include <sys/mman.h>
+	#ifdef __linux__
+		#include <linux/serial.h>
+		#include <sys/sendfile.h>
+		#include <signal.h>
+	#endif
 
 	#ifndef ENOMEDIUM
 	#define ENOMEDIUM ENODEV
@@ -36,7 +54,30 @@
 	#elif CNEW_RTSCTS
 		#define HW_FLOW CNEW_RTSCTS
 	#endif
-	
+
+	#if defined( __linux__ ) && defined( TCGETS2 )
+		/*
+		 * Rates that termios has no Bxxx constant for are set with termios2.
+		 * The kernel's termios2 can't be included along with glibc's termios,
+		 * so this is a copy of the asm-generic layout.
+		 */
+		struct serial_termios2{
+			tcflag_t c_iflag;
+			tcflag_t c_oflag;
+			tcflag_t c_cflag;
+			tcflag_t c_lflag;
+			cc_t c_line;
+			cc_t c_cc[ 19 ];
+			speed_t c_ispeed;
+			speed_t c_ospeed;
+		};
+		#define SERIAL_TCGETS2 _IOR( 'T', 0x2A, struct serial_termios2 )
+		#define SERIAL_TCSETS2 _IOW( 'T', 0x2B, struct serial_termios2 )
+		#define SERIAL_BOTHER 0010000
+		#define SERIAL_IBSHIFT 16
+		#define HAVE_CUSTOM_BAUD_RATE 1
+	#endif
+
 	#define SPEED_SWITCH(SPD,io) case SPD: cfsetospeed( &io, B##SPD ); cfsetispeed( &io, B##SPD ); break;
 	#define GET_SPEED_SWITCH(SPD,io) case B##SPD: return SPD;
 	
@@ -48,6 +89,8 @@
 	#define SET_SERIAL_PORT_STRUCT( port, io_name ) 	if( tcsetattr( port, TCSANOW, &io_name ) < 0 ){\
 															return -1;\
 														}
+
+	typedef struct termios serial_settings;
 #endif
 
 #include <stdlib.h>
@@ -61,14 +104,58 @@
 #include "com_rm5248_serial_SerialInputStream.h"
 #include "com_rm5248_serial_SerialOutputStream.h"
 #include "com_rm5248_serial_SimpleSerialInputStream.h"
+#include "com_rm5248_serial_NativeRingInputStream.h"
+#include "com_rm5248_serial_EdgeCapture.h"
+#include "com_rm5248_serial_DmxTransmitter.h"
+#include "com_rm5248_serial_SerialPortBridge.h"
+#include "com_rm5248_serial_ReceiveSubscriber.h"
 
 // log levels
 #define MESSAGE_DEBUG 0 /* java.util.logging FINE - log4j2 DEBUG */
 #define MESSAGE_TRACE 1 /* java.util.logging FINER - log4j2 TRACE */
 
+// control lines; these match the LINE_XXX constants in SerialPort
+#define LINE_CD  0x01
+#define LINE_CTS 0x02
+#define LINE_DSR 0x04
+#define LINE_DTR 0x08
+#define LINE_RTS 0x10
+#define LINE_RI  0x20
+
 //
 // Struct Definitions
 //
+#ifndef _WIN32
+/*
+ * Records everything that is read from or written to the port into
+ * memory-mapped segment files, so that the read and write paths only have to
+ * copy the data into memory.
+ *
+ * Each segment starts with a CAPTURE_HEADER_SIZE header, followed by records
+ * of a 16 byte header(timestamp, length, direction) and the data, padded out
+ * to 8 bytes.  Everything is in native byte order.  A record length of 0
+ * marks the end of the segment.
+ */
+struct capture{
+	pthread_mutex_t lock;
+	/* 1 while capturing; looked at without the lock so that the read and
+	 * write paths don't pay anything when we are not capturing */
+	int active;
+	/* The segment files are base_path.0, base_path.1, ... */
+	char* base_path;
+	jlong segment;
+	/* 0 to keep every segment */
+	int max_segments;
+	int fd;
+	unsigned char* map;
+	size_t map_size;
+	/* Where the next record goes */
+	size_t offset;
+	/* errno of the failure that stopped the capture, or 0 */
+	int error;
+};
+#endif
+
 struct port_descriptor{
 #ifdef _WIN32
 	HANDLE port;
@@ -89,14 +176,280 @@ struct port_descriptor{
 	 * finished by the time doClose() returns.
 	 */
 	pthread_mutex_t in_use;
+	/* If not NULL, a thread is reading from the port into this ring */
+	struct receive_ring* ring;
+	/* If not NULL, a thread is capturing control line changes */
+	struct edge_capture* edges;
+	/* If not NULL, the port is in RS-485 mode */
+	struct rs485_state* rs485;
+	/* If not NULL, a thread is forwarding the port to a socket */
+	struct bridge* bridge;
+	struct capture capture;
+	/* For the master side of a pseudo-terminal, our own FD for the slave
+	 * side, so that the master doesn't get EIO whenever nothing else has
+	 * the slave open.  -1 otherwise */
+	int pty_slave;
+	/* For paced writes, the CLOCK_MONOTONIC time before which the next
+	 * byte may not be written; 0 if there is no limit.  Only used by
+	 * writePaced(), which SerialOutputStream only calls from one thread at
+	 * a time */
+	jlong pace_next;
+	/* If not NULL, a thread is sending DMX frames */
+	struct dmx_transmitter* dmx;
+#endif
+};
+
+#ifndef _WIN32
+/*
+ * RS-485 settings for a port.  If the kernel can't switch RTS for us, we do
+ * it ourselves around every write, holding write_lock so that writes from
+ * different threads don't turn RTS off in the middle of each other.
+ */
+struct rs485_state{
+	/* 1 if the kernel is switching RTS(TIOCSRS485) */
+	int hardware;
+#ifdef __linux__
+	/* The settings before we changed them, restored on close */
+	struct serial_rs485 saved;
+#endif
+	/* 1 if RTS is set while sending, 0 if it is cleared */
+	int rts_on_send;
+	int delay_before_millis;
+	int delay_after_millis;
+	int discard_echo;
+	/* How many of the bytes we have sent have not come back yet */
+	int echo_pending;
+	pthread_mutex_t write_lock;
+};
+
+#define RING_MAX_READERS 32
+/* The reader for the port's own InputStream */
+#define RING_DEFAULT_READER 0
+#define RING_READER_FREE   0
+/* The ring is not written over until this reader has read it */
+#define RING_READER_GATING 1
+/* This reader is not waited for, and checks for itself if it was overrun */
+#define RING_READER_LOSSY  2
+
+/*
+ * A ring buffer that a native thread reads the serial port into.
+ * The memory for the ring is owned by a direct ByteBuffer in Java, so
+ * the Java side can copy straight out of it.
+ * Positions are the total number of bytes written/read and only ever
+ * increase; the index into the ring is the position modulo the size.
+ * Any number of readers(up to RING_MAX_READERS) can read the same data.
+ */
+struct receive_ring{
+	pthread_t thread;
+	pthread_mutex_t lock;
+	/* Signalled when data is put into the ring, or the thread exits */
+	pthread_cond_t data_cond;
+	/* Signalled when data is consumed from the ring */
+	pthread_cond_t space_cond;
+	int fd;
+	/* Copied from the port so that our own echo can be thrown away */
+	struct rs485_state* rs485;
+	struct capture* capture;
+	char* data;
+	jlong size;
+	jlong write_pos;
+	/* write_pos plus what the thread is reading in right now; anything
+	 * more than size bytes behind this may be overwritten */
+	jlong claim_pos;
+	/* Where each reader is up to, and what kind of reader it is */
+	jlong reader_pos[ RING_MAX_READERS ];
+	unsigned char reader_state[ RING_MAX_READERS ];
+	/* errno of a failed read, or 0 */
+	int error;
+	/* set when the thread is no longer reading */
+	int done;
+	/* set when the port is closing */
+	int stop;
+	/* How many threads are waiting for data; doClose() waits for them to leave */
+	int waiters;
+};
+#endif
+
+#ifndef _WIN32
+/*
+ * Telnet parser state for RFC 2217
+ */
+struct telnet_state{
+	int state;
+	/* WILL/WONT/DO/DONT that we are getting the option for */
+	int verb;
+	unsigned char sb[ 32 ];
+	int sb_len;
+	/* So that we only answer each request once, and don't loop forever */
+	unsigned char answered_will[ 256 ];
+	unsigned char answered_do[ 256 ];
+};
+
+/*
+ * Forwards a serial port to a socket.  A single thread polls the listening
+ * socket, the connected client and the port, and moves data between them.
+ */
+struct bridge{
+	pthread_t thread;
+	/* Protects client_fd and stop */
+	pthread_mutex_t lock;
+	int port_fd;
+	struct rs485_state* rs485;
+	struct capture* capture;
+	int listen_fd;
+	/* The connected client, or -1 */
+	int client_fd;
+	/* Written to when the thread should stop */
+	int wake_pipe[ 2 ];
+	/* Pipes for splice(); [ 0 ] is -1 if we are not splicing that way */
+	int to_client_pipe[ 2 ];
+	int to_port_pipe[ 2 ];
+	int stop;
+	/* errno of a failure on the port, or 0 */
+	int error;
+	jlong to_client_bytes;
+	jlong to_port_bytes;
+	jlong connections;
+	/* RFC 2217 */
+	int rfc2217;
+	jobject java_bridge;
+	jmethodID command_method;
+	struct telnet_state telnet;
+	/* If not empty, the unix socket to remove when we are done */
+	char unix_path[ sizeof( ((struct sockaddr_un*)0)->sun_path ) ];
+};
 #endif
+
+#ifdef __linux__
+/*
+ * One change of a control line
+ */
+struct edge_record{
+	/* The LINE_XXX bit for the line that changed */
+	jint line;
+	/* 1 if the line is now set, 0 if it is now clear */
+	jint level;
+	jlong monotonic;
+	jlong realtime;
+};
+
+/*
+ * Control line changes captured by a native thread, waiting in TIOCMIWAIT.
+ * The records are in a single-producer single-consumer ring: the thread only
+ * writes head, and the Java side only writes tail, so no lock is needed to
+ * add or remove records.  The lock and condition are only used to wake up
+ * the Java side when it is waiting for records.
+ *
+ * This is owned by both the thread and the Java side; whichever lets go of
+ * it last frees it.
+ */
+struct edge_capture{
+	pthread_t thread;
+	/* Our own copy of the port FD */
+	int fd;
+	/* The lines to watch, as TIOCM_XXX bits */
+	int tiocm_mask;
+	struct edge_record* records;
+	/* The number of records; always a power of 2 */
+	jlong capacity;
+	jlong head;
+	jlong tail;
+	/* Changes that the counters say happened, but we didn't see */
+	jlong missed;
+	/* Changes that we saw, but the ring was full */
+	jlong dropped;
+	int refs;
+	int stop;
+	int done;
+	int error;
+	int waiting;
+	int wakeup;
+	pthread_mutex_t lock;
+	pthread_cond_t cond;
+};
+#endif /* __linux__ */
+
+#ifndef _WIN32
+#define DMX_MAX_SLOTS 513
+
+/*
+ * Sends a break, a mark after break, then a frame of slots, over and over at
+ * a fixed rate.  The Java side puts new slots into pending; the thread copies
+ * them into active at the start of the next frame, so a frame is never sent
+ * half old and half new.
+ *
+ * This belongs to the port_descriptor, which stops and joins the thread
+ * before it goes away.
+ */
+struct dmx_transmitter{
+	pthread_t thread;
+	struct port_descriptor* desc;
+	jlong break_nanos;
+	jlong mab_nanos;
+	jlong period_nanos;
+	jint slots;
+	unsigned char pending[ DMX_MAX_SLOTS ];
+	unsigned char active[ DMX_MAX_SLOTS ];
+	int pending_changed;
+	jlong frames;
+	jlong late;
+	int stop;
+	int error;
+	pthread_mutex_t lock;
+	/* Set up with cond_init_monotonic(), so that it can wait for the next frame */
+	pthread_cond_t cond;
 };
+#endif
 
 //
 // Local Variables
 //
 static struct port_descriptor** port_list = NULL;
 static int port_list_size;
+static JavaVM* java_vm = NULL;
+#ifndef _WIN32
+/*
+ * Protects the bridge pointer in every port descriptor.  SerialPortBridge
+ * and SerialPort can both stop a bridge, from different threads.
+ */
+static pthread_mutex_t bridge_lock = PTHREAD_MUTEX_INITIALIZER;
+/*
+ * Protects the DMX transmitter pointer in every port descriptor, in the same
+ * way.  Held while using the transmitter, so that it can't be freed under us.
+ */
+static pthread_mutex_t dmx_lock = PTHREAD_MUTEX_INITIALIZER;
+#endif
+#ifdef __linux__
+/*
+ * Protects the edge capture pointer in every port descriptor.  Only held
+ * long enough to take a reference to the capture.
+ */
+static pthread_mutex_t edges_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_once_t edge_signal_once = PTHREAD_ONCE_INIT;
+//Sent to the capture thread to get it out of TIOCMIWAIT
+#define EDGE_WAKEUP_SIGNAL ( SIGRTMIN + 2 )
+#endif
+
+/*
+ * All of the classes that have a 'handle' field that we need to look up.
+ * Looking up the field ID every time we go through the JNI is slow, so we
+ * look them all up once when the library is loaded.
+ */
+static const char* handle_class_names[] = {
+	"com/rm5248/serial/SimpleSerialInputStream",
+	"com/rm5248/serial/SerialOutputStream",
+	"com/rm5248/serial/SerialInputStream",
+	"com/rm5248/serial/NativeRingInputStream",
+	"com/rm5248/serial/ReceiveSubscriber",
+	"com/rm5248/serial/EdgeCapture",
+	"com/rm5248/serial/DmxTransmitter",
+	"com/rm5248/serial/SerialPortBridge",
+	"com/rm5248/serial/SerialPort",
+	NULL
+};
+static jclass handle_classes[ sizeof( handle_class_names ) / sizeof( handle_class_names[ 0 ] ) ];
+static jfieldID handle_field_ids[ sizeof( handle_class_names ) / sizeof( handle_class_names[ 0 ] ) ];
+static int handle_classes_size = 0;
 
 //
 // Helper Methods
@@ -168,7 +521,17 @@ static void log_message( int log_level, JNIEnv * env, char* message ){
 static jint get_handle(JNIEnv * env, jobject obj){
 	jfieldID fid;
 	jint array_pos;
-	jclass cls = (*env)->GetObjectClass( env, obj );
+	jclass cls;
+	int x;
+
+	for( x = 0; x < handle_classes_size; x++ ){
+		if( (*env)->IsInstanceOf( env, obj, handle_classes[ x ] ) ){
+			return (*env)->GetIntField( env, obj, handle_field_ids[ x ] );
+		}
+	}
+
+	//Not one of the classes that we know about; look it up the slow way
+	cls = (*env)->GetObjectClass( env, obj );
 
 	fid = (*env)->GetFieldID( env, cls, "handle", "I" );
 	if( fid == 0 ){
@@ -195,209 +558,300 @@ static jboolean get_bool( JNIEnv* env, jobject obj, const char* name ){
 	return boolVal;
 }
 
-static int set_baud_rate( struct port_descriptor* desc, int baud_rate ){
-	GET_SERIAL_PORT_STRUCT( desc->port, newio );
+/*
+ * The functions below only modify the settings structure, they do not touch
+ * the port.  Use apply_settings() to set everything at once.
+ */
 
+/**
+ * @return 1 if the baud rate was set, 2 if it has to be set afterwards with
+ * apply_custom_baud_rate(), 0 if it is not supported
+ */
+static int apply_baud_rate( serial_settings* io, int baud_rate ){
 #ifdef _WIN32
 	// This seems to help a lot with sudden removal of USB serial ports.
 	// see: https://github.com/dotnet/corefx/issues/17396
-	newio.fAbortOnError = 0;
+	io->fAbortOnError = 0;
 #endif
 
 	switch( baud_rate ){
 #ifndef _WIN32
 /* Note that Windows only supports speeds of 110 and above */
-		SPEED_SWITCH(0,newio);
-		SPEED_SWITCH(50,newio);
-		SPEED_SWITCH(75,newio);
+		SPEED_SWITCH(0,(*io));
+		SPEED_SWITCH(50,(*io));
+		SPEED_SWITCH(75,(*io));
 #endif
-		SPEED_SWITCH(110,newio);
+		SPEED_SWITCH(110,(*io));
 #ifndef _WIN32
 /* Windows does not support speeds of 134, 150, or 200 */
-		SPEED_SWITCH(134,newio);
-		SPEED_SWITCH(150,newio);
-		SPEED_SWITCH(200,newio);
+		SPEED_SWITCH(134,(*io));
+		SPEED_SWITCH(150,(*io));
+		SPEED_SWITCH(200,(*io));
 #endif
-		SPEED_SWITCH(300,newio);
-		SPEED_SWITCH(600,newio);
-		SPEED_SWITCH(1200,newio);
+		SPEED_SWITCH(300,(*io));
+		SPEED_SWITCH(600,(*io));
+		SPEED_SWITCH(1200,(*io));
 #ifndef _WIN32
 /* Windows does not support 1800 */
-		SPEED_SWITCH(1800,newio);
+		SPEED_SWITCH(1800,(*io));
+#endif
+		SPEED_SWITCH(2400,(*io));
+		SPEED_SWITCH(4800,(*io));
+		SPEED_SWITCH(9600,(*io));
+		SPEED_SWITCH(19200,(*io));
+		SPEED_SWITCH(38400,(*io));
+		SPEED_SWITCH(57600,(*io));
+		SPEED_SWITCH(115200,(*io));
+#ifndef _WIN32
+#ifdef B230400
+		SPEED_SWITCH(230400,(*io));
+#endif
+#ifdef B460800
+		SPEED_SWITCH(460800,(*io));
 #endif
-		SPEED_SWITCH(2400,newio);
-		SPEED_SWITCH(4800,newio);
-		SPEED_SWITCH(9600,newio);
-		SPEED_SWITCH(19200,newio);
-		SPEED_SWITCH(38400,newio);
-		SPEED_SWITCH(57600,newio);
-		SPEED_SWITCH(115200,newio);
+#ifdef B500000
+		SPEED_SWITCH(500000,(*io));
+#endif
+#ifdef B921600
+		SPEED_SWITCH(921600,(*io));
+#endif
+#endif /* _WIN32 */
+		default:
+#ifdef _WIN32
+			//The driver decides which of the other rates it can do
+			if( baud_rate > 115200 ){
+				io->BaudRate = baud_rate;
+				break;
+			}
+#elif defined( HAVE_CUSTOM_BAUD_RATE )
+			if( baud_rate > 0 ){
+				return 2;
+			}
+#endif
+			return 0;
+	}
+
+	return 1;
+}
+
+#ifdef HAVE_CUSTOM_BAUD_RATE
+/**
+ * Set a baud rate that has no Bxxx constant, after the rest of the settings
+ * have been set.
+ *
+ * @return 1 on success, 0 if the rate is not supported, -1 on error
+ */
+static int apply_custom_baud_rate( int fd, int baud_rate ){
+	struct serial_termios2 tio;
+
+	if( ioctl( fd, SERIAL_TCGETS2, &tio ) < 0 ){
+		return ( errno == EINVAL || errno == ENOTTY ) ? 0 : -1;
 	}
 
-	SET_SERIAL_PORT_STRUCT( desc->port, newio );
+	tio.c_cflag &= ~CBAUD;
+	tio.c_cflag |= SERIAL_BOTHER;
+	tio.c_cflag &= ~( CBAUD << SERIAL_IBSHIFT );
+	tio.c_cflag |= SERIAL_BOTHER << SERIAL_IBSHIFT;
+	tio.c_ispeed = baud_rate;
+	tio.c_ospeed = baud_rate;
+	if( ioctl( fd, SERIAL_TCSETS2, &tio ) < 0 ){
+		return errno == EINVAL ? 0 : -1;
+	}
 
 	return 1;
 }
 
-static int set_raw_input( struct port_descriptor* desc ){
-	GET_SERIAL_PORT_STRUCT( desc->port, newio );
+/**
+ * @return The baud rate that was set with apply_custom_baud_rate(), or 0
+ */
+static int get_custom_baud_rate( int fd ){
+	struct serial_termios2 tio;
 
-#ifdef _WIN32
-	newio.fBinary = TRUE;
-	newio.fParity = TRUE;
-	newio.fOutxCtsFlow = FALSE;
-	newio.fOutxDsrFlow = FALSE;
-	newio.fDtrControl = DTR_CONTROL_DISABLE;
-	newio.fDsrSensitivity = FALSE;
-	newio.fOutX = FALSE;
-	newio.fInX = FALSE;
-	newio.fNull = FALSE;
-	newio.fRtsControl = FALSE;
-	
-	//Set the timeouts
-	{
-		COMMTIMEOUTS timeouts = {0};
-		timeouts.ReadIntervalTimeout = MAXDWORD;
-		timeouts.ReadTotalTimeoutMultiplier = 0;
-		timeouts.ReadTotalTimeoutConstant = 0;
-		timeouts.WriteTotalTimeoutMultiplier = 0;
-		timeouts.WriteTotalTimeoutConstant = 0;
-		if( SetCommTimeouts( desc->port, &timeouts ) == 0 ){
-		printf("bad timeout\n"); fflush(stdout);}
+	if( ioctl( fd, SERIAL_TCGETS2, &tio ) < 0 ){
+		return 0;
 	}
+
+	return tio.c_ospeed;
+}
+#endif /* HAVE_CUSTOM_BAUD_RATE */
+
+static void apply_raw_input( serial_settings* io ){
+#ifdef _WIN32
+	io->fBinary = TRUE;
+	io->fParity = TRUE;
+	io->fOutxCtsFlow = FALSE;
+	io->fOutxDsrFlow = FALSE;
+	io->fDtrControl = DTR_CONTROL_DISABLE;
+	io->fDsrSensitivity = FALSE;
+	io->fOutX = FALSE;
+	io->fInX = FALSE;
+	io->fNull = FALSE;
+	io->fRtsControl = FALSE;
 #else
-	newio.c_iflag |= IGNBRK;
-	newio.c_iflag &= ~BRKINT;
-	newio.c_iflag &= ~ICRNL;
-	newio.c_oflag = 0;
-	newio.c_lflag = 0;
-	newio.c_cc[VTIME] = 0;
-	newio.c_cc[VMIN] = 1;
+	io->c_iflag |= IGNBRK;
+	io->c_iflag &= ~BRKINT;
+	io->c_iflag &= ~ICRNL;
+	io->c_oflag = 0;
+	io->c_lflag = 0;
+	io->c_cc[VTIME] = 0;
+	io->c_cc[VMIN] = 1;
 #endif
-	
-	SET_SERIAL_PORT_STRUCT( desc->port, newio );
-
-	return 1;
 }
 
 /**
  * @param data_bits The number of data bits
  */
-static int set_data_bits( struct port_descriptor* desc, int data_bits ){
-	GET_SERIAL_PORT_STRUCT( desc->port, newio );
-
+static void apply_data_bits( serial_settings* io, int data_bits ){
 #ifdef _WIN32 
-	newio.ByteSize = data_bits;
+	io->ByteSize = data_bits;
 #else
-	newio.c_cflag &= ~CSIZE;
+	io->c_cflag &= ~CSIZE;
 	if( data_bits == 8 ){
-		newio.c_cflag |= CS8;
+		io->c_cflag |= CS8;
 	}else if( data_bits == 7 ){
-		newio.c_cflag |= CS7;
+		io->c_cflag |= CS7;
 	}else if( data_bits == 6 ){
-		newio.c_cflag |= CS6;
+		io->c_cflag |= CS6;
 	}else if( data_bits == 5 ){
-		newio.c_cflag |= CS5;
+		io->c_cflag |= CS5;
 	}
 #endif
-	
-	SET_SERIAL_PORT_STRUCT( desc->port, newio );
-
-	return 1;
 }
 
 /**
  * @param stop_bits 1 for 1, 2 for 2
  */
-static int set_stop_bits( struct port_descriptor* desc, int stop_bits ){
-	GET_SERIAL_PORT_STRUCT( desc->port, newio );
-
+static void apply_stop_bits( serial_settings* io, int stop_bits ){
 #ifdef _WIN32 
 	if( stop_bits == 1 ){
-		newio.StopBits = ONESTOPBIT;
+		io->StopBits = ONESTOPBIT;
 	}else if( stop_bits == 2 ){
-		newio.StopBits = TWOSTOPBITS;
+		io->StopBits = TWOSTOPBITS;
 	}
 #else
 	if( stop_bits == 1 ){
-		newio.c_cflag &= ~CSTOPB;
+		io->c_cflag &= ~CSTOPB;
 	}else if( stop_bits == 2 ){
-		newio.c_cflag |= CSTOPB;
+		io->c_cflag |= CSTOPB;
 	}
 #endif
-	
-	SET_SERIAL_PORT_STRUCT( desc->port, newio );
-
-	return 1;
 }
 
 /**
  * @param parity 0 for no parity, 1 for odd parity, 2 for even parity
  */
-static int set_parity( struct port_descriptor* desc, int parity ){
-	GET_SERIAL_PORT_STRUCT( desc->port, newio );
-
+static void apply_parity( serial_settings* io, int parity ){
 #ifdef _WIN32 
 	if( parity == 0 ){
-		newio.Parity = NOPARITY;
+		io->Parity = NOPARITY;
 	}else if( parity == 1 ){
-		newio.Parity = ODDPARITY;
+		io->Parity = ODDPARITY;
 	}else if( parity == 2 ){
-		newio.Parity = EVENPARITY;
+		io->Parity = EVENPARITY;
 	}
 #else
-	newio.c_iflag &= ~IGNPAR; 
-	newio.c_cflag &= ~( PARODD | PARENB );
+	io->c_iflag &= ~IGNPAR; 
+	io->c_cflag &= ~( PARODD | PARENB );
 	if( parity == 0 ){
-		newio.c_iflag |= IGNPAR;
+		io->c_iflag |= IGNPAR;
 	}else if( parity == 1 ){
-		newio.c_cflag |= PARODD;
+		io->c_cflag |= PARODD;
 	}else if( parity == 2 ){
-		newio.c_cflag |= PARENB;
+		io->c_cflag |= PARENB;
 	}
 #endif
-	
-	SET_SERIAL_PORT_STRUCT( desc->port, newio );
-
-	return 1;
 }
 
 /**
  * @param flow_control 0 for none, 1 for hardware, 2 for software
  */
-static int set_flow_control( struct port_descriptor* desc, int flow_control ){
-	GET_SERIAL_PORT_STRUCT( desc->port, newio );
-
+static void apply_flow_control( serial_settings* io, int flow_control ){
 #ifdef _WIN32
 	if( flow_control == 0 ){
-		newio.fOutxCtsFlow = FALSE;
-		newio.fRtsControl = FALSE;
-		newio.fOutX = FALSE;
-		newio.fInX = FALSE;
+		io->fOutxCtsFlow = FALSE;
+		io->fRtsControl = FALSE;
+		io->fOutX = FALSE;
+		io->fInX = FALSE;
 	}else if( flow_control == 1 ){
-		newio.fOutxCtsFlow = TRUE;
-		newio.fRtsControl = TRUE;
-		newio.fOutX = FALSE;
-		newio.fInX = FALSE;
+		io->fOutxCtsFlow = TRUE;
+		io->fRtsControl = TRUE;
+		io->fOutX = FALSE;
+		io->fInX = FALSE;
 	}else if( flow_control == 2 ){
-		newio.fOutxCtsFlow = FALSE;
-		newio.fRtsControl = FALSE;
-		newio.fOutX = TRUE;
-		newio.fInX = TRUE;
+		io->fOutxCtsFlow = FALSE;
+		io->fRtsControl = FALSE;
+		io->fOutX = TRUE;
+		io->fInX = TRUE;
 	}
 #else
-	newio.c_iflag &= ~( IXON | IXOFF | IXANY );
-	newio.c_cflag &= ~HW_FLOW;
+	io->c_iflag &= ~( IXON | IXOFF | IXANY );
+	io->c_cflag &= ~HW_FLOW;
 	if( flow_control == 0 ){
-		newio.c_iflag &= ~( IXON | IXOFF | IXANY );
+		io->c_iflag &= ~( IXON | IXOFF | IXANY );
 	}else if( flow_control == 1 ){
-		newio.c_cflag |= HW_FLOW;
+		io->c_cflag |= HW_FLOW;
 	}else if( flow_control == 2 ){
-		newio.c_iflag |= ( IXON | IXOFF | IXANY );
+		io->c_iflag |= ( IXON | IXOFF | IXANY );
 	}
 #endif
-	
-	SET_SERIAL_PORT_STRUCT( desc->port, newio );
+}
+
+/**
+ * Set all of the port settings with a single tcgetattr/tcsetattr pair, so
+ * the port never runs with only some of the new settings.
+ *
+ * @param raw_input 1 to also put the port into raw mode(done on open)
+ * @param drain 1 to wait for all output to be transmitted before changing
+ * @return 1 on success, 0 if the baud rate is not supported, -1 on error
+ * (errno/GetLastError() has the reason)
+ */
+static int apply_settings( struct port_descriptor* desc, int baud_rate, int data_bits,
+		int stop_bits, int parity, int flow_control, int raw_input, int drain ){
+	int baud_rc;
+	GET_SERIAL_PORT_STRUCT( desc->port, newio );
+
+	baud_rc = apply_baud_rate( &newio, baud_rate );
+	if( !baud_rc ){
+		return 0;
+	}
+	if( raw_input ){
+		apply_raw_input( &newio );
+	}
+	apply_data_bits( &newio, data_bits );
+	apply_stop_bits( &newio, stop_bits );
+	apply_parity( &newio, parity );
+	apply_flow_control( &newio, flow_control );
+
+#ifdef _WIN32
+	if( drain ){
+		FlushFileBuffers( desc->port );
+	}
+	if( !SetCommState( desc->port, &newio ) ){
+		return -1;
+	}
+
+	if( raw_input ){
+		//Set the timeouts
+		COMMTIMEOUTS timeouts = {0};
+		timeouts.ReadIntervalTimeout = MAXDWORD;
+		timeouts.ReadTotalTimeoutMultiplier = 0;
+		timeouts.ReadTotalTimeoutConstant = 0;
+		timeouts.WriteTotalTimeoutMultiplier = 0;
+		timeouts.WriteTotalTimeoutConstant = 0;
+		if( SetCommTimeouts( desc->port, &timeouts ) == 0 ){
+			return -1;
+		}
+	}
+#else
+	if( tcsetattr( desc->port, drain ? TCSADRAIN : TCSANOW, &newio ) < 0 ){
+		return -1;
+	}
+#ifdef HAVE_CUSTOM_BAUD_RATE
+	if( baud_rc == 2 ){
+		return apply_custom_baud_rate( desc->port, baud_rate );
+	}
+#endif
+#endif
 
 	return 1;
 }
@@ -437,6 +891,43 @@ static void throw_io_exception_message( JNIEnv * env, const char* message ){
 	(*env)->ThrowNew(env, exception_class, message );
 }
 
+/*
+ * Check to see if an error from the port means that the device has
+ * gone away(e.g. a USB adapter has been unplugged).
+ */
+static int is_disconnect_error( int errorNumber ){
+#ifdef _WIN32
+	return errorNumber == ERROR_ACCESS_DENIED ||
+		errorNumber == ERROR_BAD_COMMAND ||
+		errorNumber == ERROR_DEVICE_NOT_CONNECTED ||
+		errorNumber == ERROR_GEN_FAILURE ||
+		errorNumber == ERROR_OPERATION_ABORTED;
+#else
+	return errorNumber == EIO || errorNumber == ENXIO || errorNumber == ENODEV;
+#endif /* _WIN32 */
+}
+
+static void throw_disconnected_exception( JNIEnv* env ){
+	jclass exception_class;
+	(*env)->ExceptionDescribe( env );
+	(*env)->ExceptionClear( env );
+	exception_class = (*env)->FindClass(env, "com/rm5248/serial/PortDisconnectedException");
+	(*env)->ThrowNew(env, exception_class, "The device has been disconnected" );
+}
+
+/*
+ * Throw the exception for a read or write that failed with the given error:
+ * a PortDisconnectedException if the device has gone away, otherwise a
+ * normal IOException.
+ */
+static void throw_port_error( JNIEnv* env, int errorNumber ){
+	if( is_disconnect_error( errorNumber ) ){
+		throw_disconnected_exception( env );
+	}else{
+		throw_io_exception( env, errorNumber );
+	}
+}
+
 static struct port_descriptor* get_port_descriptor( JNIEnv* env, jobject obj ){
 	int array_pos;
 	struct port_descriptor* desc;
@@ -455,1399 +946,5368 @@ static struct port_descriptor* get_port_descriptor( JNIEnv* env, jobject obj ){
 	return desc;
 }
 
-//
-// JNI Methods
-//
+#ifdef __linux__
+static void edge_capture_release( struct edge_capture* edges ){
+	if( __atomic_sub_fetch( &(edges->refs), 1, __ATOMIC_ACQ_REL ) != 0 ){
+		return;
+	}
+
+	close( edges->fd );
+	pthread_mutex_destroy( &(edges->lock) );
+	pthread_cond_destroy( &(edges->cond) );
+	free( edges->records );
+	free( edges );
+}
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    openPort
- * Signature: (Ljava/lang/String;IIIII)I
+ * Get the capture on this port, with a reference that the caller must
+ * release.  NULL if there is no capture.
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPort
-  (JNIEnv * env, jobject obj, jstring port, jint baudRate, jint dataBits, jint stopBits, jint parity, jint flowControl){
-	struct port_descriptor* new_port;
-	int list_pos;
-	int found = 0;
-	const char* port_to_open;
-	jboolean iscopy;
-
-	port_to_open = (*env)->GetStringUTFChars( env, port, &iscopy );
+static struct edge_capture* edge_capture_get( struct port_descriptor* desc ){
+	struct edge_capture* edges;
 
-	if( port_list == NULL ){
-		log_message( MESSAGE_TRACE, env, "First port opened: allocating 10 port_descriptors" );
-		port_list = malloc( sizeof( struct port_descriptor* ) * 10 );
-		port_list_size = 10;
-		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
-			port_list[ list_pos ] = NULL;
-		}
+	pthread_mutex_lock( &edges_lock );
+	edges = desc->edges;
+	if( edges != NULL ){
+		__atomic_add_fetch( &(edges->refs), 1, __ATOMIC_ACQ_REL );
 	}
+	pthread_mutex_unlock( &edges_lock );
 
-	//Search thru the port_list, find the first one that is NULL
-	for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
-		if( port_list[ list_pos ] == NULL ){
-			found = 1;
-			break;
+	return edges;
+}
+
+static void edge_wakeup_handler( int signum ){
+	//Nothing to do, we only need TIOCMIWAIT to return EINTR
+	(void)signum;
+}
+
+static void edge_install_signal( void ){
+	struct sigaction action;
+
+	memset( &action, 0, sizeof( action ) );
+	action.sa_handler = edge_wakeup_handler;
+	sigemptyset( &action.sa_mask );
+	//No SA_RESTART, or the ioctl would just be started again
+	action.sa_flags = 0;
+	sigaction( EDGE_WAKEUP_SIGNAL, &action, NULL );
+}
+
+/*
+ * Stop a capture and drop the Java side's reference, waiting a little while
+ * for the capture thread to go away.  The thread is signalled until it
+ * notices, since the signal may come in just before it goes into TIOCMIWAIT.
+ */
+static void edge_capture_finish( struct edge_capture* edges ){
+	struct timespec deadline;
+	int tries;
+
+	__atomic_store_n( &(edges->stop), 1, __ATOMIC_SEQ_CST );
+
+	pthread_mutex_lock( &(edges->lock) );
+	for( tries = 0; tries < 100 && !__atomic_load_n( &(edges->done), __ATOMIC_SEQ_CST ); tries++ ){
+		//The thread can't have gone yet, since it sets done under this lock
+		pthread_kill( edges->thread, EDGE_WAKEUP_SIGNAL );
+
+		clock_gettime( CLOCK_REALTIME, &deadline );
+		deadline.tv_nsec += 10 * 1000000L;
+		if( deadline.tv_nsec >= 1000000000L ){
+			deadline.tv_sec++;
+			deadline.tv_nsec -= 1000000000L;
 		}
+		pthread_cond_timedwait( &(edges->cond), &(edges->lock), &deadline );
 	}
+	pthread_mutex_unlock( &(edges->lock) );
 
-	if( !found ){
-		//no free slots.  Expand our array by 10 elements
-		struct port_descriptor** tmpPortDesc;
-		tmpPortDesc = malloc( sizeof( struct port_descriptor* ) * ( port_list_size + 10 ) );
+	edge_capture_release( edges );
+}
 
-		log_message( MESSAGE_TRACE, env, "No free slots found: expanding port_descirptor array by 10 elements" );
+/*
+ * Stop capturing control line changes on this port.
+ */
+static void edge_capture_stop( struct port_descriptor* desc ){
+	struct edge_capture* edges;
 
-		//put all elements into the new array
-		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
-			tmpPortDesc[ list_pos ] = port_list[ list_pos ];
-		}
-		++list_pos; //put the place to insert the new record one past the old records
+	pthread_mutex_lock( &edges_lock );
+	edges = desc->edges;
+	desc->edges = NULL;
+	pthread_mutex_unlock( &edges_lock );
 
-		port_list_size += 10;
-	
-		//free the old array, set it to the new one
-		free( port_list );
-		port_list = tmpPortDesc;
+	if( edges != NULL ){
+		edge_capture_finish( edges );
 	}
+}
+#endif /* __linux__ */
 
-	//at this point, list_pos points to a NULL location in our array
-	new_port = malloc( sizeof( struct port_descriptor ) );
+#ifndef _WIN32
+static void sleep_millis( int millis ){
+	struct timespec delay;
 
-	//Now, let's get to the actual opening of our port
-#ifdef _WIN32
-	new_port->winDTR = 0;
-	new_port->winRTS = 0;
-	{
-		//GOD DAMN IT WINDOWS http://support.microsoft.com/kb/115831
-		char* special_port = malloc( strlen( port_to_open ) + 5 );
-		memcpy( special_port, "\\\\.\\", 4 );
-		memcpy( special_port + 4, port_to_open, strlen( port_to_open ) + 1 );
+	delay.tv_sec = millis / 1000;
+	delay.tv_nsec = ( millis % 1000 ) * 1000000L;
+	while( nanosleep( &delay, &delay ) < 0 && errno == EINTR ){}
+}
+
+/*
+ * Get the state of the modem lines.  Pseudo-terminals(and some USB adapters)
+ * don't have any, and fail with EINVAL or ENOTTY; those are treated as all of
+ * the lines being clear.  Returns -1 with errno set on any other failure.
+ */
+static int get_modem_lines( int fd, int* lines ){
+	if( ioctl( fd, TIOCMGET, lines ) < 0 ){
+		if( errno == EINVAL || errno == ENOTTY ){
+			*lines = 0;
+			return 0;
+		}
+		return -1;
+	}
+
+	return 0;
+}
+
+/*
+ * Set or clear modem lines.  Like get_modem_lines(), a port without modem
+ * lines is not an error; there is just nothing to change.
+ */
+static int change_modem_lines( int fd, int request, int lines ){
+	if( ioctl( fd, request, &lines ) < 0 ){
+		if( errno == EINVAL || errno == ENOTTY ){
+			return 0;
+		}
+		return -1;
+	}
+
+	return 0;
+}
+
+static int set_rts( int fd, int on ){
+	int bits = TIOCM_RTS;
+
+	return ioctl( fd, on ? TIOCMBIS : TIOCMBIC, &bits );
+}
+
+/*
+ * Get ready to write in RS-485 mode: if we are switching RTS ourselves,
+ * turn RTS on.  Returns -1 with errno set on failure.
+ */
+static int rs485_begin_send( struct rs485_state* rs485, int fd ){
+	if( rs485 == NULL || rs485->hardware ){
+		return 0;
+	}
+
+	pthread_mutex_lock( &(rs485->write_lock) );
+	if( set_rts( fd, rs485->rts_on_send ) < 0 ){
+		int error = errno;
+		pthread_mutex_unlock( &(rs485->write_lock) );
+		errno = error;
+		return -1;
+	}
+
+	if( rs485->delay_before_millis > 0 ){
+		sleep_millis( rs485->delay_before_millis );
+	}
+
+	return 0;
+}
+
+/*
+ * Done writing in RS-485 mode: wait for the data to actually go out, then
+ * turn RTS back off.  Returns -1 with errno set on failure.
+ */
+static int rs485_end_send( struct rs485_state* rs485, int fd ){
+	int rc = 0;
+	int error = 0;
+
+	if( rs485 == NULL || rs485->hardware ){
+		return 0;
+	}
+
+	if( tcdrain( fd ) < 0 ){
+		rc = -1;
+		error = errno;
+	}
+
+	if( rs485->delay_after_millis > 0 ){
+		sleep_millis( rs485->delay_after_millis );
+	}
+
+	if( set_rts( fd, !rs485->rts_on_send ) < 0 && rc == 0 ){
+		rc = -1;
+		error = errno;
+	}
+	pthread_mutex_unlock( &(rs485->write_lock) );
+
+	errno = error;
+	return rc;
+}
+
+/*
+ * We are about to send(or failed to send) this many bytes; if we are
+ * throwing away our own echo, expect that many more(or fewer) bytes back.
+ */
+static void rs485_expect_echo( struct rs485_state* rs485, int count ){
+	if( rs485 == NULL || !rs485->discard_echo ){
+		return;
+	}
+
+	__atomic_add_fetch( &(rs485->echo_pending), count, __ATOMIC_ACQ_REL );
+}
+
+/*
+ * Get the current CLOCK_MONOTONIC time in nanoseconds.  On Linux, this is the
+ * same clock that System.nanoTime() uses.
+ */
+static jlong monotonic_nanos(){
+	struct timespec now;
+	clock_gettime( CLOCK_MONOTONIC, &now );
+	return (jlong)now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+/*
+ * Set up a condition that can be waited on with cond_wait_until().  Only
+ * Linux lets a condition use CLOCK_MONOTONIC; elsewhere it uses the default
+ * clock, and cond_wait_until() works out the wait from that.
+ */
+static void cond_init_monotonic( pthread_cond_t* cond ){
+#ifdef __linux__
+	pthread_condattr_t cond_attr;
+
+	pthread_condattr_init( &cond_attr );
+	pthread_condattr_setclock( &cond_attr, CLOCK_MONOTONIC );
+	pthread_cond_init( cond, &cond_attr );
+	pthread_condattr_destroy( &cond_attr );
+#else
+	pthread_cond_init( cond, NULL );
+#endif
+}
+
+/*
+ * Wait on a condition from cond_init_monotonic() until the given
+ * CLOCK_MONOTONIC time.  Must hold the lock.
+ *
+ * @return 0 if woken up, ETIMEDOUT if the time has passed
+ */
+static int cond_wait_until( pthread_cond_t* cond, pthread_mutex_t* lock, jlong deadline ){
+	struct timespec ts;
+#ifdef __linux__
+	ts.tv_sec = deadline / 1000000000LL;
+	ts.tv_nsec = deadline % 1000000000LL;
+	return pthread_cond_timedwait( cond, lock, &ts );
+#else
+	jlong remaining = deadline - monotonic_nanos();
+
+	if( remaining <= 0 ){
+		return ETIMEDOUT;
+	}
+#ifdef __APPLE__
+	ts.tv_sec = remaining / 1000000000LL;
+	ts.tv_nsec = remaining % 1000000000LL;
+	return pthread_cond_timedwait_relative_np( cond, lock, &ts );
+#else
+	clock_gettime( CLOCK_REALTIME, &ts );
+	remaining += ts.tv_nsec;
+	ts.tv_sec += remaining / 1000000000LL;
+	ts.tv_nsec = remaining % 1000000000LL;
+	return pthread_cond_timedwait( cond, lock, &ts );
+#endif
+#endif
+}
+
+/*
+ * Sleep until the given CLOCK_MONOTONIC time.
+ */
+static void sleep_until( jlong deadline ){
+	struct timespec ts;
+#ifdef __linux__
+	ts.tv_sec = deadline / 1000000000LL;
+	ts.tv_nsec = deadline % 1000000000LL;
+	while( clock_nanosleep( CLOCK_MONOTONIC, TIMER_ABSTIME, &ts, NULL ) == EINTR );
+#else
+	//No clock_nanosleep() on macOS; sleep for whatever is left until we get there
+	jlong remaining;
+
+	while( ( remaining = deadline - monotonic_nanos() ) > 0 ){
+		ts.tv_sec = remaining / 1000000000LL;
+		ts.tv_nsec = remaining % 1000000000LL;
+		nanosleep( &ts, NULL );
+	}
+#endif
+}
+
+/*
+ * Wait for everything that has been written to go out, hold the line in the
+ * break state for break_nanos, then let it idle(mark) for mab_nanos.
+ * Returns -1 with errno set on failure.
+ */
+static int send_break( int fd, jlong break_nanos, jlong mab_nanos ){
+	if( tcdrain( fd ) < 0 ){
+		return -1;
+	}
+
+	if( ioctl( fd, TIOCSBRK ) < 0 ){
+		return -1;
+	}
+	sleep_until( monotonic_nanos() + break_nanos );
+	if( ioctl( fd, TIOCCBRK ) < 0 ){
+		return -1;
+	}
+
+	if( mab_nanos > 0 ){
+		sleep_until( monotonic_nanos() + mab_nanos );
+	}
+
+	return 0;
+}
+
+#define CAPTURE_HEADER_SIZE 64
+#define CAPTURE_RECORD_HEADER_SIZE 16
+#define CAPTURE_MAGIC "JSCAPTUR"
+#define CAPTURE_BYTE_ORDER_MARK 0x01020304
+#define CAPTURE_VERSION 1
+#define CAPTURE_RECEIVED 0
+#define CAPTURE_TRANSMITTED 1
+
+/*
+ * Close the current segment, cutting the file down to what was written.
+ * Must be called with the lock held.
+ */
+static void capture_close_segment( struct capture* capture ){
+	if( capture->map != NULL ){
+		munmap( capture->map, capture->map_size );
+		capture->map = NULL;
+	}
+	if( capture->fd >= 0 ){
+		if( ftruncate( capture->fd, capture->offset ) < 0 ){
+			//Not a problem; the rest of the file is zeros, which ends the segment
+		}
+		close( capture->fd );
+		capture->fd = -1;
+	}
+}
+
+/*
+ * Start the next segment file, and remove the oldest one if we are only
+ * keeping some of them.  Must be called with the lock held.
+ * Returns 0, or -1 with errno set.
+ */
+static int capture_open_segment( struct capture* capture ){
+	char* path;
+	size_t path_len = strlen( capture->base_path ) + 24;
+	jlong header[ 3 ];
+	jint marks[ 2 ];
+	struct timespec realtime;
+	int error;
+
+	capture_close_segment( capture );
+	capture->segment++;
+
+	path = malloc( path_len );
+	if( path == NULL ){
+		errno = ENOMEM;
+		return -1;
+	}
+
+	if( capture->max_segments > 0 && capture->segment >= capture->max_segments ){
+		snprintf( path, path_len, "%s.%lld", capture->base_path,
+			(long long)( capture->segment - capture->max_segments ) );
+		unlink( path );
+	}
+
+	snprintf( path, path_len, "%s.%lld", capture->base_path, (long long)capture->segment );
+	capture->fd = open( path, O_RDWR | O_CREAT | O_TRUNC, 0644 );
+	error = errno;
+	free( path );
+	if( capture->fd < 0 ){
+		errno = error;
+		return -1;
+	}
+
+	if( ftruncate( capture->fd, capture->map_size ) < 0 ){
+		error = errno;
+		close( capture->fd );
+		capture->fd = -1;
+		errno = error;
+		return -1;
+	}
+
+	capture->map = mmap( NULL, capture->map_size, PROT_READ | PROT_WRITE, MAP_SHARED, capture->fd, 0 );
+	if( capture->map == MAP_FAILED ){
+		error = errno;
+		capture->map = NULL;
+		close( capture->fd );
+		capture->fd = -1;
+		errno = error;
+		return -1;
+	}
+
+	clock_gettime( CLOCK_REALTIME, &realtime );
+	marks[ 0 ] = CAPTURE_BYTE_ORDER_MARK;
+	marks[ 1 ] = CAPTURE_VERSION;
+	header[ 0 ] = capture->segment;
+	header[ 1 ] = monotonic_nanos();
+	header[ 2 ] = (jlong)realtime.tv_sec * 1000000000LL + realtime.tv_nsec;
+	memcpy( capture->map, CAPTURE_MAGIC, 8 );
+	memcpy( capture->map + 8, marks, sizeof( marks ) );
+	memcpy( capture->map + 16, header, sizeof( header ) );
+	capture->offset = CAPTURE_HEADER_SIZE;
+
+	return 0;
+}
+
+/*
+ * Stop capturing.  Must be called with the lock held.
+ */
+static void capture_stop_locked( struct capture* capture ){
+	capture_close_segment( capture );
+	__atomic_store_n( &(capture->active), 0, __ATOMIC_RELEASE );
+	free( capture->base_path );
+	capture->base_path = NULL;
+}
+
+static int capture_active( struct capture* capture ){
+	return capture != NULL && __atomic_load_n( &(capture->active), __ATOMIC_ACQUIRE );
+}
+
+/*
+ * Record data that went in or out of the port.  If it doesn't fit in what is
+ * left of the segment, it is split up across segments.
+ */
+static void capture_record( struct capture* capture, jint direction, const void* data, size_t len ){
+	const unsigned char* bytes = data;
+	jlong now;
+	jint length;
+	size_t piece;
+	unsigned char* record;
+
+	if( len == 0 || !capture_active( capture ) ){
+		return;
+	}
+
+	now = monotonic_nanos();
+	pthread_mutex_lock( &(capture->lock) );
+	while( capture->active && len > 0 ){
+		if( capture->offset + CAPTURE_RECORD_HEADER_SIZE + 8 > capture->map_size ){
+			if( capture_open_segment( capture ) < 0 ){
+				capture->error = errno;
+				capture_stop_locked( capture );
+				break;
+			}
+		}
+
+		piece = capture->map_size - capture->offset - CAPTURE_RECORD_HEADER_SIZE;
+		if( piece > len ){
+			piece = len;
+		}
+
+		record = capture->map + capture->offset;
+		memcpy( record + CAPTURE_RECORD_HEADER_SIZE, bytes, piece );
+		memcpy( record, &now, sizeof( now ) );
+		memcpy( record + 12, &direction, sizeof( direction ) );
+		//Length goes in last, so that somebody reading the file as we go
+		//never sees a record that isn't finished
+		length = piece;
+		__atomic_store_n( (jint*)( record + 8 ), length, __ATOMIC_RELEASE );
+
+		capture->offset += ( CAPTURE_RECORD_HEADER_SIZE + piece + 7 ) & ~(size_t)7;
+		bytes += piece;
+		len -= piece;
+	}
+	pthread_mutex_unlock( &(capture->lock) );
+}
+
+#define READ_ONLY_ECHO -2
+
+/*
+ * read() from the port, capturing what we read and throwing away any of our
+ * own bytes that have come back to us.  Returns the same as read(), or
+ * READ_ONLY_ECHO if everything that we read was thrown away.
+ */
+static int read_port( struct rs485_state* rs485, struct capture* capture, int fd, void* buf, int len ){
+	int stat;
+	int pending;
+	int drop;
+
+	stat = read( fd, buf, len );
+	if( stat > 0 ){
+		//Capture what was actually on the wire, echo and all
+		capture_record( capture, CAPTURE_RECEIVED, buf, stat );
+	}
+	if( stat <= 0 || rs485 == NULL || !rs485->discard_echo ){
+		return stat;
+	}
+
+	pending = __atomic_load_n( &(rs485->echo_pending), __ATOMIC_ACQUIRE );
+	while( pending > 0 ){
+		drop = pending < stat ? pending : stat;
+		if( __atomic_compare_exchange_n( &(rs485->echo_pending), &pending, pending - drop,
+				0, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE ) ){
+			if( drop == stat ){
+				return READ_ONLY_ECHO;
+			}
+			memmove( buf, (char*)buf + drop, stat - drop );
+			stat -= drop;
+			break;
+		}
+	}
+
+	return stat;
+}
+
+static void close_pipe( int fds[ 2 ] ){
+	if( fds[ 0 ] >= 0 ){
+		close( fds[ 0 ] );
+		close( fds[ 1 ] );
+		fds[ 0 ] = -1;
+		fds[ 1 ] = -1;
+	}
+}
+
+static void bridge_free( JNIEnv* env, struct bridge* bridge ){
+	if( bridge->listen_fd >= 0 ){
+		close( bridge->listen_fd );
+	}
+	if( bridge->client_fd >= 0 ){
+		close( bridge->client_fd );
+	}
+	if( bridge->unix_path[ 0 ] != 0 ){
+		unlink( bridge->unix_path );
+	}
+	close_pipe( bridge->wake_pipe );
+	close_pipe( bridge->to_client_pipe );
+	close_pipe( bridge->to_port_pipe );
+	if( bridge->java_bridge != NULL ){
+		(*env)->DeleteGlobalRef( env, bridge->java_bridge );
+	}
+	pthread_mutex_destroy( &(bridge->lock) );
+	free( bridge );
+}
+
+/*
+ * Stop a bridge thread, wait for it to finish, and free the bridge.
+ */
+static void bridge_stop_thread( JNIEnv* env, struct bridge* bridge ){
+	char wake = 0;
+
+	pthread_mutex_lock( &(bridge->lock) );
+	bridge->stop = 1;
+	if( bridge->client_fd >= 0 ){
+		//Get the thread out of any write to the client
+		shutdown( bridge->client_fd, SHUT_RDWR );
+	}
+	pthread_mutex_unlock( &(bridge->lock) );
+	while( write( bridge->wake_pipe[ 1 ], &wake, 1 ) < 0 && errno == EINTR ){}
+	pthread_join( bridge->thread, NULL );
+	bridge_free( env, bridge );
+}
+
+/*
+ * Stop forwarding this port, if it is being forwarded.
+ */
+static void bridge_stop( JNIEnv* env, struct port_descriptor* desc ){
+	struct bridge* bridge;
+
+	//Only one caller gets the bridge; it does the stopping outside of the lock
+	pthread_mutex_lock( &bridge_lock );
+	bridge = desc->bridge;
+	desc->bridge = NULL;
+	pthread_mutex_unlock( &bridge_lock );
+
+	if( bridge != NULL ){
+		bridge_stop_thread( env, bridge );
+	}
+}
+
+/*
+ * Stop sending DMX frames on this port, and wait for the thread to exit.
+ */
+static void dmx_stop( struct port_descriptor* desc ){
+	struct dmx_transmitter* dmx;
+
+	//DmxTransmitter and SerialPort can both get here; only one gets the transmitter
+	pthread_mutex_lock( &dmx_lock );
+	dmx = desc->dmx;
+	desc->dmx = NULL;
+	pthread_mutex_unlock( &dmx_lock );
+
+	if( dmx == NULL ){
+		return;
+	}
+
+	pthread_mutex_lock( &(dmx->lock) );
+	dmx->stop = 1;
+	pthread_cond_broadcast( &(dmx->cond) );
+	pthread_mutex_unlock( &(dmx->lock) );
+	pthread_join( dmx->thread, NULL );
+
+	pthread_mutex_destroy( &(dmx->lock) );
+	pthread_cond_destroy( &(dmx->cond) );
+	free( dmx );
+}
+#endif /* _WIN32 */
+
+//
+// JNI Methods
+//
+
+JNIEXPORT jint JNICALL JNI_OnLoad( JavaVM* vm, void* reserved ){
+	JNIEnv* env;
+	jclass cls;
+	jfieldID fid;
+	int x;
+
+	java_vm = vm;
+	if( (*vm)->GetEnv( vm, (void**)&env, JNI_VERSION_1_6 ) != JNI_OK ){
+		return JNI_VERSION_1_6;
+	}
+
+	for( x = 0; handle_class_names[ x ] != NULL; x++ ){
+		cls = (*env)->FindClass( env, handle_class_names[ x ] );
+		if( cls == NULL ){
+			(*env)->ExceptionClear( env );
+			continue;
+		}
+
+		fid = (*env)->GetFieldID( env, cls, "handle", "I" );
+		if( fid == NULL ){
+			(*env)->ExceptionClear( env );
+			continue;
+		}
+
+		handle_classes[ handle_classes_size ] = (*env)->NewGlobalRef( env, cls );
+		handle_field_ids[ handle_classes_size ] = fid;
+		handle_classes_size++;
+	}
+
+	return JNI_VERSION_1_6;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    openPort
+ * Signature: (Ljava/lang/String;IIIII)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPort__Ljava_lang_String_2IIIII
+  (JNIEnv * env, jobject obj, jstring port, jint baudRate, jint dataBits, jint stopBits, jint parity, jint flowControl){
+	struct port_descriptor* new_port;
+	int list_pos;
+	int found = 0;
+	const char* port_to_open;
+	jboolean iscopy;
+
+	port_to_open = (*env)->GetStringUTFChars( env, port, &iscopy );
+
+	if( port_list == NULL ){
+		log_message( MESSAGE_TRACE, env, "First port opened: allocating 10 port_descriptors" );
+		port_list = malloc( sizeof( struct port_descriptor* ) * 10 );
+		port_list_size = 10;
+		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+			port_list[ list_pos ] = NULL;
+		}
+	}
+
+	//Search thru the port_list, find the first one that is NULL
+	for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+		if( port_list[ list_pos ] == NULL ){
+			found = 1;
+			break;
+		}
+	}
+
+	if( !found ){
+		//no free slots.  Expand our array by 10 elements
+		struct port_descriptor** tmpPortDesc;
+		tmpPortDesc = malloc( sizeof( struct port_descriptor* ) * ( port_list_size + 10 ) );
+
+		log_message( MESSAGE_TRACE, env, "No free slots found: expanding port_descirptor array by 10 elements" );
+
+		//put all elements into the new array
+		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+			tmpPortDesc[ list_pos ] = port_list[ list_pos ];
+		}
+		++list_pos; //put the place to insert the new record one past the old records
+
+		port_list_size += 10;
+	
+		//free the old array, set it to the new one
+		free( port_list );
+		port_list = tmpPortDesc;
+	}
+
+	//at this point, list_pos points to a NULL location in our array
+	new_port = malloc( sizeof( struct port_descriptor ) );
+
+	//Now, let's get to the actual opening of our port
+#ifdef _WIN32
+	new_port->winDTR = 0;
+	new_port->winRTS = 0;
+	{
+		//GOD DAMN IT WINDOWS http://support.microsoft.com/kb/115831
+		char* special_port = malloc( strlen( port_to_open ) + 5 );
+		memcpy( special_port, "\\\\.\\", 4 );
+		memcpy( special_port + 4, port_to_open, strlen( port_to_open ) + 1 );
+		new_port->port = CreateFile( special_port, GENERIC_READ | GENERIC_WRITE, 0, 0, OPEN_EXISTING, FILE_FLAG_OVERLAPPED, 0 );
+		free( special_port );
+	}
+	if( new_port->port == INVALID_HANDLE_VALUE ){
+		if( GetLastError() == ERROR_FILE_NOT_FOUND ){
+			LPTSTR error_text = NULL;
+			jclass exception_class;
+			
+			FormatMessage(
+				FORMAT_MESSAGE_FROM_SYSTEM | FORMAT_MESSAGE_ALLOCATE_BUFFER | FORMAT_MESSAGE_IGNORE_INSERTS,
+				NULL,
+				GetLastError(),
+				MAKELANGID(LANG_NEUTRAL, SUBLANG_DEFAULT),
+				(LPTSTR)&error_text,
+				0,
+				NULL );
+		
+			(*env)->ExceptionDescribe( env );
+			(*env)->ExceptionClear( env );
+			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
+			(*env)->ThrowNew(env, exception_class, error_text );
+			free( new_port );
+			LocalFree( error_text );
+			return -1; 
+		}
+	}
+	
+	{
+		//Let's check to see if this is a serial port
+		DCB io_name = {0};
+		io_name.DCBlength = sizeof( io_name ); 
+		if (!GetCommState( new_port->port, &io_name ) ) { 
+			LPTSTR error_text = NULL;
+			jclass exception_class;
+			(*env)->ExceptionDescribe( env );
+			(*env)->ExceptionClear( env );
+			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
+			(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
+			free( new_port );
+			return -1;
+		}
+	}
+	
+	//initialize the mutex
+	new_port->in_use = CreateMutex( NULL, FALSE, NULL );
+	if( new_port->in_use == NULL ){
+		LPTSTR error_text = NULL;
+		jclass exception_class;
+		(*env)->ExceptionDescribe( env );
+		(*env)->ExceptionClear( env );
+		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
+		(*env)->ThrowNew(env, exception_class, "UNABLE TO CREATE MUTEX(use better msg)" );
+		free( new_port );
+		return -1;
+	}
+	
+#else
+	pthread_mutex_init( &(new_port->in_use), NULL );
+	new_port->ring = NULL;
+	new_port->edges = NULL;
+	new_port->rs485 = NULL;
+	new_port->bridge = NULL;
+	memset( &(new_port->capture), 0, sizeof( struct capture ) );
+	new_port->capture.fd = -1;
+	pthread_mutex_init( &(new_port->capture.lock), NULL );
+	new_port->pty_slave = -1;
+	new_port->pace_next = 0;
+	new_port->dmx = NULL;
+	new_port->port = open( port_to_open, O_RDWR );
+	if( new_port->port < 0 && errno == ENOENT ){
+		//That's not a valid serial port, error out
+		jclass exception_class;
+		(*env)->ExceptionDescribe( env );
+		(*env)->ExceptionClear( env );
+		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
+		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
+		free( new_port );
+		return -1; 
+	}else if( new_port->port < 0 ){
+		jclass exception_class;
+		(*env)->ExceptionDescribe( env );
+		(*env)->ExceptionClear( env );
+		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
+		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
+		free( new_port );
+		return -1;
+	}
+	
+	{
+		struct termios io_name; 
+		if( tcgetattr( new_port->port, &io_name ) < 0 ){ 
+			if( errno == ENOTTY ){
+				//This is apparently not a serial port
+				jclass exception_class;
+				(*env)->ExceptionDescribe( env );
+				(*env)->ExceptionClear( env );
+				exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
+				(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
+				close( new_port->port );
+				free( new_port );
+				return -1;
+			}
+		}
+	}
+#endif /* __WIN32 */
+
+
+	
+	//Set everything in one go
+	if( apply_settings( new_port, baudRate, dataBits, stopBits, parity, flowControl, 1, 0 ) <= 0 ){
+			throw_io_exception_message( env, "Unable to set serial port settings" );
+#ifdef _WIN32
+			ReleaseMutex( new_port->in_use );
+			CloseHandle( new_port->in_use );
+#endif
+			close( new_port->port );
+			free( new_port );
+			return -1;
+	}
+
+	//Only set the new_port to be in our array as the last instruction
+	//If there are any errors, we will have returned long before this
+	port_list[ list_pos ] = new_port;
+
+	return list_pos;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    openPort
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPort__Ljava_lang_String_2
+  (JNIEnv * env, jobject obj, jstring port){
+	struct port_descriptor* new_port;
+	int list_pos;
+	int found = 0;
+	const char* port_to_open;
+	jboolean iscopy;
+
+	port_to_open = (*env)->GetStringUTFChars( env, port, &iscopy );
+
+	if( port_list == NULL ){
+		log_message( MESSAGE_TRACE, env, "First port opened: allocating 10 port_descriptors" );
+		port_list = malloc( sizeof( struct port_descriptor* ) * 10 );
+		port_list_size = 10;
+		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+			port_list[ list_pos ] = NULL;
+		}
+	}
+
+	//Search thru the port_list, find the first one that is NULL
+	for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+		if( port_list[ list_pos ] == NULL ){
+			found = 1;
+			break;
+		}
+	}
+
+	if( !found ){
+		//no free slots.  Expand our array by 10 elements
+		struct port_descriptor** tmpPortDesc;
+		tmpPortDesc = malloc( sizeof( struct port_descriptor* ) * ( port_list_size + 10 ) );
+
+		log_message( MESSAGE_TRACE, env, "No free slots found: expanding port_descirptor array by 10 elements" );
+
+		//put all elements into the new array
+		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+			tmpPortDesc[ list_pos ] = port_list[ list_pos ];
+		}
+		++list_pos; //put the place to insert the new record one past the old records
+
+		port_list_size += 10;
+	
+		//free the old array, set it to the new one
+		free( port_list );
+		port_list = tmpPortDesc;
+	}
+
+	//at this point, list_pos points to a NULL location in our array
+	new_port = malloc( sizeof( struct port_descriptor ) );
+
+	//Now, let's get to the actual opening of our port
+#ifdef _WIN32
+	{
+		char* special_port = malloc( strlen( port_to_open ) + 5 );
+		memcpy( special_port, "\\\\.\\", 4 );
+		memcpy( special_port + 4, port_to_open, strlen( port_to_open ) + 1 );
 		new_port->port = CreateFile( special_port, GENERIC_READ | GENERIC_WRITE, 0, 0, OPEN_EXISTING, FILE_FLAG_OVERLAPPED, 0 );
 		free( special_port );
 	}
-	if( new_port->port == INVALID_HANDLE_VALUE ){
-		if( GetLastError() == ERROR_FILE_NOT_FOUND ){
-			LPTSTR error_text = NULL;
-			jclass exception_class;
-			
-			FormatMessage(
-				FORMAT_MESSAGE_FROM_SYSTEM | FORMAT_MESSAGE_ALLOCATE_BUFFER | FORMAT_MESSAGE_IGNORE_INSERTS,
-				NULL,
-				GetLastError(),
-				MAKELANGID(LANG_NEUTRAL, SUBLANG_DEFAULT),
-				(LPTSTR)&error_text,
-				0,
-				NULL );
-		
-			(*env)->ExceptionDescribe( env );
-			(*env)->ExceptionClear( env );
-			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
-			(*env)->ThrowNew(env, exception_class, error_text );
-			free( new_port );
-			LocalFree( error_text );
-			return -1; 
+	if( new_port->port == INVALID_HANDLE_VALUE ){
+		if( GetLastError() == ERROR_FILE_NOT_FOUND ){
+			LPTSTR error_text = NULL;
+			jclass exception_class;
+			
+			FormatMessage(
+				FORMAT_MESSAGE_FROM_SYSTEM | FORMAT_MESSAGE_ALLOCATE_BUFFER | FORMAT_MESSAGE_IGNORE_INSERTS,
+				NULL,
+				GetLastError(),
+				MAKELANGID(LANG_NEUTRAL, SUBLANG_DEFAULT),
+				(LPTSTR)&error_text,
+				0,
+				NULL );
+		
+			(*env)->ExceptionDescribe( env );
+			(*env)->ExceptionClear( env );
+			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
+			(*env)->ThrowNew(env, exception_class, error_text );
+			free( new_port );
+			LocalFree( error_text );
+			return -1; 
+		}
+	}
+	
+	{
+		//Let's check to see if this is a serial port
+		DCB io_name = {0};
+		io_name.DCBlength = sizeof( io_name ); 
+		if (!GetCommState( new_port->port, &io_name ) ) { 
+			LPTSTR error_text = NULL;
+			jclass exception_class;
+			(*env)->ExceptionDescribe( env );
+			(*env)->ExceptionClear( env );
+			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
+			(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
+			free( new_port );
+			return -1;
+		}
+	}
+#else
+	pthread_mutex_init( &(new_port->in_use), NULL );
+	new_port->ring = NULL;
+	new_port->edges = NULL;
+	new_port->rs485 = NULL;
+	new_port->bridge = NULL;
+	memset( &(new_port->capture), 0, sizeof( struct capture ) );
+	new_port->capture.fd = -1;
+	pthread_mutex_init( &(new_port->capture.lock), NULL );
+	new_port->pty_slave = -1;
+	new_port->pace_next = 0;
+	new_port->dmx = NULL;
+	new_port->port = open( port_to_open, O_RDWR );
+	if( new_port->port < 0 && errno == ENOENT ){
+		//That's not a valid serial port, error out
+		jclass exception_class;
+		(*env)->ExceptionDescribe( env );
+		(*env)->ExceptionClear( env );
+		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
+		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
+		free( new_port );
+		return -1; 
+	}else if( new_port->port < 0 ){
+		jclass exception_class;
+		(*env)->ExceptionDescribe( env );
+		(*env)->ExceptionClear( env );
+		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
+		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
+		free( new_port );
+		return -1;
+	}
+	
+	{
+		struct termios io_name; 
+		if( tcgetattr( new_port->port, &io_name ) < 0 ){ 
+			if( errno == ENOTTY ){
+				//This is apparently not a serial port
+				jclass exception_class;
+				(*env)->ExceptionDescribe( env );
+				(*env)->ExceptionClear( env );
+				exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
+				(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
+				free( new_port );
+				return -1;
+			}
+		}
+	}
+#endif /* __WIN32 */
+
+	
+	//Only set the new_port to be in our array as the last instruction
+	//If there are any errors, we will have returned long before this
+	port_list[ list_pos ] = new_port;
+
+	return list_pos;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    openPseudoTerminalInternal
+ * Signature: (IIIII)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPseudoTerminalInternal
+  (JNIEnv * env, jobject obj, jint baudRate, jint dataBits, jint stopBits, jint parity, jint flowControl){
+#ifdef _WIN32
+	throw_io_exception_message( env, "Pseudo-terminals are not supported on Windows" );
+	return -1;
+#else
+	struct port_descriptor* new_port;
+	int list_pos;
+	int master;
+	int slave;
+	char slave_name[ 128 ];
+
+	master = posix_openpt( O_RDWR | O_NOCTTY );
+	if( master < 0 ){
+		throw_io_exception( env, errno );
+		return -1;
+	}
+
+	if( grantpt( master ) < 0 || unlockpt( master ) < 0 ){
+		int err = errno;
+		close( master );
+		throw_io_exception( env, err );
+		return -1;
+	}
+
+#ifdef __linux__
+	if( ptsname_r( master, slave_name, sizeof( slave_name ) ) != 0 ){
+		int err = errno;
+		close( master );
+		throw_io_exception( env, err );
+		return -1;
+	}
+#else
+	{
+		const char* name = ptsname( master );
+		if( name == NULL || strlen( name ) >= sizeof( slave_name ) ){
+			close( master );
+			throw_io_exception_message( env, "Unable to get the name of the pseudo-terminal" );
+			return -1;
+		}
+		strcpy( slave_name, name );
+	}
+#endif
+
+	slave = open( slave_name, O_RDWR | O_NOCTTY );
+	if( slave < 0 ){
+		int err = errno;
+		close( master );
+		throw_io_exception( env, err );
+		return -1;
+	}
+
+	new_port = malloc( sizeof( struct port_descriptor ) );
+	if( new_port == NULL ){
+		close( slave );
+		close( master );
+		throw_io_exception( env, ENOMEM );
+		return -1;
+	}
+	pthread_mutex_init( &(new_port->in_use), NULL );
+	new_port->ring = NULL;
+	new_port->edges = NULL;
+	new_port->rs485 = NULL;
+	new_port->bridge = NULL;
+	memset( &(new_port->capture), 0, sizeof( struct capture ) );
+	new_port->capture.fd = -1;
+	pthread_mutex_init( &(new_port->capture.lock), NULL );
+	new_port->port = master;
+	new_port->pty_slave = slave;
+	new_port->pace_next = 0;
+	new_port->dmx = NULL;
+
+	//Both sides share one set of settings, so this sets up the slave as well
+	if( apply_settings( new_port, baudRate, dataBits, stopBits, parity, flowControl, 1, 0 ) <= 0 ){
+		throw_io_exception_message( env, "Unable to set pseudo-terminal settings" );
+		pthread_mutex_destroy( &(new_port->capture.lock) );
+		pthread_mutex_destroy( &(new_port->in_use) );
+		close( slave );
+		close( master );
+		free( new_port );
+		return -1;
+	}
+
+	if( port_list == NULL ){
+		port_list = calloc( 10, sizeof( struct port_descriptor* ) );
+		port_list_size = 10;
+	}
+
+	for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
+		if( port_list[ list_pos ] == NULL ){
+			break;
+		}
+	}
+
+	if( list_pos == port_list_size ){
+		struct port_descriptor** tmpPortDesc;
+		tmpPortDesc = calloc( port_list_size + 10, sizeof( struct port_descriptor* ) );
+		memcpy( tmpPortDesc, port_list, sizeof( struct port_descriptor* ) * port_list_size );
+		port_list_size += 10;
+		free( port_list );
+		port_list = tmpPortDesc;
+	}
+
+	port_list[ list_pos ] = new_port;
+
+	return list_pos;
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getPseudoTerminalNameInternal
+ * Signature: ()Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_com_rm5248_serial_SerialPort_getPseudoTerminalNameInternal
+  (JNIEnv * env, jobject obj){
+#ifdef _WIN32
+	throw_io_exception_message( env, "Pseudo-terminals are not supported on Windows" );
+	return NULL;
+#else
+	struct port_descriptor* desc;
+	char slave_name[ 128 ];
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return NULL;
+	}
+
+#ifdef __linux__
+	if( ptsname_r( desc->port, slave_name, sizeof( slave_name ) ) != 0 ){
+		throw_io_exception( env, errno );
+		return NULL;
+	}
+#else
+	{
+		const char* name = ptsname( desc->port );
+		if( name == NULL ){
+			throw_io_exception_message( env, "Unable to get the name of the pseudo-terminal" );
+			return NULL;
+		}
+		strncpy( slave_name, name, sizeof( slave_name ) - 1 );
+		slave_name[ sizeof( slave_name ) - 1 ] = '\0';
+	}
+#endif
+
+	return (*env)->NewStringUTF( env, slave_name );
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    doClose
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_doClose
+  (JNIEnv * env, jobject obj){
+	//Note: We can't use get_serial_port_struct here, beacuse we need to set
+	//the position in the array to NULL
+	int array_pos;
+	struct port_descriptor* desc;
+	
+	array_pos = get_handle( env, obj ); 
+	if( array_pos < 0 || array_pos > port_list_size ){ 
+		throw_io_exception_message( env, "Unable to get handle" );
+		return; 
+	} 
+	desc = port_list[ array_pos ]; 
+	if( desc == NULL ){ 
+		throw_io_exception_message( env, "Unable to get descriptor" ); 
+		return; 
+	}
+
+#ifdef _WIN32
+	{
+		HANDLE tmpHandle = desc->port;
+		desc->port = INVALID_HANDLE_VALUE;
+		CloseHandle( tmpHandle );
+	}
+	WaitForSingleObject( desc->in_use, INFINITE );
+	ReleaseMutex( desc->in_use );
+	CloseHandle( desc->in_use );
+#else
+#ifdef __linux__
+	edge_capture_stop( desc );
+#endif
+	dmx_stop( desc );
+	bridge_stop( env, desc );
+	if( desc->ring != NULL ){
+		//Stop the reading thread before the FD goes away
+		pthread_mutex_lock( &(desc->ring->lock) );
+		desc->ring->stop = 1;
+		pthread_cond_broadcast( &(desc->ring->data_cond) );
+		pthread_cond_broadcast( &(desc->ring->space_cond) );
+		pthread_mutex_unlock( &(desc->ring->lock) );
+		pthread_join( desc->ring->thread, NULL );
+		//Wait for any readers to see that we are closing
+		pthread_mutex_lock( &(desc->ring->lock) );
+		while( desc->ring->waiters > 0 ){
+			pthread_cond_wait( &(desc->ring->space_cond), &(desc->ring->lock) );
+		}
+		pthread_mutex_unlock( &(desc->ring->lock) );
+	}
+#ifdef __linux__
+	if( desc->rs485 != NULL && desc->rs485->hardware ){
+		//Put the driver back the way that we found it
+		ioctl( desc->port, TIOCSRS485, &(desc->rs485->saved) );
+	}
+#endif
+	{
+		int tmpFd = desc->port;
+		desc->port = -1;
+		close( tmpFd );
+	}
+	if( desc->pty_slave >= 0 ){
+		close( desc->pty_slave );
+	}
+	pthread_mutex_lock( &(desc->in_use) );
+	pthread_mutex_unlock( &(desc->in_use) );
+	if( desc->ring != NULL ){
+		//Now that the FD is -1, nobody else can start using the ring.  Wait for
+		//anybody who was counted after we last looked to leave.
+		pthread_mutex_lock( &(desc->ring->lock) );
+		while( desc->ring->waiters > 0 ){
+			pthread_cond_wait( &(desc->ring->space_cond), &(desc->ring->lock) );
+		}
+		pthread_mutex_unlock( &(desc->ring->lock) );
+	}
+	if( desc->rs485 != NULL ){
+		//Any write in progress fails now that the FD is closed; wait for it to get out
+		pthread_mutex_lock( &(desc->rs485->write_lock) );
+		pthread_mutex_unlock( &(desc->rs485->write_lock) );
+		pthread_mutex_destroy( &(desc->rs485->write_lock) );
+		free( desc->rs485 );
+	}
+	if( desc->ring != NULL ){
+		pthread_mutex_destroy( &(desc->ring->lock) );
+		pthread_cond_destroy( &(desc->ring->data_cond) );
+		pthread_cond_destroy( &(desc->ring->space_cond) );
+		free( desc->ring );
+	}
+	//Nothing else can be reading or writing now
+	pthread_mutex_lock( &(desc->capture.lock) );
+	if( desc->capture.active ){
+		capture_stop_locked( &(desc->capture) );
+	}
+	pthread_mutex_unlock( &(desc->capture.lock) );
+	pthread_mutex_destroy( &(desc->capture.lock) );
+#endif
+
+	free( port_list[ array_pos ] );
+	port_list[ array_pos ] = NULL;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    applyConfig
+ * Signature: (IIIIIZ)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_applyConfig
+  (JNIEnv * env, jobject obj, jint baud_rate, jint data_bits, jint stop_bits, jint parity, jint flow_control, jboolean drain){
+	struct port_descriptor* desc;
+	int rc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+	rc = apply_settings( desc, baud_rate, data_bits, stop_bits, parity, flow_control, 0, drain );
+	if( rc == 0 ){
+		throw_io_exception_message( env, "Baud rate not supported" );
+	}else if( rc < 0 ){
+#ifdef _WIN32
+		throw_io_exception( env, GetLastError() );
+#else
+		throw_io_exception( env, errno );
+#endif
+	}
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getBaudRateInternal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getBaudRateInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+	//Now, let's get the baud rate information
+	{
+		GET_SERIAL_PORT_STRUCT( desc->port, newio );
+#ifdef _WIN32
+		GetCommState( desc->port, &newio );
+		switch( newio.BaudRate ){
+#else
+		switch( cfgetispeed( &newio ) ){
+		GET_SPEED_SWITCH( 0, newio );
+		GET_SPEED_SWITCH( 50, newio );
+		GET_SPEED_SWITCH( 75, newio );
+#endif /* _WIN32 */
+		GET_SPEED_SWITCH( 110, newio );
+#ifndef _WIN32
+		GET_SPEED_SWITCH( 134, newio );
+		GET_SPEED_SWITCH( 150, newio );
+		GET_SPEED_SWITCH( 200, newio );
+#endif /* _WIN32 */
+		GET_SPEED_SWITCH( 300, newio );
+		GET_SPEED_SWITCH( 600, newio );
+		GET_SPEED_SWITCH( 1200, newio );
+#ifndef _WIN32
+		GET_SPEED_SWITCH( 1800, newio );
+#endif /* _WIN32 */
+		GET_SPEED_SWITCH( 2400, newio );
+		GET_SPEED_SWITCH( 4800, newio );
+		GET_SPEED_SWITCH( 9600, newio );
+		GET_SPEED_SWITCH( 19200, newio );
+		GET_SPEED_SWITCH( 38400, newio );
+		GET_SPEED_SWITCH( 57600, newio );
+		GET_SPEED_SWITCH( 115200, newio );
+#ifndef _WIN32
+#ifdef B230400
+		GET_SPEED_SWITCH( 230400, newio );
+#endif
+#ifdef B460800
+		GET_SPEED_SWITCH( 460800, newio );
+#endif
+#ifdef B500000
+		GET_SPEED_SWITCH( 500000, newio );
+#endif
+#ifdef B921600
+		GET_SPEED_SWITCH( 921600, newio );
+#endif
+#endif /* _WIN32 */
+		default:
+#ifdef _WIN32
+			return newio.BaudRate;
+#elif defined( HAVE_CUSTOM_BAUD_RATE )
+			return get_custom_baud_rate( desc->port );
+#else
+			return 0;
+#endif
+		} /* end switch */
+	}
+
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getStopBitsInternal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getStopBitsInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+	{
+		GET_SERIAL_PORT_STRUCT( desc->port, newio );
+#ifdef _WIN32
+		if( newio.StopBits == 1 ){
+			return 1;
+		}else if( newio.StopBits == 2 ){
+			return 2;
+		}else{
+			return -1;
+		}
+#else
+		if( newio.c_cflag & CSTOPB ){
+			return 2;
+		}else{
+			return 1;
+		}
+#endif
+	}
+}
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getCharSizeInternal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getCharSizeInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+	//Now get the char size
+	{
+		GET_SERIAL_PORT_STRUCT( desc->port, newio );
+		
+#ifdef _WIN32
+		return newio.ByteSize;
+#else
+		if( ( newio.c_cflag | CS8 ) == CS8 ){
+			return 8;
+		}else if( ( newio.c_cflag | CS7 ) == CS7 ){
+			return 7;
+		}else if( ( newio.c_cflag | CS6 ) == CS6 ){
+			return 6;
+		}else if( ( newio.c_cflag | CS5 ) == CS5 ){
+			return 5;
+		}else{
+			return 0;
+		}
+#endif
+	}
+
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getParityInternal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getParityInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+	{
+		GET_SERIAL_PORT_STRUCT( desc->port, newio );
+#ifdef _WIN32
+		if( newio.Parity == NOPARITY ){
+			return 0;
+		}else if( newio.Parity == ODDPARITY ){
+			return 1;
+		}else if( newio.Parity == EVENPARITY ){
+			return 2;
+		}else{
+			return -1;
+		}
+#else
+		if( !( newio.c_cflag & PARENB ) ){
+			//No parity
+			return 0;
+		}else if( newio.c_cflag & PARODD ){
+			//Odd parity
+			return 1;
+		}else if( !( newio.c_cflag & PARODD ) ){
+			//Even parity
+			return 2;
+		}else{
+			return -1;
+		}
+#endif
+	}
+
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getFlowControlInternal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getFlowControlInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+	
+	{
+		GET_SERIAL_PORT_STRUCT( desc->port, newio );
+#ifdef _WIN32
+		if( newio.fOutX == TRUE && newio.fInX == TRUE ){
+			return 2;
+		}else if( newio.fRtsControl == TRUE && newio.fOutxCtsFlow == TRUE ){
+			return 1;
+		}else{
+			return 0;
+		}
+#else
+		if( newio.c_cflag & ~( IXON ) &&
+			newio.c_cflag & ~( IXOFF ) &&
+			newio.c_cflag & ~( IXANY ) ){
+			return 0;
+		}else if( newio.c_cflag & HW_FLOW ){
+			return 1;
+		}else if( newio.c_cflag & ( IXON ) &&
+			newio.c_cflag & ( IXOFF ) &&
+			newio.c_cflag & ( IXANY ) ){
+			return 2;
+		}
+#endif /* _WIN32 */
+	}
+
+	return -1;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getSerialLineStateInternalNonblocking
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getSerialLineStateInternalNonblocking
+  (JNIEnv * env, jobject obj ){
+	struct port_descriptor* desc;
+	jint ret_val;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+	ret_val = 0;
+	
+	{	
+#ifdef _WIN32
+		DWORD get_val;
+		DWORD error_code;
+		if( GetCommModemStatus( desc->port, &get_val ) == 0 ){
+			error_code = GetLastError();
+			if( error_code == ERROR_INVALID_PARAMETER ){
+				/* This can happen if the serial port does not support the control lines
+				 * Example: u-blox GPS receiver.
+				 */
+				return 0;
+			}
+			throw_io_exception( env, error_code );
+			return -1;
+		}
+		
+		if( get_val & MS_CTS_ON ){
+			// CTS
+			ret_val |= ( 0x01 << 1 );
+		}
+		
+		if( get_val & MS_DSR_ON ){
+			// Data Set Ready
+			ret_val |= ( 0x01 << 2 );
+		}
+		
+		if( desc->winDTR ){
+			ret_val |= ( 0x01 << 3 );
+		}
+		
+		if( desc->winRTS ){
+			ret_val |= ( 0x01 << 4 );
+		}
+		
+		if( get_val & MS_RING_ON ){
+			// Ring Indicator
+			ret_val |= ( 0x01 << 5 );
+		}
+#else
+		int get_val;
+		if( get_modem_lines( desc->port, &get_val ) < 0 ){
+			throw_io_exception( env, errno );
+			return -1;
+		}
+
+		if( get_val & TIOCM_CD ){
+			// Carrier detect
+			ret_val |= 0x01;
+		}
+
+		if( get_val & TIOCM_CTS ){
+			// CTS
+			ret_val |= ( 0x01 << 1 );
+		}
+
+		if( get_val & TIOCM_DSR ){
+			// Data Set Ready
+			ret_val |= ( 0x01 << 2 );
+		}
+
+		if( get_val & TIOCM_DTR ){
+			// Data Terminal Ready
+			ret_val |= ( 0x01 << 3 );
+		}
+
+		if( get_val & TIOCM_RTS ){
+			// Request To Send
+			ret_val |= ( 0x01 << 4 );
+		}
+
+		if( get_val & TIOCM_RI ){
+			// Ring Indicator
+			ret_val |= ( 0x01 << 5 );
+		}
+#endif
+	}
+
+	return ret_val;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    setSerialLineStateInternal
+ * Signature: (Lcom/rm5248/serial/SerialLineState;)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_setSerialLineStateInternal
+  (JNIEnv * env, jobject obj, jobject serial){
+	struct port_descriptor* desc;
+	jint ret_val;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+	ret_val = 0;
+	
+#ifdef _WIN32
+	if( get_bool( env, serial, "dataTerminalReady" ) ){
+		if( !EscapeCommFunction( desc->port, SETDTR ) ){
+			throw_io_exception_message( env, "Could not set DTR" );
+			return -1;
+		}
+		desc->winDTR = 1;
+	}else{
+		if( !EscapeCommFunction( desc->port, CLRDTR ) ){
+			throw_io_exception_message( env, "Could not set DTR" );
+			return -1;
+		}
+		desc->winDTR = 0;
+	}
+
+	if( get_bool( env, serial, "requestToSend" ) ){
+		if( !EscapeCommFunction( desc->port, SETRTS ) ){
+			throw_io_exception_message( env, "Could not set RTS" );
+			return -1;
+		}
+		desc->winRTS = 1;
+	}else{
+		if( !EscapeCommFunction( desc->port, CLRRTS ) ){
+			throw_io_exception_message( env, "Could not set RTS" );
+			return -1;
+		}
+		desc->winRTS = 0;
+	}
+#else
+	int toSet = 0;
+
+	if( get_modem_lines( desc->port, &toSet ) < 0 ){
+		throw_io_exception_message( env, "Could not get port settings" );
+		return -1;
+	}
+
+	if( get_bool( env, serial, "dataTerminalReady" ) ){
+		toSet |= TIOCM_DTR;
+	}else{
+		toSet &= ~TIOCM_DTR;
+	}
+
+	if( get_bool( env, serial, "requestToSend" ) ){
+		toSet |= TIOCM_RTS;
+	}else{
+		toSet &= ~TIOCM_RTS;
+	}
+
+	if( change_modem_lines( desc->port, TIOCMSET, toSet ) < 0 ){
+		throw_io_exception_message( env, "Could not set port settings" );
+	}
+#endif
+
+	return ret_val;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    setControlLinesInternal
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_setControlLinesInternal
+  (JNIEnv * env, jobject obj, jint mask, jint values){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	if( mask & LINE_DTR ){
+		if( !EscapeCommFunction( desc->port, ( values & LINE_DTR ) ? SETDTR : CLRDTR ) ){
+			throw_io_exception( env, GetLastError() );
+			return;
+		}
+		desc->winDTR = ( values & LINE_DTR ) ? 1 : 0;
+	}
+
+	if( mask & LINE_RTS ){
+		if( !EscapeCommFunction( desc->port, ( values & LINE_RTS ) ? SETRTS : CLRRTS ) ){
+			throw_io_exception( env, GetLastError() );
+			return;
+		}
+		desc->winRTS = ( values & LINE_RTS ) ? 1 : 0;
+	}
+#else
+	{
+		int to_set = 0;
+		int to_clear = 0;
+
+		if( mask & LINE_DTR ){
+			if( values & LINE_DTR ){
+				to_set |= TIOCM_DTR;
+			}else{
+				to_clear |= TIOCM_DTR;
+			}
+		}
+
+		if( mask & LINE_RTS ){
+			if( values & LINE_RTS ){
+				to_set |= TIOCM_RTS;
+			}else{
+				to_clear |= TIOCM_RTS;
+			}
+		}
+
+		/* TIOCMBIS/TIOCMBIC only touch the given bits, so there is no
+		 * read-modify-write race with anybody else changing the lines */
+		if( to_set && change_modem_lines( desc->port, TIOCMBIS, to_set ) < 0 ){
+			throw_io_exception( env, errno );
+			return;
+		}
+
+		if( to_clear && change_modem_lines( desc->port, TIOCMBIC, to_clear ) < 0 ){
+			throw_io_exception( env, errno );
+			return;
+		}
+	}
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    sendBreakInternal
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_sendBreakInternal
+  (JNIEnv * env, jobject obj, jlong break_nanos, jlong mab_nanos){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	//Windows can only sleep for whole milliseconds
+	FlushFileBuffers( desc->port );
+	if( !SetCommBreak( desc->port ) ){
+		throw_io_exception( env, GetLastError() );
+		return;
+	}
+	Sleep( (DWORD)( ( break_nanos + 999999 ) / 1000000 ) );
+	if( !ClearCommBreak( desc->port ) ){
+		throw_io_exception( env, GetLastError() );
+		return;
+	}
+	if( mab_nanos > 0 ){
+		Sleep( (DWORD)( ( mab_nanos + 999999 ) / 1000000 ) );
+	}
+#else
+	if( rs485_begin_send( desc->rs485, desc->port ) < 0 ){
+		throw_io_exception( env, errno );
+		return;
+	}
+
+	if( send_break( desc->port, break_nanos, mab_nanos ) < 0 ){
+		int error = errno;
+		//Don't leave the line stuck in the break state
+		ioctl( desc->port, TIOCCBRK );
+		rs485_end_send( desc->rs485, desc->port );
+		throw_io_exception( env, error );
+		return;
+	}
+
+	if( rs485_end_send( desc->rs485, desc->port ) < 0 ){
+		throw_io_exception( env, errno );
+	}
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    enableRs485Internal
+ * Signature: (ZIIZZ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_enableRs485Internal
+  (JNIEnv * env, jobject obj, jboolean rts_on_send, jint delay_before, jint delay_after, jboolean rx_during_tx, jboolean discard_echo){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return JNI_FALSE;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "RS-485 mode is not supported on this platform" );
+	return JNI_FALSE;
+#else
+	{
+		struct rs485_state* rs485;
+
+		if( desc->rs485 != NULL ){
+			throw_io_exception_message( env, "RS-485 mode is already enabled" );
+			return JNI_FALSE;
+		}
+
+		rs485 = calloc( 1, sizeof( struct rs485_state ) );
+		if( rs485 == NULL ){
+			throw_io_exception( env, ENOMEM );
+			return JNI_FALSE;
+		}
+		rs485->rts_on_send = rts_on_send ? 1 : 0;
+		rs485->delay_before_millis = delay_before;
+		rs485->delay_after_millis = delay_after;
+		rs485->discard_echo = discard_echo ? 1 : 0;
+		pthread_mutex_init( &(rs485->write_lock), NULL );
+
+#ifdef __linux__
+		if( ioctl( desc->port, TIOCGRS485, &(rs485->saved) ) == 0 ){
+			struct serial_rs485 settings;
+
+			memset( &settings, 0, sizeof( settings ) );
+			settings.flags = SER_RS485_ENABLED;
+			settings.flags |= rts_on_send ? SER_RS485_RTS_ON_SEND : SER_RS485_RTS_AFTER_SEND;
+			if( rx_during_tx ){
+				settings.flags |= SER_RS485_RX_DURING_TX;
+			}
+			settings.delay_rts_before_send = delay_before;
+			settings.delay_rts_after_send = delay_after;
+			if( ioctl( desc->port, TIOCSRS485, &settings ) == 0 ){
+				rs485->hardware = 1;
+			}
+		}
+#endif /* __linux__ */
+
+		if( !rs485->hardware ){
+			//We have to switch RTS ourselves; start out not sending
+			if( set_rts( desc->port, !rs485->rts_on_send ) < 0 ){
+				throw_io_exception( env, errno );
+				pthread_mutex_destroy( &(rs485->write_lock) );
+				free( rs485 );
+				return JNI_FALSE;
+			}
+			log_message( MESSAGE_DEBUG, env, "Driver does not support RS-485, switching RTS in software" );
+		}
+
+		desc->rs485 = rs485;
+		return rs485->hardware ? JNI_TRUE : JNI_FALSE;
+	}
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getOutputQueueSizeInternal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getOutputQueueSizeInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+	jint ret_val;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+#ifdef _WIN32
+	{
+		DWORD comErrors = {0};
+		COMSTAT portStatus = {0};
+		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
+			//return value zero = fail
+			throw_io_exception( env, GetLastError() );
+			return -1;
+		}else{
+			ret_val = portStatus.cbOutQue;
+		}
+	}
+#else
+	if( ioctl( desc->port, TIOCOUTQ, &ret_val ) < 0 ){
+		throw_io_exception( env, errno );
+		return -1;
+	}
+#endif
+	return ret_val;
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    drainInternal
+ * Signature: (I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_drainInternal
+  (JNIEnv * env, jobject obj, jint timeout_millis){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+#ifdef _WIN32
+	//Windows has no way to wait with a timeout; this waits until everything is sent
+	if( !FlushFileBuffers( desc->port ) ){
+		throw_io_exception( env, GetLastError() );
+		return 0;
+	}
+#else
+	if( timeout_millis >= 0 ){
+		//tcdrain() can't time out, so wait for the queue to empty before calling it.
+		//Once the queue is empty tcdrain() only waits for the last character to go out.
+		struct timespec now;
+		struct timespec deadline;
+		int queued;
+
+		clock_gettime( CLOCK_MONOTONIC, &deadline );
+		deadline.tv_sec += timeout_millis / 1000;
+		deadline.tv_nsec += ( timeout_millis % 1000 ) * 1000000L;
+		if( deadline.tv_nsec >= 1000000000L ){
+			deadline.tv_sec++;
+			deadline.tv_nsec -= 1000000000L;
+		}
+
+		while( 1 ){
+			if( ioctl( desc->port, TIOCOUTQ, &queued ) < 0 ){
+				throw_io_exception( env, errno );
+				return 0;
+			}
+
+			if( queued == 0 ){
+				break;
+			}
+
+			clock_gettime( CLOCK_MONOTONIC, &now );
+			if( now.tv_sec > deadline.tv_sec ||
+				( now.tv_sec == deadline.tv_sec && now.tv_nsec >= deadline.tv_nsec ) ){
+				return 0;
+			}
+
+			poll( NULL, 0, 1 );
+		}
+	}
+
+	if( tcdrain( desc->port ) < 0 ){
+		throw_io_exception( env, errno );
+		return 0;
+	}
+#endif
+
+	return 1;
+}
+
+//
+// ------------------------------------------------------------------------
+// ------------------Input/Output methods below here-----------------------
+// ------------------------------------------------------------------------
+//
+
+
+/*
+ * Class:     com_rm5248_serial_SerialInputStream
+ * Method:    readByte
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialInputStream_readByte
+  (JNIEnv * env, jobject obj){
+	int stat;
+	int ret_val;
+	struct port_descriptor* desc;
+	int get_val = 0;
+#ifdef _WIN32
+	DWORD ret = 0;
+	OVERLAPPED overlap = {0};
+	int current_available = 0;
+#endif 
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+	
+	ret_val = 0;
+
+#ifdef _WIN32
+	{
+		DWORD comErrors = {0};
+		COMSTAT portStatus = {0};
+		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
+			//return value zero = fail
+			throw_port_error( env, GetLastError() );
+			return -1;
+		}else{
+			current_available = portStatus.cbInQue;
+		}
+	}
+	
+	WaitForSingleObject( desc->in_use, INFINITE );
+	if( !current_available ){
+		//If nothing is currently available, wait until we get an event of some kind.
+		//This could be the serial lines changing state, or it could be some data
+		//coming into the system.
+		overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+		SetCommMask( desc->port, EV_RXCHAR | EV_CTS | EV_DSR | EV_RING );
+		WaitCommEvent( desc->port, &ret, &overlap );
+		WaitForSingleObject( overlap.hEvent, INFINITE );
+                CloseHandle( overlap.hEvent );
+	}else{
+		//Data is available; set the RXCHAR mask so we try to read from the port
+		ret = EV_RXCHAR;
+	}
+		
+	if( ret & EV_RXCHAR ){
+                overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+		if( !ReadFile( desc->port, &ret_val, 1, &stat, &overlap) ){
+                    if( GetLastError() == ERROR_IO_PENDING ){
+                        //Probably not an error, we're just doing this in an async fasion
+                        if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
+                            log_message( MESSAGE_TRACE, env, "WaitForSingleObject failed" );
+                            throw_port_error( env, GetLastError() );
+                            ret_val = -1;
+                            goto err_out;
+                        }
+                    }else{
+                        log_message( MESSAGE_TRACE, env, "read file failed" );
+                        throw_port_error( env, GetLastError() );
+                        ret_val = -1;
+                        goto err_out;
+                    }
+                }
+
+                //This is a valid byte, set our valid bit
+                ret_val |= ( 0x01 << 15 );
+	}else if( ret == 0 && desc->port == INVALID_HANDLE_VALUE ){
+		ret_val = -1;
+                goto err_out;
+	}
+	
+	//Always get the com lines no matter what	
+	if( GetCommModemStatus( desc->port, &get_val ) == 0 ){
+		DWORD last_error = GetLastError();
+		log_message( MESSAGE_TRACE, env, "can't get modem" );
+		if( last_error != ERROR_SUCCESS ){
+			// ERROR_SUCCESS can happen if we are connected to a USBSERIAL device and it is removed
+			// Any other error we should throw an IO exception; if ERROR_SUCCESS assume port has been closed
+			throw_io_exception( env, last_error );
+		}
+
+		//Clear the validity bit
+		ret_val &= ~(0x01 << 15);
+                goto err_out;
+	}
+		
+	if( get_val & MS_CTS_ON ){
+		// CTS
+		ret_val |= ( 0x01 << 10 );
+	}
+		
+	if( get_val & MS_DSR_ON ){
+		// Data Set Ready
+		ret_val |= ( 0x01 << 11 );
+	}
+	
+	if( desc->winDTR ){
+		ret_val |= ( 0x01 << 12 );
+	}
+	
+	if( desc->winRTS ){
+		ret_val |= ( 0x01 << 13 );
+	}
+		
+	if( get_val & MS_RING_ON ){
+		// Ring Indicator
+		ret_val |= ( 0x01 << 14 );
+	}
+	
+err_out:
+	ReleaseMutex( desc->in_use );
+        CloseHandle( overlap.hEvent );
+
+        return ret_val;
+#else
+
+	//Okay, this here is going to be a bit ugly.
+	//The problem here is that Linux/POSIX don't specify that TIOCMIWAIT
+	//has to exist.  Also, the fact that if we use TIOCMIWAIT we don't
+	//timeout or anything.  What would be very convenient in this case
+	//would be to have select() return when the state changed, but
+	//it's not possible. :(
+	//Ironically, this is one case in which the Windows serial API
+	//is better than the POSIX way.
+	fd_set fdset;
+	struct timeval timeout;
+	int originalState;
+	int selectStatus;
+
+	pthread_mutex_lock( &(desc->in_use) );
+
+	//first get the original state of the serial port lines
+	if( get_modem_lines( desc->port, &originalState ) < 0 ){
+		throw_port_error( env, errno );
+		pthread_mutex_unlock( &(desc->in_use) );
+		return -1;
+	}
+	
+	while( 1 ){
+		if( desc->port == -1 ){
+			pthread_mutex_unlock( &(desc->in_use) );
+			return -1;
+		}
+		FD_ZERO( &fdset );
+		FD_SET( desc->port, &fdset );
+		timeout.tv_sec = 0;
+		timeout.tv_usec = 10000; // 10,000 microseconds = 10ms
+
+		selectStatus = select( desc->port + 1, &fdset, NULL, NULL, &timeout );
+		if( desc->port == -1 ){
+			//check to see if the port is closed
+			pthread_mutex_unlock( &(desc->in_use) );
+			return -1;
+		}
+
+		if( selectStatus < 0 ){
+			int errval;
+			if( errno == EBADF ){
+				// EOF
+				errval= 0;
+			}else{
+				throw_io_exception( env, errno );
+				errval = -1;
+			}
+			pthread_mutex_unlock( &(desc->in_use) );
+			return errval;
+		}
+
+		if( selectStatus == 0 ){
+			//This was a timeout
+			if( get_modem_lines( desc->port, &get_val ) < 0 ){
+				throw_port_error( env, errno );
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}
+
+			if( get_val == originalState ){
+				//The state of the lines have not changed, 
+				//continue on until something changes
+				continue;
+			}
+			
+		}
+	
+		if( FD_ISSET( desc->port, &fdset ) ){
+			stat = read_port( desc->rs485, &(desc->capture), desc->port, &ret_val, 1 );
+			if( stat == READ_ONLY_ECHO ){
+				continue;
+			}
+			if( stat < 0 ){
+				//throw new exception
+				throw_port_error( env, errno );
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}else if( stat == 0 ){
+				//A hung up tty polls as readable and reads nothing, forever
+				throw_disconnected_exception( env );
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}
+		
+			//This is a valid byte, set our valid bit
+			ret_val |= ( 0x01 << 15 );
+		}
+		
+		//We get to this point if we either 1. have data or
+		//2. our state has changed
+		break;
+	}
+
+	//Now that we have read in the character, let's get the serial port line state.
+	//If it has changed, we will fire an event in Java.
+	//Now, because we only read one byte at a time, we will use the lower 8 bytes to 
+	//return the character that we read.  The other bytes will be used to return
+	//information on our serial port state.
+	if( get_modem_lines( desc->port, &get_val ) < 0 ){
+		throw_port_error( env, errno );
+		pthread_mutex_unlock( &(desc->in_use) );
+		return -1;
+	}
+
+	if( get_val & TIOCM_CD ){
+		// Carrier detect
+		ret_val |= ( 0x01 << 9 );
+	}
+
+	if( get_val & TIOCM_CTS ){
+		// CTS
+		ret_val |= ( 0x01 << 10 );
+	}
+
+	if( get_val & TIOCM_DSR ){
+		// Data Set Ready
+		ret_val |= ( 0x01 << 11 );
+	}
+
+	if( get_val & TIOCM_DTR ){
+		// Data Terminal Ready
+		ret_val |= ( 0x01 << 12 );
+	}
+		
+	if( get_val & TIOCM_RTS ){
+		// Request To Send
+		ret_val |= ( 0x01 << 13 );
+	}
+	
+	if( get_val & TIOCM_RI ){
+		// Ring Indicator
+		ret_val |= ( 0x01 << 14 );
+	}
+	
+	pthread_mutex_unlock( &(desc->in_use) );
+
+	return ret_val;
+#endif
+
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialInputStream
+ * Method:    getAvailable
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialInputStream_getAvailable
+  (JNIEnv * env, jobject obj){
+	jint ret_val;
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+#ifdef _WIN32
+	{
+		DWORD comErrors = {0};
+		COMSTAT portStatus = {0};
+		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
+			//return value zero = fail
+			throw_io_exception( env, GetLastError() );
+			return -1;
+		}else{
+			ret_val = portStatus.cbInQue;
+		}
+	}
+#else
+	if( ioctl( desc->port, FIONREAD, &ret_val ) < 0 ){
+		//throw new exception
+		throw_io_exception( env, errno );
+		return -1;
+	}
+#endif
+	return ret_val;
+}
+
+/*
+ * Class:     com_rm5248_serial_SimpleSerialInputStream
+ * Method:    readByte
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_readByte
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+	jint ret_val;
+	int stat;
+#ifdef _WIN32
+	DWORD ret = 0;
+	OVERLAPPED overlap = {0};
+	int current_available = 0;
+#endif 
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+	
+	ret_val = 0;
+
+#ifdef _WIN32
+	WaitForSingleObject( desc->in_use, INFINITE );
+
+	{
+		DWORD comErrors = {0};
+		COMSTAT portStatus = {0};
+		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
+			//return value zero = fail
+			throw_port_error( env, GetLastError() );
+			ReleaseMutex( desc->in_use );
+			return -1;
+		}else{
+			current_available = portStatus.cbInQue;
+		}
+	}
+	
+	if( !current_available ){
+		//If nothing is currently available, wait until we get an event of some kind.
+		//This could be the serial lines changing state, or it could be some data
+		//coming into the system.
+		overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+		SetCommMask( desc->port, EV_RXCHAR );
+		WaitCommEvent( desc->port, &ret, &overlap );
+		WaitForSingleObject( overlap.hEvent, INFINITE );
+                CloseHandle( overlap.hEvent );
+	}else{
+		//Data is available; set the RXCHAR mask so we try to read from the port
+		ret = EV_RXCHAR;
+	}
+		
+	if( ret & EV_RXCHAR ){
+            overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+            if( !ReadFile( desc->port, &ret_val, 1, &stat, &overlap) ){
+                if( GetLastError() == ERROR_IO_PENDING ){
+                    //Probably not an error, we're just doing this in an async fasion
+                    if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
+                            log_message( MESSAGE_TRACE, env, "WaitForSingleObject failed" );
+                            throw_port_error( env, GetLastError() );
+                            ret_val = -1;
+                    }
+                }else{
+                    log_message( MESSAGE_TRACE, env, "read file failed" );
+                    throw_port_error( env, GetLastError() );
+                    ret_val = -1;
+                }
+            }
+	}else if( ret == 0 && desc->port == INVALID_HANDLE_VALUE ){
+		//the port was closed
+		ret_val = -1;
+	}else if( ret == 0 ){
+		//some unknown error occured
+		log_message( MESSAGE_TRACE, env, "unknown error" );
+		throw_io_exception( env, GetLastError() );
+		ret_val = -1;
+	}
+
+        CloseHandle( overlap.hEvent );
+	ReleaseMutex( desc->in_use );
+#else
+	pthread_mutex_lock( &(desc->in_use) );
+	do{
+		//do a polll() on the FD.
+		//we need to do this so that if we close() our FD from a different thread,
+		//this function will actually return.
+		do{
+			struct pollfd pollfds;
+			pollfds.fd = desc->port;
+			pollfds.events = POLLIN | POLLERR | POLLNVAL;
+			stat = poll( &pollfds, 1, 100 );
+			if( stat < 0 ){
+				throw_io_exception( env, errno );
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}else if( stat > 0 ){
+				break;
+			}
+		}while( 1 );
+
+
+		if( desc->port == -1 ){
+			//EOF
+			pthread_mutex_unlock( &(desc->in_use) );
+			return -1;
+		}
+
+		stat = read_port( desc->rs485, &(desc->capture), desc->port, &ret_val, 1 );
+	}while( stat == READ_ONLY_ECHO );
+	if( stat < 0 ){
+		throw_port_error( env, errno );
+		pthread_mutex_unlock( &(desc->in_use) );
+		return -1;
+	}else if( stat == 0 ){
+		//Hung up; poll() would keep saying that there is data, so don't loop
+		throw_disconnected_exception( env );
+		pthread_mutex_unlock( &(desc->in_use) );
+		return -1;
+	}
+	pthread_mutex_unlock( &(desc->in_use) );
+#endif
+
+	return ret_val;
+}
+
+/*
+ * Class:     com_rm5248_serial_SimpleSerialInputStream
+ * Method:    getAvailable
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_getAvailable
+  (JNIEnv * env, jobject obj){
+	//use our already-existing method to get the available bytes, it already works
+	return Java_com_rm5248_serial_SerialInputStream_getAvailable( env, obj );
+}
+
+/*
+ * Class:     com_rm5248_serial_SimpleSerialInputStream
+ * Method:    readBytes
+ * Signature: ([BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_readBytes
+  (JNIEnv * env, jobject obj, jbyteArray arr, jint offset, jint len){
+	struct port_descriptor* desc;
+	jbyte data[ 4096 ];
+	int stat;
+#ifdef _WIN32
+	DWORD ret = 0;
+	DWORD bytes_read = 0;
+	OVERLAPPED overlap = {0};
+	DWORD current_available = 0;
+#endif
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return -1;
+	}
+
+	if( len > (jint)sizeof( data ) ){
+		len = sizeof( data );
+	}
+
+#ifdef _WIN32
+	WaitForSingleObject( desc->in_use, INFINITE );
+
+	{
+		DWORD comErrors = {0};
+		COMSTAT portStatus = {0};
+		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
+			//return value zero = fail
+			throw_port_error( env, GetLastError() );
+			ReleaseMutex( desc->in_use );
+			return -1;
+		}else{
+			current_available = portStatus.cbInQue;
+		}
+	}
+
+	if( !current_available ){
+		//If nothing is currently available, wait until some data comes in
+		overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+		SetCommMask( desc->port, EV_RXCHAR );
+		WaitCommEvent( desc->port, &ret, &overlap );
+		WaitForSingleObject( overlap.hEvent, INFINITE );
+		CloseHandle( overlap.hEvent );
+		overlap.hEvent = NULL;
+		current_available = 1;
+	}else{
+		ret = EV_RXCHAR;
+	}
+
+	if( !( ret & EV_RXCHAR ) ){
+		if( ret != 0 || desc->port != INVALID_HANDLE_VALUE ){
+			log_message( MESSAGE_TRACE, env, "unknown error" );
+			throw_io_exception( env, GetLastError() );
+		}
+		ReleaseMutex( desc->in_use );
+		return -1;
+	}
+
+	if( (jint)current_available < len ){
+		len = current_available;
+	}
+
+	overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+	if( !ReadFile( desc->port, data, len, &bytes_read, &overlap ) ){
+		if( GetLastError() != ERROR_IO_PENDING ||
+			!GetOverlappedResult( desc->port, &overlap, &bytes_read, TRUE ) ){
+			log_message( MESSAGE_TRACE, env, "read file failed" );
+			throw_port_error( env, GetLastError() );
+			CloseHandle( overlap.hEvent );
+			ReleaseMutex( desc->in_use );
+			return -1;
+		}
+	}
+	CloseHandle( overlap.hEvent );
+	ReleaseMutex( desc->in_use );
+	stat = bytes_read;
+#else
+	pthread_mutex_lock( &(desc->in_use) );
+	do{
+		//poll() so that if our FD is closed from a different thread, we return
+		do{
+			struct pollfd pollfds;
+			pollfds.fd = desc->port;
+			pollfds.events = POLLIN | POLLERR | POLLNVAL;
+			stat = poll( &pollfds, 1, 100 );
+			if( stat < 0 ){
+				throw_io_exception( env, errno );
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}else if( stat > 0 ){
+				break;
+			}
+		}while( 1 );
+
+		if( desc->port == -1 ){
+			//EOF
+			pthread_mutex_unlock( &(desc->in_use) );
+			return -1;
+		}
+
+		stat = read_port( desc->rs485, &(desc->capture), desc->port, data, len );
+	}while( stat == READ_ONLY_ECHO );
+	if( stat < 0 ){
+		throw_port_error( env, errno );
+		pthread_mutex_unlock( &(desc->in_use) );
+		return -1;
+	}else if( stat == 0 ){
+		//Hung up; poll() would keep saying that there is data, so don't loop
+		throw_disconnected_exception( env );
+		pthread_mutex_unlock( &(desc->in_use) );
+		return -1;
+	}
+	pthread_mutex_unlock( &(desc->in_use) );
+#endif
+
+	if( stat == 0 ){
+		return -1;
+	}
+
+	(*env)->SetByteArrayRegion( env, arr, offset, stat, data );
+
+	return stat;
+}
+
+
+/*
+ * Class:     com_rm5248_serial_SerialOutputStream
+ * Method:    writeByte
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByte
+  (JNIEnv * env, jobject obj, jint byte){
+	struct port_descriptor* desc;
+	char byte_write;
+#ifdef _WIN32
+	DWORD bytes_written;
+	OVERLAPPED overlap = { 0 };
+#else
+	int bytes_written;
+#endif
+
+	byte_write = byte;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+	if( !WriteFile( desc->port, &byte_write, sizeof( byte_write ), &bytes_written, &overlap ) ){
+		if( GetLastError() == ERROR_IO_PENDING ){
+			//Probably not an error, we're just doing this in an async fasion
+			if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
+				throw_io_exception( env, GetLastError() );
+			}
+		}else{
+			throw_port_error( env, GetLastError() );
+		}
+	}
+        CloseHandle( overlap.hEvent );
+#else
+	if( rs485_begin_send( desc->rs485, desc->port ) < 0 ){
+		throw_io_exception( env, errno );
+		return;
+	}
+
+	rs485_expect_echo( desc->rs485, sizeof( byte_write ) );
+	bytes_written = write( desc->port, &byte_write, sizeof( byte_write ) );
+	if( bytes_written > 0 ){
+		capture_record( &(desc->capture), CAPTURE_TRANSMITTED, &byte_write, bytes_written );
+	}
+	if( bytes_written < 0 || 
+            bytes_written != sizeof( byte_write) ){
+		//throw new exception
+		int error = errno;
+		rs485_expect_echo( desc->rs485, -(int)sizeof( byte_write ) );
+		rs485_end_send( desc->rs485, desc->port );
+		throw_port_error( env, error );
+		return;
+	}
+
+	if( rs485_end_send( desc->rs485, desc->port ) < 0 ){
+		throw_io_exception( env, errno );
+	}
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialOutputStream
+ * Method:    writeByteArray
+ * Signature: ([BII)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByteArray
+  (JNIEnv * env, jobject obj, jbyteArray arr, jint offset, jint len){
+	//Copy the data out in chunks, rather than pinning(and possibly copying)
+	//the entire array with GetByteArrayElements
+	jbyte data[ 4096 ];
+	jint chunk_size;
+	jint chunk_written;
+	struct port_descriptor* desc;
+#ifdef _WIN32
+	DWORD bytes_written;
+	OVERLAPPED overlap = { 0 };
+#else
+	int rc;
+#endif /* _WIN32 */
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
+#else
+	if( rs485_begin_send( desc->rs485, desc->port ) < 0 ){
+		throw_io_exception( env, errno );
+		return;
+	}
+#endif /* _WIN32 */
+
+	while( len > 0 ){
+		chunk_size = len > (jint)sizeof( data ) ? (jint)sizeof( data ) : len;
+		(*env)->GetByteArrayRegion( env, arr, offset, chunk_size, data );
+		if( (*env)->ExceptionCheck( env ) ){
+			break;
+		}
+
+#ifdef _WIN32
+		ResetEvent( overlap.hEvent );
+		if( !WriteFile( desc->port, data, chunk_size, &bytes_written, &overlap ) ){
+			if( GetLastError() == ERROR_IO_PENDING ){
+				//Probably not an error, we're just doing this in an async fasion
+				if( !GetOverlappedResult( desc->port, &overlap, &bytes_written, TRUE ) ){
+					throw_io_exception( env, GetLastError() );
+					break;
+				}
+			}else{
+				throw_port_error( env, GetLastError() );
+				break;
+			}
+		}
+		chunk_written = bytes_written;
+#else
+		chunk_written = 0;
+		rs485_expect_echo( desc->rs485, chunk_size );
+		do{
+			rc = write( desc->port, data + chunk_written, chunk_size - chunk_written );
+			if( rc < 0 ){
+				break;
+			}
+			chunk_written += rc;
+		}while( chunk_written < chunk_size );
+		capture_record( &(desc->capture), CAPTURE_TRANSMITTED, data, chunk_written );
+
+		if( rc < 0 ){
+			throw_port_error( env, errno );
+			rs485_expect_echo( desc->rs485, chunk_written - chunk_size );
+			break;
+		}
+#endif /* _WIN32 */
+
+		offset += chunk_written;
+		len -= chunk_written;
+	}
+
+#ifdef _WIN32
+	CloseHandle( overlap.hEvent );
+#else
+	if( rs485_end_send( desc->rs485, desc->port ) < 0 && !(*env)->ExceptionCheck( env ) ){
+		throw_io_exception( env, errno );
+	}
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialOutputStream
+ * Method:    writePaced
+ * Signature: ([BIIJIJ)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writePaced
+  (JNIEnv * env, jobject obj, jbyteArray arr, jint offset, jint len, jlong interval_nanos, jint chunk_bytes, jlong frame_gap_nanos){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Paced writes are not supported on this platform" );
+#else
+	{
+		jbyte data[ 4096 ];
+		jint sent = 0;
+		jint chunk_size;
+		jint chunk_written;
+		jint buffered = 0;
+		jint buffer_start = 0;
+		jlong start;
+		jlong now;
+		int rc = 0;
+
+		if( chunk_bytes < 1 ){
+			chunk_bytes = 1;
+		}
+
+		if( rs485_begin_send( desc->rs485, desc->port ) < 0 ){
+			throw_io_exception( env, errno );
+			return;
+		}
+
+		//Every deadline is worked out from when the frame started, so that
+		//the time spent in write() and waking up doesn't add up
+		now = monotonic_nanos();
+		start = desc->pace_next > now ? desc->pace_next : now;
+
+		while( sent < len ){
+			if( buffer_start == buffered ){
+				buffered = len - sent > (jint)sizeof( data ) ? (jint)sizeof( data ) : len - sent;
+				(*env)->GetByteArrayRegion( env, arr, offset + sent, buffered, data );
+				if( (*env)->ExceptionCheck( env ) ){
+					break;
+				}
+				buffer_start = 0;
+			}
+
+			chunk_size = buffered - buffer_start;
+			if( chunk_size > chunk_bytes ){
+				chunk_size = chunk_bytes;
+			}
+
+			if( interval_nanos > 0 ){
+				sleep_until( start + sent * interval_nanos );
+			}else if( sent == 0 && start > now ){
+				sleep_until( start );
+			}
+
+			chunk_written = 0;
+			rs485_expect_echo( desc->rs485, chunk_size );
+			do{
+				rc = write( desc->port, data + buffer_start + chunk_written, chunk_size - chunk_written );
+				if( rc < 0 ){
+					if( errno == EINTR ){
+						rc = 0;
+						continue;
+					}
+					break;
+				}
+				chunk_written += rc;
+			}while( chunk_written < chunk_size );
+			capture_record( &(desc->capture), CAPTURE_TRANSMITTED, data + buffer_start, chunk_written );
+
+			if( rc < 0 ){
+				throw_io_exception( env, errno );
+				rs485_expect_echo( desc->rs485, chunk_written - chunk_size );
+				break;
+			}
+
+			buffer_start += chunk_written;
+			sent += chunk_written;
+		}
+
+		if( frame_gap_nanos > 0 && !(*env)->ExceptionCheck( env ) ){
+			//The gap is counted from when the last byte has gone out on the wire
+			if( tcdrain( desc->port ) < 0 ){
+				throw_io_exception( env, errno );
+			}
+			desc->pace_next = monotonic_nanos() + frame_gap_nanos;
+		}else if( interval_nanos > 0 ){
+			desc->pace_next = start + sent * interval_nanos;
+		}else{
+			desc->pace_next = 0;
+		}
+
+		if( rs485_end_send( desc->rs485, desc->port ) < 0 && !(*env)->ExceptionCheck( env ) ){
+			throw_io_exception( env, errno );
+		}
+	}
+#endif /* _WIN32 */
+}
+
+//
+// ------------------------------------------------------------------------
+// ------------------Native receive ring below here------------------------
+// ------------------------------------------------------------------------
+//
+
+#ifndef _WIN32
+/*
+ * Get the position of the slowest reader that we have to wait for.  If
+ * nobody is holding up the ring, this is the write position.
+ * Must be called with the lock held.
+ */
+static jlong ring_slowest_reader( struct receive_ring* ring ){
+	jlong slowest = ring->write_pos;
+	int x;
+
+	for( x = 0; x < RING_MAX_READERS; x++ ){
+		if( ring->reader_state[ x ] == RING_READER_GATING && ring->reader_pos[ x ] < slowest ){
+			slowest = ring->reader_pos[ x ];
+		}
+	}
+
+	return slowest;
+}
+
+/*
+ * Thread that reads from the serial port into the receive ring.  This runs
+ * entirely outside of the JVM, so it keeps going no matter what the JVM is doing.
+ */
+static void* receive_ring_thread( void* arg ){
+	struct receive_ring* ring = arg;
+	struct pollfd pollfds;
+	jlong free_space;
+	jlong index;
+	jlong contiguous;
+	int stat;
+
+	while( 1 ){
+		pthread_mutex_lock( &(ring->lock) );
+		while( !ring->stop && ring->write_pos - ring_slowest_reader( ring ) >= ring->size ){
+			//The ring is full.  Leave the data in the kernel until there is room.
+			pthread_cond_wait( &(ring->space_cond), &(ring->lock) );
+		}
+		if( ring->stop ){
+			pthread_mutex_unlock( &(ring->lock) );
+			break;
+		}
+		free_space = ring->size - ( ring->write_pos - ring_slowest_reader( ring ) );
+		index = ring->write_pos % ring->size;
+		pthread_mutex_unlock( &(ring->lock) );
+
+		contiguous = ring->size - index;
+		if( contiguous > free_space ){
+			contiguous = free_space;
+		}
+
+		//poll() with a timeout so that we notice when the port is closing
+		pollfds.fd = ring->fd;
+		pollfds.events = POLLIN;
+		pollfds.revents = 0;
+		stat = poll( &pollfds, 1, 100 );
+		if( stat < 0 ){
+			if( errno == EINTR ){
+				continue;
+			}
+			pthread_mutex_lock( &(ring->lock) );
+			ring->error = errno;
+			pthread_mutex_unlock( &(ring->lock) );
+			break;
+		}else if( stat == 0 ){
+			continue;
+		}
+
+		//Let the readers which don't hold us up know what we are about to write over
+		pthread_mutex_lock( &(ring->lock) );
+		ring->claim_pos = ring->write_pos + contiguous;
+		pthread_mutex_unlock( &(ring->lock) );
+
+		//Only this thread moves write_pos, so the data can be read in without the lock
+		stat = read_port( ring->rs485, ring->capture, ring->fd, ring->data + index, contiguous );
+		if( stat == READ_ONLY_ECHO || ( stat < 0 && ( errno == EINTR || errno == EAGAIN ) ) ){
+			pthread_mutex_lock( &(ring->lock) );
+			ring->claim_pos = ring->write_pos;
+			pthread_mutex_unlock( &(ring->lock) );
+			continue;
+		}
+
+		pthread_mutex_lock( &(ring->lock) );
+		if( stat < 0 ){
+			ring->error = errno;
+			pthread_mutex_unlock( &(ring->lock) );
+			break;
+		}else if( stat == 0 ){
+			//EOF - device has gone away
+			ring->error = ENODEV;
+			pthread_mutex_unlock( &(ring->lock) );
+			break;
+		}
+		ring->write_pos += stat;
+		ring->claim_pos = ring->write_pos;
+		pthread_cond_broadcast( &(ring->data_cond) );
+		pthread_mutex_unlock( &(ring->lock) );
+	}
+
+	pthread_mutex_lock( &(ring->lock) );
+	ring->done = 1;
+	pthread_cond_broadcast( &(ring->data_cond) );
+	pthread_mutex_unlock( &(ring->lock) );
+
+	return NULL;
+}
+#endif /* _WIN32 */
+
+/*
+ * Class:     com_rm5248_serial_NativeRingInputStream
+ * Method:    startRing
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_NativeRingInputStream_startRing
+  (JNIEnv * env, jobject obj, jobject buffer){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Native receive buffer is not supported on this platform" );
+#else
+	{
+		struct receive_ring* ring;
+		int rc;
+
+		if( desc->ring != NULL ){
+			throw_io_exception_message( env, "Native receive buffer already started" );
+			return;
+		}
+
+		ring = malloc( sizeof( struct receive_ring ) );
+		if( ring == NULL ){
+			throw_io_exception( env, ENOMEM );
+			return;
+		}
+		memset( ring, 0, sizeof( struct receive_ring ) );
+		ring->fd = desc->port;
+		ring->rs485 = desc->rs485;
+		ring->capture = &(desc->capture);
+		ring->data = (*env)->GetDirectBufferAddress( env, buffer );
+		ring->size = (*env)->GetDirectBufferCapacity( env, buffer );
+		if( ring->data == NULL || ring->size <= 0 ){
+			throw_io_exception_message( env, "Unable to get address of receive buffer" );
+			free( ring );
+			return;
+		}
+		//The port's own InputStream is always the first reader
+		ring->reader_state[ RING_DEFAULT_READER ] = RING_READER_GATING;
+		pthread_mutex_init( &(ring->lock), NULL );
+		pthread_cond_init( &(ring->data_cond), NULL );
+		pthread_cond_init( &(ring->space_cond), NULL );
+
+		rc = pthread_create( &(ring->thread), NULL, receive_ring_thread, ring );
+		if( rc != 0 ){
+			throw_io_exception( env, rc );
+			pthread_mutex_destroy( &(ring->lock) );
+			pthread_cond_destroy( &(ring->data_cond) );
+			pthread_cond_destroy( &(ring->space_cond) );
+			free( ring );
+			return;
+		}
+
+		log_message( MESSAGE_DEBUG, env, "Started native receive ring thread" );
+		desc->ring = ring;
+	}
+#endif /* _WIN32 */
+}
+
+#ifndef _WIN32
+/*
+ * Get the receive ring of a port that is still open.  The caller must hold
+ * in_use, since doClose() frees the ring once it has gotten through in_use.
+ */
+static struct receive_ring* ring_if_open( struct port_descriptor* desc ){
+	if( desc->port == -1 ){
+		return NULL;
+	}
+	return desc->ring;
+}
+
+/*
+ * Tell the ring how far a reader has read, and wait for more data to come in.
+ * Returns the write position, or -1 if there will be no more data(an
+ * exception may have been thrown).
+ */
+static jlong ring_wait_for_data( JNIEnv* env, struct port_descriptor* desc, int reader,
+	jlong read_position, jint timeout_millis ){
+	struct receive_ring* ring;
+	struct timespec deadline;
+	jlong ret_val;
+	int error;
+
+	if( reader < 0 || reader >= RING_MAX_READERS ){
+		throw_io_exception_message( env, "Invalid receive buffer reader" );
+		return -1;
+	}
+
+	if( timeout_millis > 0 ){
+		clock_gettime( CLOCK_REALTIME, &deadline );
+		deadline.tv_sec += timeout_millis / 1000;
+		deadline.tv_nsec += ( timeout_millis % 1000 ) * 1000000L;
+		if( deadline.tv_nsec >= 1000000000L ){
+			deadline.tv_sec++;
+			deadline.tv_nsec -= 1000000000L;
+		}
+	}
+
+	//Several readers can be waiting at once, so we don't hold in_use while we
+	//wait; instead doClose() waits until there are no more waiters.  We do
+	//hold it until we have been counted, so that doClose() can't free the ring
+	//between us getting it and counting ourselves.
+	pthread_mutex_lock( &(desc->in_use) );
+	ring = ring_if_open( desc );
+	if( ring == NULL ){
+		pthread_mutex_unlock( &(desc->in_use) );
+		if( desc->port == -1 ){
+			//Closed
+			return -1;
+		}
+		throw_io_exception_message( env, "Native receive buffer not started" );
+		return -1;
+	}
+	pthread_mutex_lock( &(ring->lock) );
+	ring->waiters++;
+	pthread_mutex_unlock( &(desc->in_use) );
+
+	if( ring->reader_state[ reader ] == RING_READER_GATING && read_position > ring->reader_pos[ reader ] ){
+		ring->reader_pos[ reader ] = read_position;
+		pthread_cond_signal( &(ring->space_cond) );
+	}
+
+	while( ring->write_pos == read_position && ring->reader_state[ reader ] != RING_READER_FREE &&
+		!ring->done && !ring->stop && timeout_millis != 0 ){
+		if( timeout_millis < 0 ){
+			pthread_cond_wait( &(ring->data_cond), &(ring->lock) );
+		}else if( pthread_cond_timedwait( &(ring->data_cond), &(ring->lock), &deadline ) == ETIMEDOUT ){
+			break;
+		}
+	}
+
+	ret_val = ring->write_pos;
+	error = ring->error;
+	if( ret_val == read_position && ( ring->done || ring->stop ) ){
+		ret_val = -1;
+	}
+	if( ring->reader_state[ reader ] == RING_READER_FREE ){
+		//Closed while we were waiting
+		ret_val = -1;
+		error = 0;
+	}
+
+	ring->waiters--;
+	if( ring->waiters == 0 && ring->stop ){
+		pthread_cond_broadcast( &(ring->space_cond) );
+	}
+	pthread_mutex_unlock( &(ring->lock) );
+
+	if( ret_val < 0 && error != 0 ){
+		throw_port_error( env, error );
+	}
+
+	return ret_val;
+}
+
+/*
+ * Stop a reader from holding up the ring, and wake it up if it is waiting.
+ */
+static void ring_remove_reader( struct port_descriptor* desc, int reader ){
+	struct receive_ring* ring;
+
+	if( reader < 0 || reader >= RING_MAX_READERS ){
+		return;
+	}
+
+	pthread_mutex_lock( &(desc->in_use) );
+	ring = ring_if_open( desc );
+	if( ring != NULL ){
+		pthread_mutex_lock( &(ring->lock) );
+		ring->reader_state[ reader ] = RING_READER_FREE;
+		pthread_cond_broadcast( &(ring->data_cond) );
+		pthread_cond_signal( &(ring->space_cond) );
+		pthread_mutex_unlock( &(ring->lock) );
+	}
+	pthread_mutex_unlock( &(desc->in_use) );
+}
+#endif /* _WIN32 */
+
+/*
+ * Class:     com_rm5248_serial_NativeRingInputStream
+ * Method:    waitForData
+ * Signature: (JI)J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_NativeRingInputStream_waitForData
+  (JNIEnv * env, jobject obj, jlong read_position, jint timeout_millis){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return -1;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Native receive buffer is not supported on this platform" );
+	return -1;
+#else
+	return ring_wait_for_data( env, desc, RING_DEFAULT_READER, read_position, timeout_millis );
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_NativeRingInputStream
+ * Method:    stopReading
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_NativeRingInputStream_stopReading
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifndef _WIN32
+	ring_remove_reader( desc, RING_DEFAULT_READER );
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    attach
+ * Signature: (Z[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_ReceiveSubscriber_attach
+  (JNIEnv * env, jobject obj, jboolean gating, jlongArray position){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return -1;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Native receive buffer is not supported on this platform" );
+	return -1;
+#else
+	{
+		struct receive_ring* ring;
+		jlong start;
+		int reader = -1;
+		int x;
+
+		pthread_mutex_lock( &(desc->in_use) );
+		ring = ring_if_open( desc );
+		if( ring == NULL ){
+			pthread_mutex_unlock( &(desc->in_use) );
+			throw_io_exception_message( env, "Native receive buffer not started" );
+			return -1;
+		}
+
+		pthread_mutex_lock( &(ring->lock) );
+		for( x = 0; x < RING_MAX_READERS; x++ ){
+			if( x != RING_DEFAULT_READER && ring->reader_state[ x ] == RING_READER_FREE ){
+				reader = x;
+				break;
+			}
+		}
+		//New readers start with whatever comes in next
+		start = ring->write_pos;
+		if( reader >= 0 ){
+			ring->reader_pos[ reader ] = start;
+			ring->reader_state[ reader ] = gating ? RING_READER_GATING : RING_READER_LOSSY;
+		}
+		pthread_mutex_unlock( &(ring->lock) );
+		pthread_mutex_unlock( &(desc->in_use) );
+
+		if( reader < 0 ){
+			throw_io_exception_message( env, "Too many subscribers to the native receive buffer" );
+			return -1;
+		}
+
+		(*env)->SetLongArrayRegion( env, position, 0, 1, &start );
+
+		return reader;
+	}
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    waitForData
+ * Signature: (IJI)J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_ReceiveSubscriber_waitForData
+  (JNIEnv * env, jobject obj, jint reader, jlong read_position, jint timeout_millis){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return -1;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Native receive buffer is not supported on this platform" );
+	return -1;
+#else
+	return ring_wait_for_data( env, desc, reader, read_position, timeout_millis );
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    getOldestPosition
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_ReceiveSubscriber_getOldestPosition
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return -1;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Native receive buffer is not supported on this platform" );
+	return -1;
+#else
+	{
+		struct receive_ring* ring;
+		jlong oldest;
+
+		pthread_mutex_lock( &(desc->in_use) );
+		ring = ring_if_open( desc );
+		if( ring == NULL ){
+			pthread_mutex_unlock( &(desc->in_use) );
+			throw_io_exception_message( env, "Native receive buffer not started" );
+			return -1;
+		}
+
+		pthread_mutex_lock( &(ring->lock) );
+		oldest = ring->claim_pos - ring->size;
+		pthread_mutex_unlock( &(ring->lock) );
+		pthread_mutex_unlock( &(desc->in_use) );
+
+		return oldest < 0 ? 0 : oldest;
+	}
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    detach
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_ReceiveSubscriber_detach
+  (JNIEnv * env, jobject obj, jint reader){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifndef _WIN32
+	if( reader != RING_DEFAULT_READER ){
+		ring_remove_reader( desc, reader );
+	}
+#endif /* _WIN32 */
+}
+
+
+//
+// ------------------------------------------------------------------------
+// ---------------------Traffic capture below here-------------------------
+// ------------------------------------------------------------------------
+//
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    startCaptureInternal
+ * Signature: (Ljava/lang/String;JI)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_startCaptureInternal
+  (JNIEnv * env, jobject obj, jstring base_path, jlong segment_bytes, jint max_segments){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Traffic capture is not supported on this platform" );
+#else
+	{
+		struct capture* capture = &(desc->capture);
+		const char* path_chars;
+		int error = 0;
+
+		path_chars = (*env)->GetStringUTFChars( env, base_path, 0 );
+		if( path_chars == NULL ){
+			return;
+		}
+
+		pthread_mutex_lock( &(capture->lock) );
+		if( capture->active ){
+			pthread_mutex_unlock( &(capture->lock) );
+			(*env)->ReleaseStringUTFChars( env, base_path, path_chars );
+			throw_io_exception_message( env, "Capture already running" );
+			return;
+		}
+
+		capture->base_path = strdup( path_chars );
+		(*env)->ReleaseStringUTFChars( env, base_path, path_chars );
+		if( capture->base_path == NULL ){
+			pthread_mutex_unlock( &(capture->lock) );
+			throw_io_exception( env, ENOMEM );
+			return;
+		}
+
+		capture->map_size = segment_bytes;
+		capture->max_segments = max_segments;
+		capture->segment = -1;
+		capture->offset = 0;
+		capture->error = 0;
+		if( capture_open_segment( capture ) < 0 ){
+			error = errno;
+			capture_stop_locked( capture );
+		}else{
+			__atomic_store_n( &(capture->active), 1, __ATOMIC_RELEASE );
+		}
+		pthread_mutex_unlock( &(capture->lock) );
+
+		if( error != 0 ){
+			throw_io_exception( env, error );
+		}
+	}
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    stopCaptureInternal
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_stopCaptureInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+#ifndef _WIN32
+	pthread_mutex_lock( &(desc->capture.lock) );
+	if( desc->capture.active ){
+		capture_stop_locked( &(desc->capture) );
+	}
+	desc->capture.error = 0;
+	pthread_mutex_unlock( &(desc->capture.lock) );
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    isCapturingInternal
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_isCapturingInternal
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return 0;
+	}
+
+#ifdef _WIN32
+	return 0;
+#else
+	{
+		int active;
+		int error;
+
+		pthread_mutex_lock( &(desc->capture.lock) );
+		active = desc->capture.active;
+		error = desc->capture.error;
+		desc->capture.error = 0;
+		pthread_mutex_unlock( &(desc->capture.lock) );
+
+		if( error != 0 ){
+			//Let somebody know why the capture stopped, once
+			throw_io_exception( env, error );
 		}
+
+		return active ? 1 : 0;
 	}
-	
+#endif /* _WIN32 */
+}
+
+//
+// ------------------------------------------------------------------------
+// ------------------Timestamped reads below here--------------------------
+// ------------------------------------------------------------------------
+//
+
+#ifndef _WIN32
+/*
+ * Wait for data to come in on the port, for up to timeout_micros
+ * microseconds(forever if less than 0).  We wake up at least every 100ms to
+ * check to see if the port has been closed.  The port is always polled at
+ * least once, so a timeout of 0 checks for data that is already there.
+ *
+ * @return 1 if there is data, 0 on timeout, -1 on error(errno is set), -2
+ * if the port has been closed
+ */
+static int wait_for_input( struct port_descriptor* desc, jlong timeout_micros ){
+	jlong deadline = 0;
+	jlong slice;
+	int stat;
+
+	if( timeout_micros >= 0 ){
+		deadline = monotonic_nanos() + timeout_micros * 1000;
+	}
+
+	do{
+		struct pollfd pollfds;
+
+		if( desc->port == -1 ){
+			return -2;
+		}
+
+		slice = 100000;
+		if( timeout_micros >= 0 ){
+			slice = ( deadline - monotonic_nanos() ) / 1000;
+			if( slice < 0 ){
+				slice = 0;
+			}
+			if( slice > 100000 ){
+				slice = 100000;
+			}
+		}
+
+		pollfds.fd = desc->port;
+		pollfds.events = POLLIN | POLLERR | POLLNVAL;
+#ifdef __linux__
+		{
+			struct timespec poll_timeout;
+			poll_timeout.tv_sec = slice / 1000000;
+			poll_timeout.tv_nsec = ( slice % 1000000 ) * 1000;
+			stat = ppoll( &pollfds, 1, &poll_timeout, NULL );
+		}
+#else
+		//round up, so that we don't return before the timeout
+		stat = poll( &pollfds, 1, (int)( ( slice + 999 ) / 1000 ) );
+#endif
+		if( stat < 0 && errno != EINTR ){
+			return -1;
+		}
+		//Only give up once we have looked at the port after the deadline
+		if( stat <= 0 && timeout_micros >= 0 && monotonic_nanos() >= deadline ){
+			return 0;
+		}
+	}while( stat <= 0 );
+
+	if( desc->port == -1 ){
+		return -2;
+	}
+
+	return 1;
+}
+#endif /* _WIN32 */
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    readTimestampedInternal
+ * Signature: ([BIIJ[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_readTimestampedInternal
+  (JNIEnv * env, jobject obj, jbyteArray arr, jint offset, jint len, jlong timeout_micros, jlongArray timestamp){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return -1;
+	}
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Timestamped reads are not supported on this platform" );
+	return -1;
+#else
 	{
-		//Let's check to see if this is a serial port
-		DCB io_name = {0};
-		io_name.DCBlength = sizeof( io_name ); 
-		if (!GetCommState( new_port->port, &io_name ) ) { 
-			LPTSTR error_text = NULL;
-			jclass exception_class;
-			(*env)->ExceptionDescribe( env );
-			(*env)->ExceptionClear( env );
-			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
-			(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
-			free( new_port );
+		jbyte data[ 4096 ];
+		jlong now;
+		int stat;
+
+		if( len > (jint)sizeof( data ) ){
+			len = sizeof( data );
+		}
+
+		pthread_mutex_lock( &(desc->in_use) );
+		do{
+			stat = wait_for_input( desc, timeout_micros );
+			if( stat == -1 ){
+				throw_io_exception( env, errno );
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}else if( stat == -2 ){
+				//EOF
+				pthread_mutex_unlock( &(desc->in_use) );
+				return -1;
+			}else if( stat == 0 ){
+				pthread_mutex_unlock( &(desc->in_use) );
+				return 0;
+			}
+
+			stat = read_port( desc->rs485, &(desc->capture), desc->port, data, len );
+			now = monotonic_nanos();
+		}while( stat == READ_ONLY_ECHO );
+		if( stat < 0 ){
+			throw_port_error( env, errno );
+			pthread_mutex_unlock( &(desc->in_use) );
+			return -1;
+		}else if( stat == 0 ){
+			throw_disconnected_exception( env );
+			pthread_mutex_unlock( &(desc->in_use) );
 			return -1;
 		}
+		pthread_mutex_unlock( &(desc->in_use) );
+
+		(*env)->SetByteArrayRegion( env, arr, offset, stat, data );
+		(*env)->SetLongArrayRegion( env, timestamp, 0, 1, &now );
+
+		return stat;
 	}
-	
-	//initialize the mutex
-	new_port->in_use = CreateMutex( NULL, FALSE, NULL );
-	if( new_port->in_use == NULL ){
-		LPTSTR error_text = NULL;
-		jclass exception_class;
-		(*env)->ExceptionDescribe( env );
-		(*env)->ExceptionClear( env );
-		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
-		(*env)->ThrowNew(env, exception_class, "UNABLE TO CREATE MUTEX(use better msg)" );
-		free( new_port );
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    readChunksInternal
+ * Signature: ([B[I[JJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_readChunksInternal
+  (JNIEnv * env, jobject obj, jbyteArray arr, jintArray lengths, jlongArray timestamps, jlong timeout_micros){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
 		return -1;
 	}
-	
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "Timestamped reads are not supported on this platform" );
+	return -1;
 #else
-	pthread_mutex_init( &(new_port->in_use), NULL );
-	new_port->port = open( port_to_open, O_RDWR );
-	if( new_port->port < 0 && errno == ENOENT ){
-		//That's not a valid serial port, error out
-		jclass exception_class;
-		(*env)->ExceptionDescribe( env );
-		(*env)->ExceptionClear( env );
-		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
-		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
-		free( new_port );
-		return -1; 
-	}else if( new_port->port < 0 ){
-		jclass exception_class;
-		(*env)->ExceptionDescribe( env );
-		(*env)->ExceptionClear( env );
-		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
-		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
-		free( new_port );
+	{
+		jbyte data[ 4096 ];
+		jint buffer_size = (*env)->GetArrayLength( env, arr );
+		jint max_chunks = (*env)->GetArrayLength( env, lengths );
+		jint offset = 0;
+		jint count = 0;
+		jint len;
+		jlong now;
+		int stat;
+		int error = 0;
+		int eof = 0;
+
+		if( (*env)->GetArrayLength( env, timestamps ) < max_chunks ){
+			max_chunks = (*env)->GetArrayLength( env, timestamps );
+		}
+
+		pthread_mutex_lock( &(desc->in_use) );
+		stat = wait_for_input( desc, timeout_micros );
+		while( stat == 1 && count < max_chunks && offset < buffer_size ){
+			len = buffer_size - offset;
+			if( len > (jint)sizeof( data ) ){
+				len = sizeof( data );
+			}
+
+			stat = read_port( desc->rs485, &(desc->capture), desc->port, data, len );
+			now = monotonic_nanos();
+			if( stat == READ_ONLY_ECHO ){
+				//Nothing for the caller yet; keep waiting as if we hadn't read anything
+				stat = wait_for_input( desc, count == 0 ? timeout_micros : 0 );
+				continue;
+			}else if( stat < 0 ){
+				error = errno;
+				break;
+			}else if( stat == 0 ){
+				//Hung up; the device has gone away
+				error = ENODEV;
+				break;
+			}
+
+			(*env)->SetByteArrayRegion( env, arr, offset, stat, data );
+			(*env)->SetIntArrayRegion( env, lengths, count, 1, &stat );
+			(*env)->SetLongArrayRegion( env, timestamps, count, 1, &now );
+			offset += stat;
+			count++;
+
+			//Only keep going if there is more data waiting right now; a timeout of
+			//0 still polls the port, so this picks up data that is already there
+			stat = wait_for_input( desc, 0 );
+		}
+
+		if( stat == -1 ){
+			error = errno;
+		}else if( stat == -2 ){
+			eof = 1;
+		}
+		pthread_mutex_unlock( &(desc->in_use) );
+
+		//Hand back any data that we got; errors will show up on the next call
+		if( count > 0 ){
+			return count;
+		}
+
+		if( error ){
+			throw_port_error( env, error );
+			return -1;
+		}
+
+		if( eof ){
+			return -1;
+		}
+
+		return 0;
+	}
+#endif
+}
+
+//
+// ------------------------------------------------------------------------
+// ---------------------File transfer below here---------------------------
+// ------------------------------------------------------------------------
+//
+
+#ifndef _WIN32
+/*
+ * Copy part of a file to the port through a buffer on the stack, for when
+ * the kernel can't do it for us.  Returns the number of bytes written(0 at
+ * the end of the file), or -1 with errno set.
+ */
+static ssize_t copy_file_chunk( int port, struct capture* capture, int fd, off_t position, size_t count ){
+	char data[ 16384 ];
+	ssize_t got;
+	ssize_t rc;
+	ssize_t written = 0;
+
+	if( count > sizeof( data ) ){
+		count = sizeof( data );
+	}
+
+	do{
+		got = pread( fd, data, count, position );
+	}while( got < 0 && errno == EINTR );
+	if( got <= 0 ){
+		return got;
+	}
+
+	while( written < got ){
+		rc = write( port, data + written, got - written );
+		if( rc < 0 ){
+			if( errno == EINTR ){
+				continue;
+			}
+			capture_record( capture, CAPTURE_TRANSMITTED, data, written );
+			return -1;
+		}
+		written += rc;
+	}
+	capture_record( capture, CAPTURE_TRANSMITTED, data, written );
+
+	return written;
+}
+#endif /* _WIN32 */
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    openTransferFile
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openTransferFile
+  (JNIEnv * env, jclass cls, jstring path){
+#ifdef _WIN32
+	throw_io_exception_message( env, "File transfer is not supported on this platform" );
+	return -1;
+#else
+	const char* file_name;
+	int fd;
+	int error;
+
+	file_name = (*env)->GetStringUTFChars( env, path, 0 );
+	if( file_name == NULL ){
+		return -1;
+	}
+	fd = open( file_name, O_RDONLY );
+	error = errno;
+	(*env)->ReleaseStringUTFChars( env, path, file_name );
+
+	if( fd < 0 ){
+		throw_io_exception( env, error );
+		return -1;
+	}
+
+	return fd;
+#endif /* _WIN32 */
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    closeTransferFile
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_closeTransferFile
+  (JNIEnv * env, jclass cls, jint fd){
+#ifndef _WIN32
+	close( fd );
+#endif
+}
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    transferFileChunk
+ * Signature: (IJJ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_SerialPort_transferFileChunk
+  (JNIEnv * env, jobject obj, jint fd, jlong position, jlong count){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
 		return -1;
 	}
-	
+
+#ifdef _WIN32
+	throw_io_exception_message( env, "File transfer is not supported on this platform" );
+	return -1;
+#else
 	{
-		struct termios io_name; 
-		if( tcgetattr( new_port->port, &io_name ) < 0 ){ 
-			if( errno == ENOTTY ){
-				//This is apparently not a serial port
-				jclass exception_class;
-				(*env)->ExceptionDescribe( env );
-				(*env)->ExceptionClear( env );
-				exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
-				(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
-				close( new_port->port );
-				free( new_port );
-				return -1;
-			}
+		ssize_t sent = -1;
+		int error;
+
+		if( rs485_begin_send( desc->rs485, desc->port ) < 0 ){
+			throw_io_exception( env, errno );
+			return -1;
 		}
-	}
-#endif /* __WIN32 */
 
+		rs485_expect_echo( desc->rs485, (int)count );
+#ifdef __linux__
+		if( capture_active( &(desc->capture) ) ){
+			//The data has to come through us so that it can be captured
+			errno = ENOSYS;
+		}else{
+			//The kernel copies straight from the page cache to the tty
+			off_t offset = position;
+			do{
+				sent = sendfile( desc->port, fd, &offset, count );
+			}while( sent < 0 && errno == EINTR );
+		}
+		if( sent < 0 && ( errno == EINVAL || errno == ENOSYS ) )
+#endif /* __linux__ */
+		{
+			sent = copy_file_chunk( desc->port, &(desc->capture), fd, position, count );
+		}
+		error = errno;
+		rs485_expect_echo( desc->rs485, -(int)( count - ( sent > 0 ? sent : 0 ) ) );
 
-	
-	//Set the baud rate
-	if( set_baud_rate( new_port, baudRate ) < 0 ){
-			throw_io_exception_message( env, "Unable to set baud rate" );
-#ifdef _WIN32
-			ReleaseMutex( new_port->in_use );
-			CloseHandle( new_port->in_use );
-#endif
-			close( new_port->port );
-			free( new_port );
-			return 0;
-	}
-	set_raw_input( new_port );
-	//Set the data bits( character size )
-	set_data_bits( new_port, dataBits );
-	//Set the stop bits
-	set_stop_bits( new_port, stopBits );
-	//Set the parity
-	set_parity( new_port, parity );
-	//Set the flow control
-	set_flow_control( new_port, flowControl );
+		if( rs485_end_send( desc->rs485, desc->port ) < 0 && sent >= 0 ){
+			sent = -1;
+			error = errno;
+		}
 
-	//Only set the new_port to be in our array as the last instruction
-	//If there are any errors, we will have returned long before this
-	port_list[ list_pos ] = new_port;
+		if( sent < 0 ){
+			throw_io_exception( env, error );
+			return -1;
+		}
 
-	return list_pos;
+		return sent;
+	}
+#endif /* _WIN32 */
 }
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    openPort
- * Signature: (Ljava/lang/String;)I
+ * Method:    writeDirectInternal
+ * Signature: (Ljava/nio/ByteBuffer;II)V
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPort__Ljava_lang_String_2
-  (JNIEnv * env, jobject obj, jstring port){
-	struct port_descriptor* new_port;
-	int list_pos;
-	int found = 0;
-	const char* port_to_open;
-	jboolean iscopy;
-
-	port_to_open = (*env)->GetStringUTFChars( env, port, &iscopy );
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_writeDirectInternal
+  (JNIEnv * env, jobject obj, jobject buffer, jint offset, jint len){
+	struct port_descriptor* desc;
 
-	if( port_list == NULL ){
-		log_message( MESSAGE_TRACE, env, "First port opened: allocating 10 port_descriptors" );
-		port_list = malloc( sizeof( struct port_descriptor* ) * 10 );
-		port_list_size = 10;
-		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
-			port_list[ list_pos ] = NULL;
-		}
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
 	}
 
-	//Search thru the port_list, find the first one that is NULL
-	for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
-		if( port_list[ list_pos ] == NULL ){
-			found = 1;
-			break;
+#ifdef _WIN32
+	throw_io_exception_message( env, "File transfer is not supported on this platform" );
+#else
+	{
+		char* data;
+		jint written = 0;
+		int rc = 0;
+
+		data = (*env)->GetDirectBufferAddress( env, buffer );
+		if( data == NULL ){
+			throw_io_exception_message( env, "Unable to get address of transfer buffer" );
+			return;
 		}
-	}
+		data += offset;
 
-	if( !found ){
-		//no free slots.  Expand our array by 10 elements
-		struct port_descriptor** tmpPortDesc;
-		tmpPortDesc = malloc( sizeof( struct port_descriptor* ) * ( port_list_size + 10 ) );
+		if( rs485_begin_send( desc->rs485, desc->port ) < 0 ){
+			throw_io_exception( env, errno );
+			return;
+		}
 
-		log_message( MESSAGE_TRACE, env, "No free slots found: expanding port_descirptor array by 10 elements" );
+		rs485_expect_echo( desc->rs485, len );
+		while( written < len ){
+			rc = write( desc->port, data + written, len - written );
+			if( rc < 0 ){
+				if( errno == EINTR ){
+					continue;
+				}
+				break;
+			}
+			written += rc;
+		}
+		capture_record( &(desc->capture), CAPTURE_TRANSMITTED, data, written );
 
-		//put all elements into the new array
-		for( list_pos = 0; list_pos < port_list_size; ++list_pos ){
-			tmpPortDesc[ list_pos ] = port_list[ list_pos ];
+		if( rc < 0 ){
+			int error = errno;
+			rs485_expect_echo( desc->rs485, written - len );
+			rs485_end_send( desc->rs485, desc->port );
+			throw_io_exception( env, error );
+			return;
 		}
-		++list_pos; //put the place to insert the new record one past the old records
 
-		port_list_size += 10;
-	
-		//free the old array, set it to the new one
-		free( port_list );
-		port_list = tmpPortDesc;
+		if( rs485_end_send( desc->rs485, desc->port ) < 0 ){
+			throw_io_exception( env, errno );
+		}
 	}
+#endif /* _WIN32 */
+}
 
-	//at this point, list_pos points to a NULL location in our array
-	new_port = malloc( sizeof( struct port_descriptor ) );
+//
+// ------------------------------------------------------------------------
+// ---------------------Socket bridge below here---------------------------
+// ------------------------------------------------------------------------
+//
 
-	//Now, let's get to the actual opening of our port
-#ifdef _WIN32
-	{
-		char* special_port = malloc( strlen( port_to_open ) + 5 );
-		memcpy( special_port, "\\\\.\\", 4 );
-		memcpy( special_port + 4, port_to_open, strlen( port_to_open ) + 1 );
-		new_port->port = CreateFile( special_port, GENERIC_READ | GENERIC_WRITE, 0, 0, OPEN_EXISTING, FILE_FLAG_OVERLAPPED, 0 );
-		free( special_port );
-	}
-	if( new_port->port == INVALID_HANDLE_VALUE ){
-		if( GetLastError() == ERROR_FILE_NOT_FOUND ){
-			LPTSTR error_text = NULL;
-			jclass exception_class;
-			
-			FormatMessage(
-				FORMAT_MESSAGE_FROM_SYSTEM | FORMAT_MESSAGE_ALLOCATE_BUFFER | FORMAT_MESSAGE_IGNORE_INSERTS,
-				NULL,
-				GetLastError(),
-				MAKELANGID(LANG_NEUTRAL, SUBLANG_DEFAULT),
-				(LPTSTR)&error_text,
-				0,
-				NULL );
-		
-			(*env)->ExceptionDescribe( env );
-			(*env)->ExceptionClear( env );
-			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
-			(*env)->ThrowNew(env, exception_class, error_text );
-			free( new_port );
-			LocalFree( error_text );
-			return -1; 
+#ifndef _WIN32
+#ifndef MSG_NOSIGNAL
+	#define MSG_NOSIGNAL 0
+#endif
+
+#define TELNET_SE   240
+#define TELNET_SB   250
+#define TELNET_WILL 251
+#define TELNET_WONT 252
+#define TELNET_DO   253
+#define TELNET_DONT 254
+#define TELNET_IAC  255
+
+#define TELNET_OPTION_BINARY   0
+#define TELNET_OPTION_SGA      3
+#define TELNET_OPTION_COM_PORT 44
+
+#define TELNET_STATE_DATA   0
+#define TELNET_STATE_IAC    1
+#define TELNET_STATE_OPTION 2
+#define TELNET_STATE_SB     3
+#define TELNET_STATE_SB_IAC 4
+
+// RFC 2217 commands from the client; the server answers with command + 100
+#define COM_PORT_SIGNATURE         0
+#define COM_PORT_SET_BAUDRATE      1
+#define COM_PORT_SET_DATASIZE      2
+#define COM_PORT_SET_PARITY        3
+#define COM_PORT_SET_STOPSIZE      4
+#define COM_PORT_SET_CONTROL       5
+#define COM_PORT_NOTIFY_LINESTATE  6
+#define COM_PORT_NOTIFY_MODEMSTATE 7
+#define COM_PORT_LINESTATE_MASK    10
+#define COM_PORT_MODEMSTATE_MASK   11
+#define COM_PORT_PURGE_DATA        12
+
+#define BRIDGE_OK           0
+#define BRIDGE_CLIENT_GONE -1
+#define BRIDGE_PORT_FAILED -2
+
+#define BRIDGE_BUFFER_SIZE 4096
+
+static int send_all( int fd, const unsigned char* data, size_t len ){
+	ssize_t rc;
+
+	while( len > 0 ){
+		rc = send( fd, data, len, MSG_NOSIGNAL );
+		if( rc < 0 ){
+			if( errno == EINTR ){
+				continue;
+			}
+			return -1;
 		}
+		data += rc;
+		len -= rc;
 	}
-	
-	{
-		//Let's check to see if this is a serial port
-		DCB io_name = {0};
-		io_name.DCBlength = sizeof( io_name ); 
-		if (!GetCommState( new_port->port, &io_name ) ) { 
-			LPTSTR error_text = NULL;
-			jclass exception_class;
-			(*env)->ExceptionDescribe( env );
-			(*env)->ExceptionClear( env );
-			exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
-			(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
-			free( new_port );
+
+	return 0;
+}
+
+static int write_all( int fd, const unsigned char* data, size_t len ){
+	ssize_t rc;
+
+	while( len > 0 ){
+		rc = write( fd, data, len );
+		if( rc < 0 ){
+			if( errno == EINTR ){
+				continue;
+			}
 			return -1;
 		}
+		data += rc;
+		len -= rc;
 	}
-#else
-	pthread_mutex_init( &(new_port->in_use), NULL );
-	new_port->port = open( port_to_open, O_RDWR );
-	if( new_port->port < 0 && errno == ENOENT ){
-		//That's not a valid serial port, error out
-		jclass exception_class;
-		(*env)->ExceptionDescribe( env );
-		(*env)->ExceptionClear( env );
-		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
-		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
-		free( new_port );
-		return -1; 
-	}else if( new_port->port < 0 ){
-		jclass exception_class;
-		(*env)->ExceptionDescribe( env );
-		(*env)->ExceptionClear( env );
-		exception_class = (*env)->FindClass(env, "com/rm5248/serial/NoSuchPortException");
-		(*env)->ThrowNew(env, exception_class, strerror( errno ) );
-		free( new_port );
+
+	return 0;
+}
+
+static int bridge_write_port( struct bridge* bridge, const unsigned char* data, size_t len ){
+	int rc;
+	int error;
+
+	if( len == 0 ){
+		return 0;
+	}
+
+	if( rs485_begin_send( bridge->rs485, bridge->port_fd ) < 0 ){
 		return -1;
 	}
-	
-	{
-		struct termios io_name; 
-		if( tcgetattr( new_port->port, &io_name ) < 0 ){ 
-			if( errno == ENOTTY ){
-				//This is apparently not a serial port
-				jclass exception_class;
-				(*env)->ExceptionDescribe( env );
-				(*env)->ExceptionClear( env );
-				exception_class = (*env)->FindClass(env, "com/rm5248/serial/NotASerialPortException");
-				(*env)->ThrowNew(env, exception_class, "You are attempting to open something which is not a serial port" );
-				free( new_port );
-				return -1;
-			}
-		}
+
+	rs485_expect_echo( bridge->rs485, len );
+	rc = write_all( bridge->port_fd, data, len );
+	error = errno;
+	if( rc == 0 ){
+		capture_record( bridge->capture, CAPTURE_TRANSMITTED, data, len );
+	}
+	if( rc < 0 ){
+		//We don't know how much went out; assume none of it did
+		rs485_expect_echo( bridge->rs485, -(int)len );
 	}
-#endif /* __WIN32 */
 
-	
-	//Only set the new_port to be in our array as the last instruction
-	//If there are any errors, we will have returned long before this
-	port_list[ list_pos ] = new_port;
+	if( rs485_end_send( bridge->rs485, bridge->port_fd ) < 0 && rc == 0 ){
+		return -1;
+	}
 
-	return list_pos;
+	errno = error;
+	return rc;
 }
 
-/*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    doClose
- * Signature: ()V
- */
-JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_doClose
-  (JNIEnv * env, jobject obj){
-	//Note: We can't use get_serial_port_struct here, beacuse we need to set
-	//the position in the array to NULL
-	int array_pos;
-	struct port_descriptor* desc;
-	
-	array_pos = get_handle( env, obj ); 
-	if( array_pos < 0 || array_pos > port_list_size ){ 
-		throw_io_exception_message( env, "Unable to get handle" );
-		return; 
-	} 
-	desc = port_list[ array_pos ]; 
-	if( desc == NULL ){ 
-		throw_io_exception_message( env, "Unable to get descriptor" ); 
-		return; 
-	}
+static void bridge_accept( struct bridge* bridge ){
+	int fd;
+	int one = 1;
 
-#ifdef _WIN32
-	{
-		HANDLE tmpHandle = desc->port;
-		desc->port = INVALID_HANDLE_VALUE;
-		CloseHandle( tmpHandle );
-	}
-	WaitForSingleObject( desc->in_use, INFINITE );
-	ReleaseMutex( desc->in_use );
-	CloseHandle( desc->in_use );
-#else
-	{
-		int tmpFd = desc->port;
-		desc->port = -1;
-		close( tmpFd );
+	fd = accept( bridge->listen_fd, NULL, NULL );
+	if( fd < 0 ){
+		return;
 	}
-	pthread_mutex_lock( &(desc->in_use) );
-	pthread_mutex_unlock( &(desc->in_use) );
+
+	pthread_mutex_lock( &(bridge->lock) );
+	if( bridge->client_fd >= 0 || bridge->stop ){
+		//Only one client at a time
+		pthread_mutex_unlock( &(bridge->lock) );
+		close( fd );
+		return;
+	}
+
+	//Serial data is usually small messages; don't hold them back
+	setsockopt( fd, IPPROTO_TCP, TCP_NODELAY, &one, sizeof( one ) );
+#ifdef SO_NOSIGPIPE
+	setsockopt( fd, SOL_SOCKET, SO_NOSIGPIPE, &one, sizeof( one ) );
 #endif
+	bridge->client_fd = fd;
+	memset( &(bridge->telnet), 0, sizeof( bridge->telnet ) );
+	__atomic_add_fetch( &(bridge->connections), 1, __ATOMIC_RELEASE );
+	pthread_mutex_unlock( &(bridge->lock) );
+}
 
-	free( port_list[ array_pos ] );
-	port_list[ array_pos ] = NULL;
+static void bridge_drop_client( struct bridge* bridge ){
+	pthread_mutex_lock( &(bridge->lock) );
+	if( bridge->client_fd >= 0 ){
+		close( bridge->client_fd );
+		bridge->client_fd = -1;
+	}
+	pthread_mutex_unlock( &(bridge->lock) );
 }
 
+#ifdef __linux__
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    setBaudRate
- * Signature: (I)Z
+ * Move len bytes that are sitting in the pipe on to out_fd.  If the kernel
+ * can't splice to out_fd, the rest is copied through buf and the pipe is
+ * closed so that we don't try to splice that way again.
+ * Returns 0, or -1 with errno set if writing to out_fd failed.
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setBaudRate
-  (JNIEnv * env, jobject obj, jint baud_rate ){
-	struct port_descriptor* desc;
+static int bridge_drain_pipe( int pipe_fds[ 2 ], int out_fd, size_t len, unsigned char* buf, int is_socket ){
+	ssize_t rc;
+	int failed = 0;
+	int error = 0;
+
+	while( len > 0 ){
+		rc = splice( pipe_fds[ 0 ], NULL, out_fd, NULL, len, SPLICE_F_MOVE );
+		if( rc < 0 && errno == EINTR ){
+			continue;
+		}else if( rc < 0 ){
+			break;
+		}
+		len -= rc;
+	}
 
-	desc = get_port_descriptor( env, obj );
+	if( len == 0 ){
+		return 0;
+	}
 
-	if( desc == NULL ){
+	if( errno != EINVAL ){
+		//The output has failed; throw away what's left in the pipe
+		failed = 1;
+		error = errno;
+	}
+
+	while( len > 0 ){
+		rc = read( pipe_fds[ 0 ], buf, len < BRIDGE_BUFFER_SIZE ? len : BRIDGE_BUFFER_SIZE );
+		if( rc <= 0 ){
+			break;
+		}
+		len -= rc;
+		if( !failed ){
+			if( ( is_socket ? send_all( out_fd, buf, rc ) : write_all( out_fd, buf, rc ) ) < 0 ){
+				failed = 1;
+				error = errno;
+			}
+		}
+	}
+
+	if( !failed ){
+		close_pipe( pipe_fds );
 		return 0;
 	}
 
-	return set_baud_rate( desc, baud_rate );
+	errno = error;
+	return -1;
 }
+#endif /* __linux__ */
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    getBaudRateInternal
- * Signature: ()I
+ * Call into Java to carry out an RFC 2217 command.  Returns the value to
+ * send back to the client.
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getBaudRateInternal
-  (JNIEnv * env, jobject obj){
-	struct port_descriptor* desc;
+static jint bridge_java_command( JNIEnv* env, struct bridge* bridge, int command, jint value ){
+	jint result;
 
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
+	if( env == NULL ){
+		return value;
 	}
 
-	//Now, let's get the baud rate information
-	{
-		GET_SERIAL_PORT_STRUCT( desc->port, newio );
-#ifdef _WIN32
-		GetCommState( desc->port, &newio );
-		switch( newio.BaudRate ){
-#else
-		switch( cfgetispeed( &newio ) ){
-		GET_SPEED_SWITCH( 0, newio );
-		GET_SPEED_SWITCH( 50, newio );
-		GET_SPEED_SWITCH( 75, newio );
-#endif /* _WIN32 */
-		GET_SPEED_SWITCH( 110, newio );
-#ifndef _WIN32
-		GET_SPEED_SWITCH( 134, newio );
-		GET_SPEED_SWITCH( 150, newio );
-		GET_SPEED_SWITCH( 200, newio );
-#endif /* _WIN32 */
-		GET_SPEED_SWITCH( 300, newio );
-		GET_SPEED_SWITCH( 600, newio );
-		GET_SPEED_SWITCH( 1200, newio );
-#ifndef _WIN32
-		GET_SPEED_SWITCH( 1800, newio );
-#endif /* _WIN32 */
-		GET_SPEED_SWITCH( 2400, newio );
-		GET_SPEED_SWITCH( 4800, newio );
-		GET_SPEED_SWITCH( 9600, newio );
-		GET_SPEED_SWITCH( 19200, newio );
-		GET_SPEED_SWITCH( 38400, newio );
-		GET_SPEED_SWITCH( 57600, newio );
-		GET_SPEED_SWITCH( 115200, newio );
-		default:
-			return 0;
-		} /* end switch */
+	result = (*env)->CallIntMethod( env, bridge->java_bridge, bridge->command_method, command, value );
+	if( (*env)->ExceptionCheck( env ) ){
+		(*env)->ExceptionClear( env );
+		return value;
 	}
 
+	return result;
 }
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    setStopBits
- * Signature: (I)Z
+ * Handle a COM-PORT-OPTION subnegotiation.  Returns the number of bytes put
+ * into reply.
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setStopBits
-  (JNIEnv * env, jobject obj, jint bits){
-	struct port_descriptor* desc;
-
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
+static size_t telnet_subnegotiation( JNIEnv* env, struct bridge* bridge, unsigned char* reply ){
+	struct telnet_state* telnet = &(bridge->telnet);
+	static const char signature[] = "JavaSerial";
+	unsigned char value_bytes[ 4 ];
+	size_t value_len;
+	size_t reply_len = 0;
+	size_t x;
+	int command;
+	jint value = 0;
+
+	if( telnet->sb_len < 2 || telnet->sb[ 0 ] != TELNET_OPTION_COM_PORT ){
 		return 0;
 	}
-	
-	return set_stop_bits( desc, bits );
-}
 
-/*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    getStopBitsInternal
- * Signature: ()I
- */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getStopBitsInternal
-  (JNIEnv * env, jobject obj){
-	struct port_descriptor* desc;
+	command = telnet->sb[ 1 ];
+	for( x = 2; x < (size_t)telnet->sb_len && x < 6; x++ ){
+		value = ( value << 8 ) | telnet->sb[ x ];
+	}
 
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
+	value_len = 1;
+	switch( command ){
+	case COM_PORT_SIGNATURE:
+		reply[ reply_len++ ] = TELNET_IAC;
+		reply[ reply_len++ ] = TELNET_SB;
+		reply[ reply_len++ ] = TELNET_OPTION_COM_PORT;
+		reply[ reply_len++ ] = COM_PORT_SIGNATURE + 100;
+		memcpy( reply + reply_len, signature, sizeof( signature ) - 1 );
+		reply_len += sizeof( signature ) - 1;
+		reply[ reply_len++ ] = TELNET_IAC;
+		reply[ reply_len++ ] = TELNET_SE;
+		return reply_len;
+	case COM_PORT_SET_BAUDRATE:
+		value_len = 4;
+		/* fall through */
+	case COM_PORT_SET_DATASIZE:
+	case COM_PORT_SET_PARITY:
+	case COM_PORT_SET_STOPSIZE:
+	case COM_PORT_SET_CONTROL:
+		value = bridge_java_command( env, bridge, command, value );
+		break;
+	case COM_PORT_NOTIFY_LINESTATE:
+	case COM_PORT_NOTIFY_MODEMSTATE:
+	case COM_PORT_LINESTATE_MASK:
+	case COM_PORT_MODEMSTATE_MASK:
+		//We don't send notifications, so just agree
+		break;
+	case COM_PORT_PURGE_DATA:
+		if( value == 1 ){
+			tcflush( bridge->port_fd, TCIFLUSH );
+		}else if( value == 2 ){
+			tcflush( bridge->port_fd, TCOFLUSH );
+		}else if( value == 3 ){
+			tcflush( bridge->port_fd, TCIOFLUSH );
+		}
+		break;
+	default:
 		return 0;
 	}
 
-	{
-		GET_SERIAL_PORT_STRUCT( desc->port, newio );
-#ifdef _WIN32
-		if( newio.StopBits == 1 ){
-			return 1;
-		}else if( newio.StopBits == 2 ){
-			return 2;
-		}else{
-			return -1;
-		}
-#else
-		if( newio.c_cflag & CSTOPB ){
-			return 2;
-		}else{
-			return 1;
-		}
-#endif
+	for( x = 0; x < value_len; x++ ){
+		value_bytes[ x ] = ( value >> ( 8 * ( value_len - x - 1 ) ) ) & 0xFF;
 	}
-}
-/*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    setCharSize
- * Signature: (I)Z
- */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setCharSize
-  (JNIEnv * env, jobject obj, jint size){
-	struct port_descriptor* desc;
 
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
+	reply[ reply_len++ ] = TELNET_IAC;
+	reply[ reply_len++ ] = TELNET_SB;
+	reply[ reply_len++ ] = TELNET_OPTION_COM_PORT;
+	reply[ reply_len++ ] = command + 100;
+	for( x = 0; x < value_len; x++ ){
+		reply[ reply_len++ ] = value_bytes[ x ];
+		if( value_bytes[ x ] == TELNET_IAC ){
+			reply[ reply_len++ ] = TELNET_IAC;
+		}
 	}
-	
-	return set_data_bits( desc, size );
+	reply[ reply_len++ ] = TELNET_IAC;
+	reply[ reply_len++ ] = TELNET_SE;
+
+	return reply_len;
 }
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    getCharSizeInternal
- * Signature: ()I
+ * Answer a WILL/WONT/DO/DONT from the client.  We do BINARY and SGA both
+ * ways, and let the client do COM-PORT-OPTION.
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getCharSizeInternal
-  (JNIEnv * env, jobject obj){
-	struct port_descriptor* desc;
-
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
-	}
+static size_t telnet_negotiate( struct telnet_state* telnet, int option, unsigned char* reply ){
+	int answer;
 
-	//Now get the char size
-	{
-		GET_SERIAL_PORT_STRUCT( desc->port, newio );
-		
-#ifdef _WIN32
-		return newio.ByteSize;
-#else
-		if( ( newio.c_cflag | CS8 ) == CS8 ){
-			return 8;
-		}else if( ( newio.c_cflag | CS7 ) == CS7 ){
-			return 7;
-		}else if( ( newio.c_cflag | CS6 ) == CS6 ){
-			return 6;
-		}else if( ( newio.c_cflag | CS5 ) == CS5 ){
-			return 5;
-		}else{
+	if( telnet->verb == TELNET_WILL ){
+		if( telnet->answered_will[ option ] ){
 			return 0;
 		}
-#endif
+		telnet->answered_will[ option ] = 1;
+		answer = ( option == TELNET_OPTION_BINARY || option == TELNET_OPTION_SGA ||
+			option == TELNET_OPTION_COM_PORT ) ? TELNET_DO : TELNET_DONT;
+	}else if( telnet->verb == TELNET_DO ){
+		if( telnet->answered_do[ option ] ){
+			return 0;
+		}
+		telnet->answered_do[ option ] = 1;
+		answer = ( option == TELNET_OPTION_BINARY || option == TELNET_OPTION_SGA ) ?
+			TELNET_WILL : TELNET_WONT;
+	}else{
+		//WONT/DONT need no answer
+		return 0;
 	}
 
+	reply[ 0 ] = TELNET_IAC;
+	reply[ 1 ] = answer;
+	reply[ 2 ] = option;
+	return 3;
 }
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    setParity
- * Signature: (I)Z
+ * Take the telnet commands out of data from the client.  The data for the
+ * port is left at the start of buf(there is never more of it than what came
+ * in), and anything to send back to the client is put into reply.
+ * Returns the number of bytes for the port.
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setParity
-  (JNIEnv * env, jobject obj, jint parity){
-	struct port_descriptor* desc;
+static size_t telnet_receive( JNIEnv* env, struct bridge* bridge, unsigned char* buf, size_t len,
+		unsigned char* reply, size_t* reply_len ){
+	struct telnet_state* telnet = &(bridge->telnet);
+	size_t data_len = 0;
+	size_t x;
+	unsigned char c;
+
+	*reply_len = 0;
+	for( x = 0; x < len; x++ ){
+		c = buf[ x ];
+		switch( telnet->state ){
+		case TELNET_STATE_DATA:
+			if( c == TELNET_IAC ){
+				telnet->state = TELNET_STATE_IAC;
+			}else{
+				buf[ data_len++ ] = c;
+			}
+			break;
+		case TELNET_STATE_IAC:
+			if( c == TELNET_IAC ){
+				buf[ data_len++ ] = c;
+				telnet->state = TELNET_STATE_DATA;
+			}else if( c >= TELNET_WILL ){
+				telnet->verb = c;
+				telnet->state = TELNET_STATE_OPTION;
+			}else if( c == TELNET_SB ){
+				telnet->sb_len = 0;
+				telnet->state = TELNET_STATE_SB;
+			}else{
+				//NOP and friends
+				telnet->state = TELNET_STATE_DATA;
+			}
+			break;
+		case TELNET_STATE_OPTION:
+			*reply_len += telnet_negotiate( telnet, c, reply + *reply_len );
+			telnet->state = TELNET_STATE_DATA;
+			break;
+		case TELNET_STATE_SB:
+			if( c == TELNET_IAC ){
+				telnet->state = TELNET_STATE_SB_IAC;
+			}else if( telnet->sb_len < (int)sizeof( telnet->sb ) ){
+				telnet->sb[ telnet->sb_len++ ] = c;
+			}
+			break;
+		case TELNET_STATE_SB_IAC:
+			if( c == TELNET_IAC ){
+				if( telnet->sb_len < (int)sizeof( telnet->sb ) ){
+					telnet->sb[ telnet->sb_len++ ] = c;
+				}
+				telnet->state = TELNET_STATE_SB;
+			}else{
+				if( c == TELNET_SE ){
+					*reply_len += telnet_subnegotiation( env, bridge, reply + *reply_len );
+				}
+				telnet->state = TELNET_STATE_DATA;
+			}
+			break;
+		}
+	}
 
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
-	}	
-	
-	return set_parity( desc, parity );
+	return data_len;
 }
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    getParityInternal
- * Signature: ()I
+ * The port has data; send it to the client.
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getParityInternal
-  (JNIEnv * env, jobject obj){
-	struct port_descriptor* desc;
+static int bridge_from_port( struct bridge* bridge, int client, unsigned char* buf, unsigned char* out ){
+	ssize_t got;
+	ssize_t x;
+	size_t out_len;
+
+#ifdef __linux__
+	//Spliced data never comes through us, so it can't be captured
+	if( bridge->to_client_pipe[ 0 ] >= 0 && !capture_active( bridge->capture ) ){
+		got = splice( bridge->port_fd, NULL, bridge->to_client_pipe[ 1 ], NULL,
+			16 * BRIDGE_BUFFER_SIZE, SPLICE_F_MOVE | SPLICE_F_NONBLOCK );
+		if( got < 0 && errno == EINVAL ){
+			//This port can't be spliced from; copy instead from now on
+			close_pipe( bridge->to_client_pipe );
+		}else if( got < 0 && ( errno == EINTR || errno == EAGAIN ) ){
+			return BRIDGE_OK;
+		}else if( got <= 0 ){
+			bridge->error = got < 0 ? errno : EIO;
+			return BRIDGE_PORT_FAILED;
+		}else{
+			__atomic_add_fetch( &(bridge->to_client_bytes), got, __ATOMIC_RELEASE );
+			if( bridge_drain_pipe( bridge->to_client_pipe, client, got, buf, 1 ) < 0 ){
+				return BRIDGE_CLIENT_GONE;
+			}
+			return BRIDGE_OK;
+		}
+	}
+#endif /* __linux__ */
+
+	got = read_port( bridge->rs485, bridge->capture, bridge->port_fd, buf, BRIDGE_BUFFER_SIZE );
+	if( got == READ_ONLY_ECHO || ( got < 0 && ( errno == EINTR || errno == EAGAIN ) ) ){
+		return BRIDGE_OK;
+	}else if( got <= 0 ){
+		//A tty gives us 0 when it has hung up
+		bridge->error = got < 0 ? errno : EIO;
+		return BRIDGE_PORT_FAILED;
+	}
 
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
+	__atomic_add_fetch( &(bridge->to_client_bytes), got, __ATOMIC_RELEASE );
+	if( !bridge->rfc2217 ){
+		return send_all( client, buf, got ) < 0 ? BRIDGE_CLIENT_GONE : BRIDGE_OK;
 	}
 
-	{
-		GET_SERIAL_PORT_STRUCT( desc->port, newio );
-#ifdef _WIN32
-		if( newio.Parity == NOPARITY ){
-			return 0;
-		}else if( newio.Parity == ODDPARITY ){
-			return 1;
-		}else if( newio.Parity == EVENPARITY ){
-			return 2;
-		}else{
-			return -1;
-		}
-#else
-		if( !( newio.c_cflag & PARENB ) ){
-			//No parity
-			return 0;
-		}else if( newio.c_cflag & PARODD ){
-			//Odd parity
-			return 1;
-		}else if( !( newio.c_cflag & PARODD ) ){
-			//Even parity
-			return 2;
-		}else{
-			return -1;
+	//Double up any IAC bytes so the client doesn't think they are commands
+	out_len = 0;
+	for( x = 0; x < got; x++ ){
+		out[ out_len++ ] = buf[ x ];
+		if( buf[ x ] == TELNET_IAC ){
+			out[ out_len++ ] = TELNET_IAC;
 		}
-#endif
 	}
 
+	return send_all( client, out, out_len ) < 0 ? BRIDGE_CLIENT_GONE : BRIDGE_OK;
 }
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    setFlowControl
- * Signature: (I)Z
+ * The client has sent us something; send it to the port.
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setFlowControl
-  (JNIEnv * env, jobject obj, jint flow){
-	struct port_descriptor* desc;
-	
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
+static int bridge_from_client( JNIEnv* env, struct bridge* bridge, int client, unsigned char* buf, unsigned char* out ){
+	ssize_t got;
+	size_t data_len;
+	size_t reply_len;
+
+#ifdef __linux__
+	if( bridge->to_port_pipe[ 0 ] >= 0 && !capture_active( bridge->capture ) ){
+		//Only take a little at a time from the client: writing to the port
+		//blocks, and the port has to be read from in between so that a
+		//device which answers while we are sending doesn't back up
+		got = splice( client, NULL, bridge->to_port_pipe[ 1 ], NULL,
+			BRIDGE_BUFFER_SIZE, SPLICE_F_MOVE | SPLICE_F_NONBLOCK );
+		if( got < 0 && errno == EINVAL ){
+			close_pipe( bridge->to_port_pipe );
+		}else if( got < 0 && ( errno == EINTR || errno == EAGAIN ) ){
+			return BRIDGE_OK;
+		}else if( got <= 0 ){
+			return BRIDGE_CLIENT_GONE;
+		}else{
+			__atomic_add_fetch( &(bridge->to_port_bytes), got, __ATOMIC_RELEASE );
+			if( bridge_drain_pipe( bridge->to_port_pipe, bridge->port_fd, got, buf, 0 ) < 0 ){
+				bridge->error = errno;
+				return BRIDGE_PORT_FAILED;
+			}
+			return BRIDGE_OK;
+		}
 	}
-	
-	return set_flow_control( desc, flow );
+#endif /* __linux__ */
+
+	do{
+		got = recv( client, buf, BRIDGE_BUFFER_SIZE, 0 );
+	}while( got < 0 && errno == EINTR );
+	if( got <= 0 ){
+		return BRIDGE_CLIENT_GONE;
+	}
+
+	data_len = got;
+	if( bridge->rfc2217 ){
+		data_len = telnet_receive( env, bridge, buf, got, out, &reply_len );
+		if( reply_len > 0 && send_all( client, out, reply_len ) < 0 ){
+			return BRIDGE_CLIENT_GONE;
+		}
+	}
+
+	__atomic_add_fetch( &(bridge->to_port_bytes), data_len, __ATOMIC_RELEASE );
+	if( bridge_write_port( bridge, buf, data_len ) < 0 ){
+		bridge->error = errno;
+		return BRIDGE_PORT_FAILED;
+	}
+
+	return BRIDGE_OK;
 }
 
-/*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    getFlowControlInternal
- * Signature: ()I
- */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getFlowControlInternal
-  (JNIEnv * env, jobject obj){
-	struct port_descriptor* desc;
+static void* bridge_thread( void* arg ){
+	struct bridge* bridge = arg;
+	JNIEnv* env = NULL;
+	unsigned char buf[ BRIDGE_BUFFER_SIZE ];
+	unsigned char out[ 3 * BRIDGE_BUFFER_SIZE + 64 ];
+	struct pollfd fds[ 4 ];
+	int nfds;
+	int client;
+	int client_index;
+	int port_index;
+	int rc;
+
+	if( bridge->rfc2217 && java_vm != NULL ){
+		//We need to call into Java to change the port settings
+		JavaVMAttachArgs args;
+		args.version = JNI_VERSION_1_6;
+		args.name = "SerialPortBridge";
+		args.group = NULL;
+		if( (*java_vm)->AttachCurrentThreadAsDaemon( java_vm, (void**)&env, &args ) != JNI_OK ){
+			env = NULL;
+		}
+	}
+
+	while( 1 ){
+		pthread_mutex_lock( &(bridge->lock) );
+		if( bridge->stop ){
+			pthread_mutex_unlock( &(bridge->lock) );
+			break;
+		}
+		client = bridge->client_fd;
+		pthread_mutex_unlock( &(bridge->lock) );
+
+		nfds = 0;
+		client_index = -1;
+		port_index = -1;
+		fds[ nfds ].fd = bridge->wake_pipe[ 0 ];
+		fds[ nfds++ ].events = POLLIN;
+		fds[ nfds ].fd = bridge->listen_fd;
+		fds[ nfds++ ].events = POLLIN;
+		if( client >= 0 ){
+			//Only read from the port when there is somebody to send it to;
+			//until then, the data waits in the kernel
+			client_index = nfds;
+			fds[ nfds ].fd = client;
+			fds[ nfds++ ].events = POLLIN;
+			port_index = nfds;
+			fds[ nfds ].fd = bridge->port_fd;
+			fds[ nfds++ ].events = POLLIN;
+		}
+
+		rc = poll( fds, nfds, -1 );
+		if( rc < 0 ){
+			if( errno == EINTR ){
+				continue;
+			}
+			bridge->error = errno;
+			break;
+		}
+
+		if( fds[ 0 ].revents ){
+			//Woken up to stop
+			break;
+		}
+
+		if( fds[ 1 ].revents & POLLIN ){
+			bridge_accept( bridge );
+		}
 
-	desc = get_port_descriptor( env, obj );
-	if( desc == NULL ){
-		return 0;
-	}
-	
-	{
-		GET_SERIAL_PORT_STRUCT( desc->port, newio );
-#ifdef _WIN32
-		if( newio.fOutX == TRUE && newio.fInX == TRUE ){
-			return 2;
-		}else if( newio.fRtsControl == TRUE && newio.fOutxCtsFlow == TRUE ){
-			return 1;
-		}else{
-			return 0;
+		if( port_index >= 0 && fds[ port_index ].revents ){
+			rc = bridge_from_port( bridge, client, buf, out );
+			if( rc == BRIDGE_PORT_FAILED ){
+				break;
+			}else if( rc == BRIDGE_CLIENT_GONE ){
+				bridge_drop_client( bridge );
+				continue;
+			}
 		}
-#else
-		if( newio.c_cflag & ~( IXON ) &&
-			newio.c_cflag & ~( IXOFF ) &&
-			newio.c_cflag & ~( IXANY ) ){
-			return 0;
-		}else if( newio.c_cflag & HW_FLOW ){
-			return 1;
-		}else if( newio.c_cflag & ( IXON ) &&
-			newio.c_cflag & ( IXOFF ) &&
-			newio.c_cflag & ( IXANY ) ){
-			return 2;
+
+		if( client_index >= 0 && fds[ client_index ].revents ){
+			rc = bridge_from_client( env, bridge, client, buf, out );
+			if( rc == BRIDGE_PORT_FAILED ){
+				break;
+			}else if( rc == BRIDGE_CLIENT_GONE ){
+				bridge_drop_client( bridge );
+			}
 		}
-#endif /* _WIN32 */
 	}
 
-	return -1;
+	bridge_drop_client( bridge );
+	if( env != NULL ){
+		(*java_vm)->DetachCurrentThread( java_vm );
+	}
+
+	return NULL;
 }
+#endif /* _WIN32 */
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    getSerialLineStateInternalNonblocking
- * Signature: ()I
+ * Class:     com_rm5248_serial_SerialPortBridge
+ * Method:    startBridge
+ * Signature: (ZLjava/lang/String;IZ)I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getSerialLineStateInternalNonblocking
-  (JNIEnv * env, jobject obj ){
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPortBridge_startBridge
+  (JNIEnv * env, jobject obj, jboolean unix_socket, jstring address, jint tcp_port, jboolean rfc2217){
 	struct port_descriptor* desc;
-	jint ret_val;
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
-		return 0;
+		return -1;
 	}
 
-	ret_val = 0;
-	
-	{	
 #ifdef _WIN32
-		DWORD get_val;
-		DWORD error_code;
-		if( GetCommModemStatus( desc->port, &get_val ) == 0 ){
-			error_code = GetLastError();
-			if( error_code == ERROR_INVALID_PARAMETER ){
-				/* This can happen if the serial port does not support the control lines
-				 * Example: u-blox GPS receiver.
-				 */
-				return 0;
-			}
-			throw_io_exception( env, error_code );
+	throw_io_exception_message( env, "Socket bridge is not supported on this platform" );
+	return -1;
+#else
+	{
+		struct bridge* bridge;
+		const char* address_chars;
+		const char* error_message = NULL;
+		int error = 0;
+		int one = 1;
+		jint bound_port = 0;
+		int rc;
+
+		pthread_mutex_lock( &bridge_lock );
+		rc = desc->bridge != NULL;
+		pthread_mutex_unlock( &bridge_lock );
+		if( rc ){
+			throw_io_exception_message( env, "Socket bridge already started" );
 			return -1;
 		}
-		
-		if( get_val & MS_CTS_ON ){
-			// CTS
-			ret_val |= ( 0x01 << 1 );
+
+		bridge = calloc( 1, sizeof( struct bridge ) );
+		if( bridge == NULL ){
+			throw_io_exception( env, ENOMEM );
+			return -1;
 		}
-		
-		if( get_val & MS_DSR_ON ){
-			// Data Set Ready
-			ret_val |= ( 0x01 << 2 );
+		pthread_mutex_init( &(bridge->lock), NULL );
+		bridge->port_fd = desc->port;
+		bridge->rs485 = desc->rs485;
+		bridge->capture = &(desc->capture);
+		bridge->rfc2217 = rfc2217 ? 1 : 0;
+		bridge->listen_fd = -1;
+		bridge->client_fd = -1;
+		bridge->wake_pipe[ 0 ] = bridge->wake_pipe[ 1 ] = -1;
+		bridge->to_client_pipe[ 0 ] = bridge->to_client_pipe[ 1 ] = -1;
+		bridge->to_port_pipe[ 0 ] = bridge->to_port_pipe[ 1 ] = -1;
+
+		if( pipe( bridge->wake_pipe ) < 0 ){
+			throw_io_exception( env, errno );
+			bridge_free( env, bridge );
+			return -1;
 		}
-		
-		if( desc->winDTR ){
-			ret_val |= ( 0x01 << 3 );
+
+		address_chars = (*env)->GetStringUTFChars( env, address, 0 );
+		if( address_chars == NULL ){
+			bridge_free( env, bridge );
+			return -1;
 		}
-		
-		if( desc->winRTS ){
-			ret_val |= ( 0x01 << 4 );
+
+		if( unix_socket ){
+			struct sockaddr_un addr;
+
+			memset( &addr, 0, sizeof( addr ) );
+			addr.sun_family = AF_UNIX;
+			if( strlen( address_chars ) >= sizeof( addr.sun_path ) ){
+				error_message = "Unix socket path is too long";
+			}else{
+				strcpy( addr.sun_path, address_chars );
+				bridge->listen_fd = socket( AF_UNIX, SOCK_STREAM, 0 );
+				if( bridge->listen_fd < 0 ||
+						bind( bridge->listen_fd, (struct sockaddr*)&addr, sizeof( addr ) ) < 0 ){
+					error = errno;
+				}else{
+					strcpy( bridge->unix_path, address_chars );
+				}
+			}
+		}else{
+			struct addrinfo hints;
+			struct addrinfo* result;
+			struct sockaddr_storage bound;
+			socklen_t bound_len = sizeof( bound );
+			char service[ 16 ];
+
+			memset( &hints, 0, sizeof( hints ) );
+			hints.ai_family = AF_UNSPEC;
+			hints.ai_socktype = SOCK_STREAM;
+			hints.ai_flags = AI_PASSIVE;
+			snprintf( service, sizeof( service ), "%d", (int)tcp_port );
+			rc = getaddrinfo( address_chars[ 0 ] ? address_chars : NULL, service, &hints, &result );
+			if( rc != 0 ){
+				error_message = gai_strerror( rc );
+			}else{
+				bridge->listen_fd = socket( result->ai_family, result->ai_socktype, result->ai_protocol );
+				if( bridge->listen_fd < 0 ){
+					error = errno;
+				}else{
+					setsockopt( bridge->listen_fd, SOL_SOCKET, SO_REUSEADDR, &one, sizeof( one ) );
+					if( bind( bridge->listen_fd, result->ai_addr, result->ai_addrlen ) < 0 ||
+							getsockname( bridge->listen_fd, (struct sockaddr*)&bound, &bound_len ) < 0 ){
+						error = errno;
+					}else if( bound.ss_family == AF_INET ){
+						bound_port = ntohs( ((struct sockaddr_in*)&bound)->sin_port );
+					}else if( bound.ss_family == AF_INET6 ){
+						bound_port = ntohs( ((struct sockaddr_in6*)&bound)->sin6_port );
+					}
+				}
+				freeaddrinfo( result );
+			}
 		}
-		
-		if( get_val & MS_RING_ON ){
-			// Ring Indicator
-			ret_val |= ( 0x01 << 5 );
+		(*env)->ReleaseStringUTFChars( env, address, address_chars );
+
+		if( error == 0 && error_message == NULL && listen( bridge->listen_fd, 1 ) < 0 ){
+			error = errno;
 		}
-#else
-		int get_val;
-		if( ioctl( desc->port, TIOCMGET, &get_val ) < 0 ){
-			/* TIOCMGET can fail on linux if not implemented(example: pty) */
-			if( errno == EINVAL ){
-				return 0;
+
+		if( error != 0 || error_message != NULL ){
+			if( error_message != NULL ){
+				throw_io_exception_message( env, error_message );
+			}else{
+				throw_io_exception( env, error );
 			}
-			throw_io_exception( env, errno );
+			bridge_free( env, bridge );
 			return -1;
 		}
 
-		if( get_val & TIOCM_CD ){
-			// Carrier detect
-			ret_val |= 0x01;
+		if( rfc2217 ){
+			jclass cls = (*env)->GetObjectClass( env, obj );
+			bridge->command_method = (*env)->GetMethodID( env, cls, "comPortCommand", "(II)I" );
+			if( bridge->command_method == NULL ){
+				bridge_free( env, bridge );
+				return -1;
+			}
+			bridge->java_bridge = (*env)->NewGlobalRef( env, obj );
 		}
 
-		if( get_val & TIOCM_CTS ){
-			// CTS
-			ret_val |= ( 0x01 << 1 );
+#ifdef __linux__
+		if( !rfc2217 && desc->rs485 == NULL ){
+			//Raw data can go straight through the kernel.  If this fails, we just copy
+			if( pipe( bridge->to_client_pipe ) < 0 ){
+				bridge->to_client_pipe[ 0 ] = bridge->to_client_pipe[ 1 ] = -1;
+			}
+			if( pipe( bridge->to_port_pipe ) < 0 ){
+				bridge->to_port_pipe[ 0 ] = bridge->to_port_pipe[ 1 ] = -1;
+			}
 		}
+#endif /* __linux__ */
 
-		if( get_val & TIOCM_DSR ){
-			// Data Set Ready
-			ret_val |= ( 0x01 << 2 );
+		rc = pthread_create( &(bridge->thread), NULL, bridge_thread, bridge );
+		if( rc != 0 ){
+			throw_io_exception( env, rc );
+			bridge_free( env, bridge );
+			return -1;
 		}
 
-		if( get_val & TIOCM_DTR ){
-			// Data Terminal Ready
-			ret_val |= ( 0x01 << 3 );
+		pthread_mutex_lock( &bridge_lock );
+		rc = desc->bridge != NULL;
+		if( !rc ){
+			desc->bridge = bridge;
 		}
-
-		if( get_val & TIOCM_RTS ){
-			// Request To Send
-			ret_val |= ( 0x01 << 4 );
+		pthread_mutex_unlock( &bridge_lock );
+		if( rc ){
+			//Somebody else started one while we were setting up
+			bridge_stop_thread( env, bridge );
+			throw_io_exception_message( env, "Socket bridge already started" );
+			return -1;
 		}
+		return bound_port;
+	}
+#endif /* _WIN32 */
+}
 
-		if( get_val & TIOCM_RI ){
-			// Ring Indicator
-			ret_val |= ( 0x01 << 5 );
-		}
-#endif
+/*
+ * Class:     com_rm5248_serial_SerialPortBridge
+ * Method:    stopBridge
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPortBridge_stopBridge
+  (JNIEnv * env, jobject obj){
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		//The port has already been closed, which stops the bridge
+		(*env)->ExceptionClear( env );
+		return;
 	}
 
-	return ret_val;
+#ifndef _WIN32
+	bridge_stop( env, desc );
+#endif
 }
 
 /*
- * Class:     com_rm5248_serial_SerialPort
- * Method:    setSerialLineStateInternal
- * Signature: (Lcom/rm5248/serial/SerialLineState;)I
+ * Class:     com_rm5248_serial_SerialPortBridge
+ * Method:    getStats
+ * Signature: ([J)V
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_setSerialLineStateInternal
-  (JNIEnv * env, jobject obj, jobject serial){
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPortBridge_getStats
+  (JNIEnv * env, jobject obj, jlongArray stats){
 	struct port_descriptor* desc;
-	jint ret_val;
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
-		return 0;
+		(*env)->ExceptionClear( env );
+		return;
 	}
 
-	ret_val = 0;
-	
-#ifdef _WIN32
-	if( get_bool( env, serial, "dataTerminalReady" ) ){
-		if( !EscapeCommFunction( desc->port, SETDTR ) ){
-			throw_io_exception_message( env, "Could not set DTR" );
-			return -1;
-		}
-		desc->winDTR = 1;
-	}else{
-		if( !EscapeCommFunction( desc->port, CLRDTR ) ){
-			throw_io_exception_message( env, "Could not set DTR" );
-			return -1;
-		}
-		desc->winDTR = 0;
+#ifndef _WIN32
+	//Hold the lock so that the bridge can't be freed while we look at it
+	pthread_mutex_lock( &bridge_lock );
+	if( desc->bridge != NULL ){
+		struct bridge* bridge = desc->bridge;
+		jlong values[ 5 ];
+
+		values[ 0 ] = __atomic_load_n( &(bridge->to_client_bytes), __ATOMIC_ACQUIRE );
+		values[ 1 ] = __atomic_load_n( &(bridge->to_port_bytes), __ATOMIC_ACQUIRE );
+		values[ 2 ] = __atomic_load_n( &(bridge->connections), __ATOMIC_ACQUIRE );
+		pthread_mutex_lock( &(bridge->lock) );
+		values[ 3 ] = bridge->client_fd >= 0 ? 1 : 0;
+		pthread_mutex_unlock( &(bridge->lock) );
+		values[ 4 ] = bridge->error;
+		(*env)->SetLongArrayRegion( env, stats, 0, 5, values );
 	}
+	pthread_mutex_unlock( &bridge_lock );
+#endif
+}
 
-	if( get_bool( env, serial, "requestToSend" ) ){
-		if( !EscapeCommFunction( desc->port, SETRTS ) ){
-			throw_io_exception_message( env, "Could not set RTS" );
-			return -1;
+//
+// ------------------------------------------------------------------------
+// ---------------------Edge capture below here----------------------------
+// ------------------------------------------------------------------------
+//
+
+#ifdef __linux__
+/*
+ * Convert the LINE_XXX bits from SerialPort into TIOCM_XXX bits
+ */
+static int lines_to_tiocm( int lines ){
+	int tiocm = 0;
+
+	if( lines & LINE_CD ) tiocm |= TIOCM_CD;
+	if( lines & LINE_CTS ) tiocm |= TIOCM_CTS;
+	if( lines & LINE_DSR ) tiocm |= TIOCM_DSR;
+	if( lines & LINE_DTR ) tiocm |= TIOCM_DTR;
+	if( lines & LINE_RTS ) tiocm |= TIOCM_RTS;
+	if( lines & LINE_RI ) tiocm |= TIOCM_RNG;
+
+	return tiocm;
+}
+
+/*
+ * Convert TIOCM_XXX bits into the LINE_XXX bits from SerialPort
+ */
+static int tiocm_to_lines( int tiocm ){
+	int lines = 0;
+
+	if( tiocm & TIOCM_CD ) lines |= LINE_CD;
+	if( tiocm & TIOCM_CTS ) lines |= LINE_CTS;
+	if( tiocm & TIOCM_DSR ) lines |= LINE_DSR;
+	if( tiocm & TIOCM_DTR ) lines |= LINE_DTR;
+	if( tiocm & TIOCM_RTS ) lines |= LINE_RTS;
+	if( tiocm & TIOCM_RNG ) lines |= LINE_RI;
+
+	return lines;
+}
+
+/*
+ * Add up the transition counters for the lines that we are watching
+ */
+static jlong icount_total( struct serial_icounter_struct* icount, int tiocm_mask ){
+	jlong total = 0;
+
+	if( tiocm_mask & TIOCM_CD ) total += icount->dcd;
+	if( tiocm_mask & TIOCM_CTS ) total += icount->cts;
+	if( tiocm_mask & TIOCM_DSR ) total += icount->dsr;
+	if( tiocm_mask & TIOCM_RNG ) total += icount->rng;
+
+	return total;
+}
+
+/*
+ * Thread which waits for the control lines to change.  It has its own copy of
+ * the FD, and it owns the edge_capture along with the Java side.  When the
+ * capture is stopped, EDGE_WAKEUP_SIGNAL gets it out of TIOCMIWAIT.
+ */
+static void* edge_capture_thread( void* arg ){
+	struct edge_capture* edges = arg;
+	struct serial_icounter_struct icount;
+	struct timespec mono;
+	struct timespec real;
+	jlong last_count;
+	jlong new_count;
+	int last_state;
+	int state;
+	int changed;
+	int observed;
+	int x;
+	sigset_t wakeup;
+
+	//Threads made from Java may have it blocked
+	sigemptyset( &wakeup );
+	sigaddset( &wakeup, EDGE_WAKEUP_SIGNAL );
+	pthread_sigmask( SIG_UNBLOCK, &wakeup, NULL );
+
+	if( ioctl( edges->fd, TIOCMGET, &last_state ) < 0 ){
+		last_state = 0;
+	}
+	last_count = 0;
+	if( ioctl( edges->fd, TIOCGICOUNT, &icount ) == 0 ){
+		last_count = icount_total( &icount, edges->tiocm_mask );
+	}
+
+	while( !__atomic_load_n( &(edges->stop), __ATOMIC_ACQUIRE ) ){
+		if( ioctl( edges->fd, TIOCMIWAIT, edges->tiocm_mask ) < 0 ){
+			if( errno == EINTR ){
+				continue;
+			}
+			edges->error = errno;
+			break;
 		}
-		desc->winRTS = 1;
-	}else{
-		if( !EscapeCommFunction( desc->port, CLRRTS ) ){
-			throw_io_exception_message( env, "Could not set RTS" );
-			return -1;
+
+		//Get the time as soon as possible after we wake up
+		clock_gettime( CLOCK_MONOTONIC, &mono );
+		clock_gettime( CLOCK_REALTIME, &real );
+
+		if( ioctl( edges->fd, TIOCMGET, &state ) < 0 ){
+			edges->error = errno;
+			break;
 		}
-		desc->winRTS = 0;
-	}
-#else
-	int toSet = 0;
 
-	if( ioctl( desc->port, TIOCMGET, &toSet ) < 0 ){
-		throw_io_exception_message( env, "Could not get port settings" );
-		return -1;
-	}
+		changed = ( state ^ last_state ) & edges->tiocm_mask;
+		last_state = state;
 
-	if( get_bool( env, serial, "dataTerminalReady" ) ){
-		toSet |= TIOCM_DTR;
-	}else{
-		toSet &= ~TIOCM_DTR;
-	}
+		observed = 0;
+		for( x = 0; x < 32; x++ ){
+			jlong head;
+			struct edge_record* record;
+			int bit = 1 << x;
 
-	if( get_bool( env, serial, "requestToSend" ) ){
-		toSet |= TIOCM_RTS;
-	}else{
-		toSet &= ~TIOCM_RTS;
-	}
+			if( !( changed & bit ) ){
+				continue;
+			}
+			observed++;
 
-	if( ioctl( desc->port, TIOCMSET, &toSet ) < 0 ){
-		throw_io_exception_message( env, "Could not set port settings" );
+			head = __atomic_load_n( &(edges->head), __ATOMIC_RELAXED );
+			if( head - __atomic_load_n( &(edges->tail), __ATOMIC_ACQUIRE ) >= edges->capacity ){
+				//ring is full
+				__atomic_add_fetch( &(edges->dropped), 1, __ATOMIC_RELAXED );
+				continue;
+			}
+
+			record = &(edges->records[ head & ( edges->capacity - 1 ) ]);
+			record->line = tiocm_to_lines( bit );
+			record->level = ( state & bit ) ? 1 : 0;
+			record->monotonic = (jlong)mono.tv_sec * 1000000000LL + mono.tv_nsec;
+			record->realtime = (jlong)real.tv_sec * 1000000000LL + real.tv_nsec;
+			__atomic_store_n( &(edges->head), head + 1, __ATOMIC_SEQ_CST );
+		}
+
+		//If the line changed more times than we saw, we missed some
+		if( ioctl( edges->fd, TIOCGICOUNT, &icount ) == 0 ){
+			new_count = icount_total( &icount, edges->tiocm_mask );
+			if( new_count - last_count > observed ){
+				__atomic_add_fetch( &(edges->missed), new_count - last_count - observed, __ATOMIC_RELAXED );
+			}
+			last_count = new_count;
+		}
+
+		if( __atomic_load_n( &(edges->waiting), __ATOMIC_SEQ_CST ) ){
+			pthread_mutex_lock( &(edges->lock) );
+			pthread_cond_broadcast( &(edges->cond) );
+			pthread_mutex_unlock( &(edges->lock) );
+		}
 	}
-#endif
 
-	return ret_val;
-}
+	pthread_mutex_lock( &(edges->lock) );
+	__atomic_store_n( &(edges->done), 1, __ATOMIC_SEQ_CST );
+	pthread_cond_broadcast( &(edges->cond) );
+	pthread_mutex_unlock( &(edges->lock) );
 
-//
-// ------------------------------------------------------------------------
-// ------------------Input/Output methods below here-----------------------
-// ------------------------------------------------------------------------
-//
+	edge_capture_release( edges );
 
+	return NULL;
+}
+#endif /* __linux__ */
 
 /*
- * Class:     com_rm5248_serial_SerialInputStream
- * Method:    readByte
- * Signature: ()I
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    startCapture
+ * Signature: (II)V
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialInputStream_readByte
-  (JNIEnv * env, jobject obj){
-	int stat;
-	int ret_val;
+JNIEXPORT void JNICALL Java_com_rm5248_serial_EdgeCapture_startCapture
+  (JNIEnv * env, jobject obj, jint lines, jint capacity){
 	struct port_descriptor* desc;
-	int get_val = 0;
-#ifdef _WIN32
-	DWORD ret = 0;
-	OVERLAPPED overlap = {0};
-	int current_available = 0;
-#endif 
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
-		return 0;
+		return;
 	}
-	
-	ret_val = 0;
 
-#ifdef _WIN32
+#ifndef __linux__
+	throw_io_exception_message( env, "Edge capture is not supported on this platform" );
+#else
 	{
-		DWORD comErrors = {0};
-		COMSTAT portStatus = {0};
-		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
-			//return value zero = fail
-			throw_io_exception( env, GetLastError() );
-			return -1;
-		}else{
-			current_available = portStatus.cbInQue;
+		struct edge_capture* edges;
+		struct serial_icounter_struct icount;
+		pthread_attr_t attr;
+		int rc;
+
+		pthread_mutex_lock( &edges_lock );
+		rc = desc->edges != NULL;
+		pthread_mutex_unlock( &edges_lock );
+		if( rc ){
+			throw_io_exception_message( env, "Edge capture already started" );
+			return;
 		}
-	}
-	
-	WaitForSingleObject( desc->in_use, INFINITE );
-	if( !current_available ){
-		//If nothing is currently available, wait until we get an event of some kind.
-		//This could be the serial lines changing state, or it could be some data
-		//coming into the system.
-		overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
-		SetCommMask( desc->port, EV_RXCHAR | EV_CTS | EV_DSR | EV_RING );
-		WaitCommEvent( desc->port, &ret, &overlap );
-		WaitForSingleObject( overlap.hEvent, INFINITE );
-                CloseHandle( overlap.hEvent );
-	}else{
-		//Data is available; set the RXCHAR mask so we try to read from the port
-		ret = EV_RXCHAR;
-	}
-		
-	if( ret & EV_RXCHAR ){
-                overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
-		if( !ReadFile( desc->port, &ret_val, 1, &stat, &overlap) ){
-                    if( GetLastError() == ERROR_IO_PENDING ){
-                        //Probably not an error, we're just doing this in an async fasion
-                        if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
-                            log_message( MESSAGE_TRACE, env, "WaitForSingleObject failed" );
-                            throw_io_exception( env, GetLastError() );
-                            ret_val = -1;
-                            goto err_out;
-                        }
-                    }else{
-                        log_message( MESSAGE_TRACE, env, "read file failed" );
-                        throw_io_exception( env, GetLastError() );
-                        ret_val = -1;
-                        goto err_out;
-                    }
-                }
 
-                //This is a valid byte, set our valid bit
-                ret_val |= ( 0x01 << 15 );
-	}else if( ret == 0 && desc->port == INVALID_HANDLE_VALUE ){
-		ret_val = -1;
-                goto err_out;
-	}
-	
-	//Always get the com lines no matter what	
-	if( GetCommModemStatus( desc->port, &get_val ) == 0 ){
-		DWORD last_error = GetLastError();
-		log_message( MESSAGE_TRACE, env, "can't get modem" );
-		if( last_error != ERROR_SUCCESS ){
-			// ERROR_SUCCESS can happen if we are connected to a USBSERIAL device and it is removed
-			// Any other error we should throw an IO exception; if ERROR_SUCCESS assume port has been closed
-			throw_io_exception( env, last_error );
+		//Make sure that the driver can actually do this
+		if( ioctl( desc->port, TIOCGICOUNT, &icount ) < 0 ){
+			if( errno == EINVAL || errno == ENOTTY ){
+				throw_io_exception_message( env, "Edge capture is not supported by this port" );
+			}else{
+				throw_io_exception( env, errno );
+			}
+			return;
 		}
 
-		//Clear the validity bit
-		ret_val &= ~(0x01 << 15);
-                goto err_out;
-	}
-		
-	if( get_val & MS_CTS_ON ){
-		// CTS
-		ret_val |= ( 0x01 << 10 );
-	}
-		
-	if( get_val & MS_DSR_ON ){
-		// Data Set Ready
-		ret_val |= ( 0x01 << 11 );
-	}
-	
-	if( desc->winDTR ){
-		ret_val |= ( 0x01 << 12 );
-	}
-	
-	if( desc->winRTS ){
-		ret_val |= ( 0x01 << 13 );
-	}
-		
-	if( get_val & MS_RING_ON ){
-		// Ring Indicator
-		ret_val |= ( 0x01 << 14 );
-	}
-	
-err_out:
-	ReleaseMutex( desc->in_use );
-        CloseHandle( overlap.hEvent );
+		edges = calloc( 1, sizeof( struct edge_capture ) );
+		if( edges == NULL ){
+			throw_io_exception( env, ENOMEM );
+			return;
+		}
+		edges->records = calloc( capacity, sizeof( struct edge_record ) );
+		if( edges->records == NULL ){
+			free( edges );
+			throw_io_exception( env, ENOMEM );
+			return;
+		}
+		edges->capacity = capacity;
+		edges->tiocm_mask = lines_to_tiocm( lines );
+		//One reference for the thread, one for the Java side
+		edges->refs = 2;
+		edges->fd = dup( desc->port );
+		if( edges->fd < 0 ){
+			throw_io_exception( env, errno );
+			free( edges->records );
+			free( edges );
+			return;
+		}
+		pthread_mutex_init( &(edges->lock), NULL );
+		pthread_cond_init( &(edges->cond), NULL );
+		pthread_once( &edge_signal_once, edge_install_signal );
+
+		pthread_attr_init( &attr );
+		pthread_attr_setdetachstate( &attr, PTHREAD_CREATE_DETACHED );
+		rc = pthread_create( &(edges->thread), &attr, edge_capture_thread, edges );
+		pthread_attr_destroy( &attr );
+		if( rc != 0 ){
+			edges->refs = 1;
+			edge_capture_release( edges );
+			throw_io_exception( env, rc );
+			return;
+		}
 
-        return ret_val;
-#else
+		pthread_mutex_lock( &edges_lock );
+		if( desc->edges == NULL ){
+			desc->edges = edges;
+			edges = NULL;
+		}
+		pthread_mutex_unlock( &edges_lock );
 
-	//Okay, this here is going to be a bit ugly.
-	//The problem here is that Linux/POSIX don't specify that TIOCMIWAIT
-	//has to exist.  Also, the fact that if we use TIOCMIWAIT we don't
-	//timeout or anything.  What would be very convenient in this case
-	//would be to have select() return when the state changed, but
-	//it's not possible. :(
-	//Ironically, this is one case in which the Windows serial API
-	//is better than the POSIX way.
-	fd_set fdset;
-	struct timeval timeout;
-	int originalState;
-	int selectStatus;
+		if( edges != NULL ){
+			//Somebody else started one while we were setting up
+			edge_capture_finish( edges );
+			throw_io_exception_message( env, "Edge capture already started" );
+		}
+	}
+#endif
+}
 
-	pthread_mutex_lock( &(desc->in_use) );
+/*
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    pollEdges
+ * Signature: ([I[I[J[JI[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_EdgeCapture_pollEdges
+  (JNIEnv * env, jobject obj, jintArray lines, jintArray levels, jlongArray monotonic, jlongArray realtime, jint timeout_millis, jlongArray counters){
+	struct port_descriptor* desc;
 
-	//first get the original state of the serial port lines
-	if( ioctl( desc->port, TIOCMGET, &originalState ) < 0 ){
-		throw_io_exception( env, errno );
-		pthread_mutex_unlock( &(desc->in_use) );
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
 		return -1;
 	}
-	
-	while( 1 ){
-		if( desc->port == -1 ){
-			pthread_mutex_unlock( &(desc->in_use) );
-			return -1;
-		}
-		FD_ZERO( &fdset );
-		FD_SET( desc->port, &fdset );
-		timeout.tv_sec = 0;
-		timeout.tv_usec = 10000; // 10,000 microseconds = 10ms
 
-		selectStatus = select( desc->port + 1, &fdset, NULL, NULL, &timeout );
-		if( desc->port == -1 ){
-			//check to see if the port is closed
-			pthread_mutex_unlock( &(desc->in_use) );
+#ifndef __linux__
+	throw_io_exception_message( env, "Edge capture is not supported on this platform" );
+	return -1;
+#else
+	{
+		struct edge_capture* edges = edge_capture_get( desc );
+		jint max = (*env)->GetArrayLength( env, lines );
+		jint count = 0;
+		jlong tail;
+		jlong head;
+		jlong counts[ 2 ];
+
+		if( edges == NULL ){
+			throw_io_exception_message( env, "Edge capture not started" );
 			return -1;
 		}
 
-		if( selectStatus < 0 ){
-			int errval;
-			if( errno == EBADF ){
-				// EOF
-				errval= 0;
-			}else{
-				throw_io_exception( env, errno );
-				errval = -1;
+		tail = __atomic_load_n( &(edges->tail), __ATOMIC_RELAXED );
+		head = __atomic_load_n( &(edges->head), __ATOMIC_ACQUIRE );
+		if( head == tail && timeout_millis != 0 ){
+			struct timespec deadline;
+
+			if( timeout_millis > 0 ){
+				clock_gettime( CLOCK_REALTIME, &deadline );
+				deadline.tv_sec += timeout_millis / 1000;
+				deadline.tv_nsec += ( timeout_millis % 1000 ) * 1000000L;
+				if( deadline.tv_nsec >= 1000000000L ){
+					deadline.tv_sec++;
+					deadline.tv_nsec -= 1000000000L;
+				}
 			}
-			pthread_mutex_unlock( &(desc->in_use) );
-			return errval;
-		}
 
-		if( selectStatus == 0 ){
-			//This was a timeout
-			if( ioctl( desc->port, TIOCMGET, &get_val ) < 0 ){
-				throw_io_exception( env, errno );
-				pthread_mutex_unlock( &(desc->in_use) );
-				return -1;
+			pthread_mutex_lock( &(edges->lock) );
+			__atomic_store_n( &(edges->waiting), 1, __ATOMIC_SEQ_CST );
+			while( ( head = __atomic_load_n( &(edges->head), __ATOMIC_SEQ_CST ) ) == tail &&
+					!__atomic_load_n( &(edges->done), __ATOMIC_SEQ_CST ) &&
+					!edges->wakeup ){
+				if( timeout_millis > 0 ){
+					if( pthread_cond_timedwait( &(edges->cond), &(edges->lock), &deadline ) == ETIMEDOUT ){
+						break;
+					}
+				}else{
+					pthread_cond_wait( &(edges->cond), &(edges->lock) );
+				}
 			}
+			__atomic_store_n( &(edges->waiting), 0, __ATOMIC_SEQ_CST );
+			edges->wakeup = 0;
+			pthread_mutex_unlock( &(edges->lock) );
+		}
 
-			if( get_val == originalState ){
-				//The state of the lines have not changed, 
-				//continue on until something changes
-				continue;
-			}
-			
+		while( tail != head && count < max ){
+			struct edge_record* record = &(edges->records[ tail & ( edges->capacity - 1 ) ]);
+			(*env)->SetIntArrayRegion( env, lines, count, 1, &(record->line) );
+			(*env)->SetIntArrayRegion( env, levels, count, 1, &(record->level) );
+			(*env)->SetLongArrayRegion( env, monotonic, count, 1, &(record->monotonic) );
+			(*env)->SetLongArrayRegion( env, realtime, count, 1, &(record->realtime) );
+			tail++;
+			count++;
 		}
-	
-		if( FD_ISSET( desc->port, &fdset ) ){
-			stat = read( desc->port, &ret_val, 1 );
-			if( stat < 0 ){
-				//throw new exception
-				throw_io_exception( env, errno );
-				pthread_mutex_unlock( &(desc->in_use) );
-				return -1;
+		__atomic_store_n( &(edges->tail), tail, __ATOMIC_RELEASE );
+
+		counts[ 0 ] = __atomic_load_n( &(edges->missed), __ATOMIC_RELAXED );
+		counts[ 1 ] = __atomic_load_n( &(edges->dropped), __ATOMIC_RELAXED );
+		(*env)->SetLongArrayRegion( env, counters, 0, 2, counts );
+
+		if( count == 0 && __atomic_load_n( &(edges->done), __ATOMIC_SEQ_CST ) ){
+			if( edges->error != 0 && edges->error != EIO ){
+				throw_io_exception( env, edges->error );
 			}
-		
-			//This is a valid byte, set our valid bit
-			ret_val |= ( 0x01 << 15 );
+			count = -1;
 		}
-		
-		//We get to this point if we either 1. have data or
-		//2. our state has changed
-		break;
-	}
 
-	//Now that we have read in the character, let's get the serial port line state.
-	//If it has changed, we will fire an event in Java.
-	//Now, because we only read one byte at a time, we will use the lower 8 bytes to 
-	//return the character that we read.  The other bytes will be used to return
-	//information on our serial port state.
-	if( ioctl( desc->port, TIOCMGET, &get_val ) < 0 ){
-		throw_io_exception( env, errno );
-		pthread_mutex_unlock( &(desc->in_use) );
-		return -1;
+		edge_capture_release( edges );
+		return count;
 	}
+#endif
+}
 
-	if( get_val & TIOCM_CD ){
-		// Carrier detect
-		ret_val |= ( 0x01 << 9 );
-	}
+/*
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    wakeup
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_EdgeCapture_wakeup
+  (JNIEnv * env, jobject obj){
+#ifdef __linux__
+	struct port_descriptor* desc;
+	struct edge_capture* edges;
 
-	if( get_val & TIOCM_CTS ){
-		// CTS
-		ret_val |= ( 0x01 << 10 );
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
 	}
-
-	if( get_val & TIOCM_DSR ){
-		// Data Set Ready
-		ret_val |= ( 0x01 << 11 );
+	edges = edge_capture_get( desc );
+	if( edges == NULL ){
+		return;
 	}
 
-	if( get_val & TIOCM_DTR ){
-		// Data Terminal Ready
-		ret_val |= ( 0x01 << 12 );
-	}
-		
-	if( get_val & TIOCM_RTS ){
-		// Request To Send
-		ret_val |= ( 0x01 << 13 );
-	}
-	
-	if( get_val & TIOCM_RI ){
-		// Ring Indicator
-		ret_val |= ( 0x01 << 14 );
-	}
-	
-	pthread_mutex_unlock( &(desc->in_use) );
+	pthread_mutex_lock( &(edges->lock) );
+	edges->wakeup = 1;
+	pthread_cond_broadcast( &(edges->cond) );
+	pthread_mutex_unlock( &(edges->lock) );
 
-	return ret_val;
+	edge_capture_release( edges );
 #endif
-
 }
 
 /*
- * Class:     com_rm5248_serial_SerialInputStream
- * Method:    getAvailable
- * Signature: ()I
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    stopCapture
+ * Signature: ()V
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialInputStream_getAvailable
+JNIEXPORT void JNICALL Java_com_rm5248_serial_EdgeCapture_stopCapture
   (JNIEnv * env, jobject obj){
-	jint ret_val;
+#ifdef __linux__
 	struct port_descriptor* desc;
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
-		return 0;
+		return;
 	}
 
-#ifdef _WIN32
-	{
-		DWORD comErrors = {0};
-		COMSTAT portStatus = {0};
-		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
-			//return value zero = fail
-			throw_io_exception( env, GetLastError() );
-			return -1;
-		}else{
-			ret_val = portStatus.cbInQue;
+	edge_capture_stop( desc );
+#endif
+}
+
+//
+// ------------------------------------------------------------------------
+// ------------------DMX transmitter below here----------------------------
+// ------------------------------------------------------------------------
+//
+
+#ifndef _WIN32
+/*
+ * Thread which sends the frames.  Each frame starts at an absolute deadline,
+ * so the time taken to send a frame doesn't push the next one back.  If a
+ * frame takes longer than the period, the deadlines that were missed are
+ * counted as late and skipped.
+ */
+static void* dmx_thread( void* arg ){
+	struct dmx_transmitter* dmx = arg;
+	struct port_descriptor* desc = dmx->desc;
+	jlong next;
+	jlong now;
+	jint written;
+	int rc;
+
+	next = monotonic_nanos();
+
+	pthread_mutex_lock( &(dmx->lock) );
+	while( !dmx->stop ){
+		if( monotonic_nanos() < next ){
+			cond_wait_until( &(dmx->cond), &(dmx->lock), next );
+			continue;
+		}
+
+		if( dmx->pending_changed ){
+			memcpy( dmx->active, dmx->pending, dmx->slots );
+			dmx->pending_changed = 0;
+		}
+		pthread_mutex_unlock( &(dmx->lock) );
+
+		rc = rs485_begin_send( desc->rs485, desc->port );
+		if( rc == 0 ){
+			rc = send_break( desc->port, dmx->break_nanos, dmx->mab_nanos );
+			if( rc < 0 ){
+				ioctl( desc->port, TIOCCBRK );
+			}
+
+			written = 0;
+			rs485_expect_echo( desc->rs485, dmx->slots );
+			while( rc == 0 && written < dmx->slots ){
+				rc = write( desc->port, dmx->active + written, dmx->slots - written );
+				if( rc < 0 ){
+					if( errno == EINTR ){
+						rc = 0;
+						continue;
+					}
+					break;
+				}
+				written += rc;
+				rc = 0;
+			}
+			capture_record( &(desc->capture), CAPTURE_TRANSMITTED, dmx->active, written );
+			if( rc < 0 ){
+				int error = errno;
+				rs485_expect_echo( desc->rs485, written - dmx->slots );
+				rs485_end_send( desc->rs485, desc->port );
+				errno = error;
+			}else{
+				rc = rs485_end_send( desc->rs485, desc->port );
+			}
+		}
+
+		pthread_mutex_lock( &(dmx->lock) );
+		if( rc < 0 ){
+			dmx->error = errno;
+			break;
+		}
+
+		dmx->frames++;
+		next += dmx->period_nanos;
+		now = monotonic_nanos();
+		if( now > next ){
+			jlong missed = ( now - next ) / dmx->period_nanos + 1;
+			dmx->late += missed;
+			next += missed * dmx->period_nanos;
 		}
 	}
-#else
-	if( ioctl( desc->port, FIONREAD, &ret_val ) < 0 ){
-		//throw new exception
-		throw_io_exception( env, errno );
-		return -1;
-	}
-#endif
-	return ret_val;
+	pthread_mutex_unlock( &(dmx->lock) );
+
+	return NULL;
 }
+#endif /* _WIN32 */
 
 /*
- * Class:     com_rm5248_serial_SimpleSerialInputStream
- * Method:    readByte
- * Signature: ()I
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    startTransmitter
+ * Signature: (JJJ[BI)V
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_readByte
-  (JNIEnv * env, jobject obj){
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_startTransmitter
+  (JNIEnv * env, jobject obj, jlong break_nanos, jlong mab_nanos, jlong period_nanos, jbyteArray slots, jint count){
 	struct port_descriptor* desc;
-	jint ret_val;
-	int stat;
-#ifdef _WIN32
-	DWORD ret = 0;
-	OVERLAPPED overlap = {0};
-	int current_available = 0;
-#endif 
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
-		return 0;
+		return;
 	}
-	
-	ret_val = 0;
 
 #ifdef _WIN32
-	WaitForSingleObject( desc->in_use, INFINITE );
-
+	throw_io_exception_message( env, "DMX transmitting is not supported on this platform" );
+#else
 	{
-		DWORD comErrors = {0};
-		COMSTAT portStatus = {0};
-		if( !ClearCommError( desc->port, &comErrors, &portStatus ) ){
-			//return value zero = fail
-			throw_io_exception( env, GetLastError() );
-			ReleaseMutex( desc->in_use );
-			return -1;
-		}else{
-			current_available = portStatus.cbInQue;
+		struct dmx_transmitter* dmx;
+		int rc;
+
+		pthread_mutex_lock( &dmx_lock );
+		rc = desc->dmx != NULL;
+		pthread_mutex_unlock( &dmx_lock );
+		if( rc ){
+			throw_io_exception_message( env, "DMX transmitter already started" );
+			return;
 		}
-	}
-	
-	if( !current_available ){
-		//If nothing is currently available, wait until we get an event of some kind.
-		//This could be the serial lines changing state, or it could be some data
-		//coming into the system.
-		overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
-		SetCommMask( desc->port, EV_RXCHAR );
-		WaitCommEvent( desc->port, &ret, &overlap );
-		WaitForSingleObject( overlap.hEvent, INFINITE );
-                CloseHandle( overlap.hEvent );
-	}else{
-		//Data is available; set the RXCHAR mask so we try to read from the port
-		ret = EV_RXCHAR;
-	}
-		
-	if( ret & EV_RXCHAR ){
-            overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
-            if( !ReadFile( desc->port, &ret_val, 1, &stat, &overlap) ){
-                if( GetLastError() == ERROR_IO_PENDING ){
-                    //Probably not an error, we're just doing this in an async fasion
-                    if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
-                            log_message( MESSAGE_TRACE, env, "WaitForSingleObject failed" );
-                            throw_io_exception( env, GetLastError() );
-                            ret_val = -1;
-                    }
-                }else{
-                    log_message( MESSAGE_TRACE, env, "read file failed" );
-                    throw_io_exception( env, GetLastError() );
-                    ret_val = -1;
-                }
-            }
-	}else if( ret == 0 && desc->port == INVALID_HANDLE_VALUE ){
-		//the port was closed
-		ret_val = -1;
-	}else if( ret == 0 ){
-		//some unknown error occured
-		log_message( MESSAGE_TRACE, env, "unknown error" );
-		throw_io_exception( env, GetLastError() );
-		ret_val = -1;
-	}
 
-        CloseHandle( overlap.hEvent );
-	ReleaseMutex( desc->in_use );
-#else
-	pthread_mutex_lock( &(desc->in_use) );
-	//do a polll() on the FD.
-	//we need to do this so that if we close() our FD from a different thread,
-	//this function will actually return.
-	do{
-		struct pollfd pollfds;
-		pollfds.fd = desc->port;
-		pollfds.events = POLLIN | POLLERR | POLLNVAL;
-		stat = poll( &pollfds, 1, 100 );
-		if( stat < 0 ){
-			throw_io_exception( env, errno );
-			pthread_mutex_unlock( &(desc->in_use) );
-			return -1;
-		}else if( stat > 0 ){
-			break;
+		if( count < 1 || count > DMX_MAX_SLOTS ){
+			throw_io_exception_message( env, "Invalid number of slots" );
+			return;
 		}
-	}while( 1 );
 
+		dmx = calloc( 1, sizeof( struct dmx_transmitter ) );
+		if( dmx == NULL ){
+			throw_io_exception( env, ENOMEM );
+			return;
+		}
+		dmx->desc = desc;
+		dmx->break_nanos = break_nanos;
+		dmx->mab_nanos = mab_nanos;
+		dmx->period_nanos = period_nanos;
+		dmx->slots = count;
+		(*env)->GetByteArrayRegion( env, slots, 0, count, (jbyte*)dmx->active );
+		if( (*env)->ExceptionCheck( env ) ){
+			free( dmx );
+			return;
+		}
 
-	if( desc->port == -1 ){
-		//EOF
-		pthread_mutex_unlock( &(desc->in_use) );
-		return -1;
-	}
+		pthread_mutex_init( &(dmx->lock), NULL );
+		cond_init_monotonic( &(dmx->cond) );
 
-	stat = read( desc->port, &ret_val, 1 );
-	if( stat < 0 ){
-		throw_io_exception( env, errno );
-		pthread_mutex_unlock( &(desc->in_use) );
-		return -1;
+		rc = pthread_create( &(dmx->thread), NULL, dmx_thread, dmx );
+		if( rc != 0 ){
+			pthread_mutex_destroy( &(dmx->lock) );
+			pthread_cond_destroy( &(dmx->cond) );
+			free( dmx );
+			throw_io_exception( env, rc );
+			return;
+		}
+
+		pthread_mutex_lock( &dmx_lock );
+		if( desc->dmx == NULL ){
+			desc->dmx = dmx;
+			dmx = NULL;
+		}
+		pthread_mutex_unlock( &dmx_lock );
+		if( dmx != NULL ){
+			//Somebody else started one while we were setting up
+			pthread_mutex_lock( &(dmx->lock) );
+			dmx->stop = 1;
+			pthread_cond_broadcast( &(dmx->cond) );
+			pthread_mutex_unlock( &(dmx->lock) );
+			pthread_join( dmx->thread, NULL );
+			pthread_mutex_destroy( &(dmx->lock) );
+			pthread_cond_destroy( &(dmx->cond) );
+			free( dmx );
+			throw_io_exception_message( env, "DMX transmitter already started" );
+		}
 	}
-	pthread_mutex_unlock( &(desc->in_use) );
 #endif
-
-	return ret_val;
-}
-
-/*
- * Class:     com_rm5248_serial_SimpleSerialInputStream
- * Method:    getAvailable
- * Signature: ()I
- */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_getAvailable
-  (JNIEnv * env, jobject obj){
-	//use our already-existing method to get the available bytes, it already works
-	return Java_com_rm5248_serial_SerialInputStream_getAvailable( env, obj );
 }
 
-
 /*
- * Class:     com_rm5248_serial_SerialOutputStream
- * Method:    writeByte
- * Signature: (I)V
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    updateSlots
+ * Signature: ([BI)V
  */
-JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByte
-  (JNIEnv * env, jobject obj, jint byte){
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_updateSlots
+  (JNIEnv * env, jobject obj, jbyteArray slots, jint count){
+#ifndef _WIN32
 	struct port_descriptor* desc;
-	char byte_write;
-#ifdef _WIN32
-	DWORD bytes_written;
-	OVERLAPPED overlap = { 0 };
-#else
-	int bytes_written;
-#endif
-
-	byte_write = byte;
+	struct dmx_transmitter* dmx;
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
 		return;
 	}
 
-#ifdef _WIN32
-	overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
-	if( !WriteFile( desc->port, &byte_write, sizeof( byte_write ), &bytes_written, &overlap ) ){
-		if( GetLastError() == ERROR_IO_PENDING ){
-			//Probably not an error, we're just doing this in an async fasion
-			if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
-				throw_io_exception( env, GetLastError() );
-			}
-		}else{
-			throw_io_exception( env, GetLastError() );
-		}
-	}
-        CloseHandle( overlap.hEvent );
-#else
-	bytes_written = write( desc->port, &byte_write, sizeof( byte_write ) );
-	if( bytes_written < 0 || 
-            bytes_written != sizeof( byte_write) ){
-		//throw new exception
-		throw_io_exception( env, errno );
+	pthread_mutex_lock( &dmx_lock );
+	dmx = desc->dmx;
+	if( dmx == NULL ){
+		pthread_mutex_unlock( &dmx_lock );
+		throw_io_exception_message( env, "DMX transmitter not started" );
 		return;
 	}
+
+	if( count > dmx->slots ){
+		count = dmx->slots;
+	}
+
+	pthread_mutex_lock( &(dmx->lock) );
+	(*env)->GetByteArrayRegion( env, slots, 0, count, (jbyte*)dmx->pending );
+	dmx->pending_changed = 1;
+	pthread_mutex_unlock( &(dmx->lock) );
+	pthread_mutex_unlock( &dmx_lock );
 #endif
 }
 
 /*
- * Class:     com_rm5248_serial_SerialOutputStream
- * Method:    writeByteArray
- * Signature: ([B)V
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    getCounters
+ * Signature: ([J)V
  */
-JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByteArray
-  (JNIEnv * env, jobject obj, jbyteArray arr){
-	jbyte* data;
-	jint len;
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_getCounters
+  (JNIEnv * env, jobject obj, jlongArray counters){
+#ifndef _WIN32
 	struct port_descriptor* desc;
-#ifdef _WIN32
-	DWORD bytes_written;
-	OVERLAPPED overlap = { 0 };
-#else
-	int bytes_written = 0;
-	int offset = 0;
-	int rc;
-#endif /* _WIN32 */
+	struct dmx_transmitter* dmx;
+	jlong counts[ 2 ];
+	int error;
 
 	desc = get_port_descriptor( env, obj );
 	if( desc == NULL ){
 		return;
 	}
 
-	len = (*env)->GetArrayLength( env, arr );
-	data = (*env)->GetByteArrayElements(env, arr, 0);
-
-#ifdef _WIN32
-	overlap.hEvent = CreateEvent( 0, TRUE, 0, 0 );
-	if( !WriteFile( desc->port, data, len, &bytes_written, &overlap ) ){
-		if( GetLastError() == ERROR_IO_PENDING ){
-			//Probably not an error, we're just doing this in an async fasion
-			if( WaitForSingleObject( overlap.hEvent, INFINITE ) == WAIT_FAILED ){
-				throw_io_exception( env, GetLastError() );
-			}
-		}else{
-			throw_io_exception( env, GetLastError() );
-		}
+	pthread_mutex_lock( &dmx_lock );
+	dmx = desc->dmx;
+	if( dmx == NULL ){
+		pthread_mutex_unlock( &dmx_lock );
+		throw_io_exception_message( env, "DMX transmitter not started" );
+		return;
 	}
-	CloseHandle( overlap.hEvent );
-#else
 
-	do{
-		rc = write( desc->port, data + offset, len - bytes_written );
-		if( rc < 0 ){
-			throw_io_exception( env, errno );
-			break;
-		}
-		bytes_written += rc;
-		offset += rc;
-	}while( bytes_written < len );
-#endif /* _WIN32 */
+	pthread_mutex_lock( &(dmx->lock) );
+	counts[ 0 ] = dmx->frames;
+	counts[ 1 ] = dmx->late;
+	error = dmx->error;
+	pthread_mutex_unlock( &(dmx->lock) );
+	pthread_mutex_unlock( &dmx_lock );
 
-	(*env)->ReleaseByteArrayElements(env, arr, data, 0);
+	(*env)->SetLongArrayRegion( env, counters, 0, 2, counts );
+	if( error != 0 ){
+		throw_io_exception( env, error );
+	}
+#endif
 }
 
+/*
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    stopTransmitter
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_stopTransmitter
+  (JNIEnv * env, jobject obj){
+#ifndef _WIN32
+	struct port_descriptor* desc;
+
+	desc = get_port_descriptor( env, obj );
+	if( desc == NULL ){
+		return;
+	}
+
+	dmx_stop( desc );
+#endif
+}
 
 //
 // ------------------------------------------------------------------------
@@ -1855,32 +6315,38 @@ JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByteArray
 // ------------------------------------------------------------------------
 //
 
+/*
+ * The native version has to change whenever the JNI functions do, since
+ * NativeLibraryLoader checks it against the Java version.  The libraries
+ * under Mac/ and Windows/ then have to be built again.
+ */
+
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getMajorNativeVersion
+ * Method:    getMajorNativeVersionInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMajorNativeVersion
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMajorNativeVersionInternal
   (JNIEnv * env, jclass cls){
 	return 0;
 }
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getMinorNativeVersion
+ * Method:    getMinorNativeVersionInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMinorNativeVersion
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMinorNativeVersionInternal
   (JNIEnv * env, jclass cls){
-	return 13;
+	return 14;
 }
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getSerialPorts
+ * Method:    getSerialPortsInternal
  * Signature: ()[Ljava/lang/String;
  */
-JNIEXPORT jobjectArray JNICALL Java_com_rm5248_serial_SerialPort_getSerialPorts
+JNIEXPORT jobjectArray JNICALL Java_com_rm5248_serial_SerialPort_getSerialPortsInternal
   (JNIEnv * env, jclass cls){
 	jclass stringClass; 
     jobjectArray array; 
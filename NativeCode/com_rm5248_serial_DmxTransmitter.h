@@ -0,0 +1,45 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_rm5248_serial_DmxTransmitter */
+
+#ifndef _Included_com_rm5248_serial_DmxTransmitter
+#define _Included_com_rm5248_serial_DmxTransmitter
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    startTransmitter
+ * Signature: (JJJ[BI)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_startTransmitter
+  (JNIEnv *, jobject, jlong, jlong, jlong, jbyteArray, jint);
+
+/*
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    updateSlots
+ * Signature: ([BI)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_updateSlots
+  (JNIEnv *, jobject, jbyteArray, jint);
+
+/*
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    getCounters
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_getCounters
+  (JNIEnv *, jobject, jlongArray);
+
+/*
+ * Class:     com_rm5248_serial_DmxTransmitter
+ * Method:    stopTransmitter
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_DmxTransmitter_stopTransmitter
+  (JNIEnv *, jobject);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
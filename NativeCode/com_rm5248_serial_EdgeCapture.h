@@ -0,0 +1,45 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_rm5248_serial_EdgeCapture */
+
+#ifndef _Included_com_rm5248_serial_EdgeCapture
+#define _Included_com_rm5248_serial_EdgeCapture
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    startCapture
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_EdgeCapture_startCapture
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    pollEdges
+ * Signature: ([I[I[J[JI[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_EdgeCapture_pollEdges
+  (JNIEnv *, jobject, jintArray, jintArray, jlongArray, jlongArray, jint, jlongArray);
+
+/*
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    wakeup
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_EdgeCapture_wakeup
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     com_rm5248_serial_EdgeCapture
+ * Method:    stopCapture
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_EdgeCapture_stopCapture
+  (JNIEnv *, jobject);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
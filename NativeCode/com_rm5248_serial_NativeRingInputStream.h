@@ -0,0 +1,37 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_rm5248_serial_NativeRingInputStream */
+
+#ifndef _Included_com_rm5248_serial_NativeRingInputStream
+#define _Included_com_rm5248_serial_NativeRingInputStream
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_rm5248_serial_NativeRingInputStream
+ * Method:    startRing
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_NativeRingInputStream_startRing
+  (JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     com_rm5248_serial_NativeRingInputStream
+ * Method:    waitForData
+ * Signature: (JI)J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_NativeRingInputStream_waitForData
+  (JNIEnv *, jobject, jlong, jint);
+
+/*
+ * Class:     com_rm5248_serial_NativeRingInputStream
+ * Method:    stopReading
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_NativeRingInputStream_stopReading
+  (JNIEnv *, jobject);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,45 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_rm5248_serial_ReceiveSubscriber */
+
+#ifndef _Included_com_rm5248_serial_ReceiveSubscriber
+#define _Included_com_rm5248_serial_ReceiveSubscriber
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    attach
+ * Signature: (Z[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_ReceiveSubscriber_attach
+  (JNIEnv *, jobject, jboolean, jlongArray);
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    waitForData
+ * Signature: (IJI)J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_ReceiveSubscriber_waitForData
+  (JNIEnv *, jobject, jint, jlong, jint);
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    getOldestPosition
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_ReceiveSubscriber_getOldestPosition
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     com_rm5248_serial_ReceiveSubscriber
+ * Method:    detach
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_ReceiveSubscriber_detach
+  (JNIEnv *, jobject, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -18,10 +18,18 @@ JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByte
 /*
  * Class:     com_rm5248_serial_SerialOutputStream
  * Method:    writeByteArray
- * Signature: ([B)V
+ * Signature: ([BII)V
  */
 JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writeByteArray
-  (JNIEnv *, jobject, jbyteArray);
+  (JNIEnv *, jobject, jbyteArray, jint, jint);
+
+/*
+ * Class:     com_rm5248_serial_SerialOutputStream
+ * Method:    writePaced
+ * Signature: ([BIIJIJ)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialOutputStream_writePaced
+  (JNIEnv *, jobject, jbyteArray, jint, jint, jlong, jint, jlong);
 
 #ifdef __cplusplus
 }
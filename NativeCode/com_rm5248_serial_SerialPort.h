@@ -23,6 +23,22 @@ JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPort__Ljava_lang_St
 JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPort__Ljava_lang_String_2
   (JNIEnv *, jobject, jstring);
 
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    openPseudoTerminalInternal
+ * Signature: (IIIII)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openPseudoTerminalInternal
+  (JNIEnv *, jobject, jint, jint, jint, jint, jint);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getPseudoTerminalNameInternal
+ * Signature: ()Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_com_rm5248_serial_SerialPort_getPseudoTerminalNameInternal
+  (JNIEnv *, jobject);
+
 /*
  * Class:     com_rm5248_serial_SerialPort
  * Method:    doClose
@@ -33,11 +49,11 @@ JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_doClose
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    setBaudRate
- * Signature: (I)Z
+ * Method:    applyConfig
+ * Signature: (IIIIIZ)V
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setBaudRate
-  (JNIEnv *, jobject, jint);
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_applyConfig
+  (JNIEnv *, jobject, jint, jint, jint, jint, jint, jboolean);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
@@ -49,106 +65,186 @@ JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getBaudRateInternal
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    setStopBits
- * Signature: (I)Z
+ * Method:    getStopBitsInternal
+ * Signature: ()I
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setStopBits
-  (JNIEnv *, jobject, jint);
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getStopBitsInternal
+  (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getStopBitsInternal
+ * Method:    getCharSizeInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getStopBitsInternal
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getCharSizeInternal
   (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    setCharSize
- * Signature: (I)Z
+ * Method:    getParityInternal
+ * Signature: ()I
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setCharSize
-  (JNIEnv *, jobject, jint);
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getParityInternal
+  (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getCharSizeInternal
+ * Method:    getFlowControlInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getCharSizeInternal
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getFlowControlInternal
   (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    setParity
- * Signature: (I)Z
+ * Method:    getSerialLineStateInternalNonblocking
+ * Signature: ()I
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setParity
-  (JNIEnv *, jobject, jint);
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getSerialLineStateInternalNonblocking
+  (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getParityInternal
+ * Method:    setSerialLineStateInternal
+ * Signature: (Lcom/rm5248/serial/SerialLineState;)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_setSerialLineStateInternal
+  (JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    enableRs485Internal
+ * Signature: (ZIIZZ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_enableRs485Internal
+  (JNIEnv *, jobject, jboolean, jint, jint, jboolean, jboolean);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    setControlLinesInternal
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_setControlLinesInternal
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    sendBreakInternal
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_sendBreakInternal
+  (JNIEnv *, jobject, jlong, jlong);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    getOutputQueueSizeInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getParityInternal
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getOutputQueueSizeInternal
   (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    setFlowControl
+ * Method:    drainInternal
  * Signature: (I)Z
  */
-JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_setFlowControl
+JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_drainInternal
   (JNIEnv *, jobject, jint);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getFlowControlInternal
- * Signature: ()I
+ * Method:    readTimestampedInternal
+ * Signature: ([BIIJ[J)I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getFlowControlInternal
-  (JNIEnv *, jobject);
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_readTimestampedInternal
+  (JNIEnv *, jobject, jbyteArray, jint, jint, jlong, jlongArray);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getSerialLineStateInternalNonblocking
- * Signature: ()I
+ * Method:    readChunksInternal
+ * Signature: ([B[I[JJ)I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getSerialLineStateInternalNonblocking
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_readChunksInternal
+  (JNIEnv *, jobject, jbyteArray, jintArray, jlongArray, jlong);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    openTransferFile
+ * Signature: (Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_openTransferFile
+  (JNIEnv *, jclass, jstring);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    closeTransferFile
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_closeTransferFile
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    transferFileChunk
+ * Signature: (IJJ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_rm5248_serial_SerialPort_transferFileChunk
+  (JNIEnv *, jobject, jint, jlong, jlong);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    writeDirectInternal
+ * Signature: (Ljava/nio/ByteBuffer;II)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_writeDirectInternal
+  (JNIEnv *, jobject, jobject, jint, jint);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    startCaptureInternal
+ * Signature: (Ljava/lang/String;JI)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_startCaptureInternal
+  (JNIEnv *, jobject, jstring, jlong, jint);
+
+/*
+ * Class:     com_rm5248_serial_SerialPort
+ * Method:    stopCaptureInternal
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPort_stopCaptureInternal
   (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    setSerialLineStateInternal
- * Signature: (Lcom/rm5248/serial/SerialLineState;)I
+ * Method:    isCapturingInternal
+ * Signature: ()Z
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_setSerialLineStateInternal
-  (JNIEnv *, jobject, jobject);
+JNIEXPORT jboolean JNICALL Java_com_rm5248_serial_SerialPort_isCapturingInternal
+  (JNIEnv *, jobject);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getMajorNativeVersion
+ * Method:    getMajorNativeVersionInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMajorNativeVersion
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMajorNativeVersionInternal
   (JNIEnv *, jclass);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getMinorNativeVersion
+ * Method:    getMinorNativeVersionInternal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMinorNativeVersion
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPort_getMinorNativeVersionInternal
   (JNIEnv *, jclass);
 
 /*
  * Class:     com_rm5248_serial_SerialPort
- * Method:    getSerialPorts
+ * Method:    getSerialPortsInternal
  * Signature: ()[Ljava/lang/String;
  */
-JNIEXPORT jobjectArray JNICALL Java_com_rm5248_serial_SerialPort_getSerialPorts
+JNIEXPORT jobjectArray JNICALL Java_com_rm5248_serial_SerialPort_getSerialPortsInternal
   (JNIEnv *, jclass);
 
 #ifdef __cplusplus
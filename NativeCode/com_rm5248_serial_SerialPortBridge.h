@@ -0,0 +1,37 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class com_rm5248_serial_SerialPortBridge */
+
+#ifndef _Included_com_rm5248_serial_SerialPortBridge
+#define _Included_com_rm5248_serial_SerialPortBridge
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     com_rm5248_serial_SerialPortBridge
+ * Method:    startBridge
+ * Signature: (ZLjava/lang/String;IZ)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SerialPortBridge_startBridge
+  (JNIEnv *, jobject, jboolean, jstring, jint, jboolean);
+
+/*
+ * Class:     com_rm5248_serial_SerialPortBridge
+ * Method:    stopBridge
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPortBridge_stopBridge
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     com_rm5248_serial_SerialPortBridge
+ * Method:    getStats
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_com_rm5248_serial_SerialPortBridge_getStats
+  (JNIEnv *, jobject, jlongArray);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
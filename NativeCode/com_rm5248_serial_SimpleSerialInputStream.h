@@ -17,6 +17,14 @@ extern "C" {
 JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_readByte
   (JNIEnv *, jobject);
 
+/*
+ * Class:     com_rm5248_serial_SimpleSerialInputStream
+ * Method:    readBytes
+ * Signature: ([BII)I
+ */
+JNIEXPORT jint JNICALL Java_com_rm5248_serial_SimpleSerialInputStream_readBytes
+  (JNIEnv *, jobject, jbyteArray, jint, jint);
+
 /*
  * Class:     com_rm5248_serial_SimpleSerialInputStream
  * Method:    getAvailable
@@ -0,0 +1,310 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes whole messages to a serial port from a dedicated thread.
+ *
+ * Any number of threads may call {@link #offer(byte[]) offer()} at the same
+ * time.  Messages are placed on a bounded queue without locking, and a single
+ * writer thread pulls them off and writes each one with a single native call,
+ * so that messages from different threads are never interleaved on the wire.
+ *
+ * If the queue is full(either too many messages or too many bytes are
+ * waiting), {@code offer()} returns false instead of blocking.  This lets the
+ * producer decide what to do when the port can't keep up.
+ *
+ * Get an instance with {@link SerialPort#getAsyncWriter()}.  The size of the
+ * queue may be set with
+ * {@link SerialPortBuilder#setAsyncWriteQueueLimits(int, int)}.
+ *
+ * @author rm5248
+ */
+public class AsyncSerialWriter implements AutoCloseable {
+
+    private final static Logger logger = Logger.getLogger( AsyncSerialWriter.class.getName() );
+
+    /**
+     * The default maximum number of messages that may be waiting to be written.
+     */
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+    /**
+     * The default maximum number of bytes that may be waiting to be written.
+     */
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final SerialPort port;
+    private final OutputStream output;
+    private final ConcurrentLinkedQueue<byte[]> queue;
+    private final int maxMessages;
+    private final int maxBytes;
+    /* Messages that have been accepted but not yet written out */
+    private final AtomicInteger queuedMessages;
+    private final AtomicLong queuedBytes;
+    /* Set when the writer thread is about to park; producers use this to wake it up */
+    private final AtomicBoolean writerSleeping;
+    /* Used to wake up anybody waiting in drain() */
+    private final Object drainSync;
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private volatile IOException writeException;
+
+    AsyncSerialWriter( SerialPort port, OutputStream output, int maxMessages, int maxBytes ){
+        if( maxMessages <= 0 ){
+            throw new IllegalArgumentException( "maxMessages must be greater than 0" );
+        }
+
+        if( maxBytes <= 0 ){
+            throw new IllegalArgumentException( "maxBytes must be greater than 0" );
+        }
+
+        this.port = port;
+        this.output = output;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        queue = new ConcurrentLinkedQueue<byte[]>();
+        queuedMessages = new AtomicInteger( 0 );
+        queuedBytes = new AtomicLong( 0 );
+        writerSleeping = new AtomicBoolean( false );
+        drainSync = new Object();
+        closed = false;
+
+        writerThread = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                writeLoop();
+            }
+        }, "AsyncSerialWriter-" + port.getPortName() );
+        writerThread.setDaemon( true );
+        writerThread.start();
+    }
+
+    /**
+     * Queue up a message to be written to the serial port.
+     *
+     * @param message The message to write.  The array is copied, so it may be
+     * re-used as soon as this method returns.
+     * @return True if the message was queued, false if the queue is full
+     * @throws IOException If a previous write to the serial port failed
+     */
+    public boolean offer( byte[] message ) throws IOException {
+        if( message == null ){
+            throw new IllegalArgumentException( "message must not be null" );
+        }
+
+        return offer( message, 0, message.length );
+    }
+
+    /**
+     * Queue up part of an array to be written to the serial port as a single
+     * message.
+     *
+     * @param message The array containing the message
+     * @param offset The offset into the array the message starts at
+     * @param length The length of the message
+     * @return True if the message was queued, false if the queue is full
+     * @throws IOException If a previous write to the serial port failed
+     */
+    public boolean offer( byte[] message, int offset, int length ) throws IOException {
+        if( message == null ){
+            throw new IllegalArgumentException( "message must not be null" );
+        }
+
+        if( offset < 0 || length < 0 || offset + length > message.length ){
+            throw new IndexOutOfBoundsException();
+        }
+
+        if( closed ){
+            throw new IllegalStateException( "Cannot write once the writer has been closed." );
+        }
+
+        if( writeException != null ){
+            throw writeException;
+        }
+
+        if( length == 0 ){
+            return true;
+        }
+
+        if( !reserve( length ) ){
+            return false;
+        }
+
+        //The writer thread only stops once it is closed and nothing is reserved,
+        //so if we still aren't closed now, it will wait for this message
+        if( closed ){
+            queuedBytes.addAndGet( -length );
+            queuedMessages.decrementAndGet();
+            LockSupport.unpark( writerThread );
+            synchronized( drainSync ){
+                drainSync.notifyAll();
+            }
+            throw new IllegalStateException( "Cannot write once the writer has been closed." );
+        }
+
+        byte[] copy = new byte[ length ];
+        System.arraycopy( message, offset, copy, 0, length );
+        queue.offer( copy );
+
+        if( writerSleeping.compareAndSet( true, false ) ){
+            LockSupport.unpark( writerThread );
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the number of messages that have been queued but not written yet.
+     *
+     * @return
+     */
+    public int getQueuedMessages(){
+        return queuedMessages.get();
+    }
+
+    /**
+     * Get the number of bytes that have been queued but not written yet.
+     * This does not include data that has been handed off to the operating
+     * system; for that, see {@link SerialPort#getOutputQueueSize()}.
+     *
+     * @return
+     */
+    public long getQueuedBytes(){
+        return queuedBytes.get();
+    }
+
+    /**
+     * Wait until all queued messages have been written to the port and
+     * physically transmitted.
+     *
+     * @param timeoutMillis How long to wait, in milliseconds.  If less than 0,
+     * wait forever.
+     * @return True if everything was sent, false if the timeout expired first
+     * @throws IOException If a write to the serial port failed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean drain( int timeoutMillis ) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+        synchronized( drainSync ){
+            while( queuedMessages.get() > 0 ){
+                if( writeException != null ){
+                    throw writeException;
+                }
+
+                if( timeoutMillis < 0 ){
+                    drainSync.wait();
+                    continue;
+                }
+
+                long remaining = ( deadline - System.nanoTime() ) / 1000000L;
+                if( remaining <= 0 ){
+                    return false;
+                }
+                drainSync.wait( remaining );
+            }
+        }
+
+        if( writeException != null ){
+            throw writeException;
+        }
+
+        if( timeoutMillis < 0 ){
+            return port.drain( -1 );
+        }
+
+        long remaining = ( deadline - System.nanoTime() ) / 1000000L;
+        if( remaining < 0 ){
+            return false;
+        }
+
+        return port.drain( (int)remaining );
+    }
+
+    /**
+     * Stop accepting new messages.  Any messages that have already been queued
+     * will still be written out, unless the serial port is closed first.
+     */
+    @Override
+    public void close(){
+        closed = true;
+        LockSupport.unpark( writerThread );
+    }
+
+    /**
+     * Reserve space in the queue for a message of the given length.
+     */
+    private boolean reserve( int length ){
+        int currentMessages;
+        long currentBytes;
+
+        do{
+            currentMessages = queuedMessages.get();
+            if( currentMessages >= maxMessages ){
+                return false;
+            }
+        }while( !queuedMessages.compareAndSet( currentMessages, currentMessages + 1 ) );
+
+        do{
+            currentBytes = queuedBytes.get();
+            //Always let at least one message through, even if it is bigger than
+            //the limit, otherwise it could never be written
+            if( currentBytes > 0 && currentBytes + length > maxBytes ){
+                queuedMessages.decrementAndGet();
+                return false;
+            }
+        }while( !queuedBytes.compareAndSet( currentBytes, currentBytes + length ) );
+
+        return true;
+    }
+
+    private void writeLoop(){
+        while( true ){
+            byte[] message = queue.poll();
+
+            if( message == null ){
+                if( closed && queuedMessages.get() == 0 ){
+                    break;
+                }
+
+                writerSleeping.set( true );
+                //Check again, a producer may have added something before we set the flag
+                if( queue.isEmpty() && !( closed && queuedMessages.get() == 0 ) ){
+                    LockSupport.park( this );
+                }
+                writerSleeping.set( false );
+                continue;
+            }
+
+            try{
+                if( writeException == null ){
+                    output.write( message );
+                }
+            }catch( IOException e ){
+                if( !port.isClosed() ){
+                    logger.log( Level.FINE, "Unable to write message to serial port", e );
+                }
+                writeException = e;
+            }
+
+            queuedBytes.addAndGet( -message.length );
+            if( queuedMessages.decrementAndGet() == 0 || writeException != null ){
+                synchronized( drainSync ){
+                    drainSync.notifyAll();
+                }
+            }
+        }
+
+        synchronized( drainSync ){
+            drainSync.notifyAll();
+        }
+    }
+}
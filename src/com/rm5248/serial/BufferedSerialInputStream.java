@@ -44,7 +44,7 @@ class BufferedSerialInputStream extends InputStream implements Runnable {
 		
 		if( bufferBegin != bufferEnd ){
 			//we already have a character 
-			byteToReturn = buffer[ bufferBegin++ ];
+			byteToReturn = buffer[ bufferBegin++ ] & 0xFF;
 			if( bufferBegin >= buffer.length ){
 				//wrap around to the start of the array
 				bufferBegin = 0;
@@ -62,7 +62,10 @@ class BufferedSerialInputStream extends InputStream implements Runnable {
         while( true ){
             synchronized( buffer ){
                 try {
-                    buffer.wait();
+                    //Data may have come in before we got the lock
+                    while( bufferBegin == bufferEnd && exceptionToThrow == null ){
+                        buffer.wait();
+                    }
                 } catch ( InterruptedException e ){
                     if( interruptCausesIOException ){
                         logger.log( Level.FINER, "Got InterruptedException, re-throwing as IOException" );
@@ -81,7 +84,7 @@ class BufferedSerialInputStream extends InputStream implements Runnable {
             }
         }
 
-        byteToReturn = buffer[bufferBegin++];
+        byteToReturn = buffer[bufferBegin++] & 0xFF;
         if (bufferBegin >= buffer.length) {
             //wrap around to the start of the array
             bufferBegin = 0;
@@ -131,11 +134,11 @@ class BufferedSerialInputStream extends InputStream implements Runnable {
 			if( ( byteRead & ( 0x01 << 15 ) ) > 0 ){
 				//this is a valid byte
 				synchronized( buffer ){
-					if( bufferEnd + 1 >= buffer.length ){
+					buffer[ bufferEnd++ ] = (byte)( byteRead & 0xFF );
+					if( bufferEnd >= buffer.length ){
 						//loop back around to the beginning
 						bufferEnd = 0;
 					}
-					buffer[ bufferEnd++ ] = (byte)( byteRead & 0xFF );
 					if( bufferEnd == bufferBegin ){
 						//the end has wrapped around, increment the beginning
 						bufferBegin++;
@@ -167,15 +170,29 @@ class BufferedSerialInputStream extends InputStream implements Runnable {
 	public int read( byte[] b, int off, int len ) throws IOException{
 		int readSoFar = 0;
 		
+		if( off < 0 || len < 0 || len > b.length - off ){
+			throw new IndexOutOfBoundsException();
+		}
+		
 		if( len == 0 ){
 			return 0;
 		}
 		
-		for( int x = off; x < len; x++ ){
-			b[x] = (byte)read();
-			readSoFar++;
-			if( readSoFar > 0 && available() == 0 ){
-				break;
+		//Wait for the first byte, then copy out whatever else is in the buffer
+		b[ off ] = (byte)read();
+		readSoFar++;
+		
+		synchronized( buffer ){
+			while( readSoFar < len && bufferBegin != bufferEnd ){
+				int end = bufferEnd > bufferBegin ? bufferEnd : buffer.length;
+				int toCopy = Math.min( end - bufferBegin, len - readSoFar );
+				
+				System.arraycopy( buffer, bufferBegin, b, off + readSoFar, toCopy );
+				readSoFar += toCopy;
+				bufferBegin += toCopy;
+				if( bufferBegin >= buffer.length ){
+					bufferBegin = 0;
+				}
 			}
 		}
 		
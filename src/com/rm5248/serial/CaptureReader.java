@@ -0,0 +1,229 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads back traffic that was captured with
+ * {@link SerialPort#startCapture(Path, long, int)}.
+ *
+ * The segment files are memory-mapped and read in order, one record at a
+ * time: call {@link #next()} to move to the next record, then look at it with
+ * the {@code getXXX()} methods.  The data is not copied out of the mapping.
+ * A capture can be read while it is still being written; {@link #next()}
+ * returns false when it gets to the end of what has been written so far.
+ * Segments which are started after the reader is opened are not read.
+ *
+ * @author rm5248
+ */
+public class CaptureReader implements AutoCloseable {
+
+    /**
+     * The record is data that was read from the port.
+     */
+    public static final int RECEIVED = 0;
+    /**
+     * The record is data that was written to the port.
+     */
+    public static final int TRANSMITTED = 1;
+
+    private static final byte[] MAGIC = { 'J', 'S', 'C', 'A', 'P', 'T', 'U', 'R' };
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final List<Path> segments;
+    private int segmentIndex;
+    private MappedByteBuffer segment;
+    /* Handed out by getData() */
+    private ByteBuffer dataView;
+    private long segmentMonotonicNanos;
+    private long segmentRealtimeNanos;
+    /* Where the next record is in the segment */
+    private int offset;
+    private long timestamp;
+    private int length;
+    private int direction;
+    private int dataOffset;
+
+    private CaptureReader( List<Path> segments ){
+        this.segments = segments;
+        this.segmentIndex = -1;
+        this.length = -1;
+    }
+
+    /**
+     * Open a capture, starting with the oldest segment that still exists.
+     *
+     * @param basePath The same path that was given to startCapture()
+     * @return The reader
+     * @throws IOException If there are no segments, or they can't be read
+     */
+    public static CaptureReader open( Path basePath ) throws IOException {
+        Path directory = basePath.toAbsolutePath().getParent();
+        String prefix = basePath.getFileName().toString() + ".";
+        List<Long> numbers = new ArrayList<Long>();
+
+        try( DirectoryStream<Path> stream = Files.newDirectoryStream( directory ) ){
+            for( Path file : stream ){
+                String name = file.getFileName().toString();
+                if( !name.startsWith( prefix ) ){
+                    continue;
+                }
+
+                try{
+                    numbers.add( Long.parseLong( name.substring( prefix.length() ) ) );
+                }catch( NumberFormatException e ){
+                    //Not one of ours
+                }
+            }
+        }
+
+        if( numbers.isEmpty() ){
+            throw new IOException( "No capture segments found for " + basePath );
+        }
+
+        Collections.sort( numbers );
+        List<Path> segments = new ArrayList<Path>();
+        for( Long number : numbers ){
+            segments.add( directory.resolve( prefix + number ) );
+        }
+
+        return new CaptureReader( segments );
+    }
+
+    /**
+     * Move on to the next record.
+     *
+     * @return False if there are no more records
+     * @throws IOException If a segment can't be read
+     */
+    public boolean next() throws IOException {
+        while( true ){
+            if( segment != null && offset + RECORD_HEADER_SIZE <= segment.limit() ){
+                int recordLength = segment.getInt( offset + 8 );
+                if( recordLength > 0 ){
+                    timestamp = segment.getLong( offset );
+                    direction = segment.getInt( offset + 12 );
+                    length = recordLength;
+                    dataOffset = offset + RECORD_HEADER_SIZE;
+                    offset += ( RECORD_HEADER_SIZE + recordLength + 7 ) & ~7;
+                    return true;
+                }
+
+                if( segmentIndex == segments.size() - 1 ){
+                    //The end of what has been written so far; more may show up
+                    length = -1;
+                    return false;
+                }
+            }
+
+            if( segmentIndex + 1 >= segments.size() ){
+                length = -1;
+                return false;
+            }
+
+            openSegment( segments.get( ++segmentIndex ) );
+        }
+    }
+
+    /**
+     * @return Either RECEIVED or TRANSMITTED
+     */
+    public int getDirection(){
+        checkRecord();
+        return direction;
+    }
+
+    /**
+     * Get when the data was read or written, from CLOCK_MONOTONIC(the same
+     * clock as {@link System#nanoTime()}).
+     *
+     * @return
+     */
+    public long getTimestampNanos(){
+        checkRecord();
+        return timestamp;
+    }
+
+    /**
+     * Get when the data was read or written, in nanoseconds since the epoch.
+     *
+     * @return
+     */
+    public long getRealtimeNanos(){
+        checkRecord();
+        return segmentRealtimeNanos + ( timestamp - segmentMonotonicNanos );
+    }
+
+    public int getLength(){
+        checkRecord();
+        return length;
+    }
+
+    /**
+     * Get the data of this record.  The buffer is a view of the segment file,
+     * and is re-used for every record.
+     *
+     * @return A read-only buffer with the data between its position and limit
+     */
+    public ByteBuffer getData(){
+        checkRecord();
+        dataView.clear();
+        dataView.position( dataOffset );
+        dataView.limit( dataOffset + length );
+        return dataView;
+    }
+
+    @Override
+    public void close(){
+        //Mapped buffers go away when they are garbage collected
+        segment = null;
+        dataView = null;
+        segmentIndex = segments.size();
+        length = -1;
+    }
+
+    private void openSegment( Path path ) throws IOException {
+        try( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ){
+            segment = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+
+        if( segment.limit() < HEADER_SIZE ){
+            throw new IOException( path + " is not a capture segment" );
+        }
+
+        for( int x = 0; x < MAGIC.length; x++ ){
+            if( segment.get( x ) != MAGIC[ x ] ){
+                throw new IOException( path + " is not a capture segment" );
+            }
+        }
+
+        //Captures are written in the byte order of the machine that made them
+        segment.order( ByteOrder.BIG_ENDIAN );
+        if( segment.getInt( 8 ) != BYTE_ORDER_MARK ){
+            segment.order( ByteOrder.LITTLE_ENDIAN );
+        }
+
+        segmentMonotonicNanos = segment.getLong( 24 );
+        segmentRealtimeNanos = segment.getLong( 32 );
+        dataView = segment.asReadOnlyBuffer();
+        offset = HEADER_SIZE;
+    }
+
+    private void checkRecord(){
+        if( length < 0 ){
+            throw new IllegalStateException( "No current record; call next() first" );
+        }
+    }
+}
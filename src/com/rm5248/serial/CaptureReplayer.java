@@ -0,0 +1,154 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back traffic from a capture, with the same timing that it was
+ * captured with(or faster or slower), for reproducing problems and for load
+ * testing.
+ *
+ * Normally the data that was received on the captured port is written out,
+ * so that if the output is one end of a pseudo-terminal, a program on the
+ * other end sees what the real device sent.  Each record is written when it
+ * is due, counting from when the replay started, so delays in writing one
+ * record don't add up over the whole capture.
+ *
+ * @author rm5248
+ */
+public class CaptureReplayer {
+
+    private final CaptureReader reader;
+    private final OutputStream output;
+    private volatile double speed;
+    private volatile int direction;
+    private volatile boolean cancelled;
+    /* Records are copied through here to be written */
+    private byte[] buffer;
+
+    /**
+     * @param reader The capture to play back, positioned where playback
+     * should start
+     * @param output Where to write the data, for example
+     * {@link SerialPort#getOutputStream()}
+     */
+    public CaptureReplayer( CaptureReader reader, OutputStream output ){
+        if( reader == null || output == null ){
+            throw new IllegalArgumentException( "reader and output must not be null" );
+        }
+
+        this.reader = reader;
+        this.output = output;
+        this.speed = 1.0;
+        this.direction = CaptureReader.RECEIVED;
+        this.buffer = new byte[ 4096 ];
+    }
+
+    /**
+     * Set how fast to play back the capture.
+     *
+     * @param speed 1.0 for the original timing, 2.0 for twice as fast, and so
+     * on.  Double.POSITIVE_INFINITY sends everything as fast as possible.
+     */
+    public void setSpeed( double speed ){
+        if( !( speed > 0 ) ){
+            throw new IllegalArgumentException( "speed must be greater than 0" );
+        }
+
+        this.speed = speed;
+    }
+
+    public double getSpeed(){
+        return speed;
+    }
+
+    /**
+     * Set which side of the capture to play back.
+     *
+     * @param direction CaptureReader.RECEIVED(the default) or
+     * CaptureReader.TRANSMITTED
+     */
+    public void setDirection( int direction ){
+        if( direction != CaptureReader.RECEIVED && direction != CaptureReader.TRANSMITTED ){
+            throw new IllegalArgumentException( "direction must be RECEIVED or TRANSMITTED" );
+        }
+
+        this.direction = direction;
+    }
+
+    public int getDirection(){
+        return direction;
+    }
+
+    /**
+     * Play back the rest of the capture.  This blocks until the end of the
+     * capture, or until {@link #cancel()} is called.
+     *
+     * @return The number of bytes written
+     * @throws IOException If the capture can't be read, or writing fails
+     * @throws InterruptedIOException If the thread is interrupted
+     */
+    public long replay() throws IOException {
+        long startNanos = System.nanoTime();
+        long firstTimestamp = 0;
+        boolean first = true;
+        long written = 0;
+
+        while( !cancelled && reader.next() ){
+            if( reader.getDirection() != direction ){
+                continue;
+            }
+
+            if( first ){
+                firstTimestamp = reader.getTimestampNanos();
+                first = false;
+            }
+
+            long due = startNanos + (long)( ( reader.getTimestampNanos() - firstTimestamp ) / speed );
+            if( !waitUntil( due ) ){
+                break;
+            }
+
+            int length = reader.getLength();
+            if( buffer.length < length ){
+                buffer = new byte[ length ];
+            }
+            ByteBuffer data = reader.getData();
+            data.get( buffer, 0, length );
+            output.write( buffer, 0, length );
+            written += length;
+        }
+
+        output.flush();
+
+        return written;
+    }
+
+    /**
+     * Stop a replay that is going on in another thread.  Once cancelled, this
+     * replayer won't write anything more.
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    /**
+     * @return False if we were cancelled while waiting
+     */
+    private boolean waitUntil( long due ) throws InterruptedIOException {
+        long remaining;
+
+        while( !cancelled && ( remaining = due - System.nanoTime() ) > 0 ){
+            //Don't sleep too long at once, so that cancel() is noticed
+            LockSupport.parkNanos( Math.min( remaining, 100000000L ) );
+            if( Thread.interrupted() ){
+                throw new InterruptedIOException( "Interrupted while replaying" );
+            }
+        }
+
+        return !cancelled;
+    }
+}
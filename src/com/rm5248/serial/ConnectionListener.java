@@ -0,0 +1,32 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+
+/**
+ * Gets told when the device behind a {@link ResilientSerialPort} goes away
+ * and comes back.
+ *
+ * The methods are called from the port's own threads, so they should return
+ * quickly.
+ */
+public interface ConnectionListener {
+
+    /**
+     * Called once the device has gone away.  Reads and writes stall until it
+     * comes back.
+     *
+     * @param port The port that lost its device
+     * @param cause What went wrong
+     */
+    public void portDisconnected( ResilientSerialPort port, IOException cause );
+
+    /**
+     * Called once the device has been opened again, with the same settings
+     * that it had before.
+     *
+     * @param port The port that got its device back
+     * @param portName The name that the device was opened with, which may
+     * not be the same as before
+     */
+    public void portReconnected( ResilientSerialPort port, String portName );
+}
@@ -0,0 +1,190 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Works out which device a port name refers to, so that the same device can
+ * be found again after it has been unplugged and plugged back in, when it
+ * may well come back with a different name(e.g. /dev/ttyUSB1 instead of
+ * /dev/ttyUSB0).
+ *
+ * On Linux, a USB device is matched by its udev link in /dev/serial/by-id,
+ * or by the vendor, product, serial number and interface in sysfs if there
+ * is no link.  A USB device without a serial number is matched by the USB
+ * port that it is plugged into(/dev/serial/by-path).  Anything else is
+ * opened again with the name that it was first opened with.
+ *
+ * @author rm5248
+ */
+final class DeviceIdentity {
+
+    private final static Logger logger = Logger.getLogger( DeviceIdentity.class.getName() );
+
+    private static final Path BY_ID = Paths.get( "/dev/serial/by-id" );
+    private static final Path BY_PATH = Paths.get( "/dev/serial/by-path" );
+    private static final Path SYS_TTY = Paths.get( "/sys/class/tty" );
+    private static final Charset ISO_8859_1 = Charset.forName( "ISO-8859-1" );
+
+    private final String portName;
+    private final Path byIdLink;
+    private final Path byPathLink;
+    /* vendor:product:serial:interface, or null if there is no serial number */
+    private final String usbSerial;
+
+    private DeviceIdentity( String portName, Path byIdLink, Path byPathLink, String usbSerial ){
+        this.portName = portName;
+        this.byIdLink = byIdLink;
+        this.byPathLink = byPathLink;
+        this.usbSerial = usbSerial;
+    }
+
+    /**
+     * Find out what the given port is, while it is plugged in.
+     */
+    static DeviceIdentity forPort( String portName ){
+        Path device;
+        try{
+            device = Paths.get( portName ).toRealPath();
+        }catch( IOException | RuntimeException e ){
+            //Not a path(e.g. COM1), so all that we have to go on is the name
+            return new DeviceIdentity( portName, null, null, null );
+        }
+
+        String usbSerial = usbSerialOf( device.getFileName().toString() );
+        Path byId = Paths.get( portName ).startsWith( BY_ID ) ? Paths.get( portName ) : findLink( BY_ID, device );
+        Path byPath = usbSerial == null ? findLink( BY_PATH, device ) : null;
+
+        DeviceIdentity identity = new DeviceIdentity( portName, byId, byPath, usbSerial );
+        logger.log( Level.FINE, "{0} is {1}", new Object[] { portName, identity } );
+        return identity;
+    }
+
+    /**
+     * Find the name to open the device with.
+     *
+     * @return The name, or null if the device is not plugged in
+     */
+    String locate(){
+        if( byIdLink != null && Files.exists( byIdLink ) ){
+            return byIdLink.toString();
+        }
+
+        if( usbSerial != null ){
+            try( DirectoryStream<Path> ttys = Files.newDirectoryStream( SYS_TTY ) ){
+                for( Path tty : ttys ){
+                    String name = tty.getFileName().toString();
+                    if( usbSerial.equals( usbSerialOf( name ) ) ){
+                        return "/dev/" + name;
+                    }
+                }
+            }catch( IOException e ){
+                logger.log( Level.FINEST, "Unable to look through " + SYS_TTY, e );
+            }
+            return null;
+        }
+
+        if( byPathLink != null ){
+            return Files.exists( byPathLink ) ? byPathLink.toString() : null;
+        }
+
+        if( byIdLink != null ){
+            return null;
+        }
+
+        if( portName.startsWith( "/" ) && !Files.exists( Paths.get( portName ) ) ){
+            return null;
+        }
+
+        return portName;
+    }
+
+    @Override
+    public String toString(){
+        if( byIdLink != null ){
+            return byIdLink.toString();
+        }else if( usbSerial != null ){
+            return "USB device " + usbSerial;
+        }else if( byPathLink != null ){
+            return byPathLink.toString();
+        }
+        return portName;
+    }
+
+    /**
+     * Find the link in the given directory which points at the device.
+     */
+    private static Path findLink( Path directory, Path device ){
+        if( !Files.isDirectory( directory ) ){
+            return null;
+        }
+
+        try( DirectoryStream<Path> links = Files.newDirectoryStream( directory ) ){
+            for( Path link : links ){
+                try{
+                    if( link.toRealPath().equals( device ) ){
+                        return link;
+                    }
+                }catch( IOException e ){
+                    //Dangling link; the device that it was for has gone
+                }
+            }
+        }catch( IOException e ){
+            logger.log( Level.FINEST, "Unable to look through " + directory, e );
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the vendor, product, serial number and interface of the USB device
+     * that a tty belongs to.
+     *
+     * @param ttyName The name of the tty, e.g. ttyUSB0
+     * @return The identity, or null if this is not a USB device with a serial
+     * number
+     */
+    private static String usbSerialOf( String ttyName ){
+        Path dir;
+        try{
+            dir = SYS_TTY.resolve( ttyName ).resolve( "device" ).toRealPath();
+        }catch( IOException e ){
+            return null;
+        }
+
+        //Walk up from the tty to the interface, and then to the device
+        String usbInterface = null;
+        for( ; dir != null; dir = dir.getParent() ){
+            if( usbInterface == null && Files.exists( dir.resolve( "bInterfaceNumber" ) ) ){
+                usbInterface = readAttribute( dir.resolve( "bInterfaceNumber" ) );
+            }
+            if( Files.exists( dir.resolve( "idVendor" ) ) ){
+                String serial = readAttribute( dir.resolve( "serial" ) );
+                if( serial == null || serial.isEmpty() ){
+                    return null;
+                }
+                return readAttribute( dir.resolve( "idVendor" ) ) + ":" +
+                        readAttribute( dir.resolve( "idProduct" ) ) + ":" +
+                        serial + ":" + usbInterface;
+            }
+        }
+
+        return null;
+    }
+
+    private static String readAttribute( Path file ){
+        try{
+            List<String> lines = Files.readAllLines( file, ISO_8859_1 );
+            return lines.isEmpty() ? "" : lines.get( 0 ).trim();
+        }catch( IOException e ){
+            return null;
+        }
+    }
+}
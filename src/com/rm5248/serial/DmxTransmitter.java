@@ -0,0 +1,216 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends a DMX512 universe over and over at a fixed rate.  Each frame is a
+ * break, a mark after break, then the start code and the slots.
+ *
+ * The frames are sent by a native thread which waits for absolute deadlines
+ * on CLOCK_MONOTONIC, so the refresh rate doesn't depend on how the JVM is
+ * scheduling threads.  The slots are double-buffered: change them with the
+ * {@code setXXX} methods, then call {@link #commit()}.  The committed slots
+ * go out starting with the next frame; a frame is never sent with only some
+ * of the changes.
+ *
+ * <pre>
+ * {@code
+ * DmxTransmitter dmx = port.startDmxTransmitter( 512, 40 );
+ * dmx.setSlot( 1, 255 );
+ * dmx.setSlot( 2, 128 );
+ * dmx.commit();
+ * }
+ * </pre>
+ *
+ * Get an instance with {@link SerialPort#startDmxTransmitter(int, int)}.
+ * This is not supported on Windows.
+ *
+ * @author rm5248
+ */
+public class DmxTransmitter implements AutoCloseable {
+
+    /**
+     * The most slots that a frame can have, not counting the start code.
+     */
+    public static final int MAX_SLOTS = 512;
+
+    /**
+     * The default length of the break.  DMX512 needs at least 92us.
+     */
+    public static final long DEFAULT_BREAK_MICROS = 176;
+
+    /**
+     * The default length of the mark after break.  DMX512 needs at least 12us.
+     */
+    public static final long DEFAULT_MARK_AFTER_BREAK_MICROS = 12;
+
+    /* The handle to the port.  Needed for native implementation */
+    @SuppressWarnings("unused")
+    private int handle;
+    /* The start code, then the slots */
+    private final byte[] slots;
+    /* frames sent, late frames */
+    private final long[] counters;
+    private final AtomicBoolean closed;
+
+    DmxTransmitter( int handle, int slotCount, int framesPerSecond, long breakMicros, long markAfterBreakMicros )
+            throws IOException {
+        if( slotCount < 1 || slotCount > MAX_SLOTS ){
+            throw new IllegalArgumentException( "slotCount must be between 1 and " + MAX_SLOTS );
+        }
+
+        if( framesPerSecond <= 0 ){
+            throw new IllegalArgumentException( "framesPerSecond must be greater than 0" );
+        }
+
+        if( breakMicros <= 0 || markAfterBreakMicros < 0 ){
+            throw new IllegalArgumentException( "breakMicros must be greater than 0 and markAfterBreakMicros must not be negative" );
+        }
+
+        this.handle = handle;
+        slots = new byte[ slotCount + 1 ];
+        counters = new long[ 2 ];
+        closed = new AtomicBoolean( false );
+
+        startTransmitter( breakMicros * 1000, markAfterBreakMicros * 1000, 1000000000L / framesPerSecond,
+                slots, slots.length );
+    }
+
+    /**
+     * Set the start code, which is sent before the slots.  This is 0 for
+     * normal dimmer data.
+     *
+     * @param startCode
+     */
+    public synchronized void setStartCode( int startCode ){
+        slots[ 0 ] = (byte)checkValue( startCode );
+    }
+
+    /**
+     * Set the value of one slot.  Not sent until {@link #commit()} is called.
+     *
+     * @param slot The slot number, starting at 1
+     * @param value The value, from 0 to 255
+     */
+    public synchronized void setSlot( int slot, int value ){
+        checkSlot( slot, 1 );
+        slots[ slot ] = (byte)checkValue( value );
+    }
+
+    /**
+     * Set the values of several slots in a row.  Not sent until
+     * {@link #commit()} is called.
+     *
+     * @param firstSlot The first slot number to set, starting at 1
+     * @param values Where to get the values from
+     * @param offset The index of the first value in values
+     * @param length The number of slots to set
+     */
+    public synchronized void setSlots( int firstSlot, byte[] values, int offset, int length ){
+        checkSlot( firstSlot, length );
+        System.arraycopy( values, offset, slots, firstSlot, length );
+    }
+
+    /**
+     * Get the value of a slot that has been set, whether or not it has been
+     * committed yet.
+     *
+     * @param slot The slot number, starting at 1
+     * @return The value, from 0 to 255
+     */
+    public synchronized int getSlot( int slot ){
+        checkSlot( slot, 1 );
+        return slots[ slot ] & 0xFF;
+    }
+
+    /**
+     * @return The number of slots in each frame, not counting the start code
+     */
+    public int getSlotCount(){
+        return slots.length - 1;
+    }
+
+    /**
+     * Send the slots that have been set, starting with the next frame.
+     *
+     * @throws IOException If the transmitter has been closed
+     */
+    public synchronized void commit() throws IOException {
+        if( closed.get() ){
+            throw new IllegalStateException( "Cannot commit once the transmitter has been closed." );
+        }
+
+        updateSlots( slots, slots.length );
+    }
+
+    /**
+     * @return The number of frames that have been sent
+     * @throws IOException If the transmitter thread stopped because of an
+     * error
+     */
+    public synchronized long getFramesSent() throws IOException {
+        readCounters();
+        return counters[ 0 ];
+    }
+
+    /**
+     * Get the number of frames that were not sent on time, because the frame
+     * before them took longer than the refresh period(for example, there are
+     * too many slots for the rate).  These frames are skipped, not sent late.
+     *
+     * @return The number of frames skipped
+     * @throws IOException If the transmitter thread stopped because of an
+     * error
+     */
+    public synchronized long getLateFrames() throws IOException {
+        readCounters();
+        return counters[ 1 ];
+    }
+
+    /**
+     * Stop sending frames.  Returns once the frame being sent is done.
+     */
+    @Override
+    public void close(){
+        if( !closed.compareAndSet( false, true ) ){
+            return;
+        }
+
+        synchronized( this ){
+            stopTransmitter();
+        }
+    }
+
+    public boolean isClosed(){
+        return closed.get();
+    }
+
+    private void readCounters() throws IOException {
+        if( !closed.get() ){
+            getCounters( counters );
+        }
+    }
+
+    private void checkSlot( int slot, int length ){
+        if( slot < 1 || length < 0 || slot + length > slots.length ){
+            throw new IndexOutOfBoundsException( "slot " + slot + " length " + length + " of " + getSlotCount() );
+        }
+    }
+
+    private static int checkValue( int value ){
+        if( value < 0 || value > 255 ){
+            throw new IllegalArgumentException( "value must be between 0 and 255" );
+        }
+        return value;
+    }
+
+    private native void startTransmitter( long breakNanos, long markAfterBreakNanos, long periodNanos,
+            byte[] slots, int count ) throws IOException;
+
+    private native void updateSlots( byte[] slots, int count ) throws IOException;
+
+    private native void getCounters( long[] counters ) throws IOException;
+
+    private native void stopTransmitter();
+}
@@ -0,0 +1,191 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Captures every change of the control lines(CD, CTS, DSR, RI) with a
+ * high-resolution timestamp, for example to use a GPS PPS signal on CD or to
+ * count pulses on CTS.
+ *
+ * A native thread waits for the lines to change(TIOCMIWAIT) and records each
+ * change, along with the CLOCK_MONOTONIC and CLOCK_REALTIME time, into a
+ * lock-free ring.  Call {@link #poll(int)} to take a batch of changes out of
+ * the ring, then look at them with the {@code getXXX( index )} methods.  No
+ * memory is allocated when polling.
+ *
+ * If a line changes faster than the thread can keep up with, some changes
+ * will be missed; the number of missed changes is counted using the serial
+ * driver's interrupt counters(TIOCGICOUNT).  If the ring fills up because
+ * nobody is polling, new changes are counted as dropped.
+ *
+ * The native thread can't be woken up until a line changes, so after
+ * closing, it keeps a copy of the port open until the next line change.
+ *
+ * Get an instance with {@link SerialPort#startEdgeCapture(int, int)}.  This is
+ * only supported on Linux, and only with drivers which support TIOCMIWAIT.
+ *
+ * @author rm5248
+ */
+public class EdgeCapture implements AutoCloseable {
+
+    /**
+     * The default number of changes which can be waiting in the ring.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /* The handle to the port.  Needed for native implementation */
+    @SuppressWarnings("unused")
+    private int handle;
+    private final int[] lines;
+    private final int[] levels;
+    private final long[] monotonic;
+    private final long[] realtime;
+    /* missed, dropped */
+    private final long[] counters;
+    private final AtomicBoolean closed;
+    private int count;
+
+    EdgeCapture( int handle, int lineMask, int capacity, int batchSize ) throws IOException {
+        if( capacity <= 0 || ( capacity & ( capacity - 1 ) ) != 0 ){
+            throw new IllegalArgumentException( "capacity must be a power of 2" );
+        }
+
+        if( batchSize <= 0 ){
+            throw new IllegalArgumentException( "batchSize must be greater than 0" );
+        }
+
+        this.handle = handle;
+        lines = new int[ batchSize ];
+        levels = new int[ batchSize ];
+        monotonic = new long[ batchSize ];
+        realtime = new long[ batchSize ];
+        counters = new long[ 2 ];
+        closed = new AtomicBoolean( false );
+        count = 0;
+
+        startCapture( lineMask, capacity );
+    }
+
+    /**
+     * Take the next batch of line changes out of the ring.
+     *
+     * @param timeoutMillis How long to wait if there are no changes waiting.
+     * If 0, don't wait.  If less than 0, wait forever.
+     * @return The number of changes in the batch, 0 if the timeout expired, or
+     * -1 if the capture has been stopped
+     * @throws IOException If the capture thread had an error
+     */
+    public synchronized int poll( int timeoutMillis ) throws IOException {
+        if( closed.get() ){
+            count = 0;
+            return -1;
+        }
+
+        int got = pollEdges( lines, levels, monotonic, realtime, timeoutMillis, counters );
+        count = Math.max( got, 0 );
+
+        return got;
+    }
+
+    /**
+     * Get which line changed.
+     *
+     * @param index The index of the change in the last batch
+     * @return One of the SerialPort.LINE_XXX values
+     */
+    public int getLine( int index ){
+        checkIndex( index );
+        return lines[ index ];
+    }
+
+    /**
+     * Get if the line went high(is now set) or low.
+     *
+     * @param index The index of the change in the last batch
+     * @return True if the line is now set
+     */
+    public boolean isRising( int index ){
+        checkIndex( index );
+        return levels[ index ] != 0;
+    }
+
+    /**
+     * Get when the line changed, from CLOCK_MONOTONIC(the same clock as
+     * {@link System#nanoTime()}).
+     *
+     * @param index The index of the change in the last batch
+     * @return
+     */
+    public long getMonotonicNanos( int index ){
+        checkIndex( index );
+        return monotonic[ index ];
+    }
+
+    /**
+     * Get when the line changed, from CLOCK_REALTIME, in nanoseconds since
+     * the epoch.
+     *
+     * @param index The index of the change in the last batch
+     * @return
+     */
+    public long getRealtimeNanos( int index ){
+        checkIndex( index );
+        return realtime[ index ];
+    }
+
+    /**
+     * Get the number of line changes that happened too fast for us to see, as
+     * of the last poll.
+     *
+     * @return
+     */
+    public synchronized long getMissedEdges(){
+        return counters[ 0 ];
+    }
+
+    /**
+     * Get the number of line changes that were thrown away because the ring
+     * was full, as of the last poll.
+     *
+     * @return
+     */
+    public synchronized long getDroppedEdges(){
+        return counters[ 1 ];
+    }
+
+    /**
+     * Stop capturing line changes.
+     */
+    @Override
+    public void close(){
+        if( !closed.compareAndSet( false, true ) ){
+            return;
+        }
+
+        //Get anybody waiting in poll() out first
+        wakeup();
+        synchronized( this ){
+            stopCapture();
+        }
+    }
+
+    public boolean isClosed(){
+        return closed.get();
+    }
+
+    private void checkIndex( int index ){
+        if( index < 0 || index >= count ){
+            throw new IndexOutOfBoundsException( "index " + index + " of " + count );
+        }
+    }
+
+    private native void startCapture( int lineMask, int capacity ) throws IOException;
+
+    private native int pollEdges( int[] lines, int[] levels, long[] monotonic, long[] realtime, int timeoutMillis, long[] counters )
+            throws IOException;
+
+    private native void wakeup();
+
+    private native void stopCapture();
+}
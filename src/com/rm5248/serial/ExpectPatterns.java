@@ -0,0 +1,177 @@
+package com.rm5248.serial;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A set of patterns for {@link SerialExpect} to look for, all at once.
+ *
+ * The patterns are compiled into an Aho-Corasick automaton, with a full
+ * transition table, so each byte that comes in is looked at once no matter
+ * how many patterns there are.  Building this takes a little time, so make
+ * the patterns once and use them for every call to expect().
+ *
+ * If more than one pattern ends at the same byte, the longest one wins(for
+ * example "OK\r\n" over "\r\n"); if they are the same, the first one does.
+ * Strings are turned into bytes as ISO-8859-1, so each char is one byte.
+ *
+ * @author rm5248
+ */
+public class ExpectPatterns {
+
+    private static final Charset ISO_8859_1 = Charset.forName( "ISO-8859-1" );
+
+    private final byte[][] patterns;
+    /* Next state for each state and byte, at [ state * 256 + byte ] */
+    private final int[] transitions;
+    /* The pattern that ends at each state, or -1 */
+    private final int[] matches;
+    private final int maxLength;
+
+    /**
+     * @param patterns The strings to look for
+     */
+    public ExpectPatterns( String... patterns ){
+        this( toBytes( patterns ) );
+    }
+
+    /**
+     * @param patterns The byte sequences to look for.  The arrays are copied.
+     */
+    public ExpectPatterns( byte[]... patterns ){
+        if( patterns == null || patterns.length == 0 ){
+            throw new IllegalArgumentException( "At least one pattern is needed" );
+        }
+
+        this.patterns = new byte[ patterns.length ][];
+        int totalLength = 0;
+        int longest = 0;
+        for( int x = 0; x < patterns.length; x++ ){
+            if( patterns[ x ] == null || patterns[ x ].length == 0 ){
+                throw new IllegalArgumentException( "Patterns must not be null or empty" );
+            }
+            this.patterns[ x ] = patterns[ x ].clone();
+            totalLength += patterns[ x ].length;
+            longest = Math.max( longest, patterns[ x ].length );
+        }
+        maxLength = longest;
+
+        //Build the trie; -1 means no child yet
+        int maxStates = totalLength + 1;
+        int[] trie = new int[ maxStates * 256 ];
+        Arrays.fill( trie, -1 );
+        int[] stateMatches = new int[ maxStates ];
+        Arrays.fill( stateMatches, -1 );
+        int states = 1;
+
+        for( int x = 0; x < this.patterns.length; x++ ){
+            int state = 0;
+            for( byte b : this.patterns[ x ] ){
+                int index = state * 256 + ( b & 0xFF );
+                if( trie[ index ] < 0 ){
+                    trie[ index ] = states++;
+                }
+                state = trie[ index ];
+            }
+            if( stateMatches[ state ] < 0 ){
+                stateMatches[ state ] = x;
+            }
+        }
+
+        //Breadth-first, fill in the missing transitions from the failure
+        //links, and pick up matches that end at a shorter suffix
+        transitions = Arrays.copyOf( trie, states * 256 );
+        matches = Arrays.copyOf( stateMatches, states );
+        int[] failure = new int[ states ];
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+
+        for( int b = 0; b < 256; b++ ){
+            int child = transitions[ b ];
+            if( child < 0 ){
+                transitions[ b ] = 0;
+            }else{
+                failure[ child ] = 0;
+                queue.add( child );
+            }
+        }
+
+        while( !queue.isEmpty() ){
+            int state = queue.poll();
+            if( matches[ state ] < 0 ){
+                matches[ state ] = matches[ failure[ state ] ];
+            }
+
+            for( int b = 0; b < 256; b++ ){
+                int index = state * 256 + b;
+                int child = transitions[ index ];
+                int fallback = transitions[ failure[ state ] * 256 + b ];
+                if( child < 0 ){
+                    transitions[ index ] = fallback;
+                }else{
+                    failure[ child ] = fallback;
+                    queue.add( child );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return How many patterns there are
+     */
+    public int getPatternCount(){
+        return patterns.length;
+    }
+
+    /**
+     * @param index
+     * @return A copy of the pattern
+     */
+    public byte[] getPattern( int index ){
+        return patterns[ index ].clone();
+    }
+
+    /**
+     * @return The length of the longest pattern
+     */
+    public int getMaxLength(){
+        return maxLength;
+    }
+
+    int getPatternLength( int index ){
+        return patterns[ index ].length;
+    }
+
+    /**
+     * @return The state to go to from the given state on the given byte
+     */
+    int next( int state, byte b ){
+        return transitions[ ( state << 8 ) | ( b & 0xFF ) ];
+    }
+
+    /**
+     * @return The pattern that has just been matched in this state, or -1
+     */
+    int getMatch( int state ){
+        return matches[ state ];
+    }
+
+    static Charset getCharset(){
+        return ISO_8859_1;
+    }
+
+    private static byte[][] toBytes( String[] patterns ){
+        if( patterns == null ){
+            return null;
+        }
+
+        byte[][] bytes = new byte[ patterns.length ][];
+        for( int x = 0; x < patterns.length; x++ ){
+            if( patterns[ x ] != null ){
+                bytes[ x ] = patterns[ x ].getBytes( ISO_8859_1 );
+            }
+        }
+
+        return bytes;
+    }
+}
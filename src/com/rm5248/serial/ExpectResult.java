@@ -0,0 +1,82 @@
+package com.rm5248.serial;
+
+/**
+ * What {@link SerialExpect#expect(ExpectPatterns, long)} found: which
+ * pattern matched, the data that came before it, and the match itself.
+ *
+ * @author rm5248
+ */
+public class ExpectResult {
+
+    /**
+     * No pattern came in before the timeout.
+     */
+    public static final int TIMEOUT = -1;
+    /**
+     * The port was closed before any pattern came in.
+     */
+    public static final int CLOSED = -2;
+
+    private final int patternIndex;
+    private final byte[] before;
+    private final byte[] match;
+    private final boolean truncated;
+
+    ExpectResult( int patternIndex, byte[] before, byte[] match, boolean truncated ){
+        this.patternIndex = patternIndex;
+        this.before = before;
+        this.match = match;
+        this.truncated = truncated;
+    }
+
+    /**
+     * @return The index of the pattern that matched, TIMEOUT, or CLOSED
+     */
+    public int getPatternIndex(){
+        return patternIndex;
+    }
+
+    public boolean isMatched(){
+        return patternIndex >= 0;
+    }
+
+    public boolean isTimedOut(){
+        return patternIndex == TIMEOUT;
+    }
+
+    public boolean isClosed(){
+        return patternIndex == CLOSED;
+    }
+
+    /**
+     * @return The data that came in before the match.  If nothing matched,
+     * this is all of the data that came in, which is also kept for the next
+     * call to expect().
+     */
+    public byte[] getBefore(){
+        return before;
+    }
+
+    /**
+     * @return The data before the match, as ISO-8859-1
+     */
+    public String getBeforeString(){
+        return new String( before, ExpectPatterns.getCharset() );
+    }
+
+    /**
+     * @return The data that matched the pattern, or an empty array if nothing
+     * matched
+     */
+    public byte[] getMatch(){
+        return match;
+    }
+
+    /**
+     * @return True if so much data came in before the match that the oldest
+     * of it had to be thrown away, so getBefore() is only the end of it
+     */
+    public boolean isTruncated(){
+        return truncated;
+    }
+}
@@ -0,0 +1,695 @@
+package com.rm5248.serial;
+
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.DataBits;
+import com.rm5248.serial.SerialPort.FlowControl;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A serial device that only exists in memory, for testing and benchmarking
+ * code without a real port, a pseudo-terminal, or the native library.
+ *
+ * Devices come either as a pair connected by a null-modem cable(see
+ * {@link #createPair(int, boolean)}), or as a single device with a loopback
+ * plug on it(see {@link #createLoopback(int, boolean)}).  Whatever is written
+ * to one end can be read from the other.  The control lines are wired like a
+ * null-modem cable: DTR on one end shows up as DSR and CD on the other end,
+ * and RTS shows up as CTS.  Both ends start with DTR and RTS set, like a port
+ * that has just been opened.  Other input line changes, for example RI, can
+ * be made with {@link #setInputLines(int, int)}.  The SerialChangeListener is
+ * called on the thread that changed the lines.
+ *
+ * Data goes through a single-producer, single-consumer ring buffer in each
+ * direction.  The reader and the writer of a ring never lock each other
+ * out; a thread that has to wait is parked until the other side wakes it up.
+ * Writes only block when the ring is full, or while CTS is clear if the flow
+ * control is HARDWARE(SOFTWARE flow control is not simulated).
+ *
+ * Normally data can be read as soon as it has been written, so the speed is
+ * only limited by the memory bandwidth.  If pacing is turned on, the data is
+ * sent at the baud rate: each byte can only be read once the time for a
+ * whole character(see {@link SerialPortConfig#getCharacterTimeNanos()}), at
+ * the settings of the end that wrote it, has gone by since the previous byte
+ * arrived.
+ *
+ * When one end is closed, its DTR and RTS are cleared; the other end reads
+ * whatever was already sent and then gets end of stream, and anything that
+ * it writes is thrown away.
+ *
+ * @author rm5248
+ */
+public class LoopbackSerialDevice implements SerialDevice {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int INPUT_LINES = SerialPort.LINE_CD | SerialPort.LINE_CTS |
+            SerialPort.LINE_DSR | SerialPort.LINE_RI;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Data going in one direction.
+     */
+    private static class ByteRing {
+        final byte[] buffer;
+        final int mask;
+        /* The total number of bytes written and read */
+        final AtomicLong writePosition;
+        final AtomicLong readPosition;
+        volatile Thread waitingReader;
+        volatile Thread waitingWriter;
+        volatile boolean writerClosed;
+        volatile boolean readerClosed;
+        /* When the data that is being sent arrives; null if it is not paced */
+        volatile Burst burst;
+        /* When the last byte written will have arrived.  Only used by the writer */
+        long lineBusyUntil;
+
+        ByteRing( int size ){
+            buffer = new byte[ size ];
+            mask = size - 1;
+            writePosition = new AtomicLong();
+            readPosition = new AtomicLong();
+        }
+
+        /**
+         * Work out how much of the written data has made it to the other end.
+         */
+        long arrived( long written ){
+            Burst current = burst;
+            if( current == null || current.startPosition >= written ){
+                return written;
+            }
+
+            long sent = ( System.nanoTime() - current.startNanos ) / current.characterNanos;
+            if( sent <= 0 ){
+                return current.startPosition;
+            }
+
+            return Math.min( written, current.startPosition + sent );
+        }
+
+        void wakeReader(){
+            Thread t = waitingReader;
+            if( t != null ){
+                LockSupport.unpark( t );
+            }
+        }
+
+        void wakeWriter(){
+            Thread t = waitingWriter;
+            if( t != null ){
+                LockSupport.unpark( t );
+            }
+        }
+    }
+
+    /**
+     * Data written back-to-back, which arrives one character time apart.
+     */
+    private static class Burst {
+        final long startPosition;
+        final long startNanos;
+        final long characterNanos;
+
+        Burst( long startPosition, long startNanos, long characterNanos ){
+            this.startPosition = startPosition;
+            this.startNanos = startNanos;
+            this.characterNanos = characterNanos;
+        }
+    }
+
+    private class LoopbackInputStream extends InputStream {
+
+        private final byte[] single = new byte[ 1 ];
+
+        @Override
+        public synchronized int read() throws IOException {
+            int got = read( single, 0, 1 );
+            if( got < 0 ){
+                return -1;
+            }
+            return single[ 0 ] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read( byte[] b, int off, int len ) throws IOException {
+            if( off < 0 || len < 0 || len > b.length - off ){
+                throw new IndexOutOfBoundsException();
+            }
+
+            if( len == 0 ){
+                return 0;
+            }
+
+            while( true ){
+                if( closed ){
+                    return -1;
+                }
+
+                long readPosition = input.readPosition.get();
+                long written = input.writePosition.get();
+                long arrived = input.arrived( written );
+
+                if( arrived > readPosition ){
+                    int count = (int)Math.min( arrived - readPosition, len );
+                    int index = (int)( readPosition & input.mask );
+                    int first = Math.min( count, input.buffer.length - index );
+
+                    System.arraycopy( input.buffer, index, b, off, first );
+                    System.arraycopy( input.buffer, 0, b, off + first, count - first );
+
+                    input.readPosition.set( readPosition + count );
+                    input.wakeWriter();
+
+                    return count;
+                }
+
+                if( written == readPosition && input.writerClosed ){
+                    //Anything written before the other end closed has been seen by now
+                    if( input.writePosition.get() == readPosition ){
+                        return -1;
+                    }
+                    continue;
+                }
+
+                input.waitingReader = Thread.currentThread();
+                if( arrived < written ){
+                    //The next byte is on its way
+                    Burst current = input.burst;
+                    if( current != null && !closed ){
+                        long due = current.startNanos + ( arrived - current.startPosition + 1 ) * current.characterNanos;
+                        LockSupport.parkNanos( this, Math.max( due - System.nanoTime(), 1 ) );
+                    }
+                }else if( !closed && !input.writerClosed && input.writePosition.get() == written ){
+                    LockSupport.park( this );
+                }
+                input.waitingReader = null;
+
+                if( Thread.interrupted() ){
+                    throw new InterruptedIOException( "Interrupted while reading" );
+                }
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            if( closed ){
+                return 0;
+            }
+
+            long written = input.writePosition.get();
+            return (int)( input.arrived( written ) - input.readPosition.get() );
+        }
+    }
+
+    private class LoopbackOutputStream extends OutputStream {
+
+        private final byte[] single = new byte[ 1 ];
+
+        @Override
+        public synchronized void write( int b ) throws IOException {
+            single[ 0 ] = (byte)b;
+            write( single, 0, 1 );
+        }
+
+        @Override
+        public synchronized void write( byte[] b, int off, int len ) throws IOException {
+            if( off < 0 || len < 0 || len > b.length - off ){
+                throw new IndexOutOfBoundsException();
+            }
+
+            while( len > 0 ){
+                if( closed ){
+                    throw new IOException( "Port closed" );
+                }
+
+                if( output.readerClosed ){
+                    //Nobody is listening on the other end
+                    return;
+                }
+
+                if( !clearToSend() ){
+                    waitForWriter( -1 );
+                    continue;
+                }
+
+                long writePosition = output.writePosition.get();
+                long readPosition = output.readPosition.get();
+                int free = output.buffer.length - (int)( writePosition - readPosition );
+                if( free == 0 ){
+                    waitForWriter( readPosition );
+                    continue;
+                }
+
+                int count = Math.min( free, len );
+                int index = (int)( writePosition & output.mask );
+                int first = Math.min( count, output.buffer.length - index );
+
+                pace( writePosition, count );
+                System.arraycopy( b, off, output.buffer, index, first );
+                System.arraycopy( b, off + first, output.buffer, 0, count - first );
+
+                output.writePosition.set( writePosition + count );
+                output.wakeReader();
+
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Work out when the data being written will arrive.
+         */
+        private void pace( long writePosition, int count ){
+            long characterNanos = paced ? config.getCharacterTimeNanos() : 0;
+            if( characterNanos == 0 ){
+                output.burst = null;
+                return;
+            }
+
+            long now = System.nanoTime();
+            Burst current = output.burst;
+            if( current == null || current.characterNanos != characterNanos ||
+                    now - output.lineBusyUntil >= 0 ){
+                //The line is idle(or the speed changed), so this data starts a new burst
+                long start = now;
+                if( current != null && output.lineBusyUntil - now > 0 ){
+                    start = output.lineBusyUntil;
+                }
+                output.burst = new Burst( writePosition, start, characterNanos );
+                output.lineBusyUntil = start;
+            }
+
+            output.lineBusyUntil += count * characterNanos;
+        }
+
+        /**
+         * Wait for space in the ring or for CTS to change.
+         *
+         * @param readPosition The read position when there was no space, or
+         * less than 0 if waiting for CTS
+         */
+        private void waitForWriter( long readPosition ) throws InterruptedIOException {
+            output.waitingWriter = Thread.currentThread();
+            boolean stillWaiting = readPosition < 0 ? !clearToSend() : output.readPosition.get() == readPosition;
+            if( stillWaiting && !closed && !output.readerClosed ){
+                LockSupport.park( this );
+            }
+            output.waitingWriter = null;
+
+            if( Thread.interrupted() ){
+                throw new InterruptedIOException( "Interrupted while writing" );
+            }
+        }
+    }
+
+    private final String name;
+    /* The ring we read from, and the ring we write to.  The same for a loopback */
+    private final ByteRing input;
+    private final ByteRing output;
+    private final boolean paced;
+    /* Held while changing lines on either end */
+    private final Object lineLock;
+    private LoopbackSerialDevice peer;
+    private final LoopbackInputStream inputStream;
+    private final LoopbackOutputStream outputStream;
+    private volatile SerialPortConfig config;
+    private volatile boolean closed;
+    /* DTR and RTS */
+    private volatile int outputLines;
+    /* Input lines set with setInputLines() */
+    private volatile int forcedMask;
+    private volatile int forcedValues;
+    private SerialChangeListener listener;
+    /* The lines as the listener last heard about them */
+    private int notifiedLines;
+
+    private LoopbackSerialDevice( String name, ByteRing input, ByteRing output, boolean paced, Object lineLock ){
+        this.name = name;
+        this.input = input;
+        this.output = output;
+        this.paced = paced;
+        this.lineLock = lineLock;
+        this.inputStream = new LoopbackInputStream();
+        this.outputStream = new LoopbackOutputStream();
+        this.config = SerialPortConfig.DEFAULT;
+        this.outputLines = SerialPort.LINE_DTR | SerialPort.LINE_RTS;
+    }
+
+    /**
+     * Make two devices connected to each other, with the default buffer size
+     * and no pacing.
+     *
+     * @return One end; the other end is {@link #getPeer()}
+     */
+    public static LoopbackSerialDevice createPair(){
+        return createPair( DEFAULT_BUFFER_SIZE, false );
+    }
+
+    /**
+     * Make two devices connected to each other.
+     *
+     * @param bufferSize How many bytes can be in flight in each direction.
+     * This is rounded up to a power of two.
+     * @param paced True to send the data at the baud rate, false to send it as
+     * fast as possible
+     * @return One end; the other end is {@link #getPeer()}
+     */
+    public static LoopbackSerialDevice createPair( int bufferSize, boolean paced ){
+        int size = ringSize( bufferSize );
+        String baseName = "loopback" + nextId.getAndIncrement();
+        ByteRing aToB = new ByteRing( size );
+        ByteRing bToA = new ByteRing( size );
+        Object lineLock = new Object();
+
+        LoopbackSerialDevice a = new LoopbackSerialDevice( baseName + "a", bToA, aToB, paced, lineLock );
+        LoopbackSerialDevice b = new LoopbackSerialDevice( baseName + "b", aToB, bToA, paced, lineLock );
+        a.peer = b;
+        b.peer = a;
+        a.notifiedLines = a.getLines();
+        b.notifiedLines = b.getLines();
+
+        return a;
+    }
+
+    /**
+     * Make a single device where everything written to it is read back from
+     * it, and DTR and RTS are looped back to DSR/CD and CTS.
+     *
+     * @param bufferSize How many bytes can be in flight.  This is rounded up
+     * to a power of two.
+     * @param paced True to send the data at the baud rate, false to send it as
+     * fast as possible
+     * @return The device; its peer is itself
+     */
+    public static LoopbackSerialDevice createLoopback( int bufferSize, boolean paced ){
+        ByteRing ring = new ByteRing( ringSize( bufferSize ) );
+        LoopbackSerialDevice device = new LoopbackSerialDevice( "loopback" + nextId.getAndIncrement(),
+                ring, ring, paced, new Object() );
+        device.peer = device;
+        device.notifiedLines = device.getLines();
+
+        return device;
+    }
+
+    /**
+     * Get the other end of the cable.
+     *
+     * @return The other end, or this device if it is a loopback
+     */
+    public LoopbackSerialDevice getPeer(){
+        return peer;
+    }
+
+    public boolean isPaced(){
+        return paced;
+    }
+
+    /**
+     * Force the input lines of this device to a value, as if the device on the
+     * other end had changed them.  They stay that way until
+     * {@link #releaseInputLines(int)} is called.
+     *
+     * @param mask Which lines to change; only LINE_CD, LINE_CTS, LINE_DSR and
+     * LINE_RI may be given
+     * @param values The new value of the lines in the mask
+     */
+    public void setInputLines( int mask, int values ){
+        checkOpen( "set the input lines" );
+
+        if( ( mask & ~INPUT_LINES ) != 0 ){
+            throw new IllegalArgumentException( "Only LINE_CD, LINE_CTS, LINE_DSR and LINE_RI can be set" );
+        }
+
+        synchronized( lineLock ){
+            forcedValues = ( forcedValues & ~mask ) | ( values & mask );
+            forcedMask |= mask;
+            linesChanged();
+        }
+    }
+
+    /**
+     * Go back to the input lines following the other end.
+     *
+     * @param mask Which lines to stop forcing
+     */
+    public void releaseInputLines( int mask ){
+        checkOpen( "release the input lines" );
+
+        synchronized( lineLock ){
+            forcedMask &= ~mask;
+            forcedValues &= ~mask;
+            linesChanged();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(){
+        checkOpen( "get the input stream" );
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream(){
+        checkOpen( "get the output stream" );
+        return outputStream;
+    }
+
+    @Override
+    public BaudRate getBaudRate(){
+        return getConfig().getBaudRate();
+    }
+
+    @Override
+    public synchronized void setBaudRate( BaudRate rate ){
+        if( rate == null ){
+            throw new IllegalArgumentException( "rate must not be null" );
+        }
+        setConfig( getConfig().withBaudRate( rate ) );
+    }
+
+    @Override
+    public DataBits getDataBits(){
+        return getConfig().getDataBits();
+    }
+
+    @Override
+    public synchronized void setDataSize( DataBits data ){
+        if( data == null ){
+            throw new IllegalArgumentException( "data must not be null" );
+        }
+        setConfig( getConfig().withDataBits( data ) );
+    }
+
+    @Override
+    public StopBits getStopBits(){
+        return getConfig().getStopBits();
+    }
+
+    @Override
+    public synchronized void setStopBits( StopBits stop ){
+        if( stop == null ){
+            throw new IllegalArgumentException( "stop must not be null" );
+        }
+        setConfig( getConfig().withStopBits( stop ) );
+    }
+
+    @Override
+    public Parity getParity(){
+        return getConfig().getParity();
+    }
+
+    @Override
+    public synchronized void setParity( Parity parity ){
+        if( parity == null ){
+            throw new IllegalArgumentException( "parity must not be null" );
+        }
+        setConfig( getConfig().withParity( parity ) );
+    }
+
+    @Override
+    public FlowControl getFlowControl(){
+        return getConfig().getFlowControl();
+    }
+
+    @Override
+    public synchronized void setFlowControl( FlowControl flow ){
+        if( flow == null ){
+            throw new IllegalArgumentException( "flow must not be null" );
+        }
+        setConfig( getConfig().withFlowControl( flow ) );
+    }
+
+    @Override
+    public SerialPortConfig getConfig(){
+        checkOpen( "get the config" );
+        return config;
+    }
+
+    @Override
+    public synchronized void setConfig( SerialPortConfig config ){
+        checkOpen( "set the config" );
+
+        if( config == null ){
+            throw new IllegalArgumentException( "config must not be null" );
+        }
+
+        this.config = config;
+        //A writer waiting for CTS may not have to wait any more
+        output.wakeWriter();
+    }
+
+    @Override
+    public SerialLineState getSerialLineState(){
+        return toLineState( getControlLines() );
+    }
+
+    @Override
+    public void setSerialLineState( SerialLineState state ){
+        setControlLines( SerialPort.LINE_DTR | SerialPort.LINE_RTS,
+                ( state.dataTerminalReady ? SerialPort.LINE_DTR : 0 ) |
+                ( state.requestToSend ? SerialPort.LINE_RTS : 0 ) );
+    }
+
+    @Override
+    public int getControlLines(){
+        checkOpen( "get the control lines" );
+        return getLines();
+    }
+
+    @Override
+    public void setControlLines( int mask, int values ){
+        checkOpen( "set the control lines" );
+
+        if( ( mask & ~( SerialPort.LINE_DTR | SerialPort.LINE_RTS ) ) != 0 ){
+            throw new IllegalArgumentException( "Only LINE_DTR and LINE_RTS can be set" );
+        }
+
+        if( mask == 0 ){
+            return;
+        }
+
+        synchronized( lineLock ){
+            outputLines = ( outputLines & ~mask ) | ( values & mask );
+            linesChanged();
+        }
+    }
+
+    @Override
+    public void setSerialChangeListener( SerialChangeListener listen ){
+        synchronized( lineLock ){
+            listener = listen;
+            notifiedLines = getLines();
+        }
+    }
+
+    @Override
+    public String getPortName(){
+        return name;
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    @Override
+    public void close(){
+        synchronized( lineLock ){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            listener = null;
+            outputLines = 0;
+            linesChanged();
+        }
+
+        output.writerClosed = true;
+        input.readerClosed = true;
+        output.wakeReader();
+        output.wakeWriter();
+        input.wakeReader();
+        input.wakeWriter();
+    }
+
+    private static int ringSize( int bufferSize ){
+        if( bufferSize < 1 || bufferSize > ( 1 << 30 ) ){
+            throw new IllegalArgumentException( "bufferSize must be between 1 and 2^30" );
+        }
+
+        return Integer.bitCount( bufferSize ) == 1 ? bufferSize : Integer.highestOneBit( bufferSize ) << 1;
+    }
+
+    private void checkOpen( String what ){
+        if( closed ){
+            throw new IllegalStateException( "Cannot " + what + " once the port has been closed." );
+        }
+    }
+
+    private int getLines(){
+        int peerLines = peer.outputLines;
+        int lines = outputLines;
+
+        if( ( peerLines & SerialPort.LINE_DTR ) != 0 ){
+            lines |= SerialPort.LINE_DSR | SerialPort.LINE_CD;
+        }
+        if( ( peerLines & SerialPort.LINE_RTS ) != 0 ){
+            lines |= SerialPort.LINE_CTS;
+        }
+
+        return ( lines & ~forcedMask ) | forcedValues;
+    }
+
+    private boolean clearToSend(){
+        return config.getFlowControl() != FlowControl.HARDWARE ||
+                ( getLines() & SerialPort.LINE_CTS ) != 0;
+    }
+
+    /**
+     * Tell both ends that the lines may have changed.  Must hold lineLock.
+     */
+    private void linesChanged(){
+        notifyListener();
+        if( peer != this ){
+            peer.notifyListener();
+        }
+    }
+
+    private void notifyListener(){
+        //CTS may have come on
+        output.wakeWriter();
+
+        int lines = getLines();
+        if( lines == notifiedLines ){
+            return;
+        }
+        notifiedLines = lines;
+
+        if( listener != null ){
+            listener.serialStateChanged( toLineState( lines ) );
+        }
+    }
+
+    private static SerialLineState toLineState( int lines ){
+        SerialLineState s = new SerialLineState();
+
+        s.carrierDetect = ( lines & SerialPort.LINE_CD ) != 0;
+        s.clearToSend = ( lines & SerialPort.LINE_CTS ) != 0;
+        s.dataSetReady = ( lines & SerialPort.LINE_DSR ) != 0;
+        s.dataTerminalReady = ( lines & SerialPort.LINE_DTR ) != 0;
+        s.requestToSend = ( lines & SerialPort.LINE_RTS ) != 0;
+        s.ringIndicator = ( lines & SerialPort.LINE_RI ) != 0;
+
+        return s;
+    }
+}
@@ -0,0 +1,298 @@
+package com.rm5248.serial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads the native library the first time that it is needed.
+ *
+ * There are three system properties that can be set here:
+ *
+ * <ul>
+ * <li>{@code com.rm5248.javaserial.lib.path} - give the directory name that
+ * the JNI code is located in</li>
+ * <li>{@code com.rm5248.javaserial.lib.name} - explicitly give the name of
+ * the library(the default is 'javaserial')</li>
+ * <li>{@code com.rm5248.javaserial.lib.cache} - the directory to extract the
+ * library from the jar into.  The default is a 'javaserial' directory in the
+ * user's cache directory.</li>
+ * </ul>
+ *
+ * When extracting the library from the jar, it is put into a sub-directory of
+ * the cache directory named after the SHA-256 of the library.  If the library
+ * is already there and has the correct contents, it is used as-is, so we only
+ * need to extract it once and don't leave a copy in the temp directory every
+ * time the JVM starts.
+ *
+ * This is based largely off of SQLite-JDBC(
+ * https://github.com/xerial/sqlite-jdbc )
+ */
+class NativeLibraryLoader {
+
+    private final static Logger logger = Logger.getLogger( NativeLibraryLoader.class.getName() );
+
+    private static boolean loaded = false;
+
+    private NativeLibraryLoader(){}
+
+    /**
+     * Load the native library, if it has not been loaded already.
+     */
+    static synchronized void load(){
+        if( loaded ){
+            return;
+        }
+
+        loadNativeLibrary();
+        checkNativeVersion();
+        loaded = true;
+    }
+
+    /**
+     * Make sure that the library was built for this version of the Java code.
+     * Libraries from before 0.14 have different JNI functions, and don't have
+     * the ones that we get the version from.
+     */
+    private static void checkNativeVersion(){
+        int major;
+        int minor;
+
+        try{
+            major = SerialPort.getMajorNativeVersionInternal();
+            minor = SerialPort.getMinorNativeVersionInternal();
+        }catch( UnsatisfiedLinkError e ){
+            throw new UnsatisfiedLinkError( "Native library is older than 0.14 and must be rebuilt for version " +
+                    SerialPort.getMajorVersion() + "." + SerialPort.getMinorVersion() );
+        }
+
+        if( major != SerialPort.getMajorVersion() || minor != SerialPort.getMinorVersion() ){
+            logger.log( Level.WARNING, "Native library is version {0}.{1}, but the Java code is version {2}.{3}",
+                    new Object[]{ major, minor, SerialPort.getMajorVersion(), SerialPort.getMinorVersion() } );
+        }
+    }
+
+    private static void loadNativeLibrary(){
+        String nativeLibraryPath = System.getProperty( "com.rm5248.javaserial.lib.path" );
+        String nativeLibraryName = System.getProperty( "com.rm5248.javaserial.lib.name" );
+
+        if( nativeLibraryName == null ){
+            nativeLibraryName = System.mapLibraryName( "javaserial" );
+            if( nativeLibraryName.endsWith( "dylib" ) ){
+                //mac uses jnilib instead of dylib for some reason
+                nativeLibraryName = nativeLibraryName.replace( "dylib", "jnilib" );
+            }
+            logger.log( Level.FINE, "No native library name provided, using default of {0}",
+                    nativeLibraryName);
+        }
+
+        if( nativeLibraryPath != null ){
+            logger.log( Level.FINE, "Native library path of {0} provided", nativeLibraryPath );
+            File libToLoad = new File( nativeLibraryPath, nativeLibraryName );
+            logger.log( Level.FINE, "Loading library {0}", libToLoad.getAbsolutePath() );
+            System.load( libToLoad.getAbsolutePath() );
+            return;
+        }
+
+        //if we get here, that means that we must extract the JNI from the jar
+        byte[] library;
+        String fileToExtract = "/" + getOSName() + "/" + getArch() + "/" + nativeLibraryName;
+        try{
+            library = readResource( fileToExtract );
+        }catch( IOException e ){
+            throw new UnsatisfiedLinkError( "Unable to read " + fileToExtract + " from JAR: " + e.getMessage() );
+        }
+
+        File extractedLib;
+        try{
+            extractedLib = installToCache( library, nativeLibraryName );
+        }catch( IOException e ){
+            logger.log( Level.FINE, "Unable to use library cache, extracting to temp folder instead", e );
+            try{
+                extractedLib = extractToTemp( library, nativeLibraryName );
+            }catch( IOException e2 ){
+                throw new UnsatisfiedLinkError( "Unable to create temp directory or extract: " + e2.getMessage() );
+            }
+        }
+
+        logger.log( Level.FINE, "Loading library {0}", extractedLib.getAbsolutePath() );
+        System.load( extractedLib.getAbsolutePath() );
+    }
+
+    private static String getOSName(){
+        String osName = System.getProperty( "os.name" );
+        if( osName.contains( "Windows" ) ){
+            osName = "Windows";
+        } else if( osName.contains( "Mac" ) || osName.contains( "Darwin" ) ){
+            osName = "Mac";
+        } else if( osName.contains( "Linux" ) ){
+            osName = "Linux";
+        } else{
+            osName = osName.replaceAll( "\\W", "" );
+        }
+
+        return osName;
+    }
+
+    private static String getArch(){
+        String arch = System.getProperty( "os.arch" );
+        arch.replaceAll( "\\W", "" );
+
+        if( arch.equals( "x86_64" ) ){
+            //map x86_64 to amd64 to stay consistent(needed for mac)
+            arch = "amd64";
+        }
+
+        return arch;
+    }
+
+    private static byte[] readResource( String name ) throws IOException {
+        logger.log( Level.FINER, "About to extract {0} from JAR", name );
+        InputStream library = NativeLibraryLoader.class.getResourceAsStream( name );
+        if( library == null ){
+            throw new IOException( "No such resource" );
+        }
+
+        try{
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[ 8192 ];
+            int read;
+            while( ( read = library.read( buffer ) ) >= 0 ){
+                out.write( buffer, 0, read );
+            }
+            return out.toByteArray();
+        }finally{
+            library.close();
+        }
+    }
+
+    /**
+     * Put the library into the cache directory if it isn't there already.
+     *
+     * @return The library to load
+     */
+    private static File installToCache( byte[] library, String nativeLibraryName ) throws IOException {
+        Path cacheDir = getCacheDirectory();
+        if( cacheDir == null ){
+            throw new IOException( "No cache directory" );
+        }
+
+        byte[] hash = sha256( library );
+        Path libDir = cacheDir.resolve( toHex( hash ) );
+        Path target = libDir.resolve( nativeLibraryName );
+
+        if( isValid( target, hash ) ){
+            logger.log( Level.FINER, "Using cached library {0}", target );
+            return target.toFile();
+        }
+
+        Files.createDirectories( libDir );
+
+        //Write to a temp file in the same directory first, then move it into
+        //place so that other JVMs never see a partially written library.
+        Path tempFile = Files.createTempFile( libDir, nativeLibraryName, ".tmp" );
+        try{
+            Files.write( tempFile, library );
+            try{
+                Files.move( tempFile, target, StandardCopyOption.ATOMIC_MOVE );
+            }catch( IOException e ){
+                //Another JVM may have put it there first(and may have it loaded)
+                if( !isValid( target, hash ) ){
+                    throw e;
+                }
+            }
+        }finally{
+            Files.deleteIfExists( tempFile );
+        }
+
+        if( !isValid( target, hash ) ){
+            throw new IOException( "Library in cache does not match library in JAR" );
+        }
+
+        logger.log( Level.FINER, "Extracted library to cache at {0}", target );
+
+        return target.toFile();
+    }
+
+    /**
+     * Extract the library to a new temp directory.  This is what we do if the
+     * cache directory is not usable.
+     */
+    private static File extractToTemp( byte[] library, String nativeLibraryName ) throws IOException {
+        Path tempFolder = Files.createTempDirectory( "javaserial" );
+        tempFolder.toFile().deleteOnExit();
+
+        logger.log( Level.FINER, "Created temp folder of {0}", tempFolder );
+
+        File extractedLib = new File( tempFolder.toFile(), nativeLibraryName );
+        Files.write( extractedLib.toPath(), library );
+        extractedLib.deleteOnExit();
+
+        return extractedLib;
+    }
+
+    private static Path getCacheDirectory(){
+        String cacheDir = System.getProperty( "com.rm5248.javaserial.lib.cache" );
+        if( cacheDir != null ){
+            return Paths.get( cacheDir );
+        }
+
+        String osName = getOSName();
+        String home = System.getProperty( "user.home" );
+        if( osName.equals( "Windows" ) ){
+            String localAppData = System.getenv( "LOCALAPPDATA" );
+            if( localAppData != null ){
+                return Paths.get( localAppData, "javaserial", "cache" );
+            }
+        }else if( osName.equals( "Mac" ) ){
+            if( home != null ){
+                return Paths.get( home, "Library", "Caches", "javaserial" );
+            }
+        }else{
+            String xdgCache = System.getenv( "XDG_CACHE_HOME" );
+            if( xdgCache != null && !xdgCache.isEmpty() ){
+                return Paths.get( xdgCache, "javaserial" );
+            }
+        }
+
+        if( home == null ){
+            return null;
+        }
+
+        return Paths.get( home, ".cache", "javaserial" );
+    }
+
+    private static boolean isValid( Path library, byte[] expectedHash ) throws IOException {
+        if( !Files.isRegularFile( library ) ){
+            return false;
+        }
+
+        return Arrays.equals( sha256( Files.readAllBytes( library ) ), expectedHash );
+    }
+
+    private static byte[] sha256( byte[] data ) throws IOException {
+        try{
+            return MessageDigest.getInstance( "SHA-256" ).digest( data );
+        }catch( NoSuchAlgorithmException e ){
+            throw new IOException( e );
+        }
+    }
+
+    private static String toHex( byte[] data ){
+        StringBuilder sb = new StringBuilder();
+        for( byte b : data ){
+            sb.append( String.format( "%02x", b & 0xFF ) );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An InputStream that reads out of a ring buffer which is filled by a thread in
+ * the native code.
+ *
+ * The native thread reads from the serial port as soon as data comes in and
+ * puts it into a direct ByteBuffer, so data keeps being pulled out of the
+ * kernel even when the JVM is paused for garbage collection.  Positions in the
+ * ring are counted as the total number of bytes that have been written or read,
+ * so they only ever increase.  We only need to go down to the native code when
+ * we have read everything that we knew about; that call tells the native code
+ * how much we have consumed and waits for more data to come in.
+ *
+ * If the ring fills up, the native thread stops reading from the port until
+ * there is room.  No data is ever overwritten.  Other readers of the same ring
+ * can be added with {@link ReceiveSubscriber}; closing this stream stops it
+ * from holding up the ring for them.
+ */
+class NativeRingInputStream extends InputStream {
+	/* The handle to read from.  Needed for native implementation */
+	@SuppressWarnings("unused")
+	private int handle;
+	private final ByteBuffer ring;
+	/* A view of the ring used for bulk copies out of it */
+	private final ByteBuffer view;
+	private final int size;
+	/* The total number of bytes that we have read out of the ring */
+	private long readPosition;
+	/* The total number of bytes that the native code has put into the ring, as of the last check */
+	private long writePosition;
+	private boolean eof;
+	private final AtomicBoolean closed;
+	/* Set once the port has been closed, so that we don't go into the native code */
+	private volatile boolean portClosed;
+
+	NativeRingInputStream( int handle, int size ) throws IOException {
+		if( size <= 0 ){
+			throw new IllegalArgumentException( "size must be greater than 0" );
+		}
+		this.handle = handle;
+		this.size = size;
+		ring = ByteBuffer.allocateDirect( size );
+		view = ring.duplicate();
+		readPosition = 0;
+		writePosition = 0;
+		eof = false;
+		closed = new AtomicBoolean( false );
+
+		startRing( ring );
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if( !awaitData( -1 ) ){
+			return -1;
+		}
+
+		int b = ring.get( (int)( readPosition % size ) ) & 0xFF;
+		readPosition++;
+
+		return b;
+	}
+
+	@Override
+	public synchronized int read( byte[] b, int off, int len ) throws IOException {
+		int readSoFar = 0;
+
+		if( off < 0 || len < 0 || len > b.length - off ){
+			throw new IndexOutOfBoundsException();
+		}
+
+		if( len == 0 ){
+			return 0;
+		}
+
+		if( !awaitData( -1 ) ){
+			return -1;
+		}
+
+		//Copy out at most two segments: up to the end of the ring, then from the start
+		while( readSoFar < len && readPosition < writePosition ){
+			int index = (int)( readPosition % size );
+			int toCopy = (int)Math.min( writePosition - readPosition, size - index );
+			toCopy = Math.min( toCopy, len - readSoFar );
+
+			view.clear();
+			view.position( index );
+			view.get( b, off + readSoFar, toCopy );
+
+			readSoFar += toCopy;
+			readPosition += toCopy;
+		}
+
+		return readSoFar;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if( !closed.compareAndSet( false, true ) ){
+			return;
+		}
+
+		//Wakes up anybody waiting in read()
+		if( !portClosed ){
+			stopReading();
+		}
+	}
+
+	/**
+	 * @return The memory that the native thread reads into
+	 */
+	ByteBuffer getRing(){
+		return ring;
+	}
+
+	void portClosed(){
+		portClosed = true;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		if( readPosition == writePosition ){
+			awaitData( 0 );
+		}
+
+		return (int)( writePosition - readPosition );
+	}
+
+	/**
+	 * Make sure that there is data available to be read.
+	 *
+	 * @param timeoutMillis How long to wait for data, less than 0 to wait forever
+	 * @return False if the port has been closed
+	 */
+	private boolean awaitData( int timeoutMillis ) throws IOException {
+		if( closed.get() ){
+			throw new IOException( "Stream closed" );
+		}
+
+		if( readPosition < writePosition ){
+			return true;
+		}
+
+		if( eof ){
+			return false;
+		}
+
+		long newPosition = waitForData( readPosition, timeoutMillis );
+		if( newPosition < 0 ){
+			eof = true;
+			return false;
+		}
+		writePosition = newPosition;
+
+		return readPosition < writePosition;
+	}
+
+	/**
+	 * Start the native thread which reads from the serial port into the
+	 * ring.
+	 *
+	 * @param ring A direct ByteBuffer to put data into
+	 */
+	private native void startRing( ByteBuffer ring ) throws IOException;
+
+	/**
+	 * Tell the native code how much we have read, and wait for more data to
+	 * come in.
+	 *
+	 * @param readPosition The total number of bytes read out of the ring
+	 * @param timeoutMillis How long to wait, less than 0 to wait forever
+	 * @return The total number of bytes written into the ring, or -1 if the
+	 * port has been closed
+	 */
+	private native long waitForData( long readPosition, int timeoutMillis ) throws IOException;
+
+	/**
+	 * Stop holding up the native thread; it no longer waits for us to read.
+	 */
+	private native void stopReading();
+}
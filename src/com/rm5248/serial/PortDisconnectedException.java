@@ -0,0 +1,25 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown when the device behind an open port goes away,
+ * for example when a USB serial adapter is unplugged.  The port can not be
+ * used again; it has to be closed and opened again once the device is back.
+ * {@link ResilientSerialPort} does this for you.
+ *
+ * @author rm5248
+ */
+public class PortDisconnectedException extends IOException {
+
+    private static final long serialVersionUID = -3049418570531266213L;
+
+    /**
+     * Create a new exception with the specified error.
+     *
+     * @param message
+     */
+    public PortDisconnectedException( String message ){
+        super( message );
+    }
+}
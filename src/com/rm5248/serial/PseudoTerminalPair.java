@@ -0,0 +1,49 @@
+package com.rm5248.serial;
+
+/**
+ * The two sides of a pseudo-terminal, made with
+ * {@link SerialPort#openPseudoTerminalPair(SerialPortBuilder)}.  What is
+ * written to one side can be read from the other.
+ *
+ * @author rm5248
+ */
+public class PseudoTerminalPair implements AutoCloseable {
+
+    private final SerialPort master;
+    private final SerialPort slave;
+
+    PseudoTerminalPair( SerialPort master, SerialPort slave ){
+        this.master = master;
+        this.slave = slave;
+    }
+
+    /**
+     * @return The master side, which has no name of its own
+     */
+    public SerialPort getMaster(){
+        return master;
+    }
+
+    /**
+     * @return The slave side, which is opened like any other serial port
+     */
+    public SerialPort getSlave(){
+        return slave;
+    }
+
+    /**
+     * @return The path to the slave side, for example {@code /dev/pts/3}
+     */
+    public String getSlaveName(){
+        return slave.getPortName();
+    }
+
+    /**
+     * Close both sides.
+     */
+    @Override
+    public void close(){
+        slave.close();
+        master.close();
+    }
+}
@@ -0,0 +1,370 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One of several independent readers of the data coming in on a serial port.
+ *
+ * All subscribers read out of the same native receive buffer(see
+ * {@link SerialPortBuilder#setNativeReceiveBufferSize(int)}): the native
+ * thread puts each byte into the ring once, and every subscriber has its own
+ * position in the ring, so each one sees every byte that comes in after it
+ * subscribed.  Reading from one subscriber has no effect on what the others
+ * see.  Data can be copied out with the normal InputStream methods, or looked
+ * at in place with {@link #peek(int)} and {@link #consume(int)}.
+ *
+ * What happens when a subscriber can't keep up depends on its
+ * {@link SlowConsumerPolicy}.  A BLOCK subscriber holds up the ring: once it
+ * is a whole ring behind, the native thread stops reading from the port, and
+ * so every other subscriber waits too.  SKIP and DISCONNECT subscribers never
+ * hold anybody up; after reading, they check that the native thread didn't
+ * write over the data while it was being read, and if it did, the data is
+ * thrown away.
+ *
+ * The port's own InputStream is a BLOCK reader of the same ring; close it if
+ * you are only going to use subscribers.  Get an instance with
+ * {@link SerialPort#subscribe(SlowConsumerPolicy)}.  Each subscriber should
+ * only be read from one thread at a time.
+ *
+ * @author rm5248
+ */
+public class ReceiveSubscriber extends InputStream {
+
+    /**
+     * What to do when a subscriber has fallen a whole ring behind.
+     */
+    public enum SlowConsumerPolicy {
+        /**
+         * Stop reading from the port until this subscriber catches up.  No
+         * data is lost, but every other subscriber has to wait.
+         */
+        BLOCK,
+        /**
+         * Skip over the data that was overwritten.  See
+         * {@link ReceiveSubscriber#getLostBytes()}.
+         */
+        SKIP,
+        /**
+         * Close this subscriber; the next read throws an IOException.
+         */
+        DISCONNECT
+    }
+
+    /* The handle to the port.  Needed for native implementation */
+    @SuppressWarnings("unused")
+    private int handle;
+    private final SlowConsumerPolicy policy;
+    /* A view of the ring used for bulk copies out of it */
+    private final ByteBuffer view;
+    /* Handed out by peek() */
+    private final ByteBuffer readOnlyView;
+    private final int size;
+    /* Which reader we are in the native ring */
+    private final int reader;
+    /* The total number of bytes that we have read out of the ring */
+    private long readPosition;
+    /* The total number of bytes that the native code has put into the ring, as of the last check */
+    private long writePosition;
+    private long lostBytes;
+    private boolean eof;
+    private boolean disconnected;
+    private final AtomicBoolean closed;
+    /* Set once the port has been closed, so that we don't go into the native code */
+    private volatile boolean portClosed;
+
+    ReceiveSubscriber( int handle, ByteBuffer ring, SlowConsumerPolicy policy ) throws IOException {
+        long[] position = new long[ 1 ];
+
+        this.handle = handle;
+        this.policy = policy;
+        this.view = ring.duplicate();
+        this.readOnlyView = ring.asReadOnlyBuffer();
+        this.size = ring.capacity();
+        this.closed = new AtomicBoolean( false );
+
+        reader = attach( policy == SlowConsumerPolicy.BLOCK, position );
+        readPosition = position[ 0 ];
+        writePosition = position[ 0 ];
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        while( true ){
+            if( !awaitData( -1 ) ){
+                return -1;
+            }
+
+            long start = readPosition;
+            int b = view.get( (int)( start % size ) ) & 0xFF;
+            if( checkOverwritten( start, 1 ) == 0 ){
+                readPosition++;
+                return b;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int read( byte[] b, int off, int len ) throws IOException {
+        if( off < 0 || len < 0 || len > b.length - off ){
+            throw new IndexOutOfBoundsException();
+        }
+
+        if( len == 0 ){
+            return 0;
+        }
+
+        while( true ){
+            if( !awaitData( -1 ) ){
+                return -1;
+            }
+
+            long start = readPosition;
+            int copied = 0;
+
+            //Copy out at most two segments: up to the end of the ring, then from the start
+            while( copied < len && start + copied < writePosition ){
+                int index = (int)( ( start + copied ) % size );
+                int toCopy = (int)Math.min( writePosition - start - copied, size - index );
+                toCopy = Math.min( toCopy, len - copied );
+
+                view.clear();
+                view.position( index );
+                view.get( b, off + copied, toCopy );
+
+                copied += toCopy;
+            }
+
+            int bad = checkOverwritten( start, copied );
+            if( bad < copied ){
+                //Whatever came after the overwritten part is still good
+                System.arraycopy( b, off + bad, b, off, copied - bad );
+                readPosition = start + copied;
+                return copied - bad;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if( readPosition == writePosition ){
+            awaitData( 0 );
+        }
+
+        return (int)Math.min( writePosition - readPosition, size );
+    }
+
+    /**
+     * Look at the next data for this subscriber where it is in the ring,
+     * without copying it.  The data is between the position and limit of the
+     * returned buffer; it is only part of what is waiting if the data wraps
+     * around the end of the ring.  The buffer is re-used by every call.
+     *
+     * For a BLOCK subscriber, the data stays put until it is consumed.  For
+     * other subscribers, it may be written over while you are looking at it;
+     * {@link #consume(int)} says if that happened.
+     *
+     * @param timeoutMillis How long to wait if there is no data.  If 0, don't
+     * wait.  If less than 0, wait forever.
+     * @return The data, which is empty if the timeout expired, or null if the
+     * port has been closed
+     * @throws IOException
+     */
+    public synchronized ByteBuffer peek( int timeoutMillis ) throws IOException {
+        if( !awaitData( timeoutMillis ) ){
+            return eof ? null : emptyView();
+        }
+
+        if( policy != SlowConsumerPolicy.BLOCK ){
+            //Anything a whole ring behind is definitely gone
+            skipOverwritten( writePosition - size );
+        }
+
+        int index = (int)( readPosition % size );
+        int length = (int)Math.min( writePosition - readPosition, size - index );
+
+        readOnlyView.clear();
+        readOnlyView.position( index );
+        readOnlyView.limit( index + length );
+
+        return readOnlyView;
+    }
+
+    /**
+     * Move past data that was looked at with {@link #peek(int)}.
+     *
+     * @param count How many bytes to move past
+     * @return True if the data was all good, false if some of it was written
+     * over while it was being looked at(it is counted in
+     * {@link #getLostBytes()})
+     * @throws IOException If this is a DISCONNECT subscriber and it was too
+     * slow
+     */
+    public synchronized boolean consume( int count ) throws IOException {
+        if( count < 0 || count > writePosition - readPosition ){
+            throw new IllegalArgumentException( "count must be between 0 and the amount of data available" );
+        }
+
+        long start = readPosition;
+        int bad = checkOverwritten( start, count );
+        if( readPosition < start + count ){
+            readPosition = start + count;
+        }
+
+        return bad == 0;
+    }
+
+    /**
+     * @return The total number of bytes this subscriber has read or skipped
+     * since the port was opened
+     */
+    public synchronized long getSequence(){
+        return readPosition;
+    }
+
+    /**
+     * @return The number of bytes that were written over before this
+     * subscriber could read them
+     */
+    public synchronized long getLostBytes(){
+        return lostBytes;
+    }
+
+    public SlowConsumerPolicy getPolicy(){
+        return policy;
+    }
+
+    /**
+     * Stop reading from the ring.  A BLOCK subscriber no longer holds up the
+     * other subscribers.
+     */
+    @Override
+    public void close(){
+        if( !closed.compareAndSet( false, true ) ){
+            return;
+        }
+
+        //Wakes up anybody waiting in read()
+        if( !portClosed ){
+            try{
+                detach( reader );
+            }catch( IOException e ){
+                //The port has gone away; there is nothing to detach from
+            }
+        }
+    }
+
+    public boolean isClosed(){
+        return closed.get();
+    }
+
+    void portClosed(){
+        portClosed = true;
+    }
+
+    /**
+     * Make sure that there is data available to be read.
+     *
+     * @param timeoutMillis How long to wait for data, less than 0 to wait forever
+     * @return False if there is no data
+     */
+    private boolean awaitData( int timeoutMillis ) throws IOException {
+        if( disconnected ){
+            throw new IOException( "Subscriber was disconnected for falling too far behind" );
+        }
+
+        if( closed.get() ){
+            throw new IOException( "Subscriber closed" );
+        }
+
+        if( readPosition < writePosition ){
+            return true;
+        }
+
+        if( eof || portClosed ){
+            eof = true;
+            return false;
+        }
+
+        long newPosition = waitForData( reader, readPosition, timeoutMillis );
+        if( newPosition < 0 ){
+            eof = true;
+            return false;
+        }
+        writePosition = newPosition;
+
+        return readPosition < writePosition;
+    }
+
+    /**
+     * Check that the native thread didn't write over data that we just read,
+     * and move past anything that it did write over.
+     *
+     * @param start Where the data that we read starts
+     * @param length How much we read
+     * @return How many bytes at the start of the data are no good
+     */
+    private int checkOverwritten( long start, int length ) throws IOException {
+        if( policy == SlowConsumerPolicy.BLOCK ){
+            //The native thread waits for us
+            return 0;
+        }
+
+        long oldest = getOldestPosition();
+        if( oldest <= start ){
+            return 0;
+        }
+
+        skipOverwritten( oldest );
+
+        return (int)Math.min( oldest - start, length );
+    }
+
+    private void skipOverwritten( long oldest ) throws IOException {
+        if( readPosition >= oldest ){
+            return;
+        }
+
+        if( policy == SlowConsumerPolicy.DISCONNECT ){
+            disconnected = true;
+            close();
+            throw new IOException( "Subscriber was disconnected for falling too far behind" );
+        }
+
+        lostBytes += oldest - readPosition;
+        readPosition = oldest;
+    }
+
+    private ByteBuffer emptyView(){
+        readOnlyView.clear();
+        readOnlyView.limit( 0 );
+        return readOnlyView;
+    }
+
+    /**
+     * Start reading from the ring.
+     *
+     * @param gating True if the native thread has to wait for us
+     * @param position Filled in with the position that we start at
+     * @return Which reader we are
+     */
+    private native int attach( boolean gating, long[] position ) throws IOException;
+
+    /**
+     * Tell the native code how much we have read, and wait for more data to
+     * come in.
+     *
+     * @return The total number of bytes written into the ring, or -1 if the
+     * port or this subscriber has been closed
+     */
+    private native long waitForData( int reader, long readPosition, int timeoutMillis ) throws IOException;
+
+    /**
+     * @return The oldest position in the ring that has not been written over
+     */
+    private native long getOldestPosition() throws IOException;
+
+    private native void detach( int reader ) throws IOException;
+}
@@ -0,0 +1,767 @@
+package com.rm5248.serial;
+
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.DataBits;
+import com.rm5248.serial.SerialPort.FlowControl;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A serial port that keeps going when its device is unplugged(for example,
+ * a USB serial adapter): once the same device comes back, it is opened
+ * again with the settings from the {@link SerialPortBuilder}, and carries on
+ * where it left off.
+ *
+ * A reader thread is always reading from the port, so a disconnect is
+ * noticed straight away rather than on the next read or write.  While the
+ * device is gone, reads wait for data as normal, and writes go into a
+ * bounded buffer which is sent once the device is back; writes only block
+ * once the buffer is full.  Whatever was in the middle of being written
+ * when the device went away is thrown away rather than sent again, since
+ * there is no way to tell how much of it got out; see
+ * {@link #getDroppedWriteCount()}.  Use a {@link ConnectionListener} to find
+ * out when this happens.
+ *
+ * The device is found again by its USB serial number or /dev/serial/by-id
+ * link on Linux, so it does not matter if it comes back with a different
+ * name.  Otherwise, the port is opened again with the same name.
+ *
+ * <pre>
+ * {@code
+ * ResilientSerialPort port = new SerialPortBuilder()
+ *     .setPort( "/dev/ttyUSB0" )
+ *     .setBaudRate( SerialPort.BaudRate.B115200 )
+ *     .buildResilient();
+ * }
+ * </pre>
+ *
+ * The settings may be changed at any time, and are used when the device is
+ * opened again.  The control lines can only be used while the device is
+ * there; a PortDisconnectedException is thrown otherwise.
+ *
+ * @author rm5248
+ */
+public class ResilientSerialPort implements SerialDevice {
+
+    private final static Logger logger = Logger.getLogger( ResilientSerialPort.class.getName() );
+
+    /**
+     * The default size of the read and write buffers, in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /**
+     * How often to look for the device while it is gone, in milliseconds.
+     */
+    public static final int RECONNECT_INTERVAL = 100;
+
+    /* The settings to open the device with; guarded by lock */
+    private final SerialPortBuilder builder;
+    private final DeviceIdentity identity;
+    private final Object lock;
+    /* The open port, or null while the device is gone; guarded by lock */
+    private SerialPort port;
+    private boolean closed;
+    private long disconnects;
+    private long droppedWrites;
+    /* Bumped whenever the settings change, so that a reopen can tell; guarded by lock */
+    private long settingsGeneration;
+    private ConnectionListener connectionListener;
+    private SerialChangeListener changeListener;
+    /* Data read from the port that nobody has read yet; guarded by lock */
+    private final byte[] inbound;
+    private int inboundStart;
+    private int inboundCount;
+    /* Data waiting to be written to the port; guarded by lock */
+    private final byte[] outbound;
+    private int outboundStart;
+    private int outboundCount;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    /**
+     * Open the port given in the builder, with buffers of
+     * {@link #DEFAULT_BUFFER_SIZE}.
+     *
+     * @param builder The port and the settings to open it with
+     * @throws NoSuchPortException If the port does not exist
+     * @throws NotASerialPortException If the port is not a serial port
+     * @throws IOException if a low-level error occurs
+     */
+    public ResilientSerialPort( SerialPortBuilder builder )
+            throws NoSuchPortException, NotASerialPortException, IOException {
+        this( builder, DEFAULT_BUFFER_SIZE );
+    }
+
+    /**
+     * Open the port given in the builder.  The device has to be there now;
+     * it is only waited for if it goes away later.
+     *
+     * @param builder The port and the settings to open it with
+     * @param bufferSize The size of the read and write buffers, in bytes
+     * @throws NoSuchPortException If the port does not exist
+     * @throws NotASerialPortException If the port is not a serial port
+     * @throws IOException if a low-level error occurs
+     */
+    public ResilientSerialPort( SerialPortBuilder builder, int bufferSize )
+            throws NoSuchPortException, NotASerialPortException, IOException {
+        if( builder.portName == null ){
+            throw new IllegalArgumentException( "The builder must have a port set" );
+        }
+        if( bufferSize <= 0 ){
+            throw new IllegalArgumentException( "bufferSize must be greater than 0" );
+        }
+
+        this.builder = new SerialPortBuilder( builder );
+        lock = new Object();
+        inbound = new byte[ bufferSize ];
+        outbound = new byte[ bufferSize ];
+        inputStream = new ResilientInputStream();
+        outputStream = new ResilientOutputStream();
+
+        port = new SerialPort( this.builder );
+        identity = DeviceIdentity.forPort( builder.portName );
+
+        Thread reader = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                readLoop();
+            }
+        }, "ResilientReader-" + builder.portName );
+        reader.setDaemon( true );
+        reader.start();
+
+        Thread writer = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                writeLoop();
+            }
+        }, "ResilientWriter-" + builder.portName );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    /**
+     * Set who gets told when the device goes away and comes back.
+     *
+     * @param listener The listener, or null
+     */
+    public void setConnectionListener( ConnectionListener listener ){
+        synchronized( lock ){
+            connectionListener = listener;
+        }
+    }
+
+    /**
+     * Check to see if the device is there right now.
+     */
+    public boolean isConnected(){
+        synchronized( lock ){
+            return port != null;
+        }
+    }
+
+    /**
+     * Get the number of times that the device has gone away.
+     */
+    public long getDisconnectCount(){
+        synchronized( lock ){
+            return disconnects;
+        }
+    }
+
+    /**
+     * Get the number of bytes that were thrown away because the device went
+     * away while they were being written.  Some of them may have gotten out.
+     */
+    public long getDroppedWriteCount(){
+        synchronized( lock ){
+            return droppedWrites;
+        }
+    }
+
+    /**
+     * Get the number of bytes that are waiting to be written.
+     */
+    public int getBufferedWriteCount(){
+        synchronized( lock ){
+            return outboundCount;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(){
+        return inputStream;
+    }
+
+    /**
+     * Get the OutputStream used to talk to this device.  Writes go into the
+     * write buffer; {@link OutputStream#flush()} waits until everything in
+     * it has been written to the device.
+     */
+    @Override
+    public OutputStream getOutputStream(){
+        return outputStream;
+    }
+
+    @Override
+    public BaudRate getBaudRate(){
+        synchronized( lock ){
+            return builder.baudRate;
+        }
+    }
+
+    @Override
+    public void setBaudRate( BaudRate rate ) throws IOException {
+        synchronized( lock ){
+            checkOpen();
+            if( port != null ){
+                port.setBaudRate( rate );
+            }
+            builder.setBaudRate( rate );
+            settingsGeneration++;
+        }
+    }
+
+    @Override
+    public DataBits getDataBits(){
+        synchronized( lock ){
+            return builder.dataBits;
+        }
+    }
+
+    @Override
+    public void setDataSize( DataBits data ) throws IOException {
+        synchronized( lock ){
+            checkOpen();
+            if( port != null ){
+                port.setDataSize( data );
+            }
+            builder.setDataBits( data );
+            settingsGeneration++;
+        }
+    }
+
+    @Override
+    public StopBits getStopBits(){
+        synchronized( lock ){
+            return builder.stopBits;
+        }
+    }
+
+    @Override
+    public void setStopBits( StopBits stop ) throws IOException {
+        synchronized( lock ){
+            checkOpen();
+            if( port != null ){
+                port.setStopBits( stop );
+            }
+            builder.setStopBits( stop );
+            settingsGeneration++;
+        }
+    }
+
+    @Override
+    public Parity getParity(){
+        synchronized( lock ){
+            return builder.parity;
+        }
+    }
+
+    @Override
+    public void setParity( Parity parity ) throws IOException {
+        synchronized( lock ){
+            checkOpen();
+            if( port != null ){
+                port.setParity( parity );
+            }
+            builder.setParity( parity );
+            settingsGeneration++;
+        }
+    }
+
+    @Override
+    public FlowControl getFlowControl(){
+        synchronized( lock ){
+            return builder.flowControl;
+        }
+    }
+
+    @Override
+    public void setFlowControl( FlowControl flow ) throws IOException {
+        synchronized( lock ){
+            checkOpen();
+            if( port != null ){
+                port.setFlowControl( flow );
+            }
+            builder.setFlowControl( flow );
+            settingsGeneration++;
+        }
+    }
+
+    @Override
+    public SerialPortConfig getConfig(){
+        synchronized( lock ){
+            return new SerialPortConfig( builder.baudRate, builder.dataBits, builder.stopBits,
+                    builder.parity, builder.flowControl );
+        }
+    }
+
+    @Override
+    public void setConfig( SerialPortConfig config ) throws IOException {
+        synchronized( lock ){
+            checkOpen();
+            if( port != null ){
+                port.setConfig( config );
+            }
+            builder.setConfig( config );
+            settingsGeneration++;
+        }
+    }
+
+    @Override
+    public SerialLineState getSerialLineState() throws IOException {
+        return connectedPort().getSerialLineState();
+    }
+
+    @Override
+    public void setSerialLineState( SerialLineState state ) throws IOException {
+        connectedPort().setSerialLineState( state );
+    }
+
+    @Override
+    public int getControlLines() throws IOException {
+        return connectedPort().getControlLines();
+    }
+
+    @Override
+    public void setControlLines( int mask, int values ) throws IOException {
+        connectedPort().setControlLines( mask, values );
+    }
+
+    /**
+     * Set the listener which gets told when the control lines change.  The
+     * listener is kept when the device is opened again.
+     *
+     * @param listen
+     */
+    @Override
+    public void setSerialChangeListener( SerialChangeListener listen ){
+        synchronized( lock ){
+            checkOpen();
+            changeListener = listen;
+            if( port != null ){
+                port.setSerialChangeListener( listen );
+            }
+        }
+    }
+
+    /**
+     * Get the name that this port was opened with.  If the device has come
+     * back under another name, this is still the original name.
+     */
+    @Override
+    public String getPortName(){
+        return builder.portName;
+    }
+
+    @Override
+    public boolean isClosed(){
+        synchronized( lock ){
+            return closed;
+        }
+    }
+
+    /**
+     * Close the port.  Anything that has not been written yet is thrown
+     * away; flush the output stream first to wait for it to be written.
+     */
+    @Override
+    public void close(){
+        SerialPort toClose;
+
+        synchronized( lock ){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            toClose = port;
+            port = null;
+            lock.notifyAll();
+        }
+
+        if( toClose != null ){
+            toClose.close();
+        }
+    }
+
+    private void checkOpen(){
+        if( closed ){
+            throw new IllegalStateException( "Cannot use the port once it has been closed." );
+        }
+    }
+
+    private SerialPort connectedPort() throws PortDisconnectedException {
+        synchronized( lock ){
+            checkOpen();
+            if( port == null ){
+                throw new PortDisconnectedException( "The device is not connected" );
+            }
+            return port;
+        }
+    }
+
+    /**
+     * Stop using a port whose device has gone away.  Only the first thread to
+     * notice does anything.
+     */
+    private void connectionLost( SerialPort lost, IOException cause ){
+        ConnectionListener toTell;
+
+        synchronized( lock ){
+            if( port != lost ){
+                return;
+            }
+            port = null;
+            disconnects++;
+            toTell = connectionListener;
+            lock.notifyAll();
+        }
+
+        logger.log( Level.INFO, "{0} has gone away: {1}", new Object[] { builder.portName, cause.getMessage() } );
+        lost.close();
+
+        if( toTell != null ){
+            try{
+                toTell.portDisconnected( this, cause );
+            }catch( RuntimeException e ){
+                logger.log( Level.WARNING, "Connection listener threw an exception", e );
+            }
+        }
+    }
+
+    /**
+     * Get the open port, opening the device again if it has gone away.  The
+     * reader thread is the only one that does this.
+     *
+     * @return The port, or null once we have been closed
+     */
+    private SerialPort awaitPort(){
+        ConnectionListener toTell;
+        SerialPort opened;
+        String name;
+
+        while( true ){
+            SerialPortBuilder settings;
+            long generation;
+
+            synchronized( lock ){
+                if( closed ){
+                    return null;
+                }
+                if( port != null ){
+                    return port;
+                }
+                settings = new SerialPortBuilder( builder );
+                generation = settingsGeneration;
+            }
+
+            //Looking for the device and opening it can take a while, so don't hold the lock
+            name = identity.locate();
+            opened = name == null ? null : reopen( settings.setPort( name ) );
+            if( opened != null ){
+                synchronized( lock ){
+                    if( !closed && publish( opened, generation ) ){
+                        toTell = connectionListener;
+                        lock.notifyAll();
+                        break;
+                    }
+                }
+                opened.close();
+                continue;
+            }
+
+            synchronized( lock ){
+                if( closed ){
+                    return null;
+                }
+                try{
+                    lock.wait( RECONNECT_INTERVAL );
+                }catch( InterruptedException e ){
+                    //Only close() stops us
+                }
+            }
+        }
+
+        logger.log( Level.INFO, "{0} is back as {1}", new Object[] { builder.portName, name } );
+        if( toTell != null ){
+            try{
+                toTell.portReconnected( this, name );
+            }catch( RuntimeException e ){
+                logger.log( Level.WARNING, "Connection listener threw an exception", e );
+            }
+        }
+
+        return opened;
+    }
+
+    /**
+     * Start using a port that has just been opened again.  Must hold lock.
+     *
+     * @param generation The settings generation that the port was opened with
+     * @return False if the port could not be brought up to date
+     */
+    private boolean publish( SerialPort opened, long generation ){
+        try{
+            if( generation != settingsGeneration ){
+                //The settings changed while we were opening it
+                opened.setConfig( new SerialPortConfig( builder.baudRate, builder.dataBits,
+                        builder.stopBits, builder.parity, builder.flowControl ) );
+            }
+        }catch( IOException e ){
+            logger.log( Level.FINEST, "Unable to change the settings of " + opened.getPortName(), e );
+            return false;
+        }
+
+        if( changeListener != null ){
+            opened.setSerialChangeListener( changeListener );
+        }
+        port = opened;
+        return true;
+    }
+
+    private SerialPort reopen( SerialPortBuilder settings ){
+        try{
+            return new SerialPort( settings );
+        }catch( NoSuchPortException | NotASerialPortException | IOException e ){
+            //udev may not have finished setting it up yet
+            logger.log( Level.FINEST, "Unable to open " + settings.portName + " again", e );
+            return null;
+        }
+    }
+
+    private void readLoop(){
+        byte[] buffer = new byte[ 4096 ];
+
+        while( true ){
+            SerialPort current = awaitPort();
+            if( current == null ){
+                break;
+            }
+
+            int got;
+            try{
+                got = current.getInputStream().read( buffer );
+                if( got < 0 ){
+                    throw new PortDisconnectedException( "The port has been closed" );
+                }
+            }catch( IOException e ){
+                connectionLost( current, e );
+                continue;
+            }
+
+            synchronized( lock ){
+                int copied = 0;
+                while( copied < got && !closed ){
+                    if( inboundCount == inbound.length ){
+                        //Leave the rest in the kernel until there is room
+                        try{
+                            lock.wait();
+                        }catch( InterruptedException e ){
+                        }
+                        continue;
+                    }
+
+                    int end = ( inboundStart + inboundCount ) % inbound.length;
+                    int toCopy = Math.min( got - copied,
+                            Math.min( inbound.length - inboundCount, inbound.length - end ) );
+                    System.arraycopy( buffer, copied, inbound, end, toCopy );
+                    inboundCount += toCopy;
+                    copied += toCopy;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writeLoop(){
+        byte[] chunk = new byte[ 4096 ];
+
+        while( true ){
+            SerialPort current;
+            int length;
+
+            synchronized( lock ){
+                while( !closed && ( outboundCount == 0 || port == null ) ){
+                    try{
+                        lock.wait();
+                    }catch( InterruptedException e ){
+                    }
+                }
+                if( closed ){
+                    break;
+                }
+
+                //Leave it in the buffer until it has been written, so that flush() waits for it
+                current = port;
+                length = Math.min( chunk.length,
+                        Math.min( outboundCount, outbound.length - outboundStart ) );
+                System.arraycopy( outbound, outboundStart, chunk, 0, length );
+            }
+
+            try{
+                current.getOutputStream().write( chunk, 0, length );
+            }catch( IOException e ){
+                //Some of it may have gotten out, so sending it again could
+                //repeat data; throw it away instead
+                synchronized( lock ){
+                    droppedWrites += length;
+                    consumeOutbound( length );
+                }
+                connectionLost( current, e );
+                continue;
+            }
+
+            synchronized( lock ){
+                consumeOutbound( length );
+            }
+        }
+    }
+
+    /**
+     * Take data off of the front of the write buffer.  Must hold lock.
+     */
+    private void consumeOutbound( int length ){
+        outboundStart = ( outboundStart + length ) % outbound.length;
+        outboundCount -= length;
+        lock.notifyAll();
+    }
+
+    private static void waitOn( Object lock ) throws InterruptedIOException {
+        try{
+            lock.wait();
+        }catch( InterruptedException e ){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for the port" );
+        }
+    }
+
+    private class ResilientInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[ 1 ];
+            if( read( b, 0, 1 ) < 0 ){
+                return -1;
+            }
+            return b[ 0 ] & 0xFF;
+        }
+
+        /**
+         * Wait for data, and then read as much as is available(up to len
+         * bytes).  This waits for the device if it has gone away.
+         *
+         * @return The number of bytes read, or -1 once the port has been
+         * closed
+         */
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if( off < 0 || len < 0 || len > b.length - off ){
+                throw new IndexOutOfBoundsException();
+            }
+
+            if( len == 0 ){
+                return 0;
+            }
+
+            synchronized( lock ){
+                while( inboundCount == 0 ){
+                    if( closed ){
+                        return -1;
+                    }
+                    waitOn( lock );
+                }
+
+                int readSoFar = 0;
+                while( readSoFar < len && inboundCount > 0 ){
+                    int toCopy = Math.min( len - readSoFar,
+                            Math.min( inboundCount, inbound.length - inboundStart ) );
+                    System.arraycopy( inbound, inboundStart, b, off + readSoFar, toCopy );
+                    inboundStart = ( inboundStart + toCopy ) % inbound.length;
+                    inboundCount -= toCopy;
+                    readSoFar += toCopy;
+                }
+                lock.notifyAll();
+
+                return readSoFar;
+            }
+        }
+
+        @Override
+        public int available(){
+            synchronized( lock ){
+                return inboundCount;
+            }
+        }
+    }
+
+    private class ResilientOutputStream extends OutputStream {
+
+        @Override
+        public void write( int b ) throws IOException {
+            write( new byte[] { (byte)b }, 0, 1 );
+        }
+
+        /**
+         * Put the data into the write buffer, waiting for room if it is full.
+         */
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException {
+            if( off < 0 || len < 0 || len > b.length - off ){
+                throw new IndexOutOfBoundsException();
+            }
+
+            synchronized( lock ){
+                while( len > 0 ){
+                    if( closed ){
+                        throw new IOException( "The port has been closed" );
+                    }
+                    if( outboundCount == outbound.length ){
+                        waitOn( lock );
+                        continue;
+                    }
+
+                    int end = ( outboundStart + outboundCount ) % outbound.length;
+                    int toCopy = Math.min( len,
+                            Math.min( outbound.length - outboundCount, outbound.length - end ) );
+                    System.arraycopy( b, off, outbound, end, toCopy );
+                    outboundCount += toCopy;
+                    off += toCopy;
+                    len -= toCopy;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait until everything in the write buffer has been written to the
+         * device.  If the device is gone, this waits for it to come back.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized( lock ){
+                while( outboundCount > 0 ){
+                    if( closed ){
+                        throw new IOException( "The port has been closed" );
+                    }
+                    waitOn( lock );
+                }
+            }
+        }
+    }
+}
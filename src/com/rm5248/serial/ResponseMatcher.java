@@ -0,0 +1,35 @@
+package com.rm5248.serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks the response to a request out of the data coming in on the port,
+ * for a {@link SerialTransactionEngine}.
+ *
+ * When data comes in, the matcher of each request that is waiting for a
+ * response is asked, oldest first, if the data starts with its response.
+ * This is how responses are matched up with requests when more than one
+ * request is out at once, for example by looking at the device address.
+ */
+public interface ResponseMatcher {
+
+    /**
+     * The data may be the start of the response, but more is needed.
+     */
+    public static final int NEED_MORE = 0;
+    /**
+     * The data is not the response to this request.
+     */
+    public static final int NO_MATCH = -1;
+
+    /**
+     * Look at the data that has come in but has not been claimed yet.  This
+     * is called from the engine's reader thread, and should not block.
+     *
+     * @param received A read-only buffer with the data between position 0
+     * and its limit
+     * @return The length of the response at the start of the data, if all of
+     * it is there; NEED_MORE; or NO_MATCH
+     */
+    public int match( ByteBuffer received );
+}
@@ -0,0 +1,163 @@
+package com.rm5248.serial;
+
+/**
+ * Settings for running a serial port in RS-485 half-duplex mode, where RTS
+ * turns the transmitter on while we are sending.
+ *
+ * If the driver supports it(TIOCSRS485 on Linux), the kernel switches RTS
+ * for us.  Otherwise, RTS is switched in the native code around every write:
+ * RTS is turned on, the data is written, and once the data has actually gone
+ * out(tcdrain), RTS is turned back off.  See
+ * {@link SerialPort#isRs485InHardware()} to find out which one is being used.
+ *
+ * While in RS-485 mode, RTS should not be changed with
+ * {@link SerialPort#setSerialLineState(SerialLineState)} or
+ * {@link SerialPort#setControlLines(int, int)}.
+ *
+ * Use with {@link SerialPortBuilder#setRs485(Rs485Config)}.  This is not
+ * supported on Windows.
+ *
+ * @author rm5248
+ */
+public final class Rs485Config {
+
+    /**
+     * RTS set while sending, no delays, not receiving while sending, and not
+     * discarding our own echo.
+     */
+    public static final Rs485Config DEFAULT = new Rs485Config( true, 0, 0, false, false );
+
+    private final boolean rtsOnSend;
+    private final int delayBeforeSendMillis;
+    private final int delayAfterSendMillis;
+    private final boolean receiveDuringTransmit;
+    private final boolean discardEcho;
+
+    private Rs485Config( boolean rtsOnSend, int delayBeforeSendMillis, int delayAfterSendMillis,
+            boolean receiveDuringTransmit, boolean discardEcho ){
+        if( delayBeforeSendMillis < 0 || delayAfterSendMillis < 0 ){
+            throw new IllegalArgumentException( "Delays must not be negative" );
+        }
+
+        this.rtsOnSend = rtsOnSend;
+        this.delayBeforeSendMillis = delayBeforeSendMillis;
+        this.delayAfterSendMillis = delayAfterSendMillis;
+        this.receiveDuringTransmit = receiveDuringTransmit;
+        this.discardEcho = discardEcho;
+    }
+
+    /**
+     * @return True if RTS is set while sending, false if RTS is cleared while
+     * sending
+     */
+    public boolean isRtsOnSend(){
+        return rtsOnSend;
+    }
+
+    public int getDelayBeforeSendMillis(){
+        return delayBeforeSendMillis;
+    }
+
+    public int getDelayAfterSendMillis(){
+        return delayAfterSendMillis;
+    }
+
+    public boolean isReceiveDuringTransmit(){
+        return receiveDuringTransmit;
+    }
+
+    public boolean isDiscardEcho(){
+        return discardEcho;
+    }
+
+    /**
+     * @param rtsOnSend True to set RTS while sending, false to clear RTS while
+     * sending(for transceivers where the transmitter is on when RTS is low)
+     * @return
+     */
+    public Rs485Config withRtsOnSend( boolean rtsOnSend ){
+        return new Rs485Config( rtsOnSend, delayBeforeSendMillis, delayAfterSendMillis,
+                receiveDuringTransmit, discardEcho );
+    }
+
+    /**
+     * @param millis How long to wait after turning on the transmitter before
+     * sending
+     * @return
+     */
+    public Rs485Config withDelayBeforeSend( int millis ){
+        return new Rs485Config( rtsOnSend, millis, delayAfterSendMillis,
+                receiveDuringTransmit, discardEcho );
+    }
+
+    /**
+     * @param millis How long to wait after the last byte has gone out before
+     * turning off the transmitter
+     * @return
+     */
+    public Rs485Config withDelayAfterSend( int millis ){
+        return new Rs485Config( rtsOnSend, delayBeforeSendMillis, millis,
+                receiveDuringTransmit, discardEcho );
+    }
+
+    /**
+     * Ask the driver to keep receiving while we are sending.  This only
+     * applies when the kernel is switching RTS; when RTS is switched in
+     * software, whether we get our own data back depends on the transceiver.
+     *
+     * @param receive
+     * @return
+     */
+    public Rs485Config withReceiveDuringTransmit( boolean receive ){
+        return new Rs485Config( rtsOnSend, delayBeforeSendMillis, delayAfterSendMillis,
+                receive, discardEcho );
+    }
+
+    /**
+     * Throw away the bytes that we send when they come back to us on the
+     * receive side.  Only use this if the transceiver always echoes what we
+     * send; for every byte that we send, one received byte is thrown away.
+     *
+     * @param discard
+     * @return
+     */
+    public Rs485Config withDiscardEcho( boolean discard ){
+        return new Rs485Config( rtsOnSend, delayBeforeSendMillis, delayAfterSendMillis,
+                receiveDuringTransmit, discard );
+    }
+
+    @Override
+    public boolean equals( Object obj ){
+        if( this == obj ){
+            return true;
+        }
+
+        if( !( obj instanceof Rs485Config ) ){
+            return false;
+        }
+
+        Rs485Config other = (Rs485Config)obj;
+        return rtsOnSend == other.rtsOnSend
+                && delayBeforeSendMillis == other.delayBeforeSendMillis
+                && delayAfterSendMillis == other.delayAfterSendMillis
+                && receiveDuringTransmit == other.receiveDuringTransmit
+                && discardEcho == other.discardEcho;
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = rtsOnSend ? 1 : 0;
+        hash = 31 * hash + delayBeforeSendMillis;
+        hash = 31 * hash + delayAfterSendMillis;
+        hash = 31 * hash + ( receiveDuringTransmit ? 1 : 0 );
+        hash = 31 * hash + ( discardEcho ? 1 : 0 );
+        return hash;
+    }
+
+    @Override
+    public String toString(){
+        return "rtsOnSend:" + rtsOnSend + " delayBefore:" + delayBeforeSendMillis
+                + " delayAfter:" + delayAfterSendMillis + " rxDuringTx:" + receiveDuringTransmit
+                + " discardEcho:" + discardEcho;
+    }
+}
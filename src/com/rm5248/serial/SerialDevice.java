@@ -0,0 +1,118 @@
+package com.rm5248.serial;
+
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.DataBits;
+import com.rm5248.serial.SerialPort.FlowControl;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The parts of a serial port that don't depend on how it is implemented: the
+ * streams, the settings, and the control lines.  Code which only needs these
+ * can take a SerialDevice instead of a {@link SerialPort}, so that it can
+ * also be run against a {@link LoopbackSerialDevice}.
+ *
+ * Unless noted, the methods throw an IllegalStateException once the device
+ * has been closed.
+ *
+ * @author rm5248
+ */
+public interface SerialDevice extends AutoCloseable {
+
+    /**
+     * Get the input stream used to talk to this device.
+     */
+    public InputStream getInputStream();
+
+    /**
+     * Get the OutputStream used to talk to this device.
+     */
+    public OutputStream getOutputStream();
+
+    public BaudRate getBaudRate() throws IOException;
+
+    public void setBaudRate( BaudRate rate ) throws IOException;
+
+    public DataBits getDataBits() throws IOException;
+
+    public void setDataSize( DataBits data ) throws IOException;
+
+    public StopBits getStopBits() throws IOException;
+
+    public void setStopBits( StopBits stop ) throws IOException;
+
+    public Parity getParity() throws IOException;
+
+    public void setParity( Parity parity ) throws IOException;
+
+    public FlowControl getFlowControl() throws IOException;
+
+    public void setFlowControl( FlowControl flow ) throws IOException;
+
+    /**
+     * Get all of the current settings at once.
+     */
+    public SerialPortConfig getConfig();
+
+    /**
+     * Change all of the settings at once.
+     *
+     * @param config The new settings
+     * @throws IOException if a low-level error occurs
+     */
+    public void setConfig( SerialPortConfig config ) throws IOException;
+
+    public SerialLineState getSerialLineState() throws IOException;
+
+    /**
+     * Set DTR and RTS from the given state; the other lines are inputs.
+     *
+     * @param state
+     * @throws IOException if a low-level error occurs
+     */
+    public void setSerialLineState( SerialLineState state ) throws IOException;
+
+    /**
+     * Get the current state of all of the control lines.
+     *
+     * @return A combination of the SerialPort.LINE_XXX bits for the lines
+     * that are set
+     * @throws IOException if a low-level error occurs
+     */
+    public int getControlLines() throws IOException;
+
+    /**
+     * Set or clear DTR and/or RTS, without touching the other lines.
+     *
+     * @param mask Which lines to change; only LINE_DTR and LINE_RTS may be
+     * given
+     * @param values The new value of the lines in the mask
+     * @throws IOException if a low-level error occurs
+     */
+    public void setControlLines( int mask, int values ) throws IOException;
+
+    /**
+     * Set the listener which gets told when the control lines change.  If
+     * listen is null, the listener is removed.
+     *
+     * @param listen
+     */
+    public void setSerialChangeListener( SerialChangeListener listen );
+
+    public String getPortName();
+
+    /**
+     * This may be called at any time.
+     */
+    public boolean isClosed();
+
+    /**
+     * Close the device.  Closing a device that is already closed does
+     * nothing.
+     */
+    @Override
+    public void close();
+}
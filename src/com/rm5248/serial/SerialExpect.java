@@ -0,0 +1,197 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Waits for any of a set of patterns, such as "OK\r\n", "ERROR" or "login:",
+ * to come in on a serial port.
+ *
+ * Data is read from the port in bulk with
+ * {@link SerialPort#readTimestamped(byte[], int, int, long, long[])
+ * readTimestamped()}, and each byte is run through the automaton in
+ * {@link ExpectPatterns} once, as it comes in.  The data that came before
+ * the match is handed back along with it.  Data after the match is kept for
+ * the next call to expect(), as is everything that came in if nothing
+ * matched.
+ *
+ * The port must have been opened with {@link SerialPort#NO_CONTROL_LINE_CHANGE}
+ * and without a native receive buffer, and nothing else should read from it.
+ *
+ * @author rm5248
+ */
+public class SerialExpect {
+
+    /**
+     * The default most data that is kept while waiting for a match.
+     */
+    public static final int DEFAULT_MAX_BUFFERED = 64 * 1024;
+
+    private final SerialPort port;
+    private final int maxBuffered;
+    private final long[] timestamp;
+    /* Data that has come in and has not been handed out yet is between start and end */
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Look for patterns on the given port, keeping at most
+     * DEFAULT_MAX_BUFFERED bytes.
+     *
+     * @param port The port to read from
+     */
+    public SerialExpect( SerialPort port ){
+        this( port, DEFAULT_MAX_BUFFERED );
+    }
+
+    /**
+     * Look for patterns on the given port.
+     *
+     * @param port The port to read from
+     * @param maxBuffered The most data to keep while waiting for a match; if
+     * more comes in, the oldest is thrown away
+     */
+    public SerialExpect( SerialPort port, int maxBuffered ){
+        if( port == null ){
+            throw new IllegalArgumentException( "port must not be null" );
+        }
+
+        if( maxBuffered <= 0 ){
+            throw new IllegalArgumentException( "maxBuffered must be greater than 0" );
+        }
+
+        this.port = port;
+        this.maxBuffered = maxBuffered;
+        timestamp = new long[ 1 ];
+        buffer = new byte[ Math.min( 4096, maxBuffered ) ];
+    }
+
+    /**
+     * Wait for any of the given strings.  If the same strings are used over
+     * and over, make an {@link ExpectPatterns} once and use
+     * {@link #expect(ExpectPatterns, long)} instead.
+     *
+     * @param timeoutMillis How long to wait, 0 to only look at what has
+     * already come in, or less than 0 to wait forever
+     * @param patterns The strings to look for
+     * @return What matched
+     * @throws IOException If a low-level error occurs
+     */
+    public ExpectResult expect( long timeoutMillis, String... patterns ) throws IOException {
+        return expect( new ExpectPatterns( patterns ), timeoutMillis );
+    }
+
+    /**
+     * Wait for any of the given patterns.
+     *
+     * @param patterns The patterns to look for
+     * @param timeoutMillis How long to wait, 0 to only look at what has
+     * already come in, or less than 0 to wait forever
+     * @return What matched.  If nothing did, the pattern index is
+     * {@link ExpectResult#TIMEOUT} or {@link ExpectResult#CLOSED}.
+     * @throws IOException If a low-level error occurs
+     */
+    public synchronized ExpectResult expect( ExpectPatterns patterns, long timeoutMillis ) throws IOException {
+        if( patterns.getMaxLength() * 2 > maxBuffered ){
+            throw new IllegalArgumentException( "Patterns must be shorter than half of maxBuffered" );
+        }
+
+        long deadline = System.nanoTime() + timeoutMillis * 1000000;
+        int state = 0;
+        int scanned = start;
+        boolean truncated = false;
+        boolean polled = false;
+
+        while( true ){
+            for( ; scanned < end; scanned++ ){
+                state = patterns.next( state, buffer[ scanned ] );
+                int match = patterns.getMatch( state );
+                if( match >= 0 ){
+                    int matchEnd = scanned + 1;
+                    int matchStart = matchEnd - patterns.getPatternLength( match );
+                    ExpectResult result = new ExpectResult( match,
+                            Arrays.copyOfRange( buffer, start, matchStart ),
+                            Arrays.copyOfRange( buffer, matchStart, matchEnd ),
+                            truncated );
+                    start = matchEnd;
+                    return result;
+                }
+            }
+
+            long timeoutMicros = -1;
+            if( timeoutMillis >= 0 ){
+                timeoutMicros = ( deadline - System.nanoTime() ) / 1000;
+                if( timeoutMicros <= 0 ){
+                    if( polled ){
+                        return noMatch( ExpectResult.TIMEOUT, truncated );
+                    }
+                    //Always look at what has already come in at least once
+                    timeoutMicros = 0;
+                }
+            }
+
+            if( end == buffer.length ){
+                int moved = makeRoom( patterns.getMaxLength() );
+                if( moved > start ){
+                    truncated = true;
+                }
+                scanned -= moved;
+                start = Math.max( 0, start - moved );
+                end -= moved;
+            }
+
+            int got = port.readTimestamped( buffer, end, buffer.length - end, timeoutMicros, timestamp );
+            if( got < 0 ){
+                return noMatch( ExpectResult.CLOSED, truncated );
+            }
+            end += got;
+            polled = true;
+        }
+    }
+
+    /**
+     * @return A copy of the data that has come in and has not been handed
+     * out by expect() yet
+     */
+    public synchronized byte[] getBuffered(){
+        return Arrays.copyOfRange( buffer, start, end );
+    }
+
+    /**
+     * Throw away the data that has come in and has not been handed out yet.
+     */
+    public synchronized void clear(){
+        start = 0;
+        end = 0;
+    }
+
+    private ExpectResult noMatch( int reason, boolean truncated ){
+        return new ExpectResult( reason, Arrays.copyOfRange( buffer, start, end ), new byte[ 0 ], truncated );
+    }
+
+    /**
+     * Make room at the end of the full buffer, by moving the data down,
+     * growing the buffer, or throwing away the oldest data.  Enough of the
+     * data is always kept for the longest pattern to still match.
+     *
+     * @return How far the data was moved down
+     */
+    private int makeRoom( int keep ){
+        if( start > 0 ){
+            int moved = start;
+            System.arraycopy( buffer, start, buffer, 0, end - start );
+            return moved;
+        }
+
+        if( buffer.length < maxBuffered ){
+            buffer = Arrays.copyOf( buffer, (int)Math.min( (long)buffer.length * 2, maxBuffered ) );
+            return 0;
+        }
+
+        //Only the end of the data can still be part of a match
+        int moved = end - ( keep - 1 );
+        System.arraycopy( buffer, moved, buffer, 0, keep - 1 );
+        return moved;
+    }
+}
@@ -52,6 +52,19 @@ class SimpleSerialInputStream extends InputStream {
 		return readByte();
 	}
 
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException{
+		if( off < 0 || len < 0 || len > b.length - off ){
+			throw new IndexOutOfBoundsException();
+		}
+
+		if( len == 0 ){
+			return 0;
+		}
+
+		return readBytes( b, off, len );
+	}
+
 	@Override
 	public int available() throws IOException{
 		return getAvailable();
@@ -59,5 +72,13 @@ class SimpleSerialInputStream extends InputStream {
 
 	private native int readByte() throws IOException;
 
+	/**
+	 * Wait for data, and then read as much as is available(up to len bytes)
+	 * directly into the array.
+	 *
+	 * @return The number of bytes read, or -1 if the port has been closed
+	 */
+	private native int readBytes( byte[] b, int off, int len ) throws IOException;
+
 	private native int getAvailable() throws IOException;
 }
\ No newline at end of file
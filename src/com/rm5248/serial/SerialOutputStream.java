@@ -7,6 +7,14 @@ class SerialOutputStream extends OutputStream{
 	/* The handle to write to */
 	@SuppressWarnings("unused")
 	private int handle;
+	/* How writes are paced; see SerialPort.setWritePacing() */
+	private volatile boolean paced;
+	private volatile long intervalNanos;
+	private volatile int chunkBytes;
+	private volatile long frameGapNanos;
+	/* Held during a paced write, so that writes from different threads are
+	 * paced one after the other */
+	private final Object pacedLock = new Object();
 
 	SerialOutputStream( int handle ){
 		this.handle = handle;
@@ -14,15 +22,54 @@ class SerialOutputStream extends OutputStream{
 
 	@Override
 	public void write(int b) throws IOException {
+		if( paced ){
+			synchronized( pacedLock ){
+				writePaced( new byte[]{ (byte)b }, 0, 1, intervalNanos, chunkBytes, frameGapNanos );
+			}
+			return;
+		}
 		writeByte( b );
 	}
 	
 	@Override
 	public void write( byte[] arr ) throws IOException{
-		writeByteArray( arr );
+		write( arr, 0, arr.length );
+	}
+
+	@Override
+	public void write( byte[] arr, int off, int len ) throws IOException{
+		if( off < 0 || len < 0 || len > arr.length - off ){
+			throw new IndexOutOfBoundsException();
+		}
+
+		if( paced ){
+			synchronized( pacedLock ){
+				writePaced( arr, off, len, intervalNanos, chunkBytes, frameGapNanos );
+			}
+			return;
+		}
+		writeByteArray( arr, off, len );
+	}
+
+	/**
+	 * Set how writes are paced.
+	 *
+	 * @param paced False to write as fast as possible
+	 * @param intervalNanos The time between the start of each byte, or 0
+	 * @param chunkBytes How many bytes to write at once
+	 * @param frameGapNanos The idle time after each write, or 0
+	 */
+	void setPacing( boolean paced, long intervalNanos, int chunkBytes, long frameGapNanos ){
+		this.intervalNanos = intervalNanos;
+		this.chunkBytes = chunkBytes;
+		this.frameGapNanos = frameGapNanos;
+		this.paced = paced;
 	}
 
 	private native void writeByte( int toWrite ) throws IOException;
 	
-	private native void writeByteArray( byte[] array ) throws IOException;
+	private native void writeByteArray( byte[] array, int offset, int length ) throws IOException;
+
+	private native void writePaced( byte[] array, int offset, int length, long intervalNanos, int chunkBytes,
+			long frameGapNanos ) throws IOException;
 }
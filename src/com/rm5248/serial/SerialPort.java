@@ -1,11 +1,14 @@
 package com.rm5248.serial;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,114 +48,31 @@ import java.util.logging.Logger;
  * Once the port has been opened, you can change any setting that you want
  * to(baud, parity, etc).
  * <p>
- * The native code is automatically extracted from the jar file. If you need to
- * use a special version, there are two Java properties to set.
+ * The native code is automatically extracted from the jar file the first time
+ * that a port is opened, and is cached so that it only needs to be extracted
+ * once. If you need to use a special version, there are three Java properties
+ * to set.
  *
  * <p>
  *
  * {@code com.rm5248.javaserial.lib.path} - give the directory name that the JNI code is
  * located in <br/>
  * {@code com.rm5248.javaserial.lib.name} - explicitly give the name of the
- * library(the default is 'javaserial')
+ * library(the default is 'javaserial') <br/>
+ * {@code com.rm5248.javaserial.lib.cache} - the directory to cache the
+ * extracted library in
  * </pre>
  *
  *
  * @author rm5248
  *
  */
-public class SerialPort implements AutoCloseable {
+public class SerialPort implements SerialDevice {
 
     private final static Logger logger = Logger.getLogger( SerialPort.class.getName() );
     /* Native logger.  Don't remove this! The JNI needs to access it */
     private final static Logger native_logger = Logger.getLogger( SerialPort.class.getName() + ".native" );
 
-    //The first time this class is referenced, we need to load the library.
-    static{
-        loadNativeLibrary();
-    }
-
-    /**
-     * Load the native library.
-     *
-     * There are two important system properties that can be set here:
-     *
-     * com.rm5248.javaserial.lib.path - give the directory name that the JNI
-     * code is located in com.rm5248.javaserial.lib.name - explicitly give the
-     * name of the library(the default is 'javaserial')
-     *
-     * This is based largely off of SQLite-JDBC(
-     * https://github.com/xerial/sqlite-jdbc )
-     */
-    private static void loadNativeLibrary(){
-        String nativeLibraryPath = System.getProperty( "com.rm5248.javaserial.lib.path" );
-        String nativeLibraryName = System.getProperty( "com.rm5248.javaserial.lib.name" );
-
-        if( nativeLibraryName == null ){
-            nativeLibraryName = System.mapLibraryName( "javaserial" );
-            if( nativeLibraryName.endsWith( "dylib" ) ){
-                //mac uses jnilib instead of dylib for some reason
-                nativeLibraryName = nativeLibraryName.replace( "dylib", "jnilib" );
-            }
-            logger.log( Level.FINE, "No native library name provided, using default of {0}",
-                    nativeLibraryName);
-        }
-
-        if( nativeLibraryPath != null ){
-            logger.log( Level.FINE, "Native library path of {0} provided", nativeLibraryPath );
-            File libToLoad = new File( nativeLibraryPath, nativeLibraryName );
-            logger.log( Level.FINE, "Loading library {0}", libToLoad.getAbsolutePath() );
-            System.load( libToLoad.getAbsolutePath() );
-            return;
-        }
-
-        //if we get here, that means that we must extract the JNI from the jar
-        try{
-            File extractedLib;
-            Path tempFolder;
-            String osName;
-            String arch;
-            InputStream library;
-
-            osName = System.getProperty( "os.name" );
-            if( osName.contains( "Windows" ) ){
-                osName = "Windows";
-            } else if( osName.contains( "Mac" ) || osName.contains( "Darwin" ) ){
-                osName = "Mac";
-            } else if( osName.contains( "Linux" ) ){
-                osName = "Linux";
-            } else{
-                osName = osName.replaceAll( "\\W", "" );
-            }
-
-            arch = System.getProperty( "os.arch" );
-            arch.replaceAll( "\\W", "" );
-
-            if( arch.equals( "x86_64" ) ){
-                //map x86_64 to amd64 to stay consistent(needed for mac)
-                arch = "amd64";
-            }
-
-            //create the temp folder to extract the library to
-            tempFolder = Files.createTempDirectory( "javaserial" );
-            tempFolder.toFile().deleteOnExit();
-
-            logger.log( Level.FINER, "Created temp folder of {0}", tempFolder );
-
-            extractedLib = new File( tempFolder.toFile(), nativeLibraryName );
-
-            String fileToExtract = "/" + osName + "/" + arch + "/" + nativeLibraryName;
-            logger.log( Level.FINER, "About to extract {0} from JAR", fileToExtract );
-            //now let's extract the proper library
-            library = SerialPort.class.getResourceAsStream( fileToExtract );
-            Files.copy( library, extractedLib.toPath() );
-            extractedLib.deleteOnExit();
-
-            System.load( extractedLib.getAbsolutePath() );
-        } catch( IOException e ){
-            throw new UnsatisfiedLinkError( "Unable to create temp directory or extract: " + e.getMessage() );
-        }
-    }
-
     private class SerialStateListener implements Runnable{
 
         private volatile boolean stop;
@@ -224,7 +144,20 @@ public class SerialPort implements AutoCloseable {
         B38400(38400),
         /** May not be available on all platforms */
         B57600(57600),
-        B115200(115200)
+        B115200(115200),
+        /** May not be available on all platforms */
+        B230400(230400),
+        /**
+         * Used by DMX512.  Set with termios2 on Linux; may not be available
+         * on other platforms
+         */
+        B250000(250000),
+        /** May not be available on all platforms */
+        B460800(460800),
+        /** May not be available on all platforms */
+        B500000(500000),
+        /** May not be available on all platforms */
+        B921600(921600)
         ;
 
         private final int m_baudRate;
@@ -359,6 +292,26 @@ public class SerialPort implements AutoCloseable {
             | CONTROL_LINE_RTS_CHANGE | CONTROL_LINE_CD_CHANGE | CONTROL_LINE_CTS_CHANGE
             | CONTROL_LINE_DSR_CHANGE | CONTROL_LINE_RI_CHANGE;
 
+    /**
+     * Bits for the individual control lines, as used by {@link EdgeCapture}.
+     */
+    public static final int LINE_CD = 0x01;
+    public static final int LINE_CTS = 0x02;
+    public static final int LINE_DSR = 0x04;
+    public static final int LINE_DTR = 0x08;
+    public static final int LINE_RTS = 0x10;
+    public static final int LINE_RI = 0x20;
+
+    /**
+     * The default size of each file that traffic is captured into.
+     */
+    public static final long DEFAULT_CAPTURE_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /* The most that transferFrom() sends at once */
+    private static final int TRANSFER_BUFFER_SIZE = 65536;
+    /* When pacing to a byte rate, the shortest time to sleep for between writes */
+    private static final long MIN_PACING_SLEEP_NANOS = 100000;
+
     /* The handle to our internal data structure which keeps track of the port settings.
 	 * We need a special structure, as on windows we have a HANDLE type, which is void*,
 	 * yet on Linux we have a file descriptor, which is an int.
@@ -376,6 +329,8 @@ public class SerialPort implements AutoCloseable {
     private SimpleSerialInputStream simpleSerialInputStream;
     /* The buffered serial input stream which filters out events for us. */
     private BufferedSerialInputStream bis;
+    /* The input stream that reads out of the native receive buffer, if enabled */
+    private NativeRingInputStream ringInputStream;
     /* The output stream that user code uses to write to the serial port. */
     private SerialOutputStream outputStream;
     /* Runs in the background to check for serial port events */
@@ -386,6 +341,36 @@ public class SerialPort implements AutoCloseable {
     private int controlLineFlags;
     /* Flag to determine if we want an InputStream.read() to throw an IOException when interrupted */
     private boolean throwIOExceptionOnInterrupt;
+    /* Writes messages out from a background thread; created on demand */
+    private AsyncSerialWriter asyncWriter;
+    /* Matches responses up with requests; created on demand */
+    private SerialTransactionEngine transactionEngine;
+    /* How writes to the output stream are slowed down */
+    private WritePacing writePacing = WritePacing.NONE;
+    /* Limits on how much data the async writer may have queued up */
+    private int asyncWriteMaxMessages = AsyncSerialWriter.DEFAULT_MAX_MESSAGES;
+    private int asyncWriteMaxBytes = AsyncSerialWriter.DEFAULT_MAX_BYTES;
+    /* Size of the native receive buffer, or 0 to read from Java */
+    private int nativeReceiveBufferSize;
+    /* The settings the port currently has; kept here so that we don't have to ask the native code */
+    private volatile SerialPortConfig config;
+    /* Captures control line changes; created on demand */
+    private EdgeCapture edgeCapture;
+    /* Sends DMX frames from a native thread; created on demand */
+    private DmxTransmitter dmxTransmitter;
+    /* RS-485 settings, or null if not in RS-485 mode */
+    private Rs485Config rs485Config;
+    /* True if the driver is switching RTS for RS-485 */
+    private boolean rs485Hardware;
+    /* Extra readers of the native receive buffer */
+    private final List<ReceiveSubscriber> subscribers = new ArrayList<ReceiveSubscriber>();
+    /* Forwards the port to a socket, if one has been started */
+    private SerialPortBridge bridge;
+    /* Used to copy from a FileChannel to the port; created on demand */
+    private ByteBuffer transferBuffer;
+    private final Object transferLock = new Object();
+    /* True if this is the master side of a pseudo-terminal that we made */
+    private boolean pseudoTerminalMaster;
 
     /**
      * Open the specified port, using parameters from the given builder.
@@ -398,13 +383,29 @@ public class SerialPort implements AutoCloseable {
      */
     public SerialPort( SerialPortBuilder builder )
             throws NoSuchPortException, NotASerialPortException, IOException {
-        doOpenSerialPort( builder.portName,
+        this( builder, builder.portName, false );
+    }
+
+    /**
+     * Open a port using the settings from the builder, but not its port name.
+     *
+     * @param pseudoTerminalMaster True to make a new pseudo-terminal instead of
+     * opening portName
+     */
+    private SerialPort( SerialPortBuilder builder, String portName, boolean pseudoTerminalMaster )
+            throws NoSuchPortException, NotASerialPortException, IOException {
+        nativeReceiveBufferSize = builder.nativeReceiveBufferSize;
+        rs485Config = builder.rs485;
+        this.pseudoTerminalMaster = pseudoTerminalMaster;
+        doOpenSerialPort( portName,
                 builder.baudRate,
                 builder.dataBits,
                 builder.stopBits,
                 builder.parity,
                 builder.flowControl,
                 builder.controlFlags );
+        asyncWriteMaxMessages = builder.asyncWriteMaxMessages;
+        asyncWriteMaxBytes = builder.asyncWriteMaxBytes;
     }
 
     /**
@@ -478,9 +479,11 @@ public class SerialPort implements AutoCloseable {
         }
 
         if( keepSettings ){
+            NativeLibraryLoader.load();
             this.handle = -1;
             this.handle = openPort( portName );
             this.portName = portName;
+            this.config = readConfig();
             if( controlLineFlags == NO_CONTROL_LINE_CHANGE ){
                 logger.log( Level.FINE, "Creating a new SimpleSerialInputStream - not monitoring for control line change" );
                 simpleSerialInputStream = new SimpleSerialInputStream( handle );
@@ -746,6 +749,8 @@ public class SerialPort implements AutoCloseable {
             throw new IllegalArgumentException( "flow must not be null" );
         }
 
+        NativeLibraryLoader.load();
+
         logger.log( Level.INFO, "Opening up serial port {0} with the following settings: "
                 + "speed:{1} data:{2} stop:{3} parity:{4} flow:{5}",
                 new Object[] {
@@ -762,13 +767,48 @@ public class SerialPort implements AutoCloseable {
         closed = false;
         this.controlLineFlags = controlFlags;
 
-        handle = openPort( portName,
-                rate.getBaudRate(),
-                data.getDataBits(),
-                stop.getStopBits(),
-                parity.getParity(),
-                flow.getFlowControl() );
-        if( controlLineFlags == NO_CONTROL_LINE_CHANGE ){
+        if( pseudoTerminalMaster ){
+            handle = openPseudoTerminalInternal( rate.getBaudRate(),
+                    data.getDataBits(),
+                    stop.getStopBits(),
+                    parity.getParity(),
+                    flow.getFlowControl() );
+        }else{
+            handle = openPort( portName,
+                    rate.getBaudRate(),
+                    data.getDataBits(),
+                    stop.getStopBits(),
+                    parity.getParity(),
+                    flow.getFlowControl() );
+        }
+        config = new SerialPortConfig( rate, data, stop, parity, flow );
+        if( rs485Config != null ){
+            //Has to be set up before anything starts reading or writing
+            try{
+                rs485Hardware = enableRs485Internal( rs485Config.isRtsOnSend(),
+                        rs485Config.getDelayBeforeSendMillis(),
+                        rs485Config.getDelayAfterSendMillis(),
+                        rs485Config.isReceiveDuringTransmit(),
+                        rs485Config.isDiscardEcho() );
+            }catch( IOException e ){
+                close();
+                throw e;
+            }
+            logger.log( Level.FINE, "RS-485 mode enabled, RTS switched by {0}",
+                    rs485Hardware ? "the driver" : "software" );
+        }
+        if( nativeReceiveBufferSize > 0 ){
+            logger.log( Level.FINE, "Creating a new NativeRingInputStream - native receive buffer of {0} bytes",
+                    nativeReceiveBufferSize );
+            //The native thread does all of the reading, so we can't look for control line changes
+            controlLineFlags = NO_CONTROL_LINE_CHANGE;
+            try{
+                ringInputStream = new NativeRingInputStream( handle, nativeReceiveBufferSize );
+            }catch( IOException e ){
+                close();
+                throw e;
+            }
+        } else if( controlLineFlags == NO_CONTROL_LINE_CHANGE ){
             logger.log( Level.FINE, "Creating a new SimpleSerialInputStream - not monitoring for control line change" );
             simpleSerialInputStream = new SimpleSerialInputStream( handle );
         } else{
@@ -812,7 +852,7 @@ public class SerialPort implements AutoCloseable {
      *
      * @param rate
      */
-    public void setBaudRate(BaudRate rate) throws IOException {
+    public synchronized void setBaudRate(BaudRate rate) throws IOException {
         if( closed ){
             throw new IllegalStateException( "Cannot set the BaudRate once the port has been closed." );
         }
@@ -821,7 +861,7 @@ public class SerialPort implements AutoCloseable {
             throw new IllegalArgumentException( "rate must not be null" );
         }
 
-        setBaudRate( rate.getBaudRate() );
+        setConfig( config.withBaudRate( rate ) );
     }
 
     public boolean isClosed(){
@@ -837,6 +877,37 @@ public class SerialPort implements AutoCloseable {
             return;
         }
         closed = true;
+        //The bridge may be calling into us from its own thread, so stop it
+        //without holding our lock
+        SerialPortBridge toClose;
+        synchronized( this ){
+            toClose = bridge;
+        }
+        if( toClose != null ){
+            toClose.close();
+        }
+        synchronized( this ){
+            if( asyncWriter != null ){
+                asyncWriter.close();
+            }
+            if( transactionEngine != null ){
+                transactionEngine.close();
+            }
+            if( edgeCapture != null ){
+                edgeCapture.close();
+            }
+            if( dmxTransmitter != null ){
+                dmxTransmitter.close();
+            }
+            //Anybody waiting on the ring gets woken up by doClose()
+            if( ringInputStream != null ){
+                ringInputStream.portClosed();
+            }
+            for( ReceiveSubscriber subscriber : subscribers ){
+                subscriber.portClosed();
+            }
+            subscribers.clear();
+        }
         doClose();
         if( serialListen != null ){
             serialListen.doStop();
@@ -861,11 +932,15 @@ public class SerialPort implements AutoCloseable {
             return bis;
         }
 
+        if( ringInputStream != null ){
+            return ringInputStream;
+        }
+
         if( simpleSerialInputStream != null ){
             return simpleSerialInputStream;
         }
 
-        logger.log( Level.SEVERE, "Tried to get input stream, but both BufferedSerialInputStream and SimpleSerialInputStream null" );
+        logger.log( Level.SEVERE, "Tried to get input stream, but no input stream has been created" );
 
         return null;
     }
@@ -905,12 +980,643 @@ public class SerialPort implements AutoCloseable {
         return outputStream;
     }
 
+    /**
+     * Get the AsyncSerialWriter for this port.  The writer is created the
+     * first time that this method is called, and is closed when the port is
+     * closed.
+     *
+     * @return The writer that queues up messages for this port
+     */
+    public synchronized AsyncSerialWriter getAsyncWriter(){
+        if( isClosed() ){
+            throw new IllegalStateException( "Cannot get the async writer once the port has been closed." );
+        }
+
+        if( asyncWriter == null ){
+            asyncWriter = new AsyncSerialWriter( this, outputStream,
+                    asyncWriteMaxMessages, asyncWriteMaxBytes );
+        }
+
+        return asyncWriter;
+    }
+
+    /**
+     * Get the SerialTransactionEngine for this port.  The engine is created
+     * the first time that this method is called, and is closed when the port
+     * is closed.  Once it has been created, nothing else should read from the
+     * port.
+     *
+     * @return The engine that sends requests and matches up their responses
+     */
+    public synchronized SerialTransactionEngine getTransactionEngine(){
+        if( isClosed() ){
+            throw new IllegalStateException( "Cannot get the transaction engine once the port has been closed." );
+        }
+
+        if( transactionEngine == null ){
+            transactionEngine = new SerialTransactionEngine( getInputStream(), outputStream, portName, 1 );
+        }
+
+        return transactionEngine;
+    }
+
+    /**
+     * Start capturing changes on the given input lines, using a ring that can
+     * hold {@link EdgeCapture#DEFAULT_CAPACITY} changes.
+     *
+     * @param lines The lines to watch; a combination of LINE_CD, LINE_CTS,
+     * LINE_DSR and LINE_RI
+     * @return The capture, which must be polled to get the changes
+     * @throws IOException If the port does not support waiting for line
+     * changes
+     * @see #startEdgeCapture(int, int)
+     */
+    public EdgeCapture startEdgeCapture( int lines ) throws IOException {
+        return startEdgeCapture( lines, EdgeCapture.DEFAULT_CAPACITY );
+    }
+
+    /**
+     * Start capturing changes on the given input lines.  Only one capture can
+     * be running at a time; close the old capture before starting a new one.
+     * The capture is closed when the port is closed.
+     *
+     * @param lines The lines to watch; a combination of LINE_CD, LINE_CTS,
+     * LINE_DSR and LINE_RI
+     * @param capacity How many changes the ring can hold; must be a power of 2
+     * @return The capture, which must be polled to get the changes
+     * @throws IOException If the port does not support waiting for line
+     * changes
+     */
+    public synchronized EdgeCapture startEdgeCapture( int lines, int capacity ) throws IOException {
+        if( isClosed() ){
+            throw new IllegalStateException( "Cannot start edge capture once the port has been closed." );
+        }
+
+        if( lines == 0 || ( lines & ~( LINE_CD | LINE_CTS | LINE_DSR | LINE_RI ) ) != 0 ){
+            throw new IllegalArgumentException( "lines must be a combination of LINE_CD, LINE_CTS, LINE_DSR and LINE_RI" );
+        }
+
+        if( edgeCapture != null && !edgeCapture.isClosed() ){
+            throw new IllegalStateException( "Edge capture is already running on this port." );
+        }
+
+        edgeCapture = new EdgeCapture( handle, lines, capacity, Math.min( capacity, 64 ) );
+
+        return edgeCapture;
+    }
+
+    /**
+     * Add another independent reader of the data coming in on this port.  The
+     * subscriber sees everything that comes in from now on, no matter what any
+     * other reader does.  The port must have been opened with a native receive
+     * buffer(see {@link SerialPortBuilder#setNativeReceiveBufferSize(int)}).
+     *
+     * @param policy What to do if the subscriber falls a whole buffer behind
+     * @return The new subscriber
+     * @throws IOException If too many subscribers have been added
+     * @see ReceiveSubscriber
+     */
+    public synchronized ReceiveSubscriber subscribe( ReceiveSubscriber.SlowConsumerPolicy policy ) throws IOException {
+        if( isClosed() ){
+            throw new IllegalStateException( "Cannot subscribe once the port has been closed." );
+        }
+
+        if( policy == null ){
+            throw new IllegalArgumentException( "policy must not be null" );
+        }
+
+        if( ringInputStream == null ){
+            throw new IllegalStateException( "Subscribers need a port opened with a native receive buffer." );
+        }
+
+        for( Iterator<ReceiveSubscriber> it = subscribers.iterator(); it.hasNext(); ){
+            if( it.next().isClosed() ){
+                it.remove();
+            }
+        }
+
+        ReceiveSubscriber subscriber = new ReceiveSubscriber( handle, ringInputStream.getRing(), policy );
+        subscribers.add( subscriber );
+
+        return subscriber;
+    }
+
+    /**
+     * Called when a SerialPortBridge starts on this port.
+     *
+     * @return The handle for the bridge to use
+     */
+    synchronized int attachBridge( SerialPortBridge newBridge ){
+        if( isClosed() ){
+            throw new IllegalStateException( "Cannot start a bridge once the port has been closed." );
+        }
+
+        if( bis != null || ringInputStream != null ){
+            throw new IllegalStateException( "A bridge needs a port opened with NO_CONTROL_LINE_CHANGE and no native receive buffer." );
+        }
+
+        if( bridge != null && !bridge.isClosed() ){
+            throw new IllegalStateException( "A bridge is already running on this port." );
+        }
+
+        bridge = newBridge;
+        return handle;
+    }
+
+    /**
+     * Get the RS-485 settings that this port was opened with.
+     *
+     * @return The settings, or null if the port is not in RS-485 mode
+     */
+    public Rs485Config getRs485Config(){
+        return rs485Config;
+    }
+
+    /**
+     * Check if the driver is switching RTS for RS-485 mode.  If not, RTS is
+     * switched in software around every write, which means that writes from
+     * different threads take turns.
+     *
+     * @return True if the driver is switching RTS, false if it is done in
+     * software or the port is not in RS-485 mode
+     */
+    public boolean isRs485InHardware(){
+        return rs485Hardware;
+    }
+
+    /**
+     * Get the number of bytes that have been written to the serial port, but
+     * that the operating system has not transmitted yet.
+     *
+     * @return The number of bytes in the transmit queue
+     * @throws IOException if a low-level error occurs
+     */
+    public int getOutputQueueSize() throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot get the output queue size once the port has been closed." );
+        }
+
+        return getOutputQueueSizeInternal();
+    }
+
+    /**
+     * Wait until all data that has been written to the serial port has
+     * actually been transmitted.
+     *
+     * @param timeoutMillis How long to wait, in milliseconds.  If less than
+     * 0, wait until all data has been sent.
+     * @return True if all data has been sent, false if the timeout expired
+     * @throws IOException if a low-level error occurs
+     */
+    public boolean drain( int timeoutMillis ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot drain the port once the port has been closed." );
+        }
+
+        return drainInternal( timeoutMillis );
+    }
+
+    /**
+     * Send a break: hold the line low for the given time, then let it go back
+     * to idle.  Anything that has already been written is sent first.
+     *
+     * @param breakMicros How long to hold the break for, in microseconds.
+     * Windows can only do whole milliseconds, so this is rounded up there.
+     * @throws IOException if a low-level error occurs
+     */
+    public void sendBreak( long breakMicros ) throws IOException {
+        sendBreak( breakMicros, 0 );
+    }
+
+    /**
+     * Send a break, then keep the line idle(the mark after break) for the
+     * given time before returning, so that whatever is written next starts
+     * after the mark.
+     *
+     * @param breakMicros How long to hold the break for, in microseconds
+     * @param markAfterBreakMicros How long to keep the line idle after the
+     * break, in microseconds
+     * @throws IOException if a low-level error occurs
+     */
+    public void sendBreak( long breakMicros, long markAfterBreakMicros ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot send a break once the port has been closed." );
+        }
+
+        if( breakMicros <= 0 || markAfterBreakMicros < 0 ){
+            throw new IllegalArgumentException( "breakMicros must be greater than 0 and markAfterBreakMicros must not be negative" );
+        }
+
+        sendBreakInternal( breakMicros * 1000, markAfterBreakMicros * 1000 );
+    }
+
+    /**
+     * Start sending DMX512 frames with the default break and mark after
+     * break times.
+     *
+     * @param slotCount The number of slots in each frame, not counting the
+     * start code
+     * @param framesPerSecond How many frames to send each second
+     * @return The transmitter; set the slots on it and commit them
+     * @throws IOException If the port can't be set to 250000 baud
+     * @see #startDmxTransmitter(int, int, long, long)
+     */
+    public DmxTransmitter startDmxTransmitter( int slotCount, int framesPerSecond ) throws IOException {
+        return startDmxTransmitter( slotCount, framesPerSecond, DmxTransmitter.DEFAULT_BREAK_MICROS,
+                DmxTransmitter.DEFAULT_MARK_AFTER_BREAK_MICROS );
+    }
+
+    /**
+     * Start sending DMX512 frames: a break, a mark after break, then the
+     * start code and the slots, over and over from a native thread.  The port
+     * is changed to 250000 baud, 8 data bits, 2 stop bits, no parity and no
+     * flow control.  Nothing else should be written to the port while the
+     * transmitter is running.  Only one transmitter can be running at a time;
+     * it is closed when the port is closed.  This is not supported on Windows.
+     *
+     * @param slotCount The number of slots in each frame, not counting the
+     * start code; at most 512
+     * @param framesPerSecond How many frames to send each second.  A full
+     * frame of 512 slots takes about 23ms, so that can go at most 44 times a
+     * second.
+     * @param breakMicros How long the break is, in microseconds
+     * @param markAfterBreakMicros How long the mark after the break is, in
+     * microseconds
+     * @return The transmitter; set the slots on it and commit them
+     * @throws IOException If the port can't be set to 250000 baud, or the
+     * transmitter can't be started
+     */
+    public synchronized DmxTransmitter startDmxTransmitter( int slotCount, int framesPerSecond,
+            long breakMicros, long markAfterBreakMicros ) throws IOException {
+        if( isClosed() ){
+            throw new IllegalStateException( "Cannot start a DMX transmitter once the port has been closed." );
+        }
+
+        if( dmxTransmitter != null && !dmxTransmitter.isClosed() ){
+            throw new IllegalStateException( "A DMX transmitter is already running on this port." );
+        }
+
+        setConfig( new SerialPortConfig( BaudRate.B250000, DataBits.DATABITS_8, StopBits.STOPBITS_2,
+                Parity.NONE, FlowControl.NONE ), true );
+        dmxTransmitter = new DmxTransmitter( handle, slotCount, framesPerSecond, breakMicros, markAfterBreakMicros );
+
+        return dmxTransmitter;
+    }
+
+    /**
+     * Slow down the data written to the output stream, for devices which
+     * need gaps between bytes or between messages.  Each call to write() is
+     * a message.  See {@link WritePacing}.  This is not supported on Windows.
+     *
+     * @param pacing How to pace writes, or WritePacing.NONE to write as fast
+     * as possible
+     */
+    public synchronized void setWritePacing( WritePacing pacing ){
+        if( closed ){
+            throw new IllegalStateException( "Cannot set the write pacing once the port has been closed." );
+        }
+
+        if( pacing == null ){
+            throw new IllegalArgumentException( "pacing must not be null" );
+        }
+
+        writePacing = pacing;
+        updateWritePacing();
+    }
+
+    public synchronized WritePacing getWritePacing(){
+        return writePacing;
+    }
+
+    /**
+     * Work out the pacing for the native code from the pacing settings and
+     * the port settings.
+     */
+    private void updateWritePacing(){
+        if( outputStream == null ){
+            return;
+        }
+
+        long intervalNanos = 0;
+        int chunkBytes = 1;
+
+        if( writePacing.getInterByteGapMicros() > 0 ){
+            intervalNanos = config.getCharacterTimeNanos() + writePacing.getInterByteGapMicros() * 1000;
+        }
+
+        if( writePacing.getBytesPerSecond() > 0 ){
+            long rateNanos = 1000000000L / writePacing.getBytesPerSecond();
+            if( rateNanos > intervalNanos ){
+                intervalNanos = rateNanos;
+                if( writePacing.getInterByteGapMicros() == 0 ){
+                    //Only a rate; no need to wake up for every byte
+                    chunkBytes = (int)Math.max( 1, Math.min( 4096, MIN_PACING_SLEEP_NANOS / Math.max( rateNanos, 1 ) ) );
+                }
+            }
+        }
+
+        outputStream.setPacing( writePacing.isPaced(), intervalNanos, chunkBytes,
+                writePacing.getFrameGapMicros() * 1000 );
+    }
+
+    /**
+     * Read whatever data is available from the port, along with the time
+     * that it was read.  The time is taken in the native code as soon as the
+     * read returns, from the same clock as {@link System#nanoTime()}(on
+     * Linux, CLOCK_MONOTONIC).
+     *
+     * This reads directly from the port, so the port must have been opened
+     * with {@link #NO_CONTROL_LINE_CHANGE} and without a native receive
+     * buffer.  Don't read from the InputStream at the same time.  This is
+     * not supported on Windows.
+     *
+     * @param buffer The buffer to read into
+     * @param offset The offset into the buffer to start at
+     * @param length The maximum number of bytes to read
+     * @param timeoutMicros How long to wait for data in microseconds, 0 to
+     * only take what has already come in, or less than 0 to wait forever
+     * @param timestamp The time that the data was read is put into the
+     * first element of this array
+     * @return The number of bytes read, 0 if the timeout expired, or -1 if
+     * the port has been closed
+     * @throws IOException If a low-level error occurs
+     */
+    public int readTimestamped( byte[] buffer, int offset, int length, long timeoutMicros, long[] timestamp )
+            throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot read once the port has been closed." );
+        }
+
+        if( bis != null || ringInputStream != null ){
+            throw new IllegalStateException( "Timestamped reads need a port opened with NO_CONTROL_LINE_CHANGE and no native receive buffer." );
+        }
+
+        if( offset < 0 || length < 0 || offset + length > buffer.length ){
+            throw new IndexOutOfBoundsException();
+        }
+
+        if( timestamp.length < 1 ){
+            throw new IllegalArgumentException( "timestamp must have at least one element" );
+        }
+
+        if( length == 0 ){
+            return 0;
+        }
+
+        return readTimestampedInternal( buffer, offset, length, timeoutMicros, timestamp );
+    }
+
+    /**
+     * Read all of the data that is available from the port, keeping track of
+     * each chunk of data and when it came in.  This waits for data to come in,
+     * and then keeps reading until no more data is waiting or the chunks are
+     * full.  Each chunk is timestamped in the native code as soon as the read
+     * returns.  This does not allocate any memory.
+     *
+     * The same restrictions as
+     * {@link #readTimestamped(byte[], int, int, long, long[]) readTimestamped()}
+     * apply.
+     *
+     * @param chunks Where to put the data
+     * @param timeoutMicros How long to wait for data in microseconds, 0 to
+     * only take what has already come in, or less than 0 to wait forever
+     * @return The number of chunks read, 0 if the timeout expired, or -1 if
+     * the port has been closed
+     * @throws IOException If a low-level error occurs
+     */
+    public int readChunks( TimestampedChunks chunks, long timeoutMicros ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot read once the port has been closed." );
+        }
+
+        if( bis != null || ringInputStream != null ){
+            throw new IllegalStateException( "Timestamped reads need a port opened with NO_CONTROL_LINE_CHANGE and no native receive buffer." );
+        }
+
+        int count = readChunksInternal( chunks.data, chunks.lengths, chunks.timestamps, timeoutMicros );
+        chunks.setCount( Math.max( count, 0 ) );
+
+        return count;
+    }
+
+    /**
+     * Write part of a file out to the port.  The data goes straight from the
+     * file to the port in the native code(on Linux, with sendfile()), so no
+     * memory is used on the Java heap no matter how big the file is.
+     *
+     * The file is sent in chunks of about a quarter second's worth of data at
+     * the current baud rate; after each chunk, the listener is told how far
+     * along the transfer is and may cancel it.  This is not supported on
+     * Windows.
+     *
+     * @param file The file to send
+     * @param position Where in the file to start
+     * @param count How many bytes to send
+     * @param listener Told about the progress of the transfer; may be null
+     * @return The number of bytes sent.  This is less than count if the end
+     * of the file was reached or the listener cancelled the transfer.
+     * @throws IOException If the file can't be read or a low-level error
+     * occurs
+     */
+    public long transferFrom( Path file, long position, long count, TransferListener listener ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot transfer once the port has been closed." );
+        }
+
+        if( file == null ){
+            throw new IllegalArgumentException( "file must not be null" );
+        }
+
+        if( position < 0 || count < 0 ){
+            throw new IllegalArgumentException( "position and count must not be negative" );
+        }
+
+        long chunkSize = getTransferChunkSize();
+        long transferred = 0;
+        int fd = openTransferFile( file.toString() );
+        try{
+            while( transferred < count ){
+                long sent = transferFileChunk( fd, position + transferred,
+                        Math.min( chunkSize, count - transferred ) );
+                if( sent <= 0 ){
+                    //End of the file
+                    break;
+                }
+
+                transferred += sent;
+                if( listener != null && !listener.transferProgress( transferred, count ) ){
+                    break;
+                }
+            }
+        }finally{
+            closeTransferFile( fd );
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Write part of a file out to the port.  The data is read into a direct
+     * buffer which is re-used for every transfer, and written to the port
+     * from there in the native code, so no memory is used on the Java heap.
+     * If you have the path to the file, use
+     * {@link #transferFrom(Path, long, long, TransferListener)} instead,
+     * which doesn't have to copy the data at all.
+     *
+     * This is not supported on Windows.
+     *
+     * @param channel The file to send.  Its position is not changed.
+     * @param position Where in the file to start
+     * @param count How many bytes to send
+     * @param listener Told about the progress of the transfer; may be null
+     * @return The number of bytes sent.  This is less than count if the end
+     * of the file was reached or the listener cancelled the transfer.
+     * @throws IOException If the file can't be read or a low-level error
+     * occurs
+     */
+    public long transferFrom( FileChannel channel, long position, long count, TransferListener listener ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot transfer once the port has been closed." );
+        }
+
+        if( channel == null ){
+            throw new IllegalArgumentException( "channel must not be null" );
+        }
+
+        if( position < 0 || count < 0 ){
+            throw new IllegalArgumentException( "position and count must not be negative" );
+        }
+
+        long transferred = 0;
+        synchronized( transferLock ){
+            if( transferBuffer == null ){
+                transferBuffer = ByteBuffer.allocateDirect( TRANSFER_BUFFER_SIZE );
+            }
+
+            int chunkSize = (int)Math.min( getTransferChunkSize(), transferBuffer.capacity() );
+            while( transferred < count ){
+                transferBuffer.clear();
+                transferBuffer.limit( (int)Math.min( chunkSize, count - transferred ) );
+                int got = channel.read( transferBuffer, position + transferred );
+                if( got <= 0 ){
+                    //End of the file
+                    break;
+                }
+
+                writeDirectInternal( transferBuffer, 0, got );
+                transferred += got;
+                if( listener != null && !listener.transferProgress( transferred, count ) ){
+                    break;
+                }
+            }
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Get how many bytes to send at once in a transfer: about a quarter of a
+     * second's worth, so that progress is reported and cancelling works
+     * reasonably quickly.
+     */
+    private long getTransferChunkSize(){
+        long characterNanos = config.getCharacterTimeNanos();
+        if( characterNanos == 0 ){
+            return TRANSFER_BUFFER_SIZE;
+        }
+
+        long chunk = 250000000L / characterNanos;
+        return Math.max( 1024, Math.min( chunk, TRANSFER_BUFFER_SIZE ) );
+    }
+
+    /**
+     * Start recording everything that is read from and written to this port,
+     * keeping every segment file.
+     *
+     * @param basePath Where to put the capture
+     * @throws IOException If the first segment file can't be made
+     * @see #startCapture(Path, long, int)
+     */
+    public void startCapture( Path basePath ) throws IOException {
+        startCapture( basePath, DEFAULT_CAPTURE_SEGMENT_BYTES, 0 );
+    }
+
+    /**
+     * Start recording everything that is read from and written to this port,
+     * with the time that it happened, for debugging.  Read the capture back
+     * with {@link CaptureReader}, or play it back with
+     * {@link CaptureReplayer}.
+     *
+     * The capture goes into files named basePath.0, basePath.1 and so on,
+     * each of which is segmentBytes long and is memory-mapped; reading and
+     * writing only have to copy the data into the mapping.  When a segment
+     * fills up, the next one is started.  While capturing, file transfers and
+     * socket bridges copy data through memory instead of having the kernel
+     * move it, so that it can be recorded.
+     *
+     * This is not supported on Windows.
+     *
+     * @param basePath Where to put the capture; any old segments with this
+     * name are written over
+     * @param segmentBytes How big each segment file is
+     * @param maxSegments How many segments to keep; when a new one is
+     * started, the oldest is deleted.  0 to keep all of them.
+     * @throws IOException If the first segment file can't be made
+     */
+    public synchronized void startCapture( Path basePath, long segmentBytes, int maxSegments ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot start a capture once the port has been closed." );
+        }
+
+        if( basePath == null ){
+            throw new IllegalArgumentException( "basePath must not be null" );
+        }
+
+        if( segmentBytes < 4096 || segmentBytes > Integer.MAX_VALUE ){
+            throw new IllegalArgumentException( "segmentBytes must be between 4096 and Integer.MAX_VALUE" );
+        }
+
+        if( maxSegments < 0 ){
+            throw new IllegalArgumentException( "maxSegments must not be negative" );
+        }
+
+        startCaptureInternal( basePath.toString(), segmentBytes, maxSegments );
+    }
+
+    /**
+     * Stop recording traffic on this port.  Does nothing if we aren't
+     * capturing.
+     */
+    public synchronized void stopCapture() throws IOException {
+        if( closed ){
+            return;
+        }
+
+        stopCaptureInternal();
+    }
+
+    /**
+     * Check if traffic is being captured.  The capture stops on its own if a
+     * new segment file can't be made.
+     *
+     * @return True if traffic is being captured
+     * @throws IOException The reason that the capture stopped on its own, the
+     * first time that this is called after it stopped
+     */
+    public synchronized boolean isCapturing() throws IOException {
+        if( closed ){
+            return false;
+        }
+
+        return isCapturingInternal();
+    }
+
     /**
      * Set the stop bits of the serial port, after the port has been opened.
      *
      * @param stop
      */
-    public void setStopBits(StopBits stop) throws IOException {
+    public synchronized void setStopBits(StopBits stop) throws IOException {
         if( closed ){
             throw new IllegalStateException( "Cannot set the StopBits once the port has been closed." );
         }
@@ -919,7 +1625,7 @@ public class SerialPort implements AutoCloseable {
             throw new IllegalArgumentException( "stop must not be null" );
         }
 
-        setStopBits( stop.getStopBits() );
+        setConfig( config.withStopBits( stop ) );
     }
 
     /**
@@ -927,7 +1633,7 @@ public class SerialPort implements AutoCloseable {
      *
      * @param data
      */
-    public void setDataSize(DataBits data) throws IOException {
+    public synchronized void setDataSize(DataBits data) throws IOException {
         if( closed ){
             throw new IllegalStateException( "Cannot set the DataBits once the port has been closed." );
         }
@@ -936,7 +1642,7 @@ public class SerialPort implements AutoCloseable {
             throw new IllegalArgumentException( "data must not be null" );
         }
 
-        setCharSize( data.getDataBits() );
+        setConfig( config.withDataBits( data ) );
     }
 
     /**
@@ -944,7 +1650,7 @@ public class SerialPort implements AutoCloseable {
      *
      * @param parity
      */
-    public void setParity(Parity parity) throws IOException {
+    public synchronized void setParity(Parity parity) throws IOException {
         if( closed ){
             throw new IllegalStateException( "Cannot set the parity once the port has been closed." );
         }
@@ -953,7 +1659,7 @@ public class SerialPort implements AutoCloseable {
             throw new IllegalArgumentException( "parity must not be null" );
         }
 
-        setParity( parity.getParity() );
+        setConfig( config.withParity( parity ) );
     }
 
     /**
@@ -1020,20 +1726,11 @@ public class SerialPort implements AutoCloseable {
      * @throws IOException if a low-level error occurs
      */
     public BaudRate getBaudRate() throws IOException{
-        int baudRate;
-
         if( closed ){
             throw new IllegalStateException( "Cannot get the baud rate once the port has been closed." );
         }
 
-        baudRate = getBaudRateInternal();
-        for( BaudRate b : BaudRate.values() ){
-            if( b.getBaudRate() == baudRate ){
-                return b;
-            }
-        }
-
-        return BaudRate.B0;
+        return config.getBaudRate();
     }
 
     /**
@@ -1043,21 +1740,11 @@ public class SerialPort implements AutoCloseable {
      * @throws IOException if a low-level error occurs
      */
     public DataBits getDataBits() throws IOException{
-        int dataBits;
-
         if( closed ){
             throw new IllegalStateException( "Cannot get the data bits once the port has been closed." );
         }
 
-        dataBits = getCharSizeInternal();
-
-        for( DataBits d : DataBits.values() ){
-            if( dataBits == d.getDataBits() ){
-                return d;
-            }
-        }
-
-        return DataBits.DATABITS_8;
+        return config.getDataBits();
     }
 
     /**
@@ -1067,21 +1754,11 @@ public class SerialPort implements AutoCloseable {
      * @throws IOException if a low-level error occurs
      */
     public StopBits getStopBits() throws IOException {
-        int stopBits;
-
         if( closed ){
             throw new IllegalStateException( "Cannot get stop bits once the port has been closed." );
         }
 
-        stopBits = getStopBitsInternal();
-        for( StopBits sb : StopBits.values() ){
-            if( sb.getStopBits() == stopBits ){
-                return sb;
-            }
-        }
-
-
-        return StopBits.STOPBITS_1;
+        return config.getStopBits();
     }
 
     /**
@@ -1091,20 +1768,11 @@ public class SerialPort implements AutoCloseable {
      * @throws IOException if a low-level error occurs
      */
     public Parity getParity() throws IOException {
-        int parity;
-
         if( closed ){
             throw new IllegalStateException( "Cannot get the parity once the port has been closed." );
         }
 
-        parity = getParityInternal();
-        for( Parity par : Parity.values() ){
-            if( par.getParity() == parity ){
-                return par;
-            }
-        }
-
-        return Parity.NONE;
+        return config.getParity();
     }
 
     /**
@@ -1114,20 +1782,11 @@ public class SerialPort implements AutoCloseable {
      * @throws IOException if a low-level error occurs
      */
     public FlowControl getFlowControl() throws IOException {
-        int flowControl;
-
         if( closed ){
             throw new IllegalStateException( "Cannot get the flow once the port has been closed." );
         }
 
-        flowControl = getFlowControlInternal();
-        for( FlowControl control : FlowControl.values() ){
-            if( control.getFlowControl() == flowControl ){
-                return control;
-            }
-        }
-
-        return FlowControl.NONE;
+        return config.getFlowControl();
     }
 
     /**
@@ -1136,12 +1795,127 @@ public class SerialPort implements AutoCloseable {
      * @param flow
      * @throws IOException if a low-level error occurs
      */
-    public void setFlowControl(FlowControl flow) throws IOException {
+    public synchronized void setFlowControl(FlowControl flow) throws IOException {
         if( closed ){
             throw new IllegalStateException( "Cannot set flow once the port has been closed." );
         }
 
-        setFlowControl( flow.getFlowControl() );
+        if( flow == null ){
+            throw new IllegalArgumentException( "flow must not be null" );
+        }
+
+        setConfig( config.withFlowControl( flow ) );
+    }
+
+    /**
+     * Get the current settings of the serial port.  This does not need to go
+     * down to the native code.
+     *
+     * @return
+     */
+    public SerialPortConfig getConfig(){
+        if( closed ){
+            throw new IllegalStateException( "Cannot get the config once the port has been closed." );
+        }
+
+        return config;
+    }
+
+    /**
+     * Change all of the settings of the serial port at once.  If the settings
+     * are the same as the current settings, nothing is done.
+     *
+     * @param config The new settings
+     * @throws IOException if a low-level error occurs
+     */
+    public void setConfig(SerialPortConfig config) throws IOException {
+        setConfig( config, false );
+    }
+
+    /**
+     * Change all of the settings of the serial port at once.  If the settings
+     * are the same as the current settings, nothing is done.
+     *
+     * @param config The new settings
+     * @param drain If true, wait until all data that has been written has
+     * been transmitted before changing the settings(TCSADRAIN).  If false,
+     * the settings are changed immediately(TCSANOW).
+     * @throws IOException if a low-level error occurs
+     */
+    public synchronized void setConfig(SerialPortConfig config, boolean drain) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot set the config once the port has been closed." );
+        }
+
+        if( config == null ){
+            throw new IllegalArgumentException( "config must not be null" );
+        }
+
+        if( config.equals( this.config ) ){
+            return;
+        }
+
+        logger.log( Level.FINE, "Changing settings of {0} to {1}", new Object[] { portName, config } );
+
+        applyConfig( config.getBaudRate().getBaudRate(),
+                config.getDataBits().getDataBits(),
+                config.getStopBits().getStopBits(),
+                config.getParity().getParity(),
+                config.getFlowControl().getFlowControl(),
+                drain );
+        this.config = config;
+        //The gap between bytes depends on how long a byte takes to send
+        updateWritePacing();
+    }
+
+    /**
+     * Read the current settings of the port from the native code.  Used
+     * when we open the port without changing the settings.
+     */
+    private SerialPortConfig readConfig() throws IOException {
+        BaudRate rate = BaudRate.B0;
+        DataBits data = DataBits.DATABITS_8;
+        StopBits stop = StopBits.STOPBITS_1;
+        Parity parity = Parity.NONE;
+        FlowControl flow = FlowControl.NONE;
+        int value;
+
+        value = getBaudRateInternal();
+        for( BaudRate b : BaudRate.values() ){
+            if( b.getBaudRate() == value ){
+                rate = b;
+            }
+        }
+
+        value = getCharSizeInternal();
+        for( DataBits d : DataBits.values() ){
+            if( d.getDataBits() == value ){
+                data = d;
+            }
+        }
+
+        value = getStopBitsInternal();
+        for( StopBits sb : StopBits.values() ){
+            if( sb.getStopBits() == value ){
+                stop = sb;
+            }
+        }
+
+        value = getParityInternal();
+        for( Parity par : Parity.values() ){
+            if( par.getParity() == value ){
+                parity = par;
+            }
+        }
+
+        value = getFlowControlInternal();
+        for( FlowControl control : FlowControl.values() ){
+            if( control.getFlowControl() == value ){
+                flow = control;
+            }
+        }
+
+        return new SerialPortConfig( rate, data, stop, parity, flow );
     }
 
     /**
@@ -1241,76 +2015,176 @@ public class SerialPort implements AutoCloseable {
     private native int openPort(String portName)
             throws NoSuchPortException, NotASerialPortException, IOException;
 
+    /**
+     * Make a new pseudo-terminal, return an internal handle for the master
+     * side of it.
+     */
+    private native int openPseudoTerminalInternal(int baudRate, int dataBits, int stopBits, int parity, int flowControl)
+            throws IOException;
+
+    private native String getPseudoTerminalNameInternal() throws IOException;
+
     /**
      * Close this port, release all native resources
      */
     private native void doClose();
 
     /**
-     * Set the baud rate in the native code.
+     * Set all of the port settings at once, with a single call down to the
+     * operating system.
      *
-     * @param baudRate
-     * @return
+     * @param drain If true, wait for all pending output to be sent first
      */
-    private native boolean setBaudRate(int baudRate) throws IOException;
+    private native void applyConfig(int baudRate, int dataBits, int stopBits, int parity, int flowControl, boolean drain)
+            throws IOException;
 
     private native int getBaudRateInternal() throws IOException;
 
+    private native int getStopBitsInternal() throws IOException;
+
+    private native int getCharSizeInternal() throws IOException;
+
+    private native int getParityInternal() throws IOException;
+
+    private native int getFlowControlInternal() throws IOException;
+
     /**
-     * Set the number of stop bits, once the port has been opened.
+     * Get the current state of all of the control lines, without allocating a
+     * SerialLineState.
      *
-     * @param stopBits
-     * @return
+     * @return A combination of the LINE_XXX bits for the lines that are set
+     * @throws IOException If a low-level error occurs
      */
-    private native boolean setStopBits(int stopBits) throws IOException;
+    public int getControlLines() throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot get the control lines once the port has been closed." );
+        }
 
-    private native int getStopBitsInternal() throws IOException;
+        return getSerialLineStateInternalNonblocking();
+    }
 
     /**
-     * Set the character size, once the port has been opened. This should
-     * probably be called 'setDataBits'
+     * Set or clear DTR and/or RTS, without touching the other lines.  The
+     * lines are changed directly by the OS(TIOCMBIS/TIOCMBIC), so this does
+     * not race with other threads changing different lines, and does not
+     * allocate any memory.
      *
-     * @param charSize
-     * @return
+     * For example, to set RTS and clear DTR:
+     * <pre>
+     * {@code
+     * port.setControlLines( SerialPort.LINE_RTS | SerialPort.LINE_DTR, SerialPort.LINE_RTS );
+     * }
+     * </pre>
+     *
+     * @param mask Which lines to change; only LINE_DTR and LINE_RTS may be
+     * given
+     * @param values The new value of the lines in the mask
+     * @throws IOException If a low-level error occurs
      */
-    private native boolean setCharSize(int charSize) throws IOException;
+    public void setControlLines( int mask, int values ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot set the control lines once the port has been closed." );
+        }
 
-    private native int getCharSizeInternal() throws IOException;
+        if( ( mask & ~( LINE_DTR | LINE_RTS ) ) != 0 ){
+            throw new IllegalArgumentException( "Only LINE_DTR and LINE_RTS can be set" );
+        }
+
+        if( mask == 0 ){
+            return;
+        }
+
+        setControlLinesInternal( mask, values );
+    }
 
     /**
-     * Set the parity once the port has been opened.
+     * Get the serial line state, but don't block when getting it
      *
-     * @param parity 0 = None, 1 = Odd, 2 = Even
      * @return
      */
-    private native boolean setParity(int parity) throws IOException;
+    protected native int getSerialLineStateInternalNonblocking() throws IOException;
 
-    private native int getParityInternal() throws IOException;
+    /**
+     * Set the state of the serial line.
+     *
+     * @return
+     */
+    private native int setSerialLineStateInternal(SerialLineState s) throws IOException;
 
     /**
-     * Set the flow control once the port has been opened.
+     * Turn on RS-485 mode.
      *
+     * @return True if the driver is switching RTS, false if we are
+     */
+    private native boolean enableRs485Internal( boolean rtsOnSend, int delayBeforeMillis, int delayAfterMillis,
+            boolean receiveDuringTransmit, boolean discardEcho ) throws IOException;
+
+    /**
+     * Set or clear the lines given in the mask.
+     */
+    private native void setControlLinesInternal( int mask, int values ) throws IOException;
+
+    private native void sendBreakInternal( long breakNanos, long markAfterBreakNanos ) throws IOException;
+
+    /**
+     * Get the number of bytes in the transmit queue of the OS.
      *
-     * @param flowControl 0 = None, 1 = hardware, 2 = software
      * @return
      */
-    private native boolean setFlowControl(int flowControl) throws IOException;
+    private native int getOutputQueueSizeInternal() throws IOException;
 
-    private native int getFlowControlInternal() throws IOException;
+    /**
+     * Wait for the transmit queue to empty.
+     *
+     * @param timeoutMillis The maximum time to wait, or less than 0 to wait
+     * forever
+     * @return True if the queue is empty
+     */
+    private native boolean drainInternal(int timeoutMillis) throws IOException;
 
     /**
-     * Get the serial line state, but don't block when getting it
+     * Read one chunk of data and the time that it came in.
      *
-     * @return
+     * @return The number of bytes read, 0 on timeout, -1 if closed
      */
-    protected native int getSerialLineStateInternalNonblocking() throws IOException;
+    private native int readTimestampedInternal(byte[] buffer, int offset, int length, long timeoutMicros, long[] timestamp)
+            throws IOException;
 
     /**
-     * Set the state of the serial line.
+     * Read as many chunks of data as are available, and the time that each
+     * came in.
      *
-     * @return
+     * @return The number of chunks read, 0 on timeout, -1 if closed
      */
-    private native int setSerialLineStateInternal(SerialLineState s) throws IOException;
+    private native int readChunksInternal(byte[] buffer, int[] lengths, long[] timestamps, long timeoutMicros)
+            throws IOException;
+
+    /**
+     * Open a file to transfer from.
+     *
+     * @return The file descriptor
+     */
+    private static native int openTransferFile( String path ) throws IOException;
+
+    private static native void closeTransferFile( int fd );
+
+    /**
+     * Send part of a file to the port.
+     *
+     * @return The number of bytes sent, or 0 at the end of the file
+     */
+    private native long transferFileChunk( int fd, long position, long count ) throws IOException;
+
+    /**
+     * Write out the data in a direct buffer.
+     */
+    private native void writeDirectInternal( ByteBuffer buffer, int offset, int length ) throws IOException;
+
+    private native void startCaptureInternal( String basePath, long segmentBytes, int maxSegments ) throws IOException;
+
+    private native void stopCaptureInternal();
+
+    private native boolean isCapturingInternal() throws IOException;
 
     //
     // Static Methods
@@ -1328,7 +2202,7 @@ public class SerialPort implements AutoCloseable {
      * 0.2, this returns 2.
      */
     public static int getMinorVersion(){
-        return 13;
+        return 14;
     }
 
     /**
@@ -1336,14 +2210,20 @@ public class SerialPort implements AutoCloseable {
      * {@link #getMajorVersion() getMajorVersion()}, although this is not
      * guaranteed. For example, if this is version 0.2, this returns 0
      */
-    public static native int getMajorNativeVersion();
+    public static int getMajorNativeVersion(){
+        NativeLibraryLoader.load();
+        return getMajorNativeVersionInternal();
+    }
 
     /**
      * Get the minor version of the native code. This should match up with
      * {@link #getMinorVersion() getMinorVersion()}, although this is not
      * guaranteed. For example, if this is version 0.2, this returns 2.
      */
-    public static native int getMinorNativeVersion();
+    public static int getMinorNativeVersion(){
+        NativeLibraryLoader.load();
+        return getMinorNativeVersionInternal();
+    }
 
     /**
      * <p>
@@ -1361,6 +2241,105 @@ public class SerialPort implements AutoCloseable {
      *
      * @return
      */
-    public static native String[] getSerialPorts() throws IOException;
+    public static String[] getSerialPorts() throws IOException {
+        NativeLibraryLoader.load();
+        return getSerialPortsInternal();
+    }
+
+    /**
+     * Make a new pseudo-terminal and open both sides of it, with the default
+     * settings of {@link SerialPortBuilder}.
+     *
+     * @return The two connected ports
+     * @throws IOException If the pseudo-terminal can't be made
+     * @see #openPseudoTerminalPair(SerialPortBuilder)
+     */
+    public static PseudoTerminalPair openPseudoTerminalPair() throws IOException {
+        return openPseudoTerminalPair( new SerialPortBuilder() );
+    }
+
+    /**
+     * Make a new pseudo-terminal and open both sides of it.  Anything written
+     * to one side can be read from the other, and both sides can be used in
+     * all of the same ways as a real serial port, so this can stand in for a
+     * real port(or a null-modem cable between two of them) in tests.
+     *
+     * @param settings The settings for both sides; the port name is ignored,
+     * and RS-485 may not be used
+     * @return The two connected ports
+     * @throws IOException If the pseudo-terminal can't be made
+     */
+    public static PseudoTerminalPair openPseudoTerminalPair( SerialPortBuilder settings ) throws IOException {
+        SerialPort master = openPseudoTerminal( settings );
+        try{
+            SerialPort slave = new SerialPort( settings, master.getPseudoTerminalName(), false );
+            return new PseudoTerminalPair( master, slave );
+        }catch( NoSuchPortException | NotASerialPortException e ){
+            master.close();
+            throw new IOException( "Unable to open the slave side of the pseudo-terminal", e );
+        }catch( IOException | RuntimeException e ){
+            master.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Make a new pseudo-terminal, and open the master side of it.  Another
+     * program can then open the slave side(see
+     * {@link #getPseudoTerminalName()}) as if it were a serial port, and talk
+     * to us.
+     *
+     * The slave side is also kept open internally, so the master doesn't
+     * get an error when nothing else has the slave open.  The control lines
+     * of a pseudo-terminal always read as clear, and setting them does
+     * nothing.  This is not supported on Windows.
+     *
+     * @param settings The settings for the pseudo-terminal; the port name is
+     * ignored, and RS-485 may not be used
+     * @return The master side
+     * @throws IOException If the pseudo-terminal can't be made
+     */
+    public static SerialPort openPseudoTerminal( SerialPortBuilder settings ) throws IOException {
+        if( settings == null ){
+            throw new IllegalArgumentException( "settings must not be null" );
+        }
+
+        if( settings.rs485 != null ){
+            throw new IllegalArgumentException( "A pseudo-terminal can't be used in RS-485 mode" );
+        }
+
+        try{
+            return new SerialPort( settings, "/dev/ptmx", true );
+        }catch( NoSuchPortException | NotASerialPortException e ){
+            //Only thrown when opening a port by name
+            throw new IOException( e );
+        }
+    }
+
+    /**
+     * Get the name of the slave side of a pseudo-terminal made with
+     * {@link #openPseudoTerminal(SerialPortBuilder)}, for example
+     * {@code /dev/pts/3}.
+     *
+     * @return The path to the slave side
+     * @throws IOException if a low-level error occurs
+     */
+    public String getPseudoTerminalName() throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot get the pseudo-terminal name once the port has been closed." );
+        }
+
+        if( !pseudoTerminalMaster ){
+            throw new IllegalStateException( "This port is not the master side of a pseudo-terminal." );
+        }
+
+        return getPseudoTerminalNameInternal();
+    }
+
+    static native int getMajorNativeVersionInternal();
+
+    static native int getMinorNativeVersionInternal();
+
+    private static native String[] getSerialPortsInternal() throws IOException;
 
 }
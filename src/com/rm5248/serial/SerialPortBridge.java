@@ -0,0 +1,328 @@
+package com.rm5248.serial;
+
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.DataBits;
+import com.rm5248.serial.SerialPort.FlowControl;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects a serial port to a TCP or Unix domain socket, like ser2net.  One
+ * client can be connected at a time; anything the client sends goes out the
+ * serial port, and anything that comes in on the serial port goes to the
+ * client.
+ *
+ * All of the forwarding is done by a single native thread which polls the
+ * socket and the port, so no Java threads are used and the data never comes
+ * into Java.  On Linux, raw data is moved with splice() where the kernel
+ * supports it.  While no client is connected, data from the port is left in
+ * the operating system's buffer.
+ *
+ * If RFC 2217 is turned on, the client is spoken to with telnet, and can
+ * change the baud rate, data bits, parity, stop bits, flow control, DTR and
+ * RTS of the port.  Line and modem state notifications are not sent.
+ *
+ * The port must have been opened with NO_CONTROL_LINE_CHANGE and without a
+ * native receive buffer, and should not be read from while the bridge is
+ * running.  The bridge is closed when the port is closed.  This is not
+ * supported on Windows.
+ *
+ * @author rm5248
+ */
+public class SerialPortBridge implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger( SerialPortBridge.class.getName() );
+
+    /* RFC 2217 SET-CONTROL values */
+    private static final int CONTROL_FLOW_REQUEST = 0;
+    private static final int CONTROL_FLOW_NONE = 1;
+    private static final int CONTROL_FLOW_XONXOFF = 2;
+    private static final int CONTROL_FLOW_HARDWARE = 3;
+    private static final int CONTROL_BREAK_REQUEST = 4;
+    private static final int CONTROL_BREAK_ON = 5;
+    private static final int CONTROL_BREAK_OFF = 6;
+    private static final int CONTROL_DTR_REQUEST = 7;
+    private static final int CONTROL_DTR_ON = 8;
+    private static final int CONTROL_DTR_OFF = 9;
+    private static final int CONTROL_RTS_REQUEST = 10;
+    private static final int CONTROL_RTS_ON = 11;
+    private static final int CONTROL_RTS_OFF = 12;
+
+    /* The handle to the port.  Needed for native implementation */
+    @SuppressWarnings("unused")
+    private int handle;
+    private final SerialPort port;
+    private final int localPort;
+    /* to client, to port, connections, connected, error */
+    private final long[] stats;
+    private final AtomicBoolean closed;
+
+    private SerialPortBridge( SerialPort port, boolean unixSocket, String address, int tcpPort, boolean rfc2217 )
+            throws IOException {
+        this.port = port;
+        this.stats = new long[ 5 ];
+        this.closed = new AtomicBoolean( false );
+        this.handle = port.attachBridge( this );
+
+        try{
+            localPort = startBridge( unixSocket, address, tcpPort, rfc2217 );
+        }catch( IOException e ){
+            closed.set( true );
+            throw e;
+        }
+    }
+
+    /**
+     * Listen for a client on a TCP port.
+     *
+     * @param port The serial port to connect to
+     * @param bindAddress The address to listen on, or null to listen on all
+     * addresses
+     * @param tcpPort The TCP port to listen on, or 0 to pick any free port(see
+     * {@link #getLocalPort()})
+     * @param rfc2217 True to talk telnet with RFC 2217 to the client
+     * @return The running bridge
+     * @throws IOException If the socket can't be set up
+     */
+    public static SerialPortBridge listenTcp( SerialPort port, String bindAddress, int tcpPort, boolean rfc2217 )
+            throws IOException {
+        if( port == null ){
+            throw new IllegalArgumentException( "port must not be null" );
+        }
+
+        if( tcpPort < 0 || tcpPort > 65535 ){
+            throw new IllegalArgumentException( "tcpPort must be between 0 and 65535" );
+        }
+
+        return new SerialPortBridge( port, false, bindAddress == null ? "" : bindAddress, tcpPort, rfc2217 );
+    }
+
+    /**
+     * Listen for a client on a Unix domain socket.  The socket file must not
+     * already exist, and is removed when the bridge is closed.
+     *
+     * @param port The serial port to connect to
+     * @param path Where to make the socket
+     * @param rfc2217 True to talk telnet with RFC 2217 to the client
+     * @return The running bridge
+     * @throws IOException If the socket can't be set up
+     */
+    public static SerialPortBridge listenUnix( SerialPort port, String path, boolean rfc2217 ) throws IOException {
+        if( port == null ){
+            throw new IllegalArgumentException( "port must not be null" );
+        }
+
+        if( path == null ){
+            throw new IllegalArgumentException( "path must not be null" );
+        }
+
+        return new SerialPortBridge( port, true, path, 0, rfc2217 );
+    }
+
+    /**
+     * Get the TCP port that we are listening on.
+     *
+     * @return The port, or 0 for a Unix domain socket
+     */
+    public int getLocalPort(){
+        return localPort;
+    }
+
+    /**
+     * @return The number of bytes sent from the serial port to clients
+     */
+    public synchronized long getBytesToClient(){
+        getStats( stats );
+        return stats[ 0 ];
+    }
+
+    /**
+     * @return The number of bytes sent from clients to the serial port
+     */
+    public synchronized long getBytesToPort(){
+        getStats( stats );
+        return stats[ 1 ];
+    }
+
+    /**
+     * @return The number of clients that have connected
+     */
+    public synchronized long getConnectionCount(){
+        getStats( stats );
+        return stats[ 2 ];
+    }
+
+    /**
+     * @return True if a client is connected right now
+     */
+    public synchronized boolean isClientConnected(){
+        getStats( stats );
+        return !closed.get() && stats[ 3 ] != 0;
+    }
+
+    /**
+     * Check if the bridge has stopped because of a problem with the serial
+     * port, for example because the device was unplugged.
+     *
+     * @return True if the bridge has stopped on its own
+     */
+    public synchronized boolean hasFailed(){
+        getStats( stats );
+        return stats[ 4 ] != 0;
+    }
+
+    public boolean isClosed(){
+        return closed.get();
+    }
+
+    /**
+     * Stop the bridge, disconnecting any client.
+     */
+    @Override
+    public void close(){
+        if( !closed.compareAndSet( false, true ) ){
+            return;
+        }
+
+        stopBridge();
+    }
+
+    /**
+     * Called from the native thread to carry out an RFC 2217 command.
+     *
+     * @return The value to send back to the client
+     */
+    private int comPortCommand( int command, int value ){
+        try{
+            switch( command ){
+                case 1:
+                    return setBaudRate( value );
+                case 2:
+                    return setDataSize( value );
+                case 3:
+                    return setParity( value );
+                case 4:
+                    return setStopSize( value );
+                case 5:
+                    return setControl( value );
+                default:
+                    return value;
+            }
+        }catch( IOException | IllegalStateException e ){
+            logger.log( Level.WARNING, "Unable to carry out RFC 2217 command " + command, e );
+            return value;
+        }
+    }
+
+    private int setBaudRate( int value ) throws IOException {
+        if( value != 0 ){
+            for( BaudRate rate : BaudRate.values() ){
+                if( rate.getBaudRate() == value ){
+                    port.setBaudRate( rate );
+                    break;
+                }
+            }
+        }
+
+        return port.getBaudRate().getBaudRate();
+    }
+
+    private int setDataSize( int value ) throws IOException {
+        if( value != 0 ){
+            for( DataBits data : DataBits.values() ){
+                if( data.getDataBits() == value ){
+                    port.setDataSize( data );
+                    break;
+                }
+            }
+        }
+
+        return port.getDataBits().getDataBits();
+    }
+
+    private int setParity( int value ) throws IOException {
+        //RFC 2217: 1 = none, 2 = odd, 3 = even
+        if( value == 1 ){
+            port.setParity( Parity.NONE );
+        }else if( value == 2 ){
+            port.setParity( Parity.ODD );
+        }else if( value == 3 ){
+            port.setParity( Parity.EVEN );
+        }
+
+        switch( port.getParity() ){
+            case ODD:
+                return 2;
+            case EVEN:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    private int setStopSize( int value ) throws IOException {
+        //RFC 2217: 1 = 1 bit, 2 = 2 bits, 3 = 1.5 bits(not supported)
+        if( value == 1 ){
+            port.setStopBits( StopBits.STOPBITS_1 );
+        }else if( value == 2 ){
+            port.setStopBits( StopBits.STOPBITS_2 );
+        }
+
+        return port.getStopBits().getStopBits();
+    }
+
+    private int setControl( int value ) throws IOException {
+        switch( value ){
+            case CONTROL_FLOW_NONE:
+                port.setFlowControl( FlowControl.NONE );
+                break;
+            case CONTROL_FLOW_XONXOFF:
+                port.setFlowControl( FlowControl.SOFTWARE );
+                break;
+            case CONTROL_FLOW_HARDWARE:
+                port.setFlowControl( FlowControl.HARDWARE );
+                break;
+            case CONTROL_DTR_ON:
+            case CONTROL_DTR_OFF:
+                port.setControlLines( SerialPort.LINE_DTR, value == CONTROL_DTR_ON ? SerialPort.LINE_DTR : 0 );
+                return value;
+            case CONTROL_RTS_ON:
+            case CONTROL_RTS_OFF:
+                port.setControlLines( SerialPort.LINE_RTS, value == CONTROL_RTS_ON ? SerialPort.LINE_RTS : 0 );
+                return value;
+            case CONTROL_DTR_REQUEST:
+                return ( port.getControlLines() & SerialPort.LINE_DTR ) != 0 ? CONTROL_DTR_ON : CONTROL_DTR_OFF;
+            case CONTROL_RTS_REQUEST:
+                return ( port.getControlLines() & SerialPort.LINE_RTS ) != 0 ? CONTROL_RTS_ON : CONTROL_RTS_OFF;
+            case CONTROL_BREAK_REQUEST:
+            case CONTROL_BREAK_ON:
+            case CONTROL_BREAK_OFF:
+                //Break is not supported
+                return CONTROL_BREAK_OFF;
+            case CONTROL_FLOW_REQUEST:
+                break;
+            default:
+                //Inbound flow control is not supported
+                return value;
+        }
+
+        switch( port.getFlowControl() ){
+            case SOFTWARE:
+                return CONTROL_FLOW_XONXOFF;
+            case HARDWARE:
+                return CONTROL_FLOW_HARDWARE;
+            default:
+                return CONTROL_FLOW_NONE;
+        }
+    }
+
+    private native int startBridge( boolean unixSocket, String address, int tcpPort, boolean rfc2217 ) throws IOException;
+
+    private native void stopBridge();
+
+    private native void getStats( long[] stats );
+}
@@ -14,6 +14,10 @@ public class SerialPortBuilder {
     SerialPort.Parity parity;
     SerialPort.StopBits stopBits;
     int controlFlags;
+    int asyncWriteMaxMessages;
+    int asyncWriteMaxBytes;
+    int nativeReceiveBufferSize;
+    Rs485Config rs485;
 
     /**
      * Create a new SerialPortBuilder.  Defaults to the same settings as
@@ -26,6 +30,28 @@ public class SerialPortBuilder {
         parity = SerialPort.Parity.NONE;
         stopBits = SerialPort.StopBits.STOPBITS_1;
         controlFlags = SerialPort.ALL_CONTROL_LINES;
+        asyncWriteMaxMessages = AsyncSerialWriter.DEFAULT_MAX_MESSAGES;
+        asyncWriteMaxBytes = AsyncSerialWriter.DEFAULT_MAX_BYTES;
+        nativeReceiveBufferSize = 0;
+        rs485 = null;
+    }
+
+    /**
+     * Make a copy of another builder, so that its settings can be used
+     * again later.
+     */
+    SerialPortBuilder( SerialPortBuilder other ){
+        portName = other.portName;
+        baudRate = other.baudRate;
+        dataBits = other.dataBits;
+        flowControl = other.flowControl;
+        parity = other.parity;
+        stopBits = other.stopBits;
+        controlFlags = other.controlFlags;
+        asyncWriteMaxMessages = other.asyncWriteMaxMessages;
+        asyncWriteMaxBytes = other.asyncWriteMaxBytes;
+        nativeReceiveBufferSize = other.nativeReceiveBufferSize;
+        rs485 = other.rs485;
     }
 
     public SerialPortBuilder setPort( String portName ){
@@ -58,12 +84,91 @@ public class SerialPortBuilder {
         return this;
     }
 
+    /**
+     * Set the speed, data bits, stop bits, parity and flow control all at
+     * once.
+     *
+     * @param config
+     * @return
+     */
+    public SerialPortBuilder setConfig( SerialPortConfig config ){
+        this.baudRate = config.getBaudRate();
+        this.dataBits = config.getDataBits();
+        this.stopBits = config.getStopBits();
+        this.parity = config.getParity();
+        this.flowControl = config.getFlowControl();
+        return this;
+    }
+
     public SerialPortBuilder setControlFlags( int controlFlags ){
         this.controlFlags = controlFlags;
         return this;
     }
 
+    /**
+     * Set how much data the {@link AsyncSerialWriter} for the port may have
+     * waiting to be written before it starts rejecting messages.
+     *
+     * @param maxMessages The maximum number of messages in the queue
+     * @param maxBytes The maximum number of bytes in the queue
+     * @return
+     */
+    public SerialPortBuilder setAsyncWriteQueueLimits( int maxMessages, int maxBytes ){
+        if( maxMessages <= 0 || maxBytes <= 0 ){
+            throw new IllegalArgumentException( "Queue limits must be greater than 0" );
+        }
+        this.asyncWriteMaxMessages = maxMessages;
+        this.asyncWriteMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Have a native thread read from the serial port into a buffer of the
+     * given size.  The native thread keeps reading even if the JVM is paused,
+     * so that high-speed data is not lost during garbage collection.  Data is
+     * read out of the buffer through the normal InputStream, and by any
+     * number of {@link ReceiveSubscriber}s.
+     *
+     * Note that when this is enabled, control line changes are not monitored;
+     * the control flags are ignored.  This is not supported on Windows.
+     *
+     * @param bytes The size of the buffer in bytes, or 0 to disable
+     * @return
+     */
+    public SerialPortBuilder setNativeReceiveBufferSize( int bytes ){
+        if( bytes < 0 ){
+            throw new IllegalArgumentException( "bytes must not be negative" );
+        }
+        this.nativeReceiveBufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * Run the port in RS-485 half-duplex mode, with RTS turning on the
+     * transmitter while sending.  This is not supported on Windows.
+     *
+     * @param rs485 The RS-485 settings, or null to not use RS-485 mode
+     * @return
+     */
+    public SerialPortBuilder setRs485( Rs485Config rs485 ){
+        this.rs485 = rs485;
+        return this;
+    }
+
     public SerialPort build() throws NoSuchPortException, NotASerialPortException, IOException {
         return new SerialPort( this );
     }
+
+    /**
+     * Open the port as a {@link ResilientSerialPort}, which opens the device
+     * again with these settings if it is unplugged and plugged back in.
+     *
+     * @return
+     * @throws NoSuchPortException If the port does not exist
+     * @throws NotASerialPortException If the port is not a serial port
+     * @throws IOException if a low-level error occurs
+     */
+    public ResilientSerialPort buildResilient() throws NoSuchPortException, NotASerialPortException, IOException {
+        return new ResilientSerialPort( this );
+    }
 }
@@ -0,0 +1,186 @@
+package com.rm5248.serial;
+
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.DataBits;
+import com.rm5248.serial.SerialPort.FlowControl;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+
+/**
+ * An immutable set of settings for a serial port: the speed, data bits, stop
+ * bits, parity and flow control.
+ *
+ * All of the settings are applied to the port at the same time with
+ * {@link SerialPort#setConfig(SerialPortConfig)}, so the port never runs with
+ * only part of the new settings.  Use the {@code withXXX} methods to make a
+ * copy with one setting changed, for example:
+ *
+ * <pre>
+ * {@code
+ * SerialPortConfig fast = port.getConfig().withBaudRate( BaudRate.B115200 );
+ * port.setConfig( fast, true );
+ * }
+ * </pre>
+ *
+ * @author rm5248
+ */
+public final class SerialPortConfig {
+
+    /**
+     * 9600 baud, 8 data bits, 1 stop bit, no parity and no flow control.
+     */
+    public static final SerialPortConfig DEFAULT = new SerialPortConfig( BaudRate.B9600,
+            DataBits.DATABITS_8,
+            StopBits.STOPBITS_1,
+            Parity.NONE,
+            FlowControl.NONE );
+
+    private final BaudRate baudRate;
+    private final DataBits dataBits;
+    private final StopBits stopBits;
+    private final Parity parity;
+    private final FlowControl flowControl;
+
+    public SerialPortConfig( BaudRate baudRate, DataBits dataBits, StopBits stopBits, Parity parity, FlowControl flowControl ){
+        if( baudRate == null ){
+            throw new IllegalArgumentException( "rate must not be null" );
+        }
+
+        if( dataBits == null ){
+            throw new IllegalArgumentException( "data must not be null" );
+        }
+
+        if( stopBits == null ){
+            throw new IllegalArgumentException( "stop must not be null" );
+        }
+
+        if( parity == null ){
+            throw new IllegalArgumentException( "parity must not be null" );
+        }
+
+        if( flowControl == null ){
+            throw new IllegalArgumentException( "flow must not be null" );
+        }
+
+        this.baudRate = baudRate;
+        this.dataBits = dataBits;
+        this.stopBits = stopBits;
+        this.parity = parity;
+        this.flowControl = flowControl;
+    }
+
+    public BaudRate getBaudRate(){
+        return baudRate;
+    }
+
+    public DataBits getDataBits(){
+        return dataBits;
+    }
+
+    public StopBits getStopBits(){
+        return stopBits;
+    }
+
+    public Parity getParity(){
+        return parity;
+    }
+
+    public FlowControl getFlowControl(){
+        return flowControl;
+    }
+
+    /**
+     * Get the number of bits sent for each character: the start bit, the data
+     * bits, the parity bit(if any) and the stop bits.
+     *
+     * @return
+     */
+    public int getBitsPerCharacter(){
+        int bits = 1 + dataBits.getDataBits() + stopBits.getStopBits();
+        if( parity != Parity.NONE ){
+            bits++;
+        }
+        return bits;
+    }
+
+    /**
+     * Get how long it takes to send one character at these settings.
+     *
+     * @return The time in nanoseconds, or 0 if the baud rate is 0
+     */
+    public long getCharacterTimeNanos(){
+        if( baudRate.getBaudRate() == 0 ){
+            return 0;
+        }
+        return getBitsPerCharacter() * 1000000000L / baudRate.getBaudRate();
+    }
+
+    public SerialPortConfig withBaudRate( BaudRate rate ){
+        if( rate == baudRate ){
+            return this;
+        }
+        return new SerialPortConfig( rate, dataBits, stopBits, parity, flowControl );
+    }
+
+    public SerialPortConfig withDataBits( DataBits data ){
+        if( data == dataBits ){
+            return this;
+        }
+        return new SerialPortConfig( baudRate, data, stopBits, parity, flowControl );
+    }
+
+    public SerialPortConfig withStopBits( StopBits stop ){
+        if( stop == stopBits ){
+            return this;
+        }
+        return new SerialPortConfig( baudRate, dataBits, stop, parity, flowControl );
+    }
+
+    public SerialPortConfig withParity( Parity parity ){
+        if( parity == this.parity ){
+            return this;
+        }
+        return new SerialPortConfig( baudRate, dataBits, stopBits, parity, flowControl );
+    }
+
+    public SerialPortConfig withFlowControl( FlowControl flow ){
+        if( flow == flowControl ){
+            return this;
+        }
+        return new SerialPortConfig( baudRate, dataBits, stopBits, parity, flow );
+    }
+
+    @Override
+    public boolean equals( Object obj ){
+        if( this == obj ){
+            return true;
+        }
+
+        if( !( obj instanceof SerialPortConfig ) ){
+            return false;
+        }
+
+        SerialPortConfig other = (SerialPortConfig)obj;
+        return baudRate == other.baudRate
+                && dataBits == other.dataBits
+                && stopBits == other.stopBits
+                && parity == other.parity
+                && flowControl == other.flowControl;
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = baudRate.hashCode();
+        hash = 31 * hash + dataBits.hashCode();
+        hash = 31 * hash + stopBits.hashCode();
+        hash = 31 * hash + parity.hashCode();
+        hash = 31 * hash + flowControl.hashCode();
+        return hash;
+    }
+
+    @Override
+    public String toString(){
+        return "speed:" + baudRate + " data:" + dataBits + " stop:" + stopBits
+                + " parity:" + parity + " flow:" + flowControl;
+    }
+}
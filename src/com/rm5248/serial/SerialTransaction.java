@@ -0,0 +1,189 @@
+package com.rm5248.serial;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request which has been sent, or is waiting to be sent, by a
+ * {@link SerialTransactionEngine}, and its response once it comes in.
+ *
+ * {@link #get()} returns the response.  If no response came in before the
+ * deadline, get() throws an ExecutionException caused by an
+ * InterruptedIOException, and {@link #isTimedOut()} is true.
+ *
+ * @author rm5248
+ */
+public class SerialTransaction implements Future<byte[]> {
+
+    private final SerialTransactionEngine engine;
+    private final byte[] request;
+    private final ResponseMatcher matcher;
+    private final long timeoutMillis;
+    private final TransactionListener listener;
+    /* Links in the timer wheel; only used by TransactionTimer */
+    SerialTransaction timerNext;
+    SerialTransaction timerPrev;
+    int timerSlot;
+    long timerRounds;
+    private byte[] response;
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean timedOut;
+    private boolean done;
+
+    SerialTransaction( SerialTransactionEngine engine, byte[] request, ResponseMatcher matcher,
+            long timeoutMillis, TransactionListener listener ){
+        this.engine = engine;
+        this.request = request;
+        this.matcher = matcher;
+        this.timeoutMillis = timeoutMillis;
+        this.listener = listener;
+        this.timerSlot = -1;
+    }
+
+    /**
+     * @return A copy of the request
+     */
+    public byte[] getRequest(){
+        return request.clone();
+    }
+
+    public long getTimeoutMillis(){
+        return timeoutMillis;
+    }
+
+    /**
+     * Cancel the request.  If it has not been sent yet, it won't be; if it
+     * has, its response is thrown away when it comes in.
+     *
+     * @param mayInterruptIfRunning Ignored
+     * @return False if the transaction was already done
+     */
+    @Override
+    public boolean cancel( boolean mayInterruptIfRunning ){
+        synchronized( this ){
+            if( done ){
+                return false;
+            }
+            done = true;
+            cancelled = true;
+            notifyAll();
+        }
+
+        engine.remove( this );
+        finished();
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled(){
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone(){
+        return done;
+    }
+
+    /**
+     * @return True if no response came in before the deadline
+     */
+    public synchronized boolean isTimedOut(){
+        return timedOut;
+    }
+
+    @Override
+    public synchronized byte[] get() throws InterruptedException, ExecutionException {
+        while( !done ){
+            wait();
+        }
+
+        return result();
+    }
+
+    @Override
+    public synchronized byte[] get( long timeout, TimeUnit unit )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos( timeout );
+        long remaining;
+
+        while( !done ){
+            remaining = end - System.nanoTime();
+            if( remaining <= 0 ){
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait( this, remaining );
+        }
+
+        return result();
+    }
+
+    SerialTransactionEngine getEngine(){
+        return engine;
+    }
+
+    ResponseMatcher getMatcher(){
+        return matcher;
+    }
+
+    byte[] getRequestInternal(){
+        return request;
+    }
+
+    synchronized boolean complete( byte[] response ){
+        if( done ){
+            return false;
+        }
+        this.response = response;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    synchronized boolean fail( Throwable failure ){
+        if( done ){
+            return false;
+        }
+        this.failure = failure;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    synchronized boolean timeOut(){
+        if( done ){
+            return false;
+        }
+        failure = new InterruptedIOException( "No response within " + timeoutMillis + " ms" );
+        timedOut = true;
+        done = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Tell the listener.  Must be called without holding any locks.
+     */
+    void finished(){
+        if( listener != null ){
+            listener.transactionFinished( this );
+        }
+    }
+
+    private byte[] result() throws ExecutionException {
+        if( cancelled ){
+            throw new CancellationException();
+        }
+
+        if( failure != null ){
+            throw new ExecutionException( failure );
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,460 @@
+package com.rm5248.serial;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends requests out a serial port and matches up the responses that come
+ * back, with more than one request allowed out at once.
+ *
+ * {@link #submit(byte[], ResponseMatcher, long) submit()} queues a request
+ * and returns right away.  Requests are written in the order they were
+ * submitted, as long as fewer than the maximum number(see
+ * {@link #setMaxInFlight(int)}) are waiting for a response.  A single reader
+ * thread reads everything that comes in and asks the matcher of each waiting
+ * request, oldest first, if the data is its response.  Data that none of them
+ * want is thrown away one byte at a time, so that the reader can find the
+ * start of the next response; see {@link #getDiscardedBytes()}.
+ *
+ * Each request has its own deadline, counted from when it was written.  A
+ * request with no response by then is finished with a timeout and the next
+ * request is sent; a response that comes in after that is thrown away, unless
+ * another request's matcher takes it.
+ *
+ * Get an instance for a SerialPort with
+ * {@link SerialPort#getTransactionEngine()}.  Nothing else should read from
+ * the port while the engine is in use.
+ *
+ * @author rm5248
+ */
+public class SerialTransactionEngine implements AutoCloseable {
+
+    private final static Logger logger = Logger.getLogger( SerialTransactionEngine.class.getName() );
+
+    /* The most data that we will hold onto while matchers ask for more */
+    private static final int MAX_RECEIVED = 64 * 1024;
+
+    private final InputStream input;
+    private final OutputStream output;
+    private final Object lock;
+    /* Requests that have not been written yet; guarded by lock */
+    private final ArrayDeque<SerialTransaction> queued;
+    /* Requests that have been written, oldest first; guarded by lock */
+    private final List<SerialTransaction> inFlight;
+    private final Thread readerThread;
+    /* Data that has come in but has not been matched yet; only used by the reader */
+    private byte[] received;
+    private int receivedStart;
+    private int receivedEnd;
+    private int maxInFlight;
+    private long discardedBytes;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Run transactions on the given device, allowing one request at a time.
+     *
+     * @param device The device to read from and write to
+     */
+    public SerialTransactionEngine( SerialDevice device ){
+        this( device.getInputStream(), device.getOutputStream(), device.getPortName(), 1 );
+    }
+
+    SerialTransactionEngine( InputStream input, OutputStream output, String name, int maxInFlight ){
+        if( maxInFlight <= 0 ){
+            throw new IllegalArgumentException( "maxInFlight must be greater than 0" );
+        }
+
+        this.input = input;
+        this.output = output;
+        this.maxInFlight = maxInFlight;
+        lock = new Object();
+        queued = new ArrayDeque<SerialTransaction>();
+        inFlight = new ArrayList<SerialTransaction>();
+        received = new byte[ 256 ];
+
+        readerThread = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                readLoop();
+            }
+        }, "SerialTransactionEngine-" + name );
+        readerThread.setDaemon( true );
+        readerThread.start();
+    }
+
+    /**
+     * Queue up a request.
+     *
+     * @param request The request to send.  The array is copied.
+     * @param matcher Finds the response to this request
+     * @param timeoutMillis How long to wait for the response, counted from
+     * when the request is written
+     * @return The transaction, which finishes when the response comes in
+     * @throws IOException If reading from or writing to the port has failed
+     */
+    public SerialTransaction submit( byte[] request, ResponseMatcher matcher, long timeoutMillis ) throws IOException {
+        return submit( request, matcher, timeoutMillis, null );
+    }
+
+    /**
+     * Queue up a request.
+     *
+     * @param request The request to send.  The array is copied.
+     * @param matcher Finds the response to this request
+     * @param timeoutMillis How long to wait for the response, counted from
+     * when the request is written
+     * @param listener Told when the transaction is finished; may be null
+     * @return The transaction, which finishes when the response comes in
+     * @throws IOException If reading from or writing to the port has failed
+     */
+    public SerialTransaction submit( byte[] request, ResponseMatcher matcher, long timeoutMillis,
+            TransactionListener listener ) throws IOException {
+        if( request == null || matcher == null ){
+            throw new IllegalArgumentException( "request and matcher must not be null" );
+        }
+
+        if( timeoutMillis <= 0 ){
+            throw new IllegalArgumentException( "timeoutMillis must be greater than 0" );
+        }
+
+        SerialTransaction transaction = new SerialTransaction( this, request.clone(), matcher,
+                timeoutMillis, listener );
+        List<SerialTransaction> finished = new ArrayList<SerialTransaction>();
+
+        synchronized( lock ){
+            if( closed ){
+                throw new IllegalStateException( "Cannot submit once the engine has been closed." );
+            }
+
+            if( failure != null ){
+                throw failure;
+            }
+
+            queued.add( transaction );
+            sendQueued( finished );
+        }
+
+        notifyFinished( finished );
+
+        return transaction;
+    }
+
+    /**
+     * Set how many requests may be waiting for a response at once.  Only
+     * allow more than one if the responses can be told apart by their
+     * matchers.
+     *
+     * @param maxInFlight
+     */
+    public void setMaxInFlight( int maxInFlight ){
+        if( maxInFlight <= 0 ){
+            throw new IllegalArgumentException( "maxInFlight must be greater than 0" );
+        }
+
+        List<SerialTransaction> finished = new ArrayList<SerialTransaction>();
+
+        synchronized( lock ){
+            this.maxInFlight = maxInFlight;
+            sendQueued( finished );
+        }
+
+        notifyFinished( finished );
+    }
+
+    public int getMaxInFlight(){
+        synchronized( lock ){
+            return maxInFlight;
+        }
+    }
+
+    /**
+     * @return How many requests have been written and are waiting for a response
+     */
+    public int getInFlightCount(){
+        synchronized( lock ){
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * @return How many requests have not been written yet
+     */
+    public int getQueuedCount(){
+        synchronized( lock ){
+            return queued.size();
+        }
+    }
+
+    /**
+     * @return How many bytes have come in that no request wanted
+     */
+    public long getDiscardedBytes(){
+        synchronized( lock ){
+            return discardedBytes;
+        }
+    }
+
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Stop running transactions.  Any that are not finished fail with an
+     * IOException.  The reader thread stops when the port is closed, or
+     * when the next data comes in.
+     */
+    @Override
+    public void close(){
+        List<SerialTransaction> finished = new ArrayList<SerialTransaction>();
+
+        synchronized( lock ){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            failAll( new IOException( "The transaction engine has been closed" ), finished );
+        }
+
+        notifyFinished( finished );
+    }
+
+    /**
+     * Called when a transaction is cancelled.
+     */
+    void remove( SerialTransaction transaction ){
+        List<SerialTransaction> finished = new ArrayList<SerialTransaction>();
+
+        synchronized( lock ){
+            if( queued.remove( transaction ) ){
+                return;
+            }
+
+            if( inFlight.remove( transaction ) ){
+                TransactionTimer.getInstance().remove( transaction );
+                sendQueued( finished );
+            }
+        }
+
+        notifyFinished( finished );
+    }
+
+    /**
+     * Called by the timer when the deadline of a transaction has passed.
+     */
+    void expire( SerialTransaction transaction ){
+        List<SerialTransaction> finished = new ArrayList<SerialTransaction>();
+
+        synchronized( lock ){
+            if( !inFlight.remove( transaction ) ){
+                return;
+            }
+
+            if( transaction.timeOut() ){
+                finished.add( transaction );
+            }
+            sendQueued( finished );
+        }
+
+        notifyFinished( finished );
+    }
+
+    /**
+     * Write out queued requests while there is room for them.  Must be
+     * called with the lock held.
+     */
+    private void sendQueued( List<SerialTransaction> finished ){
+        while( !closed && failure == null && inFlight.size() < maxInFlight && !queued.isEmpty() ){
+            SerialTransaction transaction = queued.poll();
+            if( transaction.isDone() ){
+                continue;
+            }
+
+            try{
+                output.write( transaction.getRequestInternal() );
+                output.flush();
+            }catch( IOException e ){
+                failure = e;
+                if( transaction.fail( e ) ){
+                    finished.add( transaction );
+                }
+                failAll( e, finished );
+                return;
+            }
+
+            inFlight.add( transaction );
+            TransactionTimer.getInstance().add( transaction,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( transaction.getTimeoutMillis() ) );
+        }
+    }
+
+    /**
+     * Fail everything that is not finished.  Must be called with the lock
+     * held.
+     */
+    private void failAll( IOException e, List<SerialTransaction> finished ){
+        for( SerialTransaction transaction : inFlight ){
+            TransactionTimer.getInstance().remove( transaction );
+            if( transaction.fail( e ) ){
+                finished.add( transaction );
+            }
+        }
+        inFlight.clear();
+
+        for( SerialTransaction transaction : queued ){
+            if( transaction.fail( e ) ){
+                finished.add( transaction );
+            }
+        }
+        queued.clear();
+    }
+
+    private void notifyFinished( List<SerialTransaction> finished ){
+        for( SerialTransaction transaction : finished ){
+            try{
+                transaction.finished();
+            }catch( RuntimeException e ){
+                logger.log( Level.WARNING, "Transaction listener threw an exception", e );
+            }
+        }
+    }
+
+    private void readLoop(){
+        List<SerialTransaction> finished = new ArrayList<SerialTransaction>();
+
+        try{
+            while( !closed ){
+                makeRoom();
+
+                int got = input.read( received, receivedEnd, received.length - receivedEnd );
+                if( got < 0 ){
+                    throw new EOFException( "The port has been closed" );
+                }
+                if( closed ){
+                    break;
+                }
+
+                receivedEnd += got;
+
+                synchronized( lock ){
+                    matchReceived( finished );
+                    sendQueued( finished );
+                }
+
+                notifyFinished( finished );
+                finished.clear();
+            }
+        }catch( IOException e ){
+            synchronized( lock ){
+                if( failure == null ){
+                    failure = e;
+                }
+                failAll( e, finished );
+            }
+            notifyFinished( finished );
+        }
+    }
+
+    /**
+     * Make sure that there is space to read into, throwing away old data if
+     * the matchers have held onto too much.
+     */
+    private void makeRoom(){
+        if( receivedStart == receivedEnd ){
+            receivedStart = 0;
+            receivedEnd = 0;
+            return;
+        }
+
+        if( receivedEnd < received.length ){
+            return;
+        }
+
+        if( receivedStart > 0 ){
+            System.arraycopy( received, receivedStart, received, 0, receivedEnd - receivedStart );
+            receivedEnd -= receivedStart;
+            receivedStart = 0;
+        }else if( received.length < MAX_RECEIVED ){
+            byte[] bigger = new byte[ Math.min( received.length * 2, MAX_RECEIVED ) ];
+            System.arraycopy( received, 0, bigger, 0, receivedEnd );
+            received = bigger;
+        }else{
+            logger.warning( "No response matched in " + MAX_RECEIVED + " bytes; discarding them" );
+            synchronized( lock ){
+                discardedBytes += receivedEnd;
+            }
+            receivedEnd = 0;
+        }
+    }
+
+    /**
+     * Hand out as much of the received data as possible.  Must be called
+     * with the lock held.
+     */
+    private void matchReceived( List<SerialTransaction> finished ){
+        while( receivedStart < receivedEnd ){
+            int available = receivedEnd - receivedStart;
+            ByteBuffer view = ByteBuffer.wrap( received, receivedStart, available ).slice().asReadOnlyBuffer();
+            SerialTransaction matched = null;
+            int length = 0;
+            boolean wantsMore = false;
+
+            for( int x = 0; x < inFlight.size(); x++ ){
+                SerialTransaction transaction = inFlight.get( x );
+                int result;
+
+                view.clear();
+                try{
+                    result = transaction.getMatcher().match( view );
+                }catch( RuntimeException e ){
+                    inFlight.remove( x-- );
+                    TransactionTimer.getInstance().remove( transaction );
+                    if( transaction.fail( e ) ){
+                        finished.add( transaction );
+                    }
+                    continue;
+                }
+
+                if( result > 0 && result <= available ){
+                    matched = transaction;
+                    length = result;
+                    break;
+                }
+
+                if( result >= 0 ){
+                    wantsMore = true;
+                }
+            }
+
+            if( matched != null ){
+                inFlight.remove( matched );
+                TransactionTimer.getInstance().remove( matched );
+                byte[] response = new byte[ length ];
+                System.arraycopy( received, receivedStart, response, 0, length );
+                receivedStart += length;
+                if( matched.complete( response ) ){
+                    finished.add( matched );
+                }
+                continue;
+            }
+
+            if( wantsMore ){
+                return;
+            }
+
+            //Nobody wants this; if nobody is waiting, nobody wants any of it
+            int discard = inFlight.isEmpty() ? available : 1;
+            receivedStart += discard;
+            discardedBytes += discard;
+        }
+    }
+}
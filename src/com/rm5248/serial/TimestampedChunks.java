@@ -0,0 +1,129 @@
+package com.rm5248.serial;
+
+/**
+ * Holds data read with {@link SerialPort#readChunks(TimestampedChunks, long)},
+ * split up into the chunks that it was read in, along with the time that
+ * each chunk came in.
+ *
+ * The arrays are allocated once when this is created and re-used for every
+ * read, so reading into the same TimestampedChunks over and over does not
+ * allocate any memory.  Timestamps come from the same clock as
+ * {@link System#nanoTime()}(on Linux, CLOCK_MONOTONIC), so they can be
+ * compared directly with System.nanoTime() to find out how long data has been
+ * waiting.
+ *
+ * @author rm5248
+ */
+public final class TimestampedChunks {
+
+    /* Accessed from the native code */
+    final byte[] data;
+    final int[] lengths;
+    final long[] timestamps;
+    private final int[] offsets;
+    private int count;
+    private int totalLength;
+
+    /**
+     * @param bufferSize The maximum number of bytes to read at once
+     * @param maxChunks The maximum number of chunks to read at once
+     */
+    public TimestampedChunks( int bufferSize, int maxChunks ){
+        if( bufferSize <= 0 ){
+            throw new IllegalArgumentException( "bufferSize must be greater than 0" );
+        }
+
+        if( maxChunks <= 0 ){
+            throw new IllegalArgumentException( "maxChunks must be greater than 0" );
+        }
+
+        data = new byte[ bufferSize ];
+        lengths = new int[ maxChunks ];
+        timestamps = new long[ maxChunks ];
+        offsets = new int[ maxChunks ];
+        count = 0;
+        totalLength = 0;
+    }
+
+    /**
+     * Called after the native code has filled in the arrays.
+     */
+    void setCount( int count ){
+        int offset = 0;
+
+        for( int x = 0; x < count; x++ ){
+            offsets[ x ] = offset;
+            offset += lengths[ x ];
+        }
+
+        this.count = count;
+        this.totalLength = offset;
+    }
+
+    /**
+     * Get the buffer that the data was read into.  The chunks are one after
+     * the other, starting at the beginning of the buffer.
+     *
+     * @return
+     */
+    public byte[] getData(){
+        return data;
+    }
+
+    /**
+     * Get the number of chunks from the last read.
+     *
+     * @return
+     */
+    public int getChunkCount(){
+        return count;
+    }
+
+    /**
+     * Get the total number of bytes from the last read.
+     *
+     * @return
+     */
+    public int getTotalLength(){
+        return totalLength;
+    }
+
+    /**
+     * Get where in the buffer the given chunk starts.
+     *
+     * @param chunk
+     * @return
+     */
+    public int getOffset( int chunk ){
+        checkChunk( chunk );
+        return offsets[ chunk ];
+    }
+
+    /**
+     * Get the number of bytes in the given chunk.
+     *
+     * @param chunk
+     * @return
+     */
+    public int getLength( int chunk ){
+        checkChunk( chunk );
+        return lengths[ chunk ];
+    }
+
+    /**
+     * Get the time that the given chunk was read, in nanoseconds.
+     *
+     * @param chunk
+     * @return
+     */
+    public long getTimestamp( int chunk ){
+        checkChunk( chunk );
+        return timestamps[ chunk ];
+    }
+
+    private void checkChunk( int chunk ){
+        if( chunk < 0 || chunk >= count ){
+            throw new IndexOutOfBoundsException( "chunk " + chunk + " of " + count );
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.rm5248.serial;
+
+/**
+ * Gets told when a {@link SerialTransaction} is finished, whether it got a
+ * response, timed out, failed, or was cancelled.
+ */
+public interface TransactionListener {
+
+    /**
+     * Called once for each transaction, from whichever thread finished it.
+     * This should not block, since it may hold up other transactions.
+     *
+     * @param transaction The transaction, which is done
+     */
+    public void transactionFinished( SerialTransaction transaction );
+}
@@ -0,0 +1,147 @@
+package com.rm5248.serial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times out transactions for all of the SerialTransactionEngines.
+ *
+ * This is a hashed timer wheel: each slot holds the transactions that are due
+ * on a tick of that slot, so adding or removing a deadline doesn't depend on
+ * how many there are.  A single daemon thread ticks the wheel, and only while
+ * there is something on it.  Deadlines are accurate to about one tick.
+ *
+ * @author rm5248
+ */
+final class TransactionTimer {
+
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos( 5 );
+    private static final int WHEEL_SIZE = 512;
+
+    private static final TransactionTimer INSTANCE = new TransactionTimer();
+
+    private final SerialTransaction[] slots;
+    private final long startNanos;
+    /* The last tick that has been handled */
+    private long tick;
+    private int count;
+    private Thread thread;
+
+    private TransactionTimer(){
+        slots = new SerialTransaction[ WHEEL_SIZE ];
+        startNanos = System.nanoTime();
+    }
+
+    static TransactionTimer getInstance(){
+        return INSTANCE;
+    }
+
+    /**
+     * Time the transaction out at the given time, unless it is removed first.
+     */
+    synchronized void add( SerialTransaction transaction, long deadlineNanos ){
+        if( transaction.timerSlot >= 0 ){
+            unlink( transaction );
+        }
+
+        if( count == 0 ){
+            //Nothing has been ticking, so skip up to now
+            tick = ( System.nanoTime() - startNanos ) / TICK_NANOS;
+        }
+
+        long due = ( deadlineNanos - startNanos + TICK_NANOS - 1 ) / TICK_NANOS;
+        if( due <= tick ){
+            due = tick + 1;
+        }
+
+        int slot = (int)( due % WHEEL_SIZE );
+        transaction.timerSlot = slot;
+        transaction.timerRounds = ( due - tick - 1 ) / WHEEL_SIZE;
+        transaction.timerPrev = null;
+        transaction.timerNext = slots[ slot ];
+        if( slots[ slot ] != null ){
+            slots[ slot ].timerPrev = transaction;
+        }
+        slots[ slot ] = transaction;
+        count++;
+
+        if( thread == null ){
+            thread = new Thread( new Runnable(){
+                @Override
+                public void run(){
+                    tickLoop();
+                }
+            }, "SerialTransactionTimer" );
+            thread.setDaemon( true );
+            thread.start();
+        }else if( count == 1 ){
+            notifyAll();
+        }
+    }
+
+    synchronized void remove( SerialTransaction transaction ){
+        if( transaction.timerSlot >= 0 ){
+            unlink( transaction );
+        }
+    }
+
+    private void unlink( SerialTransaction transaction ){
+        if( transaction.timerPrev != null ){
+            transaction.timerPrev.timerNext = transaction.timerNext;
+        }else{
+            slots[ transaction.timerSlot ] = transaction.timerNext;
+        }
+
+        if( transaction.timerNext != null ){
+            transaction.timerNext.timerPrev = transaction.timerPrev;
+        }
+
+        transaction.timerNext = null;
+        transaction.timerPrev = null;
+        transaction.timerSlot = -1;
+        count--;
+    }
+
+    private void tickLoop(){
+        List<SerialTransaction> expired = new ArrayList<SerialTransaction>();
+
+        while( true ){
+            synchronized( this ){
+                try{
+                    while( count == 0 ){
+                        wait();
+                    }
+
+                    long wait = startNanos + ( tick + 1 ) * TICK_NANOS - System.nanoTime();
+                    if( wait > 0 ){
+                        TimeUnit.NANOSECONDS.timedWait( this, wait );
+                        continue;
+                    }
+                }catch( InterruptedException e ){
+                    //Nobody interrupts us, but keep going if they do
+                    continue;
+                }
+
+                tick++;
+                SerialTransaction current = slots[ (int)( tick % WHEEL_SIZE ) ];
+                while( current != null ){
+                    SerialTransaction next = current.timerNext;
+                    if( current.timerRounds > 0 ){
+                        current.timerRounds--;
+                    }else{
+                        unlink( current );
+                        expired.add( current );
+                    }
+                    current = next;
+                }
+            }
+
+            //The engines take their own locks, so call them without holding ours
+            for( SerialTransaction transaction : expired ){
+                transaction.getEngine().expire( transaction );
+            }
+            expired.clear();
+        }
+    }
+}
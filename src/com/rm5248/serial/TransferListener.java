@@ -0,0 +1,18 @@
+package com.rm5248.serial;
+
+/**
+ * Gets told how a transfer started with
+ * {@link SerialPort#transferFrom(java.nio.file.Path, long, long, TransferListener) transferFrom()}
+ * is going, and can cancel it.
+ */
+public interface TransferListener {
+
+    /**
+     * Called after each chunk of the transfer has been written to the port.
+     *
+     * @param transferred The number of bytes written so far
+     * @param count The number of bytes that were asked to be transferred
+     * @return True to keep going, false to stop the transfer
+     */
+    public boolean transferProgress( long transferred, long count );
+}
@@ -0,0 +1,123 @@
+package com.rm5248.serial;
+
+/**
+ * An immutable set of rules for slowing down the data written to a serial
+ * port, for devices that can't take data back-to-back.
+ *
+ * <ul>
+ * <li>The inter-byte gap is the idle time on the line between each byte,
+ * on top of the time that it takes to send the byte itself.</li>
+ * <li>The frame gap is the idle time on the line after each write, counted
+ * from when its last byte has actually been sent.</li>
+ * <li>The byte rate is the most bytes per second to send.</li>
+ * </ul>
+ *
+ * The pacing is done in the native code, which sleeps until absolute
+ * deadlines(on Linux, with clock_nanosleep() on CLOCK_MONOTONIC), so the
+ * time taken to write and to wake up doesn't add up over a write.  Set it
+ * with {@link SerialPort#setWritePacing(WritePacing)}.  For example:
+ *
+ * <pre>
+ * {@code
+ * port.setWritePacing( WritePacing.NONE.withInterByteGapMicros( 500 ).withFrameGapMicros( 10000 ) );
+ * }
+ * </pre>
+ *
+ * @author rm5248
+ */
+public final class WritePacing {
+
+    /**
+     * Write as fast as the port will go.
+     */
+    public static final WritePacing NONE = new WritePacing( 0, 0, 0 );
+
+    private final long interByteGapMicros;
+    private final long frameGapMicros;
+    private final long bytesPerSecond;
+
+    /**
+     * @param interByteGapMicros The idle time between bytes, or 0
+     * @param frameGapMicros The idle time after each write, or 0
+     * @param bytesPerSecond The most bytes to send per second, or 0 for no limit
+     */
+    public WritePacing( long interByteGapMicros, long frameGapMicros, long bytesPerSecond ){
+        if( interByteGapMicros < 0 || frameGapMicros < 0 || bytesPerSecond < 0 ){
+            throw new IllegalArgumentException( "Gaps and rates must not be negative" );
+        }
+
+        this.interByteGapMicros = interByteGapMicros;
+        this.frameGapMicros = frameGapMicros;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getInterByteGapMicros(){
+        return interByteGapMicros;
+    }
+
+    public long getFrameGapMicros(){
+        return frameGapMicros;
+    }
+
+    public long getBytesPerSecond(){
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return True if writes are slowed down at all
+     */
+    public boolean isPaced(){
+        return interByteGapMicros != 0 || frameGapMicros != 0 || bytesPerSecond != 0;
+    }
+
+    public WritePacing withInterByteGapMicros( long gap ){
+        if( gap == interByteGapMicros ){
+            return this;
+        }
+        return new WritePacing( gap, frameGapMicros, bytesPerSecond );
+    }
+
+    public WritePacing withFrameGapMicros( long gap ){
+        if( gap == frameGapMicros ){
+            return this;
+        }
+        return new WritePacing( interByteGapMicros, gap, bytesPerSecond );
+    }
+
+    public WritePacing withBytesPerSecond( long rate ){
+        if( rate == bytesPerSecond ){
+            return this;
+        }
+        return new WritePacing( interByteGapMicros, frameGapMicros, rate );
+    }
+
+    @Override
+    public boolean equals( Object obj ){
+        if( this == obj ){
+            return true;
+        }
+
+        if( !( obj instanceof WritePacing ) ){
+            return false;
+        }
+
+        WritePacing other = (WritePacing)obj;
+        return interByteGapMicros == other.interByteGapMicros
+                && frameGapMicros == other.frameGapMicros
+                && bytesPerSecond == other.bytesPerSecond;
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = (int)( interByteGapMicros ^ ( interByteGapMicros >>> 32 ) );
+        hash = 31 * hash + (int)( frameGapMicros ^ ( frameGapMicros >>> 32 ) );
+        hash = 31 * hash + (int)( bytesPerSecond ^ ( bytesPerSecond >>> 32 ) );
+        return hash;
+    }
+
+    @Override
+    public String toString(){
+        return "byteGap:" + interByteGapMicros + "us frameGap:" + frameGapMicros
+                + "us rate:" + bytesPerSecond + "B/s";
+    }
+}
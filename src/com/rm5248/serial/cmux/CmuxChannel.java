@@ -0,0 +1,524 @@
+package com.rm5248.serial.cmux;
+
+import com.rm5248.serial.SerialChangeListener;
+import com.rm5248.serial.SerialDevice;
+import com.rm5248.serial.SerialLineState;
+import com.rm5248.serial.SerialPort;
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.DataBits;
+import com.rm5248.serial.SerialPort.FlowControl;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+import com.rm5248.serial.SerialPortConfig;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One virtual channel(DLCI) of a {@link CmuxMultiplexer}.  Get one with
+ * {@link CmuxMultiplexer#openChannel(int)}.
+ *
+ * Data that comes in on the channel is kept in the channel's own buffer
+ * until it is read.  When the buffer is three quarters full, the modem is
+ * told to stop sending on this channel with the flow control bit of a modem
+ * status command, and is told to go again once it has been read down to a
+ * quarter.  If the modem sends more than fits anyway, the rest is thrown
+ * away; see {@link #getDroppedBytes()}.  Writes are split up into frames of
+ * the multiplexer's maximum frame size, and block while the modem has told
+ * us to stop sending on this channel or on all of them.
+ *
+ * The control lines are the virtual V.24 signals of the channel: DTR and RTS
+ * are sent to the modem as RTC and RTR, and its RTC, RTR, IC and DV show up
+ * as DSR, CTS, RI and CD.  If the flow control is HARDWARE, writes also wait
+ * for CTS.  The other settings are only kept here; they don't change the
+ * physical port.
+ *
+ * @author rm5248
+ */
+public class CmuxChannel implements SerialDevice {
+
+    private final static Logger logger = Logger.getLogger( CmuxChannel.class.getName() );
+
+    /**
+     * How much data each channel can hold before it has to be read.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int HIGH_WATER = BUFFER_SIZE * 3 / 4;
+    private static final int LOW_WATER = BUFFER_SIZE / 4;
+
+    private class ChannelInputStream extends InputStream {
+
+        private final byte[] single = new byte[ 1 ];
+
+        @Override
+        public synchronized int read() throws IOException {
+            int got = read( single, 0, 1 );
+            if( got < 0 ){
+                return -1;
+            }
+            return single[ 0 ] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read( byte[] b, int off, int len ) throws IOException {
+            if( off < 0 || len < 0 || len > b.length - off ){
+                throw new IndexOutOfBoundsException();
+            }
+
+            if( len == 0 ){
+                return 0;
+            }
+
+            int count;
+            boolean restart = false;
+            synchronized( lock ){
+                while( bufferCount == 0 ){
+                    if( closed || remoteClosed ){
+                        return -1;
+                    }
+                    try{
+                        lock.wait();
+                    }catch( InterruptedException e ){
+                        throw new InterruptedIOException( "Interrupted while reading" );
+                    }
+                }
+
+                count = Math.min( len, bufferCount );
+                int first = Math.min( count, buffer.length - bufferStart );
+                System.arraycopy( buffer, bufferStart, b, off, first );
+                System.arraycopy( buffer, 0, b, off + first, count - first );
+                bufferStart = ( bufferStart + count ) % buffer.length;
+                bufferCount -= count;
+
+                if( receiveStopped && bufferCount <= LOW_WATER ){
+                    receiveStopped = false;
+                    restart = true;
+                }
+            }
+
+            if( restart ){
+                sendModemStatus();
+            }
+
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized( lock ){
+                return bufferCount;
+            }
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+
+        private final byte[] single = new byte[ 1 ];
+
+        @Override
+        public synchronized void write( int b ) throws IOException {
+            single[ 0 ] = (byte)b;
+            write( single, 0, 1 );
+        }
+
+        @Override
+        public synchronized void write( byte[] b, int off, int len ) throws IOException {
+            if( off < 0 || len < 0 || len > b.length - off ){
+                throw new IndexOutOfBoundsException();
+            }
+
+            while( len > 0 ){
+                synchronized( lock ){
+                    while( !clearToSend() ){
+                        if( closed || remoteClosed ){
+                            throw new IOException( "The channel has been closed" );
+                        }
+                        try{
+                            lock.wait();
+                        }catch( InterruptedException e ){
+                            throw new InterruptedIOException( "Interrupted while writing" );
+                        }
+                    }
+
+                    if( closed || remoteClosed ){
+                        throw new IOException( "The channel has been closed" );
+                    }
+                }
+
+                int count = Math.min( len, mux.getMaxFrameSize() );
+                mux.sendFrame( dlci, true, CmuxMultiplexer.UIH, b, off, count );
+                off += count;
+                len -= count;
+            }
+        }
+    }
+
+    private final CmuxMultiplexer mux;
+    private final int dlci;
+    private final String name;
+    private final Object lock;
+    private final ChannelInputStream inputStream;
+    private final ChannelOutputStream outputStream;
+    /* Data that has come in; guarded by lock */
+    private final byte[] buffer;
+    private int bufferStart;
+    private int bufferCount;
+    private long droppedBytes;
+    /* True once we have told the modem to stop sending */
+    private boolean receiveStopped;
+    /* True while the modem has told us to stop sending on this channel */
+    private boolean transmitStopped;
+    /* DTR and RTS, and the lines from the modem */
+    private int outputLines;
+    private int inputLines;
+    private SerialChangeListener listener;
+    private volatile SerialPortConfig config;
+    private volatile boolean closed;
+    private volatile boolean remoteClosed;
+
+    CmuxChannel( CmuxMultiplexer mux, int dlci, String name ){
+        this.mux = mux;
+        this.dlci = dlci;
+        this.name = name;
+        lock = new Object();
+        inputStream = new ChannelInputStream();
+        outputStream = new ChannelOutputStream();
+        buffer = new byte[ BUFFER_SIZE ];
+        outputLines = SerialPort.LINE_DTR | SerialPort.LINE_RTS;
+        //Until the modem tells us otherwise, assume that it is ready
+        inputLines = SerialPort.LINE_DSR | SerialPort.LINE_CTS;
+        config = SerialPortConfig.DEFAULT;
+    }
+
+    /**
+     * @return The DLCI of this channel
+     */
+    public int getDlci(){
+        return dlci;
+    }
+
+    /**
+     * @return How many bytes the modem sent that didn't fit in the buffer
+     */
+    public long getDroppedBytes(){
+        synchronized( lock ){
+            return droppedBytes;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(){
+        checkOpen( "get the input stream" );
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream(){
+        checkOpen( "get the output stream" );
+        return outputStream;
+    }
+
+    @Override
+    public BaudRate getBaudRate(){
+        return getConfig().getBaudRate();
+    }
+
+    @Override
+    public void setBaudRate( BaudRate rate ){
+        if( rate == null ){
+            throw new IllegalArgumentException( "rate must not be null" );
+        }
+        setConfig( getConfig().withBaudRate( rate ) );
+    }
+
+    @Override
+    public DataBits getDataBits(){
+        return getConfig().getDataBits();
+    }
+
+    @Override
+    public void setDataSize( DataBits data ){
+        if( data == null ){
+            throw new IllegalArgumentException( "data must not be null" );
+        }
+        setConfig( getConfig().withDataBits( data ) );
+    }
+
+    @Override
+    public StopBits getStopBits(){
+        return getConfig().getStopBits();
+    }
+
+    @Override
+    public void setStopBits( StopBits stop ){
+        if( stop == null ){
+            throw new IllegalArgumentException( "stop must not be null" );
+        }
+        setConfig( getConfig().withStopBits( stop ) );
+    }
+
+    @Override
+    public Parity getParity(){
+        return getConfig().getParity();
+    }
+
+    @Override
+    public void setParity( Parity parity ){
+        if( parity == null ){
+            throw new IllegalArgumentException( "parity must not be null" );
+        }
+        setConfig( getConfig().withParity( parity ) );
+    }
+
+    @Override
+    public FlowControl getFlowControl(){
+        return getConfig().getFlowControl();
+    }
+
+    @Override
+    public void setFlowControl( FlowControl flow ){
+        if( flow == null ){
+            throw new IllegalArgumentException( "flow must not be null" );
+        }
+        setConfig( getConfig().withFlowControl( flow ) );
+    }
+
+    @Override
+    public SerialPortConfig getConfig(){
+        checkOpen( "get the config" );
+        return config;
+    }
+
+    @Override
+    public void setConfig( SerialPortConfig config ){
+        checkOpen( "set the config" );
+
+        if( config == null ){
+            throw new IllegalArgumentException( "config must not be null" );
+        }
+
+        this.config = config;
+        flowChanged();
+    }
+
+    @Override
+    public SerialLineState getSerialLineState(){
+        return toLineState( getControlLines() );
+    }
+
+    @Override
+    public void setSerialLineState( SerialLineState state ) throws IOException {
+        setControlLines( SerialPort.LINE_DTR | SerialPort.LINE_RTS,
+                ( state.dataTerminalReady ? SerialPort.LINE_DTR : 0 ) |
+                ( state.requestToSend ? SerialPort.LINE_RTS : 0 ) );
+    }
+
+    @Override
+    public int getControlLines(){
+        checkOpen( "get the control lines" );
+
+        synchronized( lock ){
+            return outputLines | inputLines;
+        }
+    }
+
+    @Override
+    public void setControlLines( int mask, int values ) throws IOException {
+        checkOpen( "set the control lines" );
+
+        if( ( mask & ~( SerialPort.LINE_DTR | SerialPort.LINE_RTS ) ) != 0 ){
+            throw new IllegalArgumentException( "Only LINE_DTR and LINE_RTS can be set" );
+        }
+
+        synchronized( lock ){
+            outputLines = ( outputLines & ~mask ) | ( values & mask );
+        }
+
+        sendModemStatus();
+    }
+
+    @Override
+    public void setSerialChangeListener( SerialChangeListener listen ){
+        synchronized( lock ){
+            listener = listen;
+        }
+    }
+
+    @Override
+    public String getPortName(){
+        return name;
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Close the channel, telling the modem.  The other channels stay open.
+     */
+    @Override
+    public void close(){
+        synchronized( lock ){
+            if( closed ){
+                return;
+            }
+            closed = true;
+            listener = null;
+            lock.notifyAll();
+        }
+
+        mux.closeChannel( this );
+    }
+
+    boolean isOpenRemotely(){
+        return !remoteClosed;
+    }
+
+    /**
+     * Tell the modem our signals and whether it may send.
+     */
+    void sendModemStatus(){
+        int signals;
+        synchronized( lock ){
+            signals = 0;
+            if( ( outputLines & SerialPort.LINE_DTR ) != 0 ){
+                signals |= CmuxMultiplexer.V24_RTC;
+            }
+            if( ( outputLines & SerialPort.LINE_RTS ) != 0 ){
+                signals |= CmuxMultiplexer.V24_RTR;
+            }
+            if( receiveStopped ){
+                signals |= CmuxMultiplexer.V24_FC;
+            }
+        }
+
+        try{
+            mux.sendModemStatus( dlci, signals );
+        }catch( IOException e ){
+            logger.log( Level.FINE, "Unable to send the modem status for DLCI " + dlci, e );
+        }
+    }
+
+    /**
+     * Data for this channel has come in.  Called from the reader thread.
+     */
+    void received( byte[] data, int offset, int length ){
+        boolean stop = false;
+
+        synchronized( lock ){
+            if( closed ){
+                return;
+            }
+
+            int count = Math.min( length, buffer.length - bufferCount );
+            int end = ( bufferStart + bufferCount ) % buffer.length;
+            int first = Math.min( count, buffer.length - end );
+            System.arraycopy( data, offset, buffer, end, first );
+            System.arraycopy( data, offset + first, buffer, 0, count - first );
+            bufferCount += count;
+            droppedBytes += length - count;
+
+            if( !receiveStopped && bufferCount >= HIGH_WATER ){
+                receiveStopped = true;
+                stop = true;
+            }
+
+            lock.notifyAll();
+        }
+
+        if( stop ){
+            sendModemStatus();
+        }
+    }
+
+    /**
+     * The modem has sent its signals.  Called from the reader thread.
+     */
+    void modemStatus( int signals ){
+        SerialChangeListener toNotify = null;
+        int lines = 0;
+
+        synchronized( lock ){
+            lines = 0;
+            if( ( signals & CmuxMultiplexer.V24_RTC ) != 0 ){
+                lines |= SerialPort.LINE_DSR;
+            }
+            if( ( signals & CmuxMultiplexer.V24_RTR ) != 0 ){
+                lines |= SerialPort.LINE_CTS;
+            }
+            if( ( signals & CmuxMultiplexer.V24_IC ) != 0 ){
+                lines |= SerialPort.LINE_RI;
+            }
+            if( ( signals & CmuxMultiplexer.V24_DV ) != 0 ){
+                lines |= SerialPort.LINE_CD;
+            }
+
+            transmitStopped = ( signals & CmuxMultiplexer.V24_FC ) != 0;
+            if( lines != inputLines ){
+                inputLines = lines;
+                toNotify = listener;
+            }
+            lines |= outputLines;
+            lock.notifyAll();
+        }
+
+        if( toNotify != null ){
+            toNotify.serialStateChanged( toLineState( lines ) );
+        }
+    }
+
+    /**
+     * Something that writers wait for may have changed.
+     */
+    void flowChanged(){
+        synchronized( lock ){
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The modem has closed the channel, or the multiplexer has stopped.
+     */
+    void remoteClosed(){
+        synchronized( lock ){
+            remoteClosed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     */
+    private boolean clearToSend(){
+        if( transmitStopped || mux.isAggregateStopped() ){
+            return false;
+        }
+
+        return config.getFlowControl() != FlowControl.HARDWARE ||
+                ( inputLines & SerialPort.LINE_CTS ) != 0;
+    }
+
+    private void checkOpen( String what ){
+        if( closed ){
+            throw new IllegalStateException( "Cannot " + what + " once the channel has been closed." );
+        }
+    }
+
+    private static SerialLineState toLineState( int lines ){
+        SerialLineState s = new SerialLineState();
+
+        s.carrierDetect = ( lines & SerialPort.LINE_CD ) != 0;
+        s.clearToSend = ( lines & SerialPort.LINE_CTS ) != 0;
+        s.dataSetReady = ( lines & SerialPort.LINE_DSR ) != 0;
+        s.dataTerminalReady = ( lines & SerialPort.LINE_DTR ) != 0;
+        s.requestToSend = ( lines & SerialPort.LINE_RTS ) != 0;
+        s.ringIndicator = ( lines & SerialPort.LINE_RI ) != 0;
+
+        return s;
+    }
+}
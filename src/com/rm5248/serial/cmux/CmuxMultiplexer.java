@@ -0,0 +1,890 @@
+package com.rm5248.serial.cmux;
+
+import com.rm5248.serial.SerialDevice;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits one serial port into several virtual channels, using the basic
+ * option of the 3GPP 27.010(GSM 07.10) multiplexer protocol, as used by
+ * cellular modems.
+ *
+ * The modem must be switched into multiplexer mode first, normally with
+ * {@code AT+CMUX=0}.  Then {@link #open()} starts up the control channel,
+ * and {@link #openChannel(int)} opens each channel(DLCI) that is needed;
+ * which DLCI carries what(AT commands, data, GNSS) depends on the modem.
+ * Each channel is a {@link CmuxChannel}, with its own streams, receive
+ * buffer, flow control and control lines.
+ *
+ * A single reader thread reads from the port in bulk, finds the frames,
+ * checks their FCS and hands the data to the channels, without allocating
+ * anything for each byte or frame.  Frames are written by whichever thread
+ * sends them.  Nothing else should read from or write to the port while the
+ * multiplexer is open.  Closing the multiplexer does not close the port.
+ *
+ * @author rm5248
+ */
+public class CmuxMultiplexer implements AutoCloseable {
+
+    private final static Logger logger = Logger.getLogger( CmuxMultiplexer.class.getName() );
+
+    /**
+     * The default maximum frame size(N1) for the basic option.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 31;
+    /**
+     * The largest DLCI.
+     */
+    public static final int MAX_DLCI = 63;
+    /**
+     * The default time to wait for a response(T1), in milliseconds.
+     */
+    public static final int DEFAULT_RESPONSE_TIMEOUT = 300;
+    /**
+     * The default number of times to send a command(N2).
+     */
+    public static final int DEFAULT_RETRIES = 3;
+
+    static final int FLAG = 0xF9;
+    static final int EA = 0x01;
+    static final int CR = 0x02;
+    static final int PF = 0x10;
+
+    /* Frame types, without the P/F bit */
+    static final int SABM = 0x2F;
+    static final int UA = 0x63;
+    static final int DM = 0x0F;
+    static final int DISC = 0x43;
+    static final int UIH = 0xEF;
+    static final int UI = 0x03;
+
+    /* Control channel message types, without the C/R and EA bits */
+    static final int MSG_PN = 0x80;
+    static final int MSG_CLD = 0xC0;
+    static final int MSG_TEST = 0x20;
+    static final int MSG_FCON = 0xA0;
+    static final int MSG_FCOFF = 0x60;
+    static final int MSG_MSC = 0xE0;
+    static final int MSG_NSC = 0x10;
+
+    /* V.24 signals in a modem status command */
+    static final int V24_FC = 0x02;
+    static final int V24_RTC = 0x04;
+    static final int V24_RTR = 0x08;
+    static final int V24_IC = 0x40;
+    static final int V24_DV = 0x80;
+
+    private static final int[] FCS_TABLE = new int[ 256 ];
+    private static final int FCS_GOOD = 0xCF;
+
+    static{
+        //CRC-8 with the reversed polynomial x^8 + x^2 + x + 1
+        for( int x = 0; x < 256; x++ ){
+            int crc = x;
+            for( int bit = 0; bit < 8; bit++ ){
+                if( ( crc & 0x01 ) != 0 ){
+                    crc = ( crc >> 1 ) ^ 0xE0;
+                }else{
+                    crc >>= 1;
+                }
+            }
+            FCS_TABLE[ x ] = crc;
+        }
+    }
+
+    /* Where the parser is in the frame */
+    private static final int STATE_FLAG = 0;
+    private static final int STATE_ADDRESS = 1;
+    private static final int STATE_CONTROL = 2;
+    private static final int STATE_LENGTH = 3;
+    private static final int STATE_LENGTH2 = 4;
+    private static final int STATE_DATA = 5;
+    private static final int STATE_FCS = 6;
+    private static final int STATE_END = 7;
+
+    private final String name;
+    private final InputStream input;
+    private final OutputStream output;
+    private final int maxFrameSize;
+    /* The open channels, by DLCI; the reader looks these up without locking */
+    private final AtomicReferenceArray<CmuxChannel> channels;
+    /* Held while writing a frame */
+    private final ReentrantLock writeLock;
+    private final byte[] transmit;
+    /* Frames from the reader thread, waiting to be written; also used to wake the control writer */
+    private final ConcurrentLinkedQueue<byte[]> pending;
+    /* Responses to SABM and DISC, by DLCI; 0 if none has come in */
+    private final int[] responses;
+    private final Object responseLock;
+    private int responseTimeout;
+    private int retries;
+    private volatile Thread readerThread;
+    private volatile boolean open;
+    private volatile boolean closed;
+    /* Set once close() has been called; guarded by this */
+    private boolean closing;
+    /* Set while the other end has turned off flow with FCoff */
+    private volatile boolean aggregateStopped;
+    private boolean closeDownAcknowledged;
+    private volatile long badFrames;
+
+    /* The frame being received; only used by the reader thread */
+    private final byte[] receiveBuffer;
+    private final byte[] frame;
+    private int state;
+    private int frameAddress;
+    private int frameControl;
+    private int frameLength;
+    private int frameCount;
+    private int fcs;
+
+    /**
+     * Multiplex the given device, with frames of up to DEFAULT_MAX_FRAME_SIZE
+     * bytes.
+     *
+     * @param device The port that the modem is on
+     */
+    public CmuxMultiplexer( SerialDevice device ){
+        this( device, DEFAULT_MAX_FRAME_SIZE );
+    }
+
+    /**
+     * Multiplex the given device.
+     *
+     * @param device The port that the modem is on
+     * @param maxFrameSize The most data in one frame(N1).  This must match
+     * what the modem was set to with AT+CMUX; bigger frames from the modem
+     * are thrown away.
+     */
+    public CmuxMultiplexer( SerialDevice device, int maxFrameSize ){
+        if( device == null ){
+            throw new IllegalArgumentException( "device must not be null" );
+        }
+
+        if( maxFrameSize < 1 || maxFrameSize > 32767 ){
+            throw new IllegalArgumentException( "maxFrameSize must be between 1 and 32767" );
+        }
+
+        this.name = device.getPortName();
+        this.input = device.getInputStream();
+        this.output = device.getOutputStream();
+        this.maxFrameSize = maxFrameSize;
+        channels = new AtomicReferenceArray<CmuxChannel>( MAX_DLCI + 1 );
+        writeLock = new ReentrantLock();
+        pending = new ConcurrentLinkedQueue<byte[]>();
+        //Flags, address, control, two length bytes and the FCS
+        transmit = new byte[ maxFrameSize + 7 ];
+        responses = new int[ MAX_DLCI + 1 ];
+        responseLock = new Object();
+        responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+        retries = DEFAULT_RETRIES;
+        receiveBuffer = new byte[ 4096 ];
+        frame = new byte[ maxFrameSize ];
+        state = STATE_FLAG;
+    }
+
+    /**
+     * Set how long to wait for the other end to answer a command, and how
+     * many times to send it.
+     *
+     * @param timeoutMillis How long to wait for each response(T1)
+     * @param retries How many times to send the command(N2)
+     */
+    public void setResponseTimeout( int timeoutMillis, int retries ){
+        if( timeoutMillis <= 0 || retries <= 0 ){
+            throw new IllegalArgumentException( "timeoutMillis and retries must be greater than 0" );
+        }
+
+        synchronized( responseLock ){
+            this.responseTimeout = timeoutMillis;
+            this.retries = retries;
+        }
+    }
+
+    /**
+     * Start the reader thread and open the control channel(DLCI 0).
+     *
+     * @throws IOException If the modem does not answer, or a low-level error
+     * occurs
+     */
+    public synchronized void open() throws IOException {
+        if( closed || closing ){
+            throw new IllegalStateException( "Cannot open once the multiplexer has been closed." );
+        }
+
+        if( open ){
+            return;
+        }
+
+        readerThread = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                readLoop();
+            }
+        }, "CmuxMultiplexer-" + name );
+        readerThread.setDaemon( true );
+        readerThread.start();
+
+        Thread controlWriter = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                controlWriteLoop();
+            }
+        }, "CmuxControlWriter-" + name );
+        controlWriter.setDaemon( true );
+        controlWriter.start();
+
+        if( !establish( 0, SABM ) ){
+            close();
+            throw new IOException( "The modem did not open the control channel" );
+        }
+
+        open = true;
+    }
+
+    /**
+     * Open a channel.
+     *
+     * @param dlci The DLCI of the channel, from 1 to MAX_DLCI
+     * @return The channel
+     * @throws IOException If the modem refuses the channel or does not answer
+     */
+    public CmuxChannel openChannel( int dlci ) throws IOException {
+        if( dlci < 1 || dlci > MAX_DLCI ){
+            throw new IllegalArgumentException( "dlci must be between 1 and " + MAX_DLCI );
+        }
+
+        if( !open || closed ){
+            throw new IllegalStateException( "The multiplexer must be open to open a channel." );
+        }
+
+        CmuxChannel channel = new CmuxChannel( this, dlci, name + "-dlci" + dlci );
+        if( !channels.compareAndSet( dlci, null, channel ) ){
+            throw new IllegalStateException( "DLCI " + dlci + " is already open." );
+        }
+
+        boolean established;
+        try{
+            established = establish( dlci, SABM );
+        }catch( IOException e ){
+            removeChannel( channel );
+            throw e;
+        }
+
+        if( !established ){
+            removeChannel( channel );
+            throw new IOException( "The modem refused to open DLCI " + dlci );
+        }
+
+        channel.sendModemStatus();
+
+        return channel;
+    }
+
+    /**
+     * @param dlci
+     * @return The open channel with the given DLCI, or null
+     */
+    public CmuxChannel getChannel( int dlci ){
+        if( dlci < 1 || dlci > MAX_DLCI ){
+            return null;
+        }
+
+        return channels.get( dlci );
+    }
+
+    /**
+     * @return The most data that is sent in one frame
+     */
+    public int getMaxFrameSize(){
+        return maxFrameSize;
+    }
+
+    /**
+     * @return How many frames have been thrown away because their FCS was
+     * wrong, or they were too long
+     */
+    public long getBadFrames(){
+        return badFrames;
+    }
+
+    public boolean isOpen(){
+        return open && !closed;
+    }
+
+    /**
+     * Close all of the channels and tell the modem to leave multiplexer
+     * mode.  The port itself is left open.
+     */
+    @Override
+    public void close(){
+        synchronized( this ){
+            if( closed || closing ){
+                return;
+            }
+            closing = true;
+        }
+
+        if( open ){
+            for( int dlci = 1; dlci <= MAX_DLCI; dlci++ ){
+                CmuxChannel channel = channels.get( dlci );
+                if( channel != null ){
+                    channel.close();
+                }
+            }
+
+            try{
+                closeDown();
+            }catch( IOException e ){
+                logger.log( Level.FINE, "Unable to tell the modem to close down", e );
+            }
+        }
+
+        synchronized( this ){
+            closed = true;
+            open = false;
+        }
+
+        stopped();
+    }
+
+    /**
+     * Close one channel, by sending DISC.
+     */
+    void closeChannel( CmuxChannel channel ){
+        try{
+            if( !closed && channel.isOpenRemotely() ){
+                establish( channel.getDlci(), DISC );
+            }
+        }catch( IOException e ){
+            logger.log( Level.FINE, "Unable to close DLCI " + channel.getDlci(), e );
+        }
+
+        removeChannel( channel );
+    }
+
+    boolean isAggregateStopped(){
+        return aggregateStopped;
+    }
+
+    /**
+     * Send a modem status command for a channel.
+     */
+    void sendModemStatus( int dlci, int signals ) throws IOException {
+        byte[] message = new byte[]{
+            (byte)( MSG_MSC | CR | EA ),
+            (byte)( ( 2 << 1 ) | EA ),
+            (byte)( ( dlci << 2 ) | CR | EA ),
+            (byte)( signals | EA )
+        };
+        sendFrame( 0, true, UIH, message, 0, message.length );
+    }
+
+    /**
+     * Write one frame.  If this is called from the reader thread, the frame
+     * is queued up for the control writer thread instead, so that the reader
+     * never waits on a write that is waiting for the other end, which may be
+     * waiting for us to read.
+     *
+     * @param dlci The channel
+     * @param command True for a command, false for a response
+     * @param type The frame type, possibly with the P/F bit
+     * @param data The information field
+     */
+    void sendFrame( int dlci, boolean command, int type, byte[] data, int offset, int length ) throws IOException {
+        if( length > maxFrameSize ){
+            throw new IllegalArgumentException( "Frame is bigger than the maximum frame size" );
+        }
+
+        if( closed ){
+            throw new IOException( "The multiplexer has been closed" );
+        }
+
+        if( Thread.currentThread() == readerThread ){
+            byte[] encoded = new byte[ length + 7 ];
+            int encodedLength = encode( dlci, command, type, data, offset, length, encoded );
+            synchronized( pending ){
+                pending.add( Arrays.copyOf( encoded, encodedLength ) );
+                pending.notify();
+            }
+        }else{
+            writeLock.lock();
+            try{
+                writePending();
+                int encodedLength = encode( dlci, command, type, data, offset, length, transmit );
+                output.write( transmit, 0, encodedLength );
+                output.flush();
+            }finally{
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write the frames that the reader thread has queued up, whenever there
+     * are any.
+     */
+    private void controlWriteLoop(){
+        while( true ){
+            synchronized( pending ){
+                while( pending.isEmpty() && !closed ){
+                    try{
+                        pending.wait();
+                    }catch( InterruptedException e ){
+                        return;
+                    }
+                }
+            }
+
+            //Write anything queued before we were stopped, so that the UA
+            //to a DISC or the response to a CLD still goes out
+            writeLock.lock();
+            try{
+                writePending();
+            }catch( IOException e ){
+                logger.log( Level.FINE, "Unable to write to " + name, e );
+            }finally{
+                writeLock.unlock();
+            }
+
+            if( closed ){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the frames queued up by the reader thread.  Must hold writeLock.
+     */
+    private void writePending() throws IOException {
+        byte[] encoded;
+        while( ( encoded = pending.poll() ) != null ){
+            output.write( encoded );
+            output.flush();
+        }
+    }
+
+    /**
+     * Build a frame.
+     *
+     * @return The length of the frame
+     */
+    private static int encode( int dlci, boolean command, int type, byte[] data, int offset, int length, byte[] out ){
+        int p = 0;
+        //We started the multiplexer, so our commands have C/R set
+        out[ p++ ] = (byte)FLAG;
+        out[ p++ ] = (byte)( ( dlci << 2 ) | ( command ? CR : 0 ) | EA );
+        out[ p++ ] = (byte)type;
+        if( length <= 127 ){
+            out[ p++ ] = (byte)( ( length << 1 ) | EA );
+        }else{
+            out[ p++ ] = (byte)( ( length & 0x7F ) << 1 );
+            out[ p++ ] = (byte)( length >> 7 );
+        }
+
+        int crc = 0xFF;
+        for( int x = 1; x < p; x++ ){
+            crc = FCS_TABLE[ ( crc ^ out[ x ] ) & 0xFF ];
+        }
+
+        System.arraycopy( data, offset, out, p, length );
+        if( ( type & ~PF ) != UIH ){
+            for( int x = p; x < p + length; x++ ){
+                crc = FCS_TABLE[ ( crc ^ out[ x ] ) & 0xFF ];
+            }
+        }
+        p += length;
+
+        out[ p++ ] = (byte)( 0xFF - crc );
+        out[ p++ ] = (byte)FLAG;
+
+        return p;
+    }
+
+    /**
+     * Send SABM or DISC and wait for UA or DM, sending it again if nothing
+     * comes back.
+     *
+     * @return True if UA came back, false for DM
+     */
+    private boolean establish( int dlci, int type ) throws IOException {
+        int timeout;
+        int tries;
+        synchronized( responseLock ){
+            responses[ dlci ] = 0;
+            timeout = responseTimeout;
+            tries = retries;
+        }
+
+        for( int attempt = 0; attempt < tries; attempt++ ){
+            sendFrame( dlci, true, type | PF, new byte[ 0 ], 0, 0 );
+
+            synchronized( responseLock ){
+                long end = System.currentTimeMillis() + timeout;
+                long remaining = timeout;
+                while( responses[ dlci ] == 0 && remaining > 0 && !stoppedReading() ){
+                    try{
+                        responseLock.wait( remaining );
+                    }catch( InterruptedException e ){
+                        Thread.currentThread().interrupt();
+                        throw new IOException( "Interrupted while waiting for the modem", e );
+                    }
+                    remaining = end - System.currentTimeMillis();
+                }
+
+                if( responses[ dlci ] != 0 ){
+                    return responses[ dlci ] == UA;
+                }
+            }
+
+            if( stoppedReading() ){
+                throw new IOException( "The port has been closed" );
+            }
+        }
+
+        throw new IOException( "No response from the modem on DLCI " + dlci );
+    }
+
+    /**
+     * Send the multiplexer close down command, and wait a little while for
+     * the response.
+     */
+    private void closeDown() throws IOException {
+        byte[] message = new byte[]{ (byte)( MSG_CLD | CR | EA ), (byte)EA };
+        sendFrame( 0, true, UIH, message, 0, message.length );
+
+        synchronized( responseLock ){
+            long end = System.currentTimeMillis() + responseTimeout;
+            long remaining = responseTimeout;
+            while( !closeDownAcknowledged && remaining > 0 && !stoppedReading() ){
+                try{
+                    responseLock.wait( remaining );
+                }catch( InterruptedException e ){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = end - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private boolean stoppedReading(){
+        return readerThread == null || !readerThread.isAlive();
+    }
+
+    private void removeChannel( CmuxChannel channel ){
+        channels.compareAndSet( channel.getDlci(), channel, null );
+    }
+
+    /**
+     * The link is gone; make sure that nobody waits on it.
+     */
+    private void stopped(){
+        closed = true;
+
+        synchronized( pending ){
+            pending.notifyAll();
+        }
+
+        for( int dlci = 1; dlci <= MAX_DLCI; dlci++ ){
+            CmuxChannel channel = channels.get( dlci );
+            if( channel != null ){
+                channel.remoteClosed();
+            }
+        }
+
+        synchronized( responseLock ){
+            responseLock.notifyAll();
+        }
+    }
+
+    private void readLoop(){
+        try{
+            while( !closed ){
+                int got = input.read( receiveBuffer, 0, receiveBuffer.length );
+                if( got < 0 ){
+                    break;
+                }
+                parse( receiveBuffer, got );
+            }
+        }catch( IOException e ){
+            if( !closed ){
+                logger.log( Level.WARNING, "Unable to read from " + name, e );
+            }
+        }
+
+        stopped();
+    }
+
+    /**
+     * Run the received data through the frame state machine.
+     */
+    private void parse( byte[] data, int length ){
+        for( int x = 0; x < length; x++ ){
+            int b = data[ x ] & 0xFF;
+
+            switch( state ){
+            case STATE_FLAG:
+                if( b == FLAG ){
+                    state = STATE_ADDRESS;
+                }
+                break;
+            case STATE_ADDRESS:
+                if( b == FLAG ){
+                    //Back-to-back flags
+                    break;
+                }
+                if( ( b & EA ) == 0 ){
+                    resync( b );
+                    break;
+                }
+                frameAddress = b;
+                fcs = FCS_TABLE[ 0xFF ^ b ];
+                state = STATE_CONTROL;
+                break;
+            case STATE_CONTROL:
+                if( !isFrameType( b & ~PF ) ){
+                    resync( b );
+                    break;
+                }
+                frameControl = b;
+                fcs = FCS_TABLE[ fcs ^ b ];
+                state = STATE_LENGTH;
+                break;
+            case STATE_LENGTH:
+                fcs = FCS_TABLE[ fcs ^ b ];
+                frameLength = b >> 1;
+                frameCount = 0;
+                if( ( b & EA ) == 0 ){
+                    state = STATE_LENGTH2;
+                }else if( frameLength > maxFrameSize ){
+                    resync( b );
+                }else{
+                    state = frameLength > 0 ? STATE_DATA : STATE_FCS;
+                }
+                break;
+            case STATE_LENGTH2:
+                fcs = FCS_TABLE[ fcs ^ b ];
+                frameLength |= b << 7;
+                if( frameLength > maxFrameSize ){
+                    resync( b );
+                    break;
+                }
+                state = frameLength > 0 ? STATE_DATA : STATE_FCS;
+                break;
+            case STATE_DATA:{
+                int count = Math.min( frameLength - frameCount, length - x );
+                System.arraycopy( data, x, frame, frameCount, count );
+                frameCount += count;
+                x += count - 1;
+                if( frameCount == frameLength ){
+                    state = STATE_FCS;
+                }
+                break;
+            }
+            case STATE_FCS:
+                if( ( frameControl & ~PF ) != UIH ){
+                    for( int y = 0; y < frameLength; y++ ){
+                        fcs = FCS_TABLE[ ( fcs ^ frame[ y ] ) & 0xFF ];
+                    }
+                }
+                fcs = FCS_TABLE[ fcs ^ b ];
+                if( fcs != FCS_GOOD ){
+                    resync( b );
+                }else{
+                    state = STATE_END;
+                }
+                break;
+            case STATE_END:
+                if( b == FLAG ){
+                    handleFrame();
+                    //The closing flag may also open the next frame
+                    state = STATE_ADDRESS;
+                }else{
+                    resync( b );
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Throw away the frame being received, and look for the next one.  Since
+     * the basic option has no transparency, the only way to find it again is
+     * to wait for a flag.
+     */
+    private void resync( int b ){
+        badFrames++;
+        state = b == FLAG ? STATE_ADDRESS : STATE_FLAG;
+    }
+
+    private static boolean isFrameType( int type ){
+        return type == SABM || type == UA || type == DM || type == DISC || type == UIH || type == UI;
+    }
+
+    private void handleFrame(){
+        int dlci = frameAddress >> 2;
+        int type = frameControl & ~PF;
+
+        try{
+            switch( type ){
+            case UA:
+            case DM:
+                synchronized( responseLock ){
+                    responses[ dlci ] = type;
+                    responseLock.notifyAll();
+                }
+                if( type == DM && dlci != 0 ){
+                    CmuxChannel channel = getChannel( dlci );
+                    if( channel != null ){
+                        channel.remoteClosed();
+                    }
+                }
+                break;
+            case SABM:
+                //We don't take channels opened by the modem
+                sendFrame( dlci, false, DM | PF, frame, 0, 0 );
+                break;
+            case DISC:
+                sendFrame( dlci, false, UA | PF, frame, 0, 0 );
+                if( dlci == 0 ){
+                    closed = true;
+                    stopped();
+                }else{
+                    CmuxChannel channel = getChannel( dlci );
+                    if( channel != null ){
+                        channel.remoteClosed();
+                    }
+                }
+                break;
+            case UIH:
+            case UI:
+                if( dlci == 0 ){
+                    handleControl();
+                }else{
+                    CmuxChannel channel = getChannel( dlci );
+                    if( channel != null ){
+                        channel.received( frame, 0, frameLength );
+                    }
+                }
+                break;
+            default:
+                badFrames++;
+            }
+        }catch( IOException e ){
+            logger.log( Level.FINE, "Unable to answer the modem", e );
+        }
+    }
+
+    /**
+     * Handle the messages on the control channel.
+     */
+    private void handleControl() throws IOException {
+        int offset = 0;
+
+        while( offset < frameLength ){
+            int messageStart = offset;
+            int messageType = frame[ offset++ ] & 0xFF;
+            //Message types may in theory be longer than one byte
+            while( ( frame[ offset - 1 ] & EA ) == 0 && offset < frameLength ){
+                offset++;
+            }
+
+            int length = 0;
+            int shift = 0;
+            while( offset < frameLength ){
+                int b = frame[ offset++ ] & 0xFF;
+                length |= ( b >> 1 ) << shift;
+                shift += 7;
+                if( ( b & EA ) != 0 ){
+                    break;
+                }
+            }
+
+            if( offset + length > frameLength ){
+                badFrames++;
+                return;
+            }
+
+            handleControlMessage( messageType, offset, length, messageStart );
+            offset += length;
+        }
+    }
+
+    private void handleControlMessage( int messageType, int valueOffset, int valueLength, int messageStart )
+            throws IOException {
+        boolean command = ( messageType & CR ) != 0;
+        int kind = messageType & ~( CR | EA );
+
+        if( !command ){
+            if( kind == MSG_CLD ){
+                synchronized( responseLock ){
+                    closeDownAcknowledged = true;
+                    responseLock.notifyAll();
+                }
+            }
+            //Nothing else that we send needs an answer
+            return;
+        }
+
+        switch( kind ){
+        case MSG_MSC:
+            if( valueLength >= 2 ){
+                int dlci = ( frame[ valueOffset ] & 0xFF ) >> 2;
+                int signals = frame[ valueOffset + 1 ] & 0xFF;
+                CmuxChannel channel = getChannel( dlci );
+                if( channel != null ){
+                    channel.modemStatus( signals );
+                }
+            }
+            respond( messageStart, valueOffset + valueLength );
+            break;
+        case MSG_FCON:
+        case MSG_FCOFF:
+            aggregateStopped = kind == MSG_FCOFF;
+            respond( messageStart, valueOffset + valueLength );
+            for( int dlci = 1; dlci <= MAX_DLCI; dlci++ ){
+                CmuxChannel channel = channels.get( dlci );
+                if( channel != null ){
+                    channel.flowChanged();
+                }
+            }
+            break;
+        case MSG_TEST:
+            respond( messageStart, valueOffset + valueLength );
+            break;
+        case MSG_CLD:
+            respond( messageStart, valueOffset + valueLength );
+            closed = true;
+            stopped();
+            break;
+        default:
+            //Tell the other end that we don't know this command
+            byte[] message = new byte[]{
+                (byte)( MSG_NSC | EA ),
+                (byte)( ( 1 << 1 ) | EA ),
+                (byte)messageType
+            };
+            sendFrame( 0, false, UIH, message, 0, message.length );
+        }
+    }
+
+    /**
+     * Send back the message in the frame as a response, by clearing its C/R bit.
+     */
+    private void respond( int start, int end ) throws IOException {
+        if( end - start > maxFrameSize ){
+            //Only a test message can be this big; it just won't be answered
+            return;
+        }
+        frame[ start ] &= ~CR;
+        sendFrame( 0, true, UIH, frame, start, end - start );
+    }
+}
@@ -0,0 +1,23 @@
+package com.rm5248.serial.flow;
+
+/**
+ * A source of items which only sends as many as it has been asked for.
+ *
+ * This has the same methods and rules as {@code java.util.concurrent.Flow}
+ * (and Reactive Streams), which can't be used here because we still run on
+ * Java 7.  Adapting between them takes a few lines which just pass each call
+ * through.
+ *
+ * @param <T> The type of item that is published
+ */
+public interface Publisher<T> {
+
+    /**
+     * Start sending items to the subscriber.  The subscriber's
+     * {@link Subscriber#onSubscribe(Subscription)} is always called first,
+     * even if the subscription fails straight away.
+     *
+     * @param subscriber
+     */
+    public void subscribe( Subscriber<? super T> subscriber );
+}
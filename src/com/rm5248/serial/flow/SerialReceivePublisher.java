@@ -0,0 +1,290 @@
+package com.rm5248.serial.flow;
+
+import com.rm5248.serial.SerialPort;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the data coming in on a serial port, only reading from the port
+ * when the subscriber has asked for more.
+ *
+ * Nothing is read from the port while there is no demand, so the data waits
+ * in the operating system's buffer.  When that fills up and the port is using
+ * hardware flow control, the driver drops RTS and the other end stops
+ * sending; the subscriber's demand is what holds up the sender.
+ *
+ * No thread of its own is used.  While there is demand, a task on the given
+ * Executor reads whatever data is waiting, straight from the port(see
+ * {@link SerialPort#readTimestamped(byte[], int, int, long, long[])}), and
+ * hands each read to the subscriber as one ByteBuffer.  The task waits at
+ * most the poll time for data, then gives the thread back to the Executor and
+ * is submitted again, so a small pool can serve many ports.  When the port is
+ * closed, the subscriber is completed.
+ *
+ * The buffers come out of a pool.  A subscriber that is done with a buffer
+ * can give it back with {@link #release(ByteBuffer)}; buffers that are not
+ * given back are garbage collected, and new ones are made as needed.
+ *
+ * Only one subscriber can be subscribed at a time.  The port must have been
+ * opened with NO_CONTROL_LINE_CHANGE and without a native receive buffer,
+ * and nothing else should read from it.
+ *
+ * @author rm5248
+ */
+public class SerialReceivePublisher implements Publisher<ByteBuffer> {
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_POOL_SIZE = 16;
+    public static final long DEFAULT_POLL_MICROS = 100000;
+
+    /* The most reads that one task does before letting somebody else have the thread */
+    private static final int MAX_READS_PER_TASK = 16;
+
+    private final SerialPort port;
+    private final Executor executor;
+    private final int bufferSize;
+    private final long pollMicros;
+    private final BlockingQueue<ByteBuffer> pool;
+    private final AtomicReference<ReceiveSubscription> current;
+
+    /**
+     * Publish data from the port, with the default buffer size, pool size and
+     * poll time.
+     *
+     * @param port The port to read from
+     * @param executor Runs the reads
+     */
+    public SerialReceivePublisher( SerialPort port, Executor executor ){
+        this( port, executor, DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE, DEFAULT_POLL_MICROS );
+    }
+
+    /**
+     * Publish data from the port.
+     *
+     * @param port The port to read from
+     * @param executor Runs the reads
+     * @param bufferSize The most data that is read at once
+     * @param poolSize How many buffers to keep for re-use
+     * @param pollMicros How long one task waits for data before being
+     * submitted again
+     */
+    public SerialReceivePublisher( SerialPort port, Executor executor, int bufferSize, int poolSize, long pollMicros ){
+        if( port == null || executor == null ){
+            throw new IllegalArgumentException( "port and executor must not be null" );
+        }
+
+        if( bufferSize <= 0 || poolSize <= 0 || pollMicros <= 0 ){
+            throw new IllegalArgumentException( "bufferSize, poolSize and pollMicros must be greater than 0" );
+        }
+
+        this.port = port;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.pollMicros = pollMicros;
+        this.pool = new ArrayBlockingQueue<ByteBuffer>( poolSize );
+        this.current = new AtomicReference<ReceiveSubscription>();
+    }
+
+    @Override
+    public void subscribe( Subscriber<? super ByteBuffer> subscriber ){
+        if( subscriber == null ){
+            throw new NullPointerException( "subscriber must not be null" );
+        }
+
+        ReceiveSubscription subscription = new ReceiveSubscription( subscriber );
+        ReceiveSubscription previous = current.get();
+        if( ( previous != null && !previous.isFinished() ) ||
+                !current.compareAndSet( previous, subscription ) ){
+            subscriber.onSubscribe( new Subscription(){
+                @Override
+                public void request( long n ){
+                }
+
+                @Override
+                public void cancel(){
+                }
+            } );
+            subscriber.onError( new IllegalStateException( "Only one subscriber is allowed at a time" ) );
+            return;
+        }
+
+        subscriber.onSubscribe( subscription );
+    }
+
+    /**
+     * Give a buffer that was passed to onNext() back, so that it can be used
+     * again.  The buffer must not be used after this.
+     *
+     * @param buffer
+     */
+    public void release( ByteBuffer buffer ){
+        if( buffer != null && buffer.capacity() == bufferSize && buffer.hasArray() && !buffer.isReadOnly() ){
+            pool.offer( buffer );
+        }
+    }
+
+    private ByteBuffer takeBuffer(){
+        ByteBuffer buffer = pool.poll();
+        if( buffer == null ){
+            buffer = ByteBuffer.allocate( bufferSize );
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private class ReceiveSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand;
+        /* True while a task is submitted or running */
+        private final AtomicBoolean scheduled;
+        private final long[] timestamp;
+        private volatile boolean cancelled;
+        /* Set once onComplete() or onError() has been called */
+        private volatile boolean done;
+        /* An illegal request, to be reported from the reading task */
+        private volatile Throwable badRequest;
+
+        ReceiveSubscription( Subscriber<? super ByteBuffer> subscriber ){
+            this.subscriber = subscriber;
+            this.demand = new AtomicLong();
+            this.scheduled = new AtomicBoolean();
+            this.timestamp = new long[ 1 ];
+        }
+
+        @Override
+        public void request( long n ){
+            if( n <= 0 ){
+                badRequest = new IllegalArgumentException( "Requests must be greater than 0" );
+                schedule( true );
+                return;
+            }
+
+            long old;
+            long updated;
+            do{
+                old = demand.get();
+                updated = old + n;
+                if( updated < 0 ){
+                    updated = Long.MAX_VALUE;
+                }
+            }while( !demand.compareAndSet( old, updated ) );
+
+            schedule( false );
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+        }
+
+        boolean isFinished(){
+            return ( cancelled || done ) && !scheduled.get();
+        }
+
+        private void schedule( boolean force ){
+            if( cancelled || done || ( !force && demand.get() == 0 ) ){
+                return;
+            }
+
+            if( !scheduled.compareAndSet( false, true ) ){
+                //The running task will see the new demand when it finishes
+                return;
+            }
+
+            try{
+                executor.execute( this );
+            }catch( RejectedExecutionException e ){
+                scheduled.set( false );
+                finish( e );
+            }
+        }
+
+        @Override
+        public void run(){
+            try{
+                readSome();
+            }catch( RuntimeException e ){
+                //The subscriber broke the rules; we can't tell it anything more
+                cancelled = true;
+                throw e;
+            }finally{
+                scheduled.set( false );
+            }
+
+            schedule( badRequest != null );
+        }
+
+        private void readSome(){
+            if( badRequest != null ){
+                cancelled = true;
+                finish( badRequest );
+                return;
+            }
+
+            for( int reads = 0; reads < MAX_READS_PER_TASK; reads++ ){
+                if( cancelled || done || demand.get() == 0 ){
+                    return;
+                }
+
+                ByteBuffer buffer = takeBuffer();
+                int got;
+                try{
+                    got = port.readTimestamped( buffer.array(), buffer.arrayOffset(), buffer.capacity(),
+                            pollMicros, timestamp );
+                }catch( IOException e ){
+                    release( buffer );
+                    finish( e );
+                    return;
+                }catch( IllegalStateException e ){
+                    release( buffer );
+                    if( port.isClosed() ){
+                        finish( null );
+                    }else{
+                        finish( e );
+                    }
+                    return;
+                }
+
+                if( got < 0 ){
+                    release( buffer );
+                    finish( null );
+                    return;
+                }
+
+                if( got == 0 ){
+                    //Nothing came in; let somebody else use the thread for a while
+                    release( buffer );
+                    return;
+                }
+
+                if( demand.get() != Long.MAX_VALUE ){
+                    demand.decrementAndGet();
+                }
+
+                buffer.limit( got );
+                subscriber.onNext( buffer );
+            }
+        }
+
+        private void finish( Throwable error ){
+            if( done ){
+                return;
+            }
+            done = true;
+
+            if( error == null ){
+                subscriber.onComplete();
+            }else{
+                subscriber.onError( error );
+            }
+        }
+    }
+}
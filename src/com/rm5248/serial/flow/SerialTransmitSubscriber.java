@@ -0,0 +1,179 @@
+package com.rm5248.serial.flow;
+
+import com.rm5248.serial.SerialDevice;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the buffers from a {@link Publisher} out to a serial port.
+ *
+ * Each buffer is written in the thread that calls onNext(), and more buffers
+ * are only requested once earlier ones have been written.  So when the port
+ * can't keep up(because of its baud rate, or because the other end is
+ * holding off with flow control), the writes block and the publisher is
+ * asked for less.  A few buffers are requested ahead so that the port is
+ * kept busy.
+ *
+ * The data between the position and limit of each buffer is written, and
+ * the buffer is not used after onNext() returns, so the publisher may re-use
+ * it.  If writing fails, the subscription is cancelled and the error can be
+ * seen with {@link #getError()}.
+ *
+ * @author rm5248
+ */
+public class SerialTransmitSubscriber implements Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_PREFETCH = 4;
+
+    private final OutputStream output;
+    private final int prefetch;
+    private final CountDownLatch finished;
+    private Subscription subscription;
+    /* How many buffers have been written since we last asked for more */
+    private int consumed;
+    /* Used to copy out of buffers which don't have an array */
+    private byte[] copyBuffer;
+    private volatile long bytesWritten;
+    private volatile Throwable error;
+
+    /**
+     * Write to the given device, asking for DEFAULT_PREFETCH buffers ahead.
+     *
+     * @param device
+     */
+    public SerialTransmitSubscriber( SerialDevice device ){
+        this( device.getOutputStream(), DEFAULT_PREFETCH );
+    }
+
+    /**
+     * Write to the given stream.
+     *
+     * @param output Where to write the data
+     * @param prefetch How many buffers to ask for ahead of writing them
+     */
+    public SerialTransmitSubscriber( OutputStream output, int prefetch ){
+        if( output == null ){
+            throw new IllegalArgumentException( "output must not be null" );
+        }
+
+        if( prefetch <= 0 ){
+            throw new IllegalArgumentException( "prefetch must be greater than 0" );
+        }
+
+        this.output = output;
+        this.prefetch = prefetch;
+        this.finished = new CountDownLatch( 1 );
+    }
+
+    @Override
+    public void onSubscribe( Subscription subscription ){
+        if( subscription == null ){
+            throw new NullPointerException( "subscription must not be null" );
+        }
+
+        if( this.subscription != null ){
+            //We can only write one stream of data
+            subscription.cancel();
+            return;
+        }
+
+        this.subscription = subscription;
+        subscription.request( prefetch );
+    }
+
+    @Override
+    public void onNext( ByteBuffer item ){
+        if( item == null ){
+            throw new NullPointerException( "item must not be null" );
+        }
+
+        if( error != null ){
+            return;
+        }
+
+        try{
+            write( item );
+        }catch( IOException e ){
+            error = e;
+            subscription.cancel();
+            finished.countDown();
+            return;
+        }
+
+        //Ask for more in batches, once half of what we asked for has been written
+        consumed++;
+        if( consumed >= ( prefetch + 1 ) / 2 ){
+            subscription.request( consumed );
+            consumed = 0;
+        }
+    }
+
+    @Override
+    public void onError( Throwable throwable ){
+        if( error == null ){
+            error = throwable;
+        }
+        finished.countDown();
+    }
+
+    @Override
+    public void onComplete(){
+        try{
+            output.flush();
+        }catch( IOException e ){
+            if( error == null ){
+                error = e;
+            }
+        }
+        finished.countDown();
+    }
+
+    /**
+     * Wait for the publisher to finish, or for writing to fail.
+     *
+     * @param timeoutMillis How long to wait
+     * @return True if finished, false if the timeout expired
+     * @throws InterruptedException
+     */
+    public boolean awaitFinished( long timeoutMillis ) throws InterruptedException {
+        return finished.await( timeoutMillis, TimeUnit.MILLISECONDS );
+    }
+
+    public boolean isFinished(){
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * @return The error from the publisher or from writing, or null
+     */
+    public Throwable getError(){
+        return error;
+    }
+
+    public long getBytesWritten(){
+        return bytesWritten;
+    }
+
+    private void write( ByteBuffer item ) throws IOException {
+        int length = item.remaining();
+
+        if( item.hasArray() ){
+            output.write( item.array(), item.arrayOffset() + item.position(), length );
+            item.position( item.limit() );
+        }else{
+            if( copyBuffer == null ){
+                copyBuffer = new byte[ 4096 ];
+            }
+            while( item.hasRemaining() ){
+                int chunk = Math.min( item.remaining(), copyBuffer.length );
+                item.get( copyBuffer, 0, chunk );
+                output.write( copyBuffer, 0, chunk );
+            }
+        }
+
+        bytesWritten += length;
+    }
+}
@@ -0,0 +1,37 @@
+package com.rm5248.serial.flow;
+
+/**
+ * Receives items from a {@link Publisher}.  The methods are never called at
+ * the same time from different threads.
+ *
+ * @param <T> The type of item that is received
+ */
+public interface Subscriber<T> {
+
+    /**
+     * Called before anything else.  Nothing is sent until
+     * {@link Subscription#request(long)} is called.
+     *
+     * @param subscription
+     */
+    public void onSubscribe( Subscription subscription );
+
+    /**
+     * Called with the next item, at most as many times as have been requested.
+     *
+     * @param item
+     */
+    public void onNext( T item );
+
+    /**
+     * Called if something went wrong.  Nothing else is called after this.
+     *
+     * @param throwable
+     */
+    public void onError( Throwable throwable );
+
+    /**
+     * Called when there are no more items.  Nothing else is called after this.
+     */
+    public void onComplete();
+}
@@ -0,0 +1,21 @@
+package com.rm5248.serial.flow;
+
+/**
+ * Links a {@link Subscriber} to a {@link Publisher}.
+ */
+public interface Subscription {
+
+    /**
+     * Ask for more items.  Requests add up; Long.MAX_VALUE means that there
+     * is no limit.
+     *
+     * @param n How many more items to send; must be greater than 0
+     */
+    public void request( long n );
+
+    /**
+     * Stop sending items.  Some items that were already on their way may
+     * still be sent.
+     */
+    public void cancel();
+}
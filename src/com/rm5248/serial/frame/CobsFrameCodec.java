@@ -0,0 +1,114 @@
+package com.rm5248.serial.frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Consistent Overhead Byte Stuffing(COBS) framing.  Each frame is COBS
+ * encoded and ends with a zero byte.
+ *
+ * Frames are decoded in place.  Empty frames(two zero bytes in a row) are
+ * skipped.
+ */
+public class CobsFrameCodec implements FrameDecoder, FrameEncoder {
+
+    /* How many bytes after the position of the input we have already searched */
+    private int searched;
+
+    public CobsFrameCodec(){
+        searched = 0;
+    }
+
+    @Override
+    public boolean decode( ByteBuffer in, ByteBuffer frame ) throws IOException {
+        byte[] data = in.array();
+        int base = in.arrayOffset();
+        int end = base + in.limit();
+
+        while( true ){
+            int start = base + in.position();
+            int x;
+
+            for( x = start + searched; x < end; x++ ){
+                if( data[ x ] == 0 ){
+                    break;
+                }
+            }
+
+            if( x == end ){
+                searched = x - start;
+                return false;
+            }
+
+            searched = 0;
+            in.position( x - base + 1 );
+            if( x == start ){
+                //empty frame
+                continue;
+            }
+
+            //Decode in place; the output is always behind the input
+            int read = start;
+            int write = start;
+            while( read < x ){
+                int code = data[ read++ ] & 0xFF;
+                if( read + code - 1 > x ){
+                    throw new IOException( "Invalid COBS frame" );
+                }
+
+                for( int y = 1; y < code; y++ ){
+                    data[ write++ ] = data[ read++ ];
+                }
+
+                if( code < 0xFF && read < x ){
+                    data[ write++ ] = 0;
+                }
+            }
+
+            frame.clear();
+            frame.position( start - base );
+            frame.limit( write - base );
+            return true;
+        }
+    }
+
+    @Override
+    public void reset(){
+        searched = 0;
+    }
+
+    @Override
+    public int maxEncodedLength( int length ){
+        return length + length / 254 + 2;
+    }
+
+    @Override
+    public int encode( byte[] message, int offset, int length, byte[] out, int outOffset ){
+        int codePosition = outOffset;
+        int write = outOffset + 1;
+        int code = 1;
+
+        for( int x = offset; x < offset + length; x++ ){
+            byte b = message[ x ];
+            if( b == 0 ){
+                out[ codePosition ] = (byte)code;
+                codePosition = write++;
+                code = 1;
+                continue;
+            }
+
+            out[ write++ ] = b;
+            code++;
+            if( code == 0xFF ){
+                out[ codePosition ] = (byte)code;
+                codePosition = write++;
+                code = 1;
+            }
+        }
+
+        out[ codePosition ] = (byte)code;
+        out[ write++ ] = 0;
+
+        return write - outOffset;
+    }
+}
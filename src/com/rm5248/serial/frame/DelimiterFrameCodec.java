@@ -0,0 +1,83 @@
+package com.rm5248.serial.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames which end with a delimiter, for example a newline or "\r\n".  The
+ * delimiter is not part of the decoded frame.
+ */
+public class DelimiterFrameCodec implements FrameDecoder, FrameEncoder {
+
+    private final byte[] delimiter;
+    /* How many bytes after the position of the input we have already searched */
+    private int searched;
+
+    /**
+     * @param delimiter The byte that ends each frame
+     */
+    public DelimiterFrameCodec( byte delimiter ){
+        this( new byte[]{ delimiter } );
+    }
+
+    /**
+     * @param delimiter The bytes that end each frame
+     */
+    public DelimiterFrameCodec( byte[] delimiter ){
+        if( delimiter == null || delimiter.length == 0 ){
+            throw new IllegalArgumentException( "delimiter must not be empty" );
+        }
+
+        this.delimiter = delimiter.clone();
+        searched = 0;
+    }
+
+    @Override
+    public boolean decode( ByteBuffer in, ByteBuffer frame ){
+        byte[] data = in.array();
+        int base = in.arrayOffset();
+        int start = base + in.position();
+        int end = base + in.limit() - delimiter.length;
+        byte first = delimiter[ 0 ];
+        int x;
+
+        for( x = start + searched; x <= end; x++ ){
+            if( data[ x ] != first ){
+                continue;
+            }
+
+            int y = 1;
+            while( y < delimiter.length && data[ x + y ] == delimiter[ y ] ){
+                y++;
+            }
+
+            if( y == delimiter.length ){
+                frame.clear();
+                frame.position( start - base );
+                frame.limit( x - base );
+                in.position( x - base + delimiter.length );
+                searched = 0;
+                return true;
+            }
+        }
+
+        searched = Math.max( 0, x - start );
+        return false;
+    }
+
+    @Override
+    public void reset(){
+        searched = 0;
+    }
+
+    @Override
+    public int maxEncodedLength( int length ){
+        return length + delimiter.length;
+    }
+
+    @Override
+    public int encode( byte[] message, int offset, int length, byte[] out, int outOffset ){
+        System.arraycopy( message, offset, out, outOffset, length );
+        System.arraycopy( delimiter, 0, out, outOffset + length, delimiter.length );
+        return length + delimiter.length;
+    }
+}
@@ -0,0 +1,44 @@
+package com.rm5248.serial.frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of bytes into frames.
+ *
+ * A decoder is given a buffer of received data and looks for a complete frame
+ * in it.  Decoders may keep state between calls(for example, how far they
+ * have already searched), so a decoder must only be used with one stream at a
+ * time.
+ *
+ * @see FrameReader
+ */
+public interface FrameDecoder {
+
+    /**
+     * Look for a complete frame in the data between the position and the limit
+     * of {@code in}.  {@code in} must be backed by an array.
+     *
+     * If a frame is found, it may be decoded in place.  The position and limit
+     * of {@code frame}(which must be a view of the same array as {@code in})
+     * are set to the decoded frame, and the position of {@code in} is moved
+     * past the end of the frame.
+     *
+     * If no complete frame is found, the position of {@code in} is either left
+     * alone or moved past data that can never be part of a frame.
+     *
+     * @param in The received data
+     * @param frame Set to the decoded frame, if one is found
+     * @return True if a frame was found
+     * @throws IOException If the data is not a valid frame.  The position of
+     * {@code in} is moved past the bad frame, so decoding can continue.
+     */
+    boolean decode( ByteBuffer in, ByteBuffer frame ) throws IOException;
+
+    /**
+     * Forget any state kept between calls to
+     * {@link #decode(ByteBuffer, ByteBuffer) decode()}.  This is called when
+     * the data that the decoder was looking at has been thrown away.
+     */
+    void reset();
+}
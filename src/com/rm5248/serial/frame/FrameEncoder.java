@@ -0,0 +1,32 @@
+package com.rm5248.serial.frame;
+
+/**
+ * Turns a message into a frame to be sent out.
+ *
+ * @see FrameWriter
+ */
+public interface FrameEncoder {
+
+    /**
+     * Get the largest number of bytes that a message of the given length can
+     * be encoded to.
+     *
+     * @param length The length of the message
+     * @return
+     */
+    int maxEncodedLength( int length );
+
+    /**
+     * Encode a message.
+     *
+     * @param message The array containing the message
+     * @param offset The offset into the array that the message starts at
+     * @param length The length of the message
+     * @param out The array to put the frame into.  There must be at least
+     * {@link #maxEncodedLength(int) maxEncodedLength( length )} bytes
+     * available after {@code outOffset}.
+     * @param outOffset The offset in {@code out} to start at
+     * @return The number of bytes put into {@code out}
+     */
+    int encode( byte[] message, int offset, int length, byte[] out, int outOffset );
+}
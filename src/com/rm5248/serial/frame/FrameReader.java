@@ -0,0 +1,138 @@
+package com.rm5248.serial.frame;
+
+import com.rm5248.serial.SerialDevice;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames from a serial port.
+ *
+ * Data is read from the port in bulk into a single buffer which is re-used for
+ * the life of the reader, and the {@link FrameDecoder} scans that buffer for
+ * frames.  Frames are returned as a view of that buffer, so no memory is
+ * allocated per frame.  The frame returned is only valid until the next call
+ * to {@link #readFrame()}; copy it out if you need to keep it.
+ *
+ * Example:
+ * <pre>
+ * {@code
+ * FrameReader reader = new FrameReader( port, new SlipFrameCodec() );
+ * ByteBuffer frame;
+ * while( ( frame = reader.readFrame() ) != null ){
+ *     handleFrame( frame );
+ * }
+ * }
+ * </pre>
+ */
+public class FrameReader {
+
+    /**
+     * The default size of the receive buffer.  This is also the largest frame
+     * that can be received.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final InputStream input;
+    private final FrameDecoder decoder;
+    private final byte[] buffer;
+    /* Data that has been read in, but not consumed yet, is between position and limit */
+    private final ByteBuffer data;
+    /* The view of the buffer that is handed out */
+    private final ByteBuffer frame;
+
+    /**
+     * Read frames from the given SerialDevice.
+     *
+     * @param port The port to read from
+     * @param decoder How to split the data into frames
+     */
+    public FrameReader( SerialDevice port, FrameDecoder decoder ){
+        this( port.getInputStream(), decoder, DEFAULT_BUFFER_SIZE );
+    }
+
+    /**
+     * Read frames from the given stream.
+     *
+     * @param input The stream to read from
+     * @param decoder How to split the data into frames
+     * @param bufferSize The size of the receive buffer
+     */
+    public FrameReader( InputStream input, FrameDecoder decoder, int bufferSize ){
+        if( input == null ){
+            throw new IllegalArgumentException( "input must not be null" );
+        }
+
+        if( decoder == null ){
+            throw new IllegalArgumentException( "decoder must not be null" );
+        }
+
+        if( bufferSize <= 0 ){
+            throw new IllegalArgumentException( "bufferSize must be greater than 0" );
+        }
+
+        this.input = input;
+        this.decoder = decoder;
+        buffer = new byte[ bufferSize ];
+        data = ByteBuffer.wrap( buffer );
+        data.limit( 0 );
+        frame = data.duplicate();
+    }
+
+    /**
+     * Read the next frame, blocking until one is available.
+     *
+     * @return The frame, between the position and limit of the returned
+     * buffer.  It is only valid until the next call to this method.  Returns
+     * null when the end of the stream has been reached.
+     * @throws IOException If the underlying stream throws, if the frame is
+     * invalid, or the frame is too big for the buffer.  Reading may continue
+     * afterwards.
+     */
+    public synchronized ByteBuffer readFrame() throws IOException {
+        while( true ){
+            if( data.hasRemaining() && decoder.decode( data, frame ) ){
+                return frame;
+            }
+
+            //Move the unconsumed data to the front of the buffer
+            int remaining = data.remaining();
+            if( data.position() > 0 ){
+                System.arraycopy( buffer, data.position(), buffer, 0, remaining );
+                data.position( 0 );
+                data.limit( remaining );
+            }
+
+            if( remaining == buffer.length ){
+                //No frame fits into the buffer, throw everything away
+                data.limit( 0 );
+                decoder.reset();
+                throw new IOException( "Frame is larger than the buffer size of " + buffer.length );
+            }
+
+            int got = input.read( buffer, remaining, buffer.length - remaining );
+            if( got < 0 ){
+                return null;
+            }
+            data.limit( remaining + got );
+        }
+    }
+
+    /**
+     * Get the number of bytes that have been read in, but are not part of a
+     * frame yet.
+     *
+     * @return
+     */
+    public synchronized int getBufferedBytes(){
+        return data.remaining();
+    }
+
+    /**
+     * Throw away all buffered data.
+     */
+    public synchronized void clear(){
+        data.limit( 0 );
+        decoder.reset();
+    }
+}
@@ -0,0 +1,103 @@
+package com.rm5248.serial.frame;
+
+import com.rm5248.serial.SerialDevice;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes frames to a serial port.
+ *
+ * Each message is encoded into a buffer which is re-used between calls, and
+ * the whole frame is then written with a single call to the stream, so
+ * frames written from different threads do not get mixed together.
+ */
+public class FrameWriter {
+
+    private final OutputStream output;
+    private final FrameEncoder encoder;
+    private byte[] buffer;
+
+    /**
+     * Write frames to the given SerialDevice.
+     *
+     * @param port The port to write to
+     * @param encoder How to encode the frames
+     */
+    public FrameWriter( SerialDevice port, FrameEncoder encoder ){
+        this( port.getOutputStream(), encoder );
+    }
+
+    /**
+     * Write frames to the given stream.
+     *
+     * @param output The stream to write to
+     * @param encoder How to encode the frames
+     */
+    public FrameWriter( OutputStream output, FrameEncoder encoder ){
+        if( output == null ){
+            throw new IllegalArgumentException( "output must not be null" );
+        }
+
+        if( encoder == null ){
+            throw new IllegalArgumentException( "encoder must not be null" );
+        }
+
+        this.output = output;
+        this.encoder = encoder;
+        buffer = new byte[ 256 ];
+    }
+
+    /**
+     * Encode and write a message.
+     *
+     * @param message The message to write
+     * @throws IOException
+     */
+    public void writeFrame( byte[] message ) throws IOException {
+        writeFrame( message, 0, message.length );
+    }
+
+    /**
+     * Encode and write a message.
+     *
+     * @param message The array containing the message
+     * @param offset The offset into the array that the message starts at
+     * @param length The length of the message
+     * @throws IOException
+     */
+    public synchronized void writeFrame( byte[] message, int offset, int length ) throws IOException {
+        if( offset < 0 || length < 0 || offset + length > message.length ){
+            throw new IndexOutOfBoundsException();
+        }
+
+        int maxLength = encoder.maxEncodedLength( length );
+        if( buffer.length < maxLength ){
+            buffer = new byte[ Math.max( maxLength, buffer.length * 2 ) ];
+        }
+
+        int encoded = encoder.encode( message, offset, length, buffer, 0 );
+        output.write( buffer, 0, encoded );
+    }
+
+    /**
+     * Encode and write the message between the position and limit of the
+     * buffer.  The position of the buffer is moved to its limit.
+     *
+     * @param message The message to write
+     * @throws IOException
+     */
+    public void writeFrame( ByteBuffer message ) throws IOException {
+        int length = message.remaining();
+
+        if( message.hasArray() ){
+            writeFrame( message.array(), message.arrayOffset() + message.position(), length );
+        }else{
+            byte[] copy = new byte[ length ];
+            message.duplicate().get( copy );
+            writeFrame( copy, 0, length );
+        }
+
+        message.position( message.limit() );
+    }
+}
@@ -0,0 +1,186 @@
+package com.rm5248.serial.frame;
+
+import com.rm5248.serial.SerialPort;
+import com.rm5248.serial.SerialPortConfig;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames which are separated by silence on the line, such as Modbus RTU
+ * frames.
+ *
+ * Data is read with {@link SerialPort#readTimestamped(byte[], int, int, long, long[])
+ * readTimestamped()}, so each chunk of data has the time that it came in.  A
+ * frame ends when no data comes in for the gap time, or when the next chunk
+ * of data started coming in more than the gap time after the previous chunk
+ * finished.  When the chunk started is worked out from its timestamp and
+ * how long it takes to send that many characters.
+ *
+ * For Modbus RTU, the gap is 3.5 character times, or 1750 microseconds above
+ * 19200 baud; see {@link #getModbusGapMicros(SerialPortConfig)}.  Note that
+ * the operating system may hold on to received data before handing it to us.
+ * On Linux, setting the port to low latency mode(setserial ... low_latency)
+ * helps with this.
+ *
+ * As with {@link FrameReader}, the frame that is returned is a view of a
+ * buffer which is re-used, so it is only valid until the next call to
+ * {@link #readFrame()}.
+ */
+public class GapFrameReader {
+
+    /**
+     * The largest Modbus RTU frame.
+     */
+    public static final int MODBUS_MAX_FRAME_LENGTH = 256;
+
+    private final SerialPort port;
+    private final long gapMicros;
+    private final long gapNanos;
+    private final long characterNanos;
+    private final byte[] buffer;
+    private final ByteBuffer frame;
+    private final long[] timestamp;
+    /* Data that was read along with the last frame, but belongs to the next frame */
+    private int carryOffset;
+    private int carryLength;
+    /* When the last chunk of the frame being carried over came in */
+    private long carryTimestamp;
+    private long frameStart;
+    private long frameEnd;
+
+    /**
+     * Read Modbus RTU frames from the port.  The gap time is worked out from
+     * the current settings of the port.
+     *
+     * @param port The port to read from
+     */
+    public GapFrameReader( SerialPort port ){
+        this( port, getModbusGapMicros( port.getConfig() ), MODBUS_MAX_FRAME_LENGTH );
+    }
+
+    /**
+     * Read frames from the port.
+     *
+     * @param port The port to read from
+     * @param gapMicros How long the line must be silent for between frames,
+     * in microseconds
+     * @param maxFrameLength The largest frame that can be received
+     */
+    public GapFrameReader( SerialPort port, long gapMicros, int maxFrameLength ){
+        if( port == null ){
+            throw new IllegalArgumentException( "port must not be null" );
+        }
+
+        if( gapMicros <= 0 ){
+            throw new IllegalArgumentException( "gapMicros must be greater than 0" );
+        }
+
+        if( maxFrameLength <= 0 ){
+            throw new IllegalArgumentException( "maxFrameLength must be greater than 0" );
+        }
+
+        this.port = port;
+        this.gapMicros = gapMicros;
+        gapNanos = gapMicros * 1000;
+        characterNanos = port.getConfig().getCharacterTimeNanos();
+        buffer = new byte[ maxFrameLength ];
+        frame = ByteBuffer.wrap( buffer );
+        timestamp = new long[ 1 ];
+        carryLength = 0;
+    }
+
+    /**
+     * Get the Modbus RTU inter-frame gap(3.5 character times) for the given
+     * settings.  Above 19200 baud, this is fixed at 1750 microseconds.
+     *
+     * @param config The port settings
+     * @return The gap in microseconds
+     */
+    public static long getModbusGapMicros( SerialPortConfig config ){
+        if( config.getBaudRate().getBaudRate() > 19200 || config.getBaudRate().getBaudRate() == 0 ){
+            return 1750;
+        }
+
+        return config.getCharacterTimeNanos() * 35 / 10 / 1000;
+    }
+
+    /**
+     * Get the gap time that this reader uses.
+     *
+     * @return The gap in microseconds
+     */
+    public long getGapMicros(){
+        return gapMicros;
+    }
+
+    /**
+     * Read the next frame, blocking until one comes in.
+     *
+     * @return The frame, between the position and limit of the returned
+     * buffer.  It is only valid until the next call to this method.  Returns
+     * null if the port has been closed.  If the frame fills up the buffer, it
+     * is returned as-is and the rest of the data is returned as the next frame.
+     * @throws IOException If a low-level error occurs
+     */
+    public synchronized ByteBuffer readFrame() throws IOException {
+        int frameLength = carryLength;
+        long lastChunk = carryTimestamp;
+
+        System.arraycopy( buffer, carryOffset, buffer, 0, carryLength );
+        frameStart = carryTimestamp - carryLength * characterNanos;
+        carryLength = 0;
+
+        while( frameLength < buffer.length ){
+            long timeout = frameLength == 0 ? -1 : gapMicros;
+            int got = port.readTimestamped( buffer, frameLength, buffer.length - frameLength, timeout, timestamp );
+            if( got < 0 ){
+                return null;
+            }
+
+            if( got == 0 ){
+                //The line has been quiet for long enough, so the frame is done
+                break;
+            }
+
+            long chunkStart = timestamp[ 0 ] - got * characterNanos;
+            if( frameLength == 0 ){
+                frameStart = chunkStart;
+            }else if( chunkStart - lastChunk > gapNanos ){
+                //This chunk is the start of the next frame; keep it for next time
+                carryOffset = frameLength;
+                carryLength = got;
+                carryTimestamp = timestamp[ 0 ];
+                break;
+            }
+
+            lastChunk = timestamp[ 0 ];
+            frameLength += got;
+        }
+
+        frameEnd = lastChunk;
+        frame.clear();
+        frame.limit( frameLength );
+
+        return frame;
+    }
+
+    /**
+     * Get about when the first byte of the last frame started coming in, from
+     * the same clock as {@link System#nanoTime()}.
+     *
+     * @return
+     */
+    public long getFrameStartNanos(){
+        return frameStart;
+    }
+
+    /**
+     * Get when the last byte of the last frame was read, from the same clock
+     * as {@link System#nanoTime()}.
+     *
+     * @return
+     */
+    public long getFrameEndNanos(){
+        return frameEnd;
+    }
+}
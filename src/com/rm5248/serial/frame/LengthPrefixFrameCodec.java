@@ -0,0 +1,123 @@
+package com.rm5248.serial.frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frames which start with the length of the message, as an unsigned 1, 2 or
+ * 4 byte integer.  The length does not include the length field itself, and
+ * is not part of the decoded frame.
+ */
+public class LengthPrefixFrameCodec implements FrameDecoder, FrameEncoder {
+
+    private final int lengthFieldSize;
+    private final ByteOrder order;
+    private final int maxFrameLength;
+
+    /**
+     * Create a codec with a big-endian length field.
+     *
+     * @param lengthFieldSize The number of bytes in the length field: 1, 2 or 4
+     */
+    public LengthPrefixFrameCodec( int lengthFieldSize ){
+        this( lengthFieldSize, ByteOrder.BIG_ENDIAN, Integer.MAX_VALUE );
+    }
+
+    /**
+     * @param lengthFieldSize The number of bytes in the length field: 1, 2 or 4
+     * @param order The byte order of the length field
+     * @param maxFrameLength The largest frame that is allowed.  A frame with a
+     * larger length is treated as an error.
+     */
+    public LengthPrefixFrameCodec( int lengthFieldSize, ByteOrder order, int maxFrameLength ){
+        if( lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 4 ){
+            throw new IllegalArgumentException( "lengthFieldSize must be 1, 2 or 4" );
+        }
+
+        if( order == null ){
+            throw new IllegalArgumentException( "order must not be null" );
+        }
+
+        if( maxFrameLength < 0 ){
+            throw new IllegalArgumentException( "maxFrameLength must not be negative" );
+        }
+
+        this.lengthFieldSize = lengthFieldSize;
+        this.order = order;
+        if( lengthFieldSize == 1 ){
+            this.maxFrameLength = Math.min( maxFrameLength, 0xFF );
+        }else if( lengthFieldSize == 2 ){
+            this.maxFrameLength = Math.min( maxFrameLength, 0xFFFF );
+        }else{
+            this.maxFrameLength = maxFrameLength;
+        }
+    }
+
+    @Override
+    public boolean decode( ByteBuffer in, ByteBuffer frame ) throws IOException {
+        if( in.remaining() < lengthFieldSize ){
+            return false;
+        }
+
+        byte[] data = in.array();
+        int start = in.arrayOffset() + in.position();
+        long length = 0;
+
+        for( int x = 0; x < lengthFieldSize; x++ ){
+            int b;
+            if( order == ByteOrder.BIG_ENDIAN ){
+                b = data[ start + x ] & 0xFF;
+            }else{
+                b = data[ start + lengthFieldSize - 1 - x ] & 0xFF;
+            }
+            length = ( length << 8 ) | b;
+        }
+
+        if( length > maxFrameLength ){
+            //We have no way to find the start of the next frame
+            in.position( in.limit() );
+            throw new IOException( "Frame length of " + length + " is larger than the maximum of " + maxFrameLength );
+        }
+
+        if( in.remaining() < lengthFieldSize + length ){
+            return false;
+        }
+
+        frame.clear();
+        frame.position( in.position() + lengthFieldSize );
+        frame.limit( in.position() + lengthFieldSize + (int)length );
+        in.position( frame.limit() );
+
+        return true;
+    }
+
+    @Override
+    public void reset(){
+    }
+
+    @Override
+    public int maxEncodedLength( int length ){
+        return length + lengthFieldSize;
+    }
+
+    @Override
+    public int encode( byte[] message, int offset, int length, byte[] out, int outOffset ){
+        if( length > maxFrameLength ){
+            throw new IllegalArgumentException( "Message length of " + length + " is larger than the maximum of " + maxFrameLength );
+        }
+
+        for( int x = 0; x < lengthFieldSize; x++ ){
+            int shift = 8 * x;
+            if( order == ByteOrder.BIG_ENDIAN ){
+                out[ outOffset + lengthFieldSize - 1 - x ] = (byte)( length >>> shift );
+            }else{
+                out[ outOffset + x ] = (byte)( length >>> shift );
+            }
+        }
+
+        System.arraycopy( message, offset, out, outOffset + lengthFieldSize, length );
+
+        return length + lengthFieldSize;
+    }
+}
@@ -0,0 +1,110 @@
+package com.rm5248.serial.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SLIP framing, as described in RFC 1055.
+ *
+ * Frames are decoded in place.  Empty frames(two END bytes in a row) are
+ * skipped.  The encoder puts an END byte both before and after each frame, so
+ * that any line noise before the frame is flushed out as a separate frame.
+ */
+public class SlipFrameCodec implements FrameDecoder, FrameEncoder {
+
+    public static final byte END = (byte)0xC0;
+    public static final byte ESC = (byte)0xDB;
+    public static final byte ESC_END = (byte)0xDC;
+    public static final byte ESC_ESC = (byte)0xDD;
+
+    /* How many bytes after the position of the input we have already searched */
+    private int searched;
+
+    public SlipFrameCodec(){
+        searched = 0;
+    }
+
+    @Override
+    public boolean decode( ByteBuffer in, ByteBuffer frame ){
+        byte[] data = in.array();
+        int base = in.arrayOffset();
+        int end = base + in.limit();
+
+        while( true ){
+            int start = base + in.position();
+            int x;
+
+            for( x = start + searched; x < end; x++ ){
+                if( data[ x ] == END ){
+                    break;
+                }
+            }
+
+            if( x == end ){
+                searched = x - start;
+                return false;
+            }
+
+            searched = 0;
+            in.position( x - base + 1 );
+            if( x == start ){
+                //empty frame
+                continue;
+            }
+
+            //Now un-escape the frame in place
+            int write = start;
+            for( int read = start; read < x; read++ ){
+                byte b = data[ read ];
+                if( b == ESC && read + 1 < x ){
+                    read++;
+                    if( data[ read ] == ESC_END ){
+                        b = END;
+                    }else if( data[ read ] == ESC_ESC ){
+                        b = ESC;
+                    }else{
+                        //Protocol violation; RFC 1055 says to just keep the byte
+                        b = data[ read ];
+                    }
+                }
+                data[ write++ ] = b;
+            }
+
+            frame.clear();
+            frame.position( start - base );
+            frame.limit( write - base );
+            return true;
+        }
+    }
+
+    @Override
+    public void reset(){
+        searched = 0;
+    }
+
+    @Override
+    public int maxEncodedLength( int length ){
+        return length * 2 + 2;
+    }
+
+    @Override
+    public int encode( byte[] message, int offset, int length, byte[] out, int outOffset ){
+        int write = outOffset;
+
+        out[ write++ ] = END;
+        for( int x = offset; x < offset + length; x++ ){
+            byte b = message[ x ];
+            if( b == END ){
+                out[ write++ ] = ESC;
+                out[ write++ ] = ESC_END;
+            }else if( b == ESC ){
+                out[ write++ ] = ESC;
+                out[ write++ ] = ESC_ESC;
+            }else{
+                out[ write++ ] = b;
+            }
+        }
+        out[ write++ ] = END;
+
+        return write - outOffset;
+    }
+}
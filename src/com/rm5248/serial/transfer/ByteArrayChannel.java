@@ -0,0 +1,73 @@
+package com.rm5248.serial.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only SeekableByteChannel over an array, so that data in memory can
+ * be sent the same way as a file.
+ *
+ * @author rm5248
+ */
+final class ByteArrayChannel implements SeekableByteChannel {
+
+    private final byte[] data;
+    private int position;
+    private boolean open;
+
+    ByteArrayChannel( byte[] data ){
+        this.data = data;
+        open = true;
+    }
+
+    @Override
+    public int read( ByteBuffer dst ) throws IOException {
+        if( position >= data.length ){
+            return -1;
+        }
+
+        int length = Math.min( dst.remaining(), data.length - position );
+        dst.put( data, position, length );
+        position += length;
+
+        return length;
+    }
+
+    @Override
+    public int write( ByteBuffer src ){
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position(){
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position( long newPosition ){
+        position = (int)Math.min( newPosition, data.length );
+        return this;
+    }
+
+    @Override
+    public long size(){
+        return data.length;
+    }
+
+    @Override
+    public SeekableByteChannel truncate( long size ){
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen(){
+        return open;
+    }
+
+    @Override
+    public void close(){
+        open = false;
+    }
+}
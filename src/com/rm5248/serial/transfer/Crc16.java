@@ -0,0 +1,35 @@
+package com.rm5248.serial.transfer;
+
+/**
+ * The CRC-16 used by XMODEM, YMODEM and ZMODEM(CCITT polynomial 0x1021,
+ * starting at 0, not reflected), one table lookup per byte.
+ *
+ * @author rm5248
+ */
+final class Crc16 {
+
+    private static final int[] TABLE = new int[ 256 ];
+
+    static{
+        for( int x = 0; x < 256; x++ ){
+            int crc = x << 8;
+            for( int bit = 0; bit < 8; bit++ ){
+                crc = ( crc & 0x8000 ) != 0 ? ( crc << 1 ) ^ 0x1021 : crc << 1;
+            }
+            TABLE[ x ] = crc & 0xFFFF;
+        }
+    }
+
+    private Crc16(){}
+
+    static int update( int crc, int b ){
+        return ( ( crc << 8 ) ^ TABLE[ ( ( crc >> 8 ) ^ b ) & 0xFF ] ) & 0xFFFF;
+    }
+
+    static int update( int crc, byte[] data, int offset, int length ){
+        for( int x = offset; x < offset + length; x++ ){
+            crc = ( ( crc << 8 ) ^ TABLE[ ( ( crc >> 8 ) ^ data[ x ] ) & 0xFF ] ) & 0xFFFF;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,380 @@
+package com.rm5248.serial.transfer;
+
+import com.rm5248.serial.SerialDevice;
+import com.rm5248.serial.TransferListener;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends files to a receiver(for example, a bootloader) with XMODEM-1K,
+ * YMODEM-G or ZMODEM.
+ *
+ * Each block or subpacket is built with a table-driven CRC and written with
+ * a single bulk write.  A reader thread takes in everything that the
+ * receiver sends back, so the responses are collected while we are writing;
+ * the sender only looks at them between blocks, without waiting, when the
+ * protocol allows more than one block out at once(YMODEM-G and ZMODEM).
+ * With XMODEM-1K, the next block is read and its CRC worked out while we are
+ * waiting for the last one to be acknowledged.
+ *
+ * <pre>
+ * {@code
+ * try( FileSender sender = new FileSender( port ) ){
+ *     sender.setProtocol( TransferProtocol.ZMODEM );
+ *     sender.send( Paths.get( "firmware.bin" ) );
+ * }
+ * }
+ * </pre>
+ *
+ * Nothing else should read from the port while the sender is open.  The
+ * reader thread stops when the port is closed, or when the next data comes
+ * in after the sender has been closed.
+ *
+ * @author rm5248
+ */
+public class FileSender implements AutoCloseable {
+
+    private final static Logger logger = Logger.getLogger( FileSender.class.getName() );
+
+    /**
+     * The default time to wait for the receiver to respond, in milliseconds.
+     */
+    public static final int DEFAULT_TIMEOUT = 10000;
+    /**
+     * The default number of times to try something before giving up.
+     */
+    public static final int DEFAULT_RETRIES = 10;
+
+    /* The most responses that we hold onto; older ones are thrown away */
+    private static final int MAX_RESPONSES = 4096;
+
+    private final InputStream input;
+    private final OutputStream output;
+    private final Object lock;
+    private final Thread readerThread;
+    /* What the receiver has sent back; guarded by lock */
+    private final byte[] responses;
+    private int responseStart;
+    private int responseCount;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private TransferProtocol protocol;
+    private int timeoutMillis;
+    private int retries;
+    private int windowSize;
+    private TransferListener listener;
+
+    /**
+     * Send files over the given device.
+     *
+     * @param device The device to read from and write to
+     */
+    public FileSender( SerialDevice device ){
+        this( device.getInputStream(), device.getOutputStream(), device.getPortName() );
+    }
+
+    FileSender( InputStream input, OutputStream output, String name ){
+        this.input = input;
+        this.output = output;
+        lock = new Object();
+        responses = new byte[ MAX_RESPONSES ];
+        protocol = TransferProtocol.ZMODEM;
+        timeoutMillis = DEFAULT_TIMEOUT;
+        retries = DEFAULT_RETRIES;
+
+        readerThread = new Thread( new Runnable(){
+            @Override
+            public void run(){
+                readLoop();
+            }
+        }, "FileSender-" + name );
+        readerThread.setDaemon( true );
+        readerThread.start();
+    }
+
+    public synchronized void setProtocol( TransferProtocol protocol ){
+        if( protocol == null ){
+            throw new IllegalArgumentException( "protocol must not be null" );
+        }
+        this.protocol = protocol;
+    }
+
+    public synchronized TransferProtocol getProtocol(){
+        return protocol;
+    }
+
+    /**
+     * Set how long to wait for the receiver to respond before trying again.
+     *
+     * @param timeoutMillis The time to wait, in milliseconds
+     */
+    public synchronized void setTimeout( int timeoutMillis ){
+        if( timeoutMillis <= 0 ){
+            throw new IllegalArgumentException( "timeoutMillis must be greater than 0" );
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public synchronized int getTimeout(){
+        return timeoutMillis;
+    }
+
+    /**
+     * Set how many times a block(or, when starting up, our request to the
+     * receiver) is sent before the transfer fails.
+     *
+     * @param retries
+     */
+    public synchronized void setRetries( int retries ){
+        if( retries <= 0 ){
+            throw new IllegalArgumentException( "retries must be greater than 0" );
+        }
+        this.retries = retries;
+    }
+
+    public synchronized int getRetries(){
+        return retries;
+    }
+
+    /**
+     * Set how many bytes ZMODEM may send that the receiver has not
+     * acknowledged yet.  If 0(the default), the data is streamed without
+     * waiting for acknowledgements, unless the receiver says that it can only
+     * take so much at once.  A window is useful when the receiver is slow to
+     * tell us about errors, so that less has to be sent again.
+     *
+     * @param windowSize The window, in bytes, or 0 for no window
+     */
+    public synchronized void setWindowSize( int windowSize ){
+        if( windowSize < 0 ){
+            throw new IllegalArgumentException( "windowSize must not be negative" );
+        }
+        this.windowSize = windowSize;
+    }
+
+    public synchronized int getWindowSize(){
+        return windowSize;
+    }
+
+    /**
+     * Set who gets told how the transfer is going.  The listener can cancel
+     * the transfer.
+     *
+     * @param listener The listener, or null
+     */
+    public synchronized void setListener( TransferListener listener ){
+        this.listener = listener;
+    }
+
+    /**
+     * Send a file.
+     *
+     * @param file The file to send.  YMODEM and ZMODEM tell the receiver its
+     * name, size and modification time.
+     * @return The number of bytes sent
+     * @throws IOException If the file can't be read, the receiver cancels the
+     * transfer, or the receiver stops responding
+     */
+    public long send( Path file ) throws IOException {
+        try( FileChannel channel = FileChannel.open( file, StandardOpenOption.READ ) ){
+            return send( file.getFileName().toString(), channel,
+                    Files.getLastModifiedTime( file ).toMillis() / 1000 );
+        }
+    }
+
+    /**
+     * Send data from memory.
+     *
+     * @param name The name to give the receiver(YMODEM and ZMODEM)
+     * @param data The data to send
+     * @return The number of bytes sent
+     * @throws IOException If the receiver cancels the transfer, or stops
+     * responding
+     */
+    public long send( String name, byte[] data ) throws IOException {
+        return send( name, new ByteArrayChannel( data ), 0 );
+    }
+
+    /**
+     * Send data from a channel.  Only one transfer can run at a time; other
+     * threads calling this wait for the current transfer to finish.
+     *
+     * @param name The name to give the receiver(YMODEM and ZMODEM)
+     * @param data The data to send, from the start to its size.  ZMODEM may
+     * go back to any position if there is an error.
+     * @param modifiedSeconds When the data was last modified, in seconds
+     * since the epoch, or 0 if not known
+     * @return The number of bytes sent
+     * @throws IOException If the data can't be read, the receiver cancels the
+     * transfer, or the receiver stops responding
+     */
+    public synchronized long send( String name, SeekableByteChannel data, long modifiedSeconds ) throws IOException {
+        if( closed ){
+            throw new IllegalStateException( "Cannot send once the sender has been closed." );
+        }
+
+        if( name == null || data == null ){
+            throw new IllegalArgumentException( "name and data must not be null" );
+        }
+
+        logger.log( Level.FINE, "Sending {0}({1} bytes) with {2}",
+                new Object[] { name, data.size(), protocol } );
+
+        switch( protocol ){
+            case XMODEM_1K:
+                return new XmodemSender( this, false ).send( name, data );
+            case YMODEM_G:
+                return new XmodemSender( this, true ).send( name, data );
+            default:
+                return new ZmodemSender( this ).send( name, data, modifiedSeconds );
+        }
+    }
+
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Stop sending.  A transfer that is running fails with an IOException the
+     * next time that it waits for the receiver.
+     */
+    @Override
+    public void close(){
+        synchronized( lock ){
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the next byte from the receiver.
+     *
+     * @return The byte, or -1 if the timeout expired
+     */
+    int readResponse( int timeoutMillis ) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+        synchronized( lock ){
+            while( responseCount == 0 ){
+                checkOpen();
+
+                long remaining = deadline - System.nanoTime();
+                if( remaining <= 0 ){
+                    return -1;
+                }
+
+                try{
+                    lock.wait( Math.max( 1, remaining / 1000000 ) );
+                }catch( InterruptedException e ){
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "Interrupted while waiting for the receiver", e );
+                }
+            }
+
+            return takeResponse();
+        }
+    }
+
+    /**
+     * Get the next byte from the receiver, without waiting.
+     *
+     * @return The byte, or -1 if nothing has come in
+     */
+    int pollResponse() throws IOException {
+        synchronized( lock ){
+            if( responseCount == 0 ){
+                checkOpen();
+                return -1;
+            }
+
+            return takeResponse();
+        }
+    }
+
+    void write( byte[] data, int offset, int length ) throws IOException {
+        checkOpen();
+        output.write( data, offset, length );
+        output.flush();
+    }
+
+    /**
+     * Tell the listener how far we have gotten.
+     *
+     * @return False if the listener wants to stop
+     */
+    boolean progress( long transferred, long count ){
+        TransferListener toTell;
+
+        synchronized( this ){
+            toTell = listener;
+        }
+
+        if( toTell == null ){
+            return true;
+        }
+
+        try{
+            return toTell.transferProgress( transferred, count );
+        }catch( RuntimeException e ){
+            logger.log( Level.WARNING, "Transfer listener threw an exception", e );
+            return true;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if( failure != null ){
+            throw failure;
+        }
+
+        if( closed ){
+            throw new IOException( "The file sender has been closed" );
+        }
+    }
+
+    private int takeResponse(){
+        int b = responses[ responseStart ] & 0xFF;
+        responseStart = ( responseStart + 1 ) % responses.length;
+        responseCount--;
+        return b;
+    }
+
+    private void readLoop(){
+        byte[] buffer = new byte[ 512 ];
+
+        try{
+            while( !closed ){
+                int got = input.read( buffer );
+                if( got < 0 ){
+                    throw new EOFException( "The port has been closed" );
+                }
+
+                synchronized( lock ){
+                    for( int x = 0; x < got; x++ ){
+                        if( responseCount == responses.length ){
+                            //Nobody is reading; the oldest responses are no use now
+                            responseStart = ( responseStart + 1 ) % responses.length;
+                            responseCount--;
+                        }
+                        responses[ ( responseStart + responseCount ) % responses.length ] = buffer[ x ];
+                        responseCount++;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }catch( IOException e ){
+            synchronized( lock ){
+                failure = e;
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.rm5248.serial.transfer;
+
+/**
+ * The protocols that a {@link FileSender} can send with.
+ *
+ * @author rm5248
+ */
+public enum TransferProtocol {
+    /**
+     * XMODEM with 1024-byte blocks and a CRC.  Each block has to be
+     * acknowledged before the next one is sent.  If the receiver asks for
+     * the original checksum XMODEM, 128-byte blocks are sent instead.
+     */
+    XMODEM_1K,
+    /**
+     * YMODEM-G: the file name and size are sent first, then all of the
+     * blocks are sent without waiting for acknowledgements.  Any error ends
+     * the transfer, so this needs an error-free link(e.g. USB, or hardware
+     * flow control).  If the receiver asks for plain YMODEM, each block is
+     * acknowledged instead.
+     */
+    YMODEM_G,
+    /**
+     * ZMODEM: the data is streamed, and the receiver tells us where to go
+     * back to if there is an error.  A window can be set to limit how far
+     * ahead of the receiver we get.
+     */
+    ZMODEM
+}
@@ -0,0 +1,308 @@
+package com.rm5248.serial.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Sends one file with XMODEM-1K, or with YMODEM-G(batch mode, with the file
+ * name and size in block 0).
+ *
+ * Only one block can be out at a time unless the receiver asked for
+ * streaming('G'), so while waiting for a block to be acknowledged the next
+ * one is read and its CRC is worked out.  When streaming, the blocks are
+ * written back to back, and the only thing that we look for in between is
+ * the receiver cancelling.
+ *
+ * @author rm5248
+ */
+final class XmodemSender {
+
+    static final int SOH = 0x01;
+    static final int STX = 0x02;
+    static final int EOT = 0x04;
+    static final int ACK = 0x06;
+    static final int NAK = 0x15;
+    static final int CAN = 0x18;
+    static final int SUB = 0x1A;
+    static final int CRC_REQUEST = 'C';
+    static final int STREAM_REQUEST = 'G';
+
+    private static final int HEADER_SIZE = 3;
+    private static final Charset ISO_8859_1 = Charset.forName( "ISO-8859-1" );
+
+    private final FileSender sender;
+    private final boolean batch;
+    private final int timeout;
+    private final int retries;
+    /* The block that was just sent, and the one being put together */
+    private byte[] current;
+    private int currentLength;
+    private byte[] next;
+    private int nextLength;
+    private boolean crc;
+    private boolean streaming;
+    private int blockNumber;
+
+    XmodemSender( FileSender sender, boolean batch ){
+        this.sender = sender;
+        this.batch = batch;
+        timeout = sender.getTimeout();
+        retries = sender.getRetries();
+        current = new byte[ HEADER_SIZE + 1024 + 2 ];
+        next = new byte[ HEADER_SIZE + 1024 + 2 ];
+    }
+
+    long send( String name, SeekableByteChannel data ) throws IOException {
+        long length = data.size();
+        long sent = 0;
+
+        startTransfer();
+
+        if( batch ){
+            buildHeaderBlock( name, length );
+            swapBlocks();
+            sendCurrent();
+            //The receiver asks again once it has opened the file
+            startTransfer();
+        }
+
+        blockNumber = 1;
+        data.position( 0 );
+        int read = buildDataBlock( data, length - sent );
+        while( read > 0 ){
+            swapBlocks();
+            write( current, currentLength );
+            long afterThis = sent + read;
+
+            //Get the next block ready while this one is going out
+            read = afterThis < length ? buildDataBlock( data, length - afterThis ) : 0;
+
+            waitForAck();
+            sent = afterThis;
+
+            if( !sender.progress( sent, length ) ){
+                cancel();
+                throw new IOException( "Transfer cancelled" );
+            }
+        }
+
+        sendEndOfFile();
+
+        if( batch ){
+            //An empty block 0 means that there are no more files
+            startTransfer();
+            buildEndOfBatchBlock();
+            swapBlocks();
+            sendCurrent();
+        }
+
+        return sent;
+    }
+
+    /**
+     * Wait for the receiver to ask us to start, and find out which mode it
+     * wants.
+     */
+    private void startTransfer() throws IOException {
+        //Receivers ask every few seconds, and may print other things in between
+        long deadline = System.nanoTime() + (long)timeout * retries * 1000000L;
+        int cancels = 0;
+
+        while( true ){
+            long remaining = ( deadline - System.nanoTime() ) / 1000000;
+            int b = remaining > 0 ? sender.readResponse( (int)Math.min( remaining, Integer.MAX_VALUE ) ) : -1;
+            if( b < 0 ){
+                throw new IOException( "The receiver did not ask for the transfer to start" );
+            }
+
+            if( b == CAN ){
+                if( ++cancels >= 2 ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+                continue;
+            }
+            cancels = 0;
+
+            if( b == CRC_REQUEST ){
+                crc = true;
+                streaming = false;
+                return;
+            }else if( b == STREAM_REQUEST && batch ){
+                crc = true;
+                streaming = true;
+                return;
+            }else if( b == NAK && !batch ){
+                crc = false;
+                streaming = false;
+                return;
+            }
+            //Anything else is noise; keep waiting
+        }
+    }
+
+    /**
+     * Write the current block, and wait for it to be acknowledged unless we
+     * are streaming.
+     */
+    private void sendCurrent() throws IOException {
+        write( current, currentLength );
+        waitForAck();
+    }
+
+    private void waitForAck() throws IOException {
+        if( streaming ){
+            //Nothing comes back while streaming, unless the receiver gives up
+            int b;
+            while( ( b = sender.pollResponse() ) >= 0 ){
+                if( b == CAN ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+            }
+            return;
+        }
+
+        int cancels = 0;
+        int attempt = 0;
+        while( true ){
+            int b = sender.readResponse( timeout );
+            if( b == ACK ){
+                return;
+            }
+
+            if( b == CAN ){
+                if( ++cancels >= 2 ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+                continue;
+            }
+            cancels = 0;
+
+            if( b == NAK || b < 0 ){
+                if( ++attempt >= retries ){
+                    cancel();
+                    throw new IOException( "Block " + ( current[ 1 ] & 0xFF ) + " was not acknowledged after "
+                            + retries + " tries" );
+                }
+                write( current, currentLength );
+            }
+            //Anything else(such as another 'C' from before the first block) is ignored
+        }
+    }
+
+    private void sendEndOfFile() throws IOException {
+        byte[] eot = new byte[] { (byte)EOT };
+        int cancels = 0;
+
+        for( int attempt = 0; attempt < retries; attempt++ ){
+            write( eot, 1 );
+
+            //Some receivers NAK the first EOT, to make sure that it isn't noise
+            int b;
+            do{
+                b = sender.readResponse( timeout );
+                if( b == ACK ){
+                    return;
+                }
+                if( b == CAN && ++cancels >= 2 ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+            }while( b >= 0 && b != NAK );
+        }
+
+        throw new IOException( "The end of the file was not acknowledged" );
+    }
+
+    private void buildHeaderBlock( String name, long length ) throws IOException {
+        byte[] info = ( name + '\0' + length ).getBytes( ISO_8859_1 );
+        int size = info.length < 128 ? 128 : 1024;
+
+        if( info.length >= size ){
+            throw new IOException( "File name is too long" );
+        }
+
+        Arrays.fill( next, HEADER_SIZE, HEADER_SIZE + size, (byte)0 );
+        System.arraycopy( info, 0, next, HEADER_SIZE, info.length );
+        nextLength = finishBlock( 0, size );
+    }
+
+    private void buildEndOfBatchBlock(){
+        Arrays.fill( next, HEADER_SIZE, HEADER_SIZE + 128, (byte)0 );
+        nextLength = finishBlock( 0, 128 );
+    }
+
+    /**
+     * Read the next block of data into the next buffer.
+     *
+     * @return The number of bytes of data in it
+     */
+    private int buildDataBlock( SeekableByteChannel data, long remaining ) throws IOException {
+        //The original XMODEM only knows about 128-byte blocks
+        int size = crc && remaining > 128 ? 1024 : 128;
+        ByteBuffer buffer = ByteBuffer.wrap( next, HEADER_SIZE, (int)Math.min( size, remaining ) );
+
+        while( buffer.hasRemaining() ){
+            if( data.read( buffer ) < 0 ){
+                break;
+            }
+        }
+
+        int read = buffer.position() - HEADER_SIZE;
+        if( read == 0 ){
+            return 0;
+        }
+
+        Arrays.fill( next, HEADER_SIZE + read, HEADER_SIZE + size, (byte)SUB );
+        nextLength = finishBlock( blockNumber, size );
+        blockNumber++;
+
+        return read;
+    }
+
+    /**
+     * Fill in the header and the CRC or checksum of the next block.
+     *
+     * @return The length of the block
+     */
+    private int finishBlock( int number, int size ){
+        next[ 0 ] = (byte)( size == 1024 ? STX : SOH );
+        next[ 1 ] = (byte)number;
+        next[ 2 ] = (byte)~number;
+
+        int end = HEADER_SIZE + size;
+        if( crc ){
+            int value = Crc16.update( 0, next, HEADER_SIZE, size );
+            next[ end++ ] = (byte)( value >> 8 );
+            next[ end++ ] = (byte)value;
+        }else{
+            int sum = 0;
+            for( int x = HEADER_SIZE; x < end; x++ ){
+                sum += next[ x ];
+            }
+            next[ end++ ] = (byte)sum;
+        }
+
+        return end;
+    }
+
+    private void swapBlocks(){
+        byte[] tmp = current;
+        current = next;
+        currentLength = nextLength;
+        next = tmp;
+    }
+
+    private void write( byte[] block, int length ) throws IOException {
+        sender.write( block, 0, length );
+    }
+
+    private void cancel(){
+        try{
+            sender.write( new byte[] { CAN, CAN, CAN, CAN, CAN }, 0, 5 );
+        }catch( IOException e ){
+            //We are giving up anyway
+        }
+    }
+}
@@ -0,0 +1,742 @@
+package com.rm5248.serial.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Sends one file with ZMODEM.
+ *
+ * The data goes out as a stream of subpackets.  Whatever the receiver sends
+ * back(ZACK for how far it has gotten, ZRPOS to go back after an error) is
+ * looked at between subpackets without waiting, so the line stays busy.  We
+ * only stop and wait when the receiver needs us to: when its buffer is full,
+ * when it can't take data while it is writing, or when the window set on the
+ * {@link FileSender} is full.
+ *
+ * @author rm5248
+ */
+final class ZmodemSender {
+
+    static final int ZPAD = '*';
+    static final int ZDLE = 0x18;
+    static final int ZBIN = 'A';
+    static final int ZHEX = 'B';
+    static final int ZBIN32 = 'C';
+    static final int XON = 0x11;
+    static final int XOFF = 0x13;
+
+    /* Frame types */
+    static final int ZRQINIT = 0;
+    static final int ZRINIT = 1;
+    static final int ZACK = 3;
+    static final int ZFILE = 4;
+    static final int ZSKIP = 5;
+    static final int ZNAK = 6;
+    static final int ZABORT = 7;
+    static final int ZFIN = 8;
+    static final int ZRPOS = 9;
+    static final int ZDATA = 10;
+    static final int ZEOF = 11;
+    static final int ZFERR = 12;
+    static final int ZCRC = 13;
+    static final int ZCHALLENGE = 14;
+    static final int ZCAN = 16;
+
+    /* How a subpacket ends */
+    static final int ZCRCE = 'h';
+    static final int ZCRCG = 'i';
+    static final int ZCRCQ = 'j';
+    static final int ZCRCW = 'k';
+    static final int ZRUB0 = 'l';
+    static final int ZRUB1 = 'm';
+
+    /* What the receiver can do(ZF0 of ZRINIT) */
+    static final int CANFDX = 0x01;
+    static final int CANOVIO = 0x02;
+    static final int CANFC32 = 0x20;
+    static final int ESCCTL = 0x40;
+
+    private static final int SUBPACKET_SIZE = 1024;
+    /* A subpacket, or a header, with every byte escaped */
+    private static final int MAX_ESCAPED_SUBPACKET = 2 * ( SUBPACKET_SIZE + 16 );
+    /* How much to send before waiting, if the receiver can't overlap I/O */
+    private static final int HALF_DUPLEX_SEGMENT = 8 * SUBPACKET_SIZE;
+    private static final Charset ISO_8859_1 = Charset.forName( "ISO-8859-1" );
+
+    /* Header parser states */
+    private static final int PARSE_IDLE = 0;
+    private static final int PARSE_PAD = 1;
+    private static final int PARSE_DLE = 2;
+    private static final int PARSE_HEX = 3;
+    private static final int PARSE_BINARY = 4;
+
+    private final FileSender sender;
+    private final int timeout;
+    private final int retries;
+    private final int windowSize;
+    private final CRC32 crc32;
+    /* Bytes that have to be sent as ZDLE, byte ^ 0x40 */
+    private final boolean[] escape;
+    private final byte[] chunk;
+    /* Where packets are built before being written, a few subpackets at a
+     * time; big enough for every byte to be escaped */
+    private final byte[] packet;
+    private int packetLength;
+    private boolean useCrc32;
+    private boolean fullDuplex;
+    private int receiverBuffer;
+
+    /* Header parser */
+    private int parseState;
+    private int parseFormat;
+    private int parseCount;
+    private boolean parseEscape;
+    private final byte[] parsed;
+    private int cancelCount;
+    private int headerType;
+    private long headerPosition;
+
+    ZmodemSender( FileSender sender ){
+        this.sender = sender;
+        timeout = sender.getTimeout();
+        retries = sender.getRetries();
+        windowSize = sender.getWindowSize();
+        crc32 = new CRC32();
+        escape = new boolean[ 256 ];
+        chunk = new byte[ SUBPACKET_SIZE ];
+        packet = new byte[ 4 * MAX_ESCAPED_SUBPACKET ];
+        parsed = new byte[ 9 ];
+        setEscapes( false );
+    }
+
+    long send( String name, SeekableByteChannel data, long modifiedSeconds ) throws IOException {
+        long length = data.size();
+
+        startSession();
+
+        long position = sendFileInfo( name, data, length, modifiedSeconds );
+        if( position < 0 ){
+            throw new IOException( "The receiver skipped " + name );
+        }
+
+        sendData( data, position, length );
+        finishSession();
+
+        return length;
+    }
+
+    /**
+     * Ask the receiver to start, and find out what it can do.
+     */
+    private void startSession() throws IOException {
+        byte[] rz = "rz\r".getBytes( ISO_8859_1 );
+        sender.write( rz, 0, rz.length );
+
+        for( int attempt = 0; attempt < retries; attempt++ ){
+            sendHexHeader( ZRQINIT, 0 );
+
+            int type = nextHeader( timeout );
+            while( type == ZCHALLENGE ){
+                sendHexHeader( ZACK, headerPosition );
+                type = nextHeader( timeout );
+            }
+
+            if( type == ZRINIT ){
+                int flags = parsed[ 4 ] & 0xFF;
+                receiverBuffer = ( parsed[ 1 ] & 0xFF ) | ( ( parsed[ 2 ] & 0xFF ) << 8 );
+                fullDuplex = ( flags & CANFDX ) != 0 && ( flags & CANOVIO ) != 0;
+                useCrc32 = ( flags & CANFC32 ) != 0;
+                setEscapes( ( flags & ESCCTL ) != 0 );
+                return;
+            }
+        }
+
+        throw new IOException( "The receiver did not respond" );
+    }
+
+    /**
+     * Tell the receiver about the file.
+     *
+     * @return Where the receiver wants us to start, or -1 if it skipped the file
+     */
+    private long sendFileInfo( String name, SeekableByteChannel data, long length, long modifiedSeconds )
+            throws IOException {
+        byte[] info = ( name + '\0' + length + ' ' + Long.toOctalString( modifiedSeconds ) + '\0' )
+                .getBytes( ISO_8859_1 );
+
+        for( int attempt = 0; attempt < retries; attempt++ ){
+            packetLength = 0;
+            putBinaryHeader( ZFILE, 0 );
+            putSubpacket( info, 0, info.length, ZCRCW );
+            flushPacket();
+
+            int type = nextHeader( timeout );
+            while( type == ZCRC ){
+                //The receiver already has some of the file, and wants to check it
+                sendHexHeader( ZCRC, fileCrc( data, headerPosition == 0 ? length : headerPosition ) );
+                type = nextHeader( timeout );
+            }
+
+            switch( type ){
+                case ZRPOS:
+                    return headerPosition;
+                case ZSKIP:
+                    return -1;
+                case ZABORT:
+                case ZFERR:
+                case ZCAN:
+                    throw new IOException( "The receiver cancelled the transfer" );
+            }
+            //ZRINIT or ZNAK means that it didn't get it
+        }
+
+        throw new IOException( "The receiver did not accept the file" );
+    }
+
+    private void sendData( SeekableByteChannel data, long position, long length ) throws IOException {
+        int errors = 0;
+
+        while( true ){
+            position = streamFrom( data, position, length );
+
+            for( int attempt = 0; ; attempt++ ){
+                if( attempt >= retries ){
+                    throw new IOException( "The end of the file was not acknowledged" );
+                }
+
+                packetLength = 0;
+                putBinaryHeader( ZEOF, length );
+                flushPacket();
+
+                int type = nextHeader( timeout );
+                while( type == ZACK ){
+                    type = nextHeader( timeout );
+                }
+
+                if( type == ZRINIT ){
+                    return;
+                }else if( type == ZRPOS ){
+                    //Something at the end got lost
+                    if( ++errors > retries ){
+                        abort();
+                        throw new IOException( "Too many errors" );
+                    }
+                    position = headerPosition;
+                    break;
+                }else if( isCancel( type ) ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+            }
+        }
+    }
+
+    /**
+     * Send everything from the given position to the end of the file, going
+     * back whenever the receiver asks us to.
+     *
+     * @return The position at the end
+     */
+    private long streamFrom( SeekableByteChannel data, long position, long length ) throws IOException {
+        //Work out when we have to stop and wait for the receiver
+        int segment = receiverBuffer > 0 ? receiverBuffer : fullDuplex ? 0 : HALF_DUPLEX_SEGMENT;
+        int window = windowSize;
+        if( window > 0 && segment > 0 ){
+            //We are waiting for each segment anyway
+            segment = Math.min( segment, window );
+            window = 0;
+        }
+        long acked = position;
+        long lastRequest = position;
+        long segmentEnd = segment > 0 ? position + segment : Long.MAX_VALUE;
+        long reposition = -1;
+        long lastReposition = -1;
+        int errors = 0;
+
+        data.position( position );
+        startFrame( position, length );
+
+        while( position < length ){
+            //See what the receiver has said, without waiting
+            int type;
+            while( ( type = pollHeader() ) >= 0 ){
+                if( type == ZRPOS ){
+                    reposition = headerPosition;
+                }else if( type == ZACK ){
+                    acked = Math.max( acked, headerPosition );
+                }else if( isCancel( type ) ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+            }
+
+            //Don't get too far ahead of the receiver
+            if( reposition < 0 && window > 0 && position - acked >= window ){
+                flushPacket();
+                type = nextHeader( timeout );
+                if( type == ZACK ){
+                    acked = Math.max( acked, headerPosition );
+                }else if( type == ZRPOS ){
+                    reposition = headerPosition;
+                }else if( type < 0 ){
+                    //The ZACK got lost; start again from what we know it has
+                    reposition = acked;
+                }else if( isCancel( type ) ){
+                    throw new IOException( "The receiver cancelled the transfer" );
+                }
+                continue;
+            }
+
+            if( reposition >= 0 ){
+                if( reposition == lastReposition && ++errors > retries ){
+                    abort();
+                    throw new IOException( "Too many errors" );
+                }else if( reposition != lastReposition ){
+                    errors = 0;
+                }
+                lastReposition = reposition;
+
+                //Anything that we had ready to go is no good now
+                position = reposition;
+                reposition = -1;
+                acked = position;
+                lastRequest = position;
+                segmentEnd = segment > 0 ? position + segment : Long.MAX_VALUE;
+                data.position( position );
+                startFrame( position, length );
+                continue;
+            }
+
+            int read = readChunk( data, (int)Math.min( SUBPACKET_SIZE, Math.min( length, segmentEnd ) - position ) );
+            if( read <= 0 ){
+                throw new IOException( "The file ended early" );
+            }
+            long after = position + read;
+
+            int end;
+            if( after >= length ){
+                end = ZCRCE;
+            }else if( after >= segmentEnd ){
+                end = ZCRCW;
+            }else if( window > 0 && after - lastRequest >= window / 4 ){
+                end = ZCRCQ;
+                lastRequest = after;
+            }else{
+                end = ZCRCG;
+            }
+
+            putSubpacket( chunk, 0, read, end );
+            //Write in bulk, but don't hold back anything that needs a response
+            if( end != ZCRCG || packetLength > packet.length - 2 * MAX_ESCAPED_SUBPACKET ){
+                flushPacket();
+            }
+            position = after;
+
+            if( !sender.progress( position, length ) ){
+                abort();
+                throw new IOException( "Transfer cancelled" );
+            }
+
+            if( end == ZCRCW ){
+                //The receiver has to catch up before we can go on
+                if( waitForAck( position ) == ZRPOS ){
+                    reposition = headerPosition;
+                }else{
+                    acked = position;
+                    lastRequest = position;
+                    segmentEnd = position + segment;
+                    startFrame( position, length );
+                }
+            }
+        }
+
+        flushPacket();
+        return position;
+    }
+
+    /**
+     * Start a new ZDATA frame, unless there is nothing left to put in it.
+     */
+    private void startFrame( long position, long length ){
+        packetLength = 0;
+        if( position < length ){
+            putBinaryHeader( ZDATA, position );
+        }
+    }
+
+    private static boolean isCancel( int type ){
+        return type == ZSKIP || type == ZABORT || type == ZFERR || type == ZCAN || type == ZFIN;
+    }
+
+    /**
+     * Wait for the receiver to acknowledge everything up to position.
+     *
+     * @return ZACK, or ZRPOS if the receiver wants us to go back
+     */
+    private int waitForAck( long position ) throws IOException {
+        for( int attempt = 0; attempt < retries; attempt++ ){
+            int type = nextHeader( timeout );
+            if( type == ZACK || type == ZRPOS ){
+                return type;
+            }else if( isCancel( type ) ){
+                throw new IOException( "The receiver cancelled the transfer" );
+            }else if( type < 0 ){
+                //Ask again
+                packetLength = 0;
+                putBinaryHeader( ZDATA, position );
+                putSubpacket( chunk, 0, 0, ZCRCW );
+                flushPacket();
+            }
+        }
+
+        throw new IOException( "The receiver stopped responding" );
+    }
+
+    private void finishSession() throws IOException {
+        for( int attempt = 0; attempt < retries; attempt++ ){
+            sendHexHeader( ZFIN, 0 );
+            int type = nextHeader( timeout );
+            if( type == ZFIN ){
+                byte[] over = "OO".getBytes( ISO_8859_1 );
+                sender.write( over, 0, over.length );
+                return;
+            }
+        }
+
+        //The file got there, even if the receiver didn't say goodbye
+    }
+
+    /**
+     * The CRC-32 of the first length bytes of the file, for ZCRC.
+     */
+    private long fileCrc( SeekableByteChannel data, long length ) throws IOException {
+        CRC32 fileCrc = new CRC32();
+        long done = 0;
+
+        data.position( 0 );
+        while( done < length ){
+            int read = readChunk( data, (int)Math.min( chunk.length, length - done ) );
+            if( read <= 0 ){
+                break;
+            }
+            fileCrc.update( chunk, 0, read );
+            done += read;
+        }
+
+        return fileCrc.getValue();
+    }
+
+    private int readChunk( SeekableByteChannel data, int length ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap( chunk, 0, length );
+
+        while( buffer.hasRemaining() ){
+            if( data.read( buffer ) < 0 ){
+                break;
+            }
+        }
+
+        return buffer.position();
+    }
+
+    private void abort(){
+        byte[] cancel = new byte[] { ZDLE, ZDLE, ZDLE, ZDLE, ZDLE, ZDLE, ZDLE, ZDLE,
+            8, 8, 8, 8, 8, 8, 8, 8 };
+        try{
+            sender.write( cancel, 0, cancel.length );
+        }catch( IOException e ){
+            //We are giving up anyway
+        }
+    }
+
+    //
+    // Sending
+    //
+
+    private void setEscapes( boolean controlCharacters ){
+        for( int x = 0; x < 256; x++ ){
+            escape[ x ] = controlCharacters && ( x & 0x60 ) == 0;
+        }
+        escape[ ZDLE ] = true;
+        escape[ 0x10 ] = true;
+        escape[ 0x90 ] = true;
+        escape[ XON ] = true;
+        escape[ XON | 0x80 ] = true;
+        escape[ XOFF ] = true;
+        escape[ XOFF | 0x80 ] = true;
+    }
+
+    private void sendHexHeader( int type, long position ) throws IOException {
+        byte[] header = new byte[ 5 ];
+        header[ 0 ] = (byte)type;
+        putPosition( header, position );
+
+        int crc = Crc16.update( 0, header, 0, header.length );
+
+        StringBuilder sb = new StringBuilder( 22 );
+        sb.append( (char)ZPAD ).append( (char)ZPAD ).append( (char)ZDLE ).append( (char)ZHEX );
+        for( byte b : header ){
+            appendHex( sb, b & 0xFF );
+        }
+        appendHex( sb, crc >> 8 );
+        appendHex( sb, crc & 0xFF );
+        sb.append( '\r' ).append( (char)0x8A );
+        if( type != ZFIN && type != ZACK ){
+            sb.append( (char)XON );
+        }
+
+        byte[] bytes = sb.toString().getBytes( ISO_8859_1 );
+        sender.write( bytes, 0, bytes.length );
+    }
+
+    private static void appendHex( StringBuilder sb, int value ){
+        sb.append( Character.forDigit( value >> 4, 16 ) ).append( Character.forDigit( value & 0x0F, 16 ) );
+    }
+
+    private static void putPosition( byte[] header, long position ){
+        header[ 1 ] = (byte)position;
+        header[ 2 ] = (byte)( position >> 8 );
+        header[ 3 ] = (byte)( position >> 16 );
+        header[ 4 ] = (byte)( position >> 24 );
+    }
+
+    private void putBinaryHeader( int type, long position ){
+        byte[] header = new byte[ 5 ];
+        header[ 0 ] = (byte)type;
+        putPosition( header, position );
+
+        packet[ packetLength++ ] = ZPAD;
+        packet[ packetLength++ ] = ZDLE;
+        if( useCrc32 ){
+            packet[ packetLength++ ] = ZBIN32;
+            crc32.reset();
+            crc32.update( header, 0, header.length );
+            putEscaped( header, 0, header.length );
+            putCrc32( crc32.getValue() );
+        }else{
+            packet[ packetLength++ ] = ZBIN;
+            int crc = Crc16.update( 0, header, 0, header.length );
+            putEscaped( header, 0, header.length );
+            putEscaped( crc >> 8 );
+            putEscaped( crc );
+        }
+    }
+
+    private void putSubpacket( byte[] data, int offset, int length, int end ){
+        putEscaped( data, offset, length );
+        packet[ packetLength++ ] = ZDLE;
+        packet[ packetLength++ ] = (byte)end;
+
+        if( useCrc32 ){
+            crc32.reset();
+            crc32.update( data, offset, length );
+            crc32.update( end );
+            putCrc32( crc32.getValue() );
+        }else{
+            int crc = Crc16.update( 0, data, offset, length );
+            crc = Crc16.update( crc, end );
+            putEscaped( crc >> 8 );
+            putEscaped( crc );
+        }
+
+        if( end == ZCRCW ){
+            //Let the receiver know that it can talk now
+            packet[ packetLength++ ] = XON;
+        }
+    }
+
+    private void putCrc32( long crc ){
+        for( int x = 0; x < 4; x++ ){
+            putEscaped( (int)( crc >> ( 8 * x ) ) );
+        }
+    }
+
+    private void putEscaped( byte[] data, int offset, int length ){
+        for( int x = offset; x < offset + length; x++ ){
+            putEscaped( data[ x ] );
+        }
+    }
+
+    private void putEscaped( int b ){
+        b &= 0xFF;
+        if( escape[ b ] ){
+            packet[ packetLength++ ] = ZDLE;
+            packet[ packetLength++ ] = (byte)( b ^ 0x40 );
+        }else{
+            packet[ packetLength++ ] = (byte)b;
+        }
+    }
+
+    private void flushPacket() throws IOException {
+        if( packetLength > 0 ){
+            sender.write( packet, 0, packetLength );
+            packetLength = 0;
+        }
+    }
+
+    //
+    // Receiving
+    //
+
+    /**
+     * Wait for the next header from the receiver.
+     *
+     * @return The frame type, or -1 if the timeout expired
+     */
+    private int nextHeader( int timeoutMillis ) throws IOException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+        while( true ){
+            long remaining = ( deadline - System.nanoTime() ) / 1000000;
+            if( remaining <= 0 ){
+                return -1;
+            }
+
+            int b = sender.readResponse( (int)remaining );
+            if( b < 0 ){
+                return -1;
+            }
+
+            if( parse( b ) ){
+                return headerType;
+            }
+        }
+    }
+
+    /**
+     * Look at whatever the receiver has sent, without waiting.
+     *
+     * @return The frame type of the next header, or -1 if there isn't one
+     */
+    private int pollHeader() throws IOException {
+        int b;
+
+        while( ( b = sender.pollResponse() ) >= 0 ){
+            if( parse( b ) ){
+                return headerType;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Feed one byte to the header parser.
+     *
+     * @return True if a whole header with a good CRC has come in
+     */
+    private boolean parse( int b ) throws IOException {
+        if( b == ZDLE ){
+            //Five CANs in a row is the receiver giving up
+            if( ++cancelCount >= 5 ){
+                throw new IOException( "The receiver cancelled the transfer" );
+            }
+        }else{
+            cancelCount = 0;
+        }
+
+        switch( parseState ){
+            case PARSE_IDLE:
+                if( b == ZPAD ){
+                    parseState = PARSE_PAD;
+                }
+                return false;
+            case PARSE_PAD:
+                if( b == ZDLE ){
+                    parseState = PARSE_DLE;
+                }else if( b != ZPAD ){
+                    parseState = PARSE_IDLE;
+                }
+                return false;
+            case PARSE_DLE:
+                parseFormat = b;
+                parseCount = 0;
+                parseEscape = false;
+                if( b == ZHEX ){
+                    parseState = PARSE_HEX;
+                }else if( b == ZBIN || b == ZBIN32 ){
+                    parseState = PARSE_BINARY;
+                }else{
+                    parseState = PARSE_IDLE;
+                }
+                return false;
+            case PARSE_HEX:
+                return parseHex( b );
+            default:
+                return parseBinary( b );
+        }
+    }
+
+    private boolean parseHex( int b ){
+        int digit = Character.digit( b, 16 );
+        if( digit < 0 ){
+            parseState = PARSE_IDLE;
+            return false;
+        }
+
+        //Two digits per byte: type, 4 bytes, 2 bytes of CRC
+        if( ( parseCount & 1 ) == 0 ){
+            parsed[ parseCount / 2 ] = (byte)( digit << 4 );
+        }else{
+            parsed[ parseCount / 2 ] |= (byte)digit;
+        }
+
+        if( ++parseCount < 14 ){
+            return false;
+        }
+
+        parseState = PARSE_IDLE;
+        return finishHeader( Crc16.update( 0, parsed, 0, 7 ) == 0 );
+    }
+
+    private boolean parseBinary( int b ){
+        if( !parseEscape ){
+            if( b == ZDLE ){
+                parseEscape = true;
+                return false;
+            }
+            if( ( b & 0x7F ) == XON || ( b & 0x7F ) == XOFF ){
+                //Flow control, not part of the header
+                return false;
+            }
+        }else{
+            parseEscape = false;
+            if( b == ZRUB0 ){
+                b = 0x7F;
+            }else if( b == ZRUB1 ){
+                b = 0xFF;
+            }else{
+                b ^= 0x40;
+            }
+        }
+
+        parsed[ parseCount++ ] = (byte)b;
+
+        int size = parseFormat == ZBIN32 ? 9 : 7;
+        if( parseCount < size ){
+            return false;
+        }
+
+        parseState = PARSE_IDLE;
+        if( parseFormat == ZBIN32 ){
+            crc32.reset();
+            crc32.update( parsed, 0, 5 );
+            long crc = ( parsed[ 5 ] & 0xFFL ) | ( ( parsed[ 6 ] & 0xFFL ) << 8 )
+                    | ( ( parsed[ 7 ] & 0xFFL ) << 16 ) | ( ( parsed[ 8 ] & 0xFFL ) << 24 );
+            return finishHeader( crc == crc32.getValue() );
+        }
+
+        return finishHeader( Crc16.update( 0, parsed, 0, 7 ) == 0 );
+    }
+
+    private boolean finishHeader( boolean good ){
+        if( !good ){
+            return false;
+        }
+
+        headerType = parsed[ 0 ] & 0xFF;
+        headerPosition = ( parsed[ 1 ] & 0xFFL ) | ( ( parsed[ 2 ] & 0xFFL ) << 8 )
+                | ( ( parsed[ 3 ] & 0xFFL ) << 16 ) | ( ( parsed[ 4 ] & 0xFFL ) << 24 );
+        return true;
+    }
+}
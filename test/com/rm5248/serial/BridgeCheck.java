@@ -0,0 +1,103 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * Bridge a pseudo-terminal to a TCP socket on the loopback address.  Bytes
+ * must go through in both directions without being changed, and stopping
+ * the bridge must disconnect the client and stop listening.  Needs Linux or
+ * Mac.
+ *
+ * @author rm5248
+ */
+public class BridgeCheck {
+
+    public static void main( String[] args ) throws Exception {
+        try( PseudoTerminalPair pair = Checks.openPair();
+                SerialPort port = new SerialPort( pair.getSlaveName(), true, SerialPort.NO_CONTROL_LINE_CHANGE ) ){
+            SerialPortBridge bridge = SerialPortBridge.listenTcp( port, "127.0.0.1", 0, false );
+            int tcpPort = bridge.getLocalPort();
+            Checks.check( tcpPort > 0, "No TCP port to connect to" );
+
+            try( Socket client = new Socket( "127.0.0.1", tcpPort ) ){
+                client.setSoTimeout( 2000 );
+                waitForClient( bridge, true );
+
+                //Every byte value, more than once
+                byte[] toPort = pattern( 20000, 7 );
+                client.getOutputStream().write( toPort );
+                client.getOutputStream().flush();
+                checkReceived( toPort, pair.getMaster().getInputStream(), "client to port" );
+
+                byte[] toClient = pattern( 20000, 13 );
+                OutputStream master = pair.getMaster().getOutputStream();
+                master.write( toClient );
+                master.flush();
+                checkReceived( toClient, client.getInputStream(), "port to client" );
+
+                Checks.checkEquals( (long)toPort.length, bridge.getBytesToPort(), "bytes to the port" );
+                Checks.checkEquals( (long)toClient.length, bridge.getBytesToClient(), "bytes to the client" );
+                Checks.checkEquals( 1L, bridge.getConnectionCount(), "connections" );
+
+                bridge.close();
+                Checks.check( bridge.isClosed(), "The bridge is not closed" );
+                Checks.check( !bridge.hasFailed(), "The bridge says that it failed" );
+                Checks.check( !bridge.isClientConnected(), "The client is still connected" );
+                Checks.checkEquals( -1, client.getInputStream().read(), "read after the bridge stopped" );
+            }
+
+            Checks.check( !accepts( tcpPort ), "Still listening after the bridge stopped" );
+
+            //The port is left alone, and can be used again
+            port.getOutputStream().write( 'x' );
+            Checks.checkEquals( (int)'x', pair.getMaster().getInputStream().read(), "port after the bridge" );
+        }
+
+        Checks.passed( BridgeCheck.class );
+    }
+
+    private static byte[] pattern( int length, int step ){
+        byte[] data = new byte[ length ];
+        for( int x = 0; x < length; x++ ){
+            data[ x ] = (byte)( x * step );
+        }
+        return data;
+    }
+
+    private static void checkReceived( byte[] expected, InputStream input, String what ) throws IOException {
+        byte[] got = new byte[ expected.length ];
+        int count = 0;
+        while( count < got.length ){
+            int read = input.read( got, count, got.length - count );
+            if( read < 0 ){
+                break;
+            }
+            count += read;
+        }
+
+        Checks.checkEquals( expected.length, count, what + " length" );
+        Checks.check( Arrays.equals( expected, got ), what + " data is different" );
+    }
+
+    private static void waitForClient( SerialPortBridge bridge, boolean connected ) throws InterruptedException {
+        for( int x = 0; x < 200 && bridge.isClientConnected() != connected; x++ ){
+            Thread.sleep( 10 );
+        }
+        Checks.checkEquals( connected, bridge.isClientConnected(), "client connected" );
+    }
+
+    private static boolean accepts( int tcpPort ) throws IOException {
+        try( Socket socket = new Socket() ){
+            socket.connect( new InetSocketAddress( "127.0.0.1", tcpPort ), 1000 );
+            return true;
+        }catch( ConnectException e ){
+            return false;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+
+/**
+ * Helpers for the checks in this directory.  The checks don't use a test
+ * framework, so that nothing is needed beyond the JDK; each one is a main
+ * class which throws an AssertionError if something is wrong.  They are
+ * compiled by {@code mvn test}, and run with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes com.rm5248.serial.ConcurrentSetterCheck
+ * </pre>
+ *
+ * The checks which need a pseudo-terminal only run on Linux and Mac.
+ *
+ * @author rm5248
+ */
+public final class Checks {
+
+    private Checks(){}
+
+    public static void check( boolean condition, String message ){
+        if( !condition ){
+            throw new AssertionError( message );
+        }
+    }
+
+    public static void checkEquals( Object expected, Object actual, String what ){
+        if( expected == null ? actual != null : !expected.equals( actual ) ){
+            throw new AssertionError( what + ": expected " + expected + " but got " + actual );
+        }
+    }
+
+    /**
+     * Open a pseudo-terminal pair which leaves the control lines alone.
+     */
+    public static PseudoTerminalPair openPair() throws IOException {
+        return SerialPort.openPseudoTerminalPair(
+                new SerialPortBuilder().setControlFlags( SerialPort.NO_CONTROL_LINE_CHANGE ) );
+    }
+
+    public static void passed( Class<?> check ){
+        System.out.println( check.getSimpleName() + ": ok" );
+    }
+}
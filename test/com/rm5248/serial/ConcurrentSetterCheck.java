@@ -0,0 +1,88 @@
+package com.rm5248.serial;
+
+import com.rm5248.serial.SerialPort.BaudRate;
+import com.rm5248.serial.SerialPort.Parity;
+import com.rm5248.serial.SerialPort.StopBits;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Change different settings from several threads at once, and make sure
+ * that none of the changes are lost.
+ *
+ * @author rm5248
+ */
+public class ConcurrentSetterCheck {
+
+    private static final int ROUNDS = 200;
+
+    public static void main( String[] args ) throws Exception {
+        try( PseudoTerminalPair pair = Checks.openPair() ){
+            final SerialPort port = pair.getSlave();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+            Thread baud = new Thread( new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        for( int x = 0; x < ROUNDS; x++ ){
+                            port.setBaudRate( x % 2 == 0 ? BaudRate.B9600 : BaudRate.B19200 );
+                        }
+                        port.setBaudRate( BaudRate.B38400 );
+                    }catch( IOException e ){
+                        failure.set( e );
+                    }
+                }
+            } );
+            Thread parity = new Thread( new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        for( int x = 0; x < ROUNDS; x++ ){
+                            port.setParity( x % 2 == 0 ? Parity.NONE : Parity.EVEN );
+                        }
+                        port.setParity( Parity.ODD );
+                    }catch( IOException e ){
+                        failure.set( e );
+                    }
+                }
+            } );
+            Thread stop = new Thread( new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        for( int x = 0; x < ROUNDS; x++ ){
+                            port.setStopBits( x % 2 == 0 ? StopBits.STOPBITS_1 : StopBits.STOPBITS_2 );
+                        }
+                        port.setStopBits( StopBits.STOPBITS_2 );
+                    }catch( IOException e ){
+                        failure.set( e );
+                    }
+                }
+            } );
+
+            baud.start();
+            parity.start();
+            stop.start();
+            baud.join();
+            parity.join();
+            stop.join();
+            if( failure.get() != null ){
+                throw new AssertionError( failure.get() );
+            }
+
+            SerialPortConfig config = port.getConfig();
+            Checks.checkEquals( BaudRate.B38400, config.getBaudRate(), "baud rate" );
+            Checks.checkEquals( Parity.ODD, config.getParity(), "parity" );
+            Checks.checkEquals( StopBits.STOPBITS_2, config.getStopBits(), "stop bits" );
+
+            //What the device has must match too; a pseudo-terminal doesn't keep the parity
+            try( SerialPort kept = new SerialPort( pair.getSlaveName(), true, SerialPort.NO_CONTROL_LINE_CHANGE ) ){
+                Checks.checkEquals( BaudRate.B38400, kept.getBaudRate(), "baud rate on the device" );
+                Checks.checkEquals( StopBits.STOPBITS_2, kept.getStopBits(), "stop bits on the device" );
+            }
+        }
+
+        Checks.passed( ConcurrentSetterCheck.class );
+    }
+}
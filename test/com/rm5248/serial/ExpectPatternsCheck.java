@@ -0,0 +1,127 @@
+package com.rm5248.serial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Run text through the ExpectPatterns automaton and check every match,
+ * including patterns that overlap each other and patterns that are only
+ * found as the suffix of a longer partial match.  Doesn't need a serial
+ * port.
+ *
+ * @author rm5248
+ */
+public class ExpectPatternsCheck {
+
+    public static void main( String[] args ) throws Exception {
+        ExpectPatterns classic = new ExpectPatterns( "he", "she", "his", "hers" );
+
+        //"he" ends with "she", and the longer one wins
+        checkMatches( classic, "ushers", "4:she", "6:hers" );
+        checkMatches( classic, "ahishers", "4:his", "6:she", "8:hers" );
+        //"his" is only reached by falling back from "sh"
+        checkMatches( classic, "shis", "4:his" );
+        checkMatches( classic, "hehehe", "2:he", "4:he", "6:he" );
+        checkMatches( classic, "xyz" );
+
+        //"her" is not a pattern, but it ends with one
+        ExpectPatterns suffix = new ExpectPatterns( "hers", "er" );
+        checkMatches( suffix, "her", "3:er" );
+        checkMatches( suffix, "hhers", "4:er", "5:hers" );
+
+        //Same length, the first one wins
+        ExpectPatterns same = new ExpectPatterns( "OK", "OK" );
+        Checks.checkEquals( 0, scan( same, bytes( "OK" ) )[ 1 ], "pattern for a duplicate" );
+
+        checkMatches( new ExpectPatterns( "\r\n", "OK\r\n" ), "OK\r\n\r\n", "4:OK\r\n", "6:\r\n" );
+
+        //Bytes with the top bit set
+        ExpectPatterns high = new ExpectPatterns( new byte[]{ (byte)0xFF, (byte)0x80 } );
+        int[] found = scan( high, new byte[]{ 0x7F, (byte)0xFF, (byte)0xFF, (byte)0x80, 0x00 } );
+        Checks.checkEquals( "4:" + new String( new byte[]{ (byte)0xFF, (byte)0x80 }, ExpectPatterns.getCharset() ),
+                describe( high, found ).get( 0 ), "match with high bytes" );
+
+        checkRandom( new String[]{ "he", "she", "his", "hers", "e", "ss", "hishe" }, "hesir" );
+
+        Checks.passed( ExpectPatternsCheck.class );
+    }
+
+    private static byte[] bytes( String text ){
+        return text.getBytes( ExpectPatterns.getCharset() );
+    }
+
+    /**
+     * Run the text through the automaton, without starting again after a
+     * match.
+     *
+     * @return The end of each match and the pattern that matched, in pairs
+     */
+    private static int[] scan( ExpectPatterns patterns, byte[] text ){
+        int[] found = new int[ text.length * 2 ];
+        int count = 0;
+        int state = 0;
+
+        for( int x = 0; x < text.length; x++ ){
+            state = patterns.next( state, text[ x ] );
+            int match = patterns.getMatch( state );
+            if( match >= 0 ){
+                found[ count++ ] = x + 1;
+                found[ count++ ] = match;
+            }
+        }
+
+        return Arrays.copyOf( found, count );
+    }
+
+    private static List<String> describe( ExpectPatterns patterns, int[] found ){
+        List<String> matches = new ArrayList<String>();
+        for( int x = 0; x < found.length; x += 2 ){
+            matches.add( found[ x ] + ":" + new String( patterns.getPattern( found[ x + 1 ] ),
+                    ExpectPatterns.getCharset() ) );
+        }
+        return matches;
+    }
+
+    private static void checkMatches( ExpectPatterns patterns, String text, String... expected ){
+        Checks.checkEquals( Arrays.asList( expected ), describe( patterns, scan( patterns, bytes( text ) ) ),
+                "matches in \"" + text + "\"" );
+    }
+
+    /**
+     * Compare the automaton with looking for the longest pattern that ends at
+     * each byte of some random text.
+     */
+    private static void checkRandom( String[] strings, String alphabet ){
+        ExpectPatterns patterns = new ExpectPatterns( strings );
+        Random random = new Random( 5248 );
+        byte[] text = new byte[ 5000 ];
+        for( int x = 0; x < text.length; x++ ){
+            text[ x ] = (byte)alphabet.charAt( random.nextInt( alphabet.length() ) );
+        }
+
+        int[] found = scan( patterns, text );
+        int next = 0;
+        for( int end = 1; end <= text.length; end++ ){
+            int expected = -1;
+            for( int x = 0; x < strings.length; x++ ){
+                byte[] pattern = bytes( strings[ x ] );
+                if( pattern.length > end ||
+                        ( expected >= 0 && pattern.length <= strings[ expected ].length() ) ){
+                    continue;
+                }
+                if( Arrays.equals( pattern, Arrays.copyOfRange( text, end - pattern.length, end ) ) ){
+                    expected = x;
+                }
+            }
+
+            int got = -1;
+            if( next < found.length && found[ next ] == end ){
+                got = found[ next + 1 ];
+                next += 2;
+            }
+            Checks.checkEquals( expected, got, "pattern ending at " + end );
+        }
+    }
+}
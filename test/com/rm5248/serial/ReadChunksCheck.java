@@ -0,0 +1,39 @@
+package com.rm5248.serial;
+
+/**
+ * readChunks() must keep reading until nothing more is waiting, not stop
+ * after the first chunk.
+ *
+ * @author rm5248
+ */
+public class ReadChunksCheck {
+
+    public static void main( String[] args ) throws Exception {
+        try( PseudoTerminalPair pair = Checks.openPair();
+                SerialPort port = new SerialPort( pair.getSlaveName(), true, SerialPort.NO_CONTROL_LINE_CHANGE ) ){
+            byte[] data = new byte[ 6000 ];
+            for( int x = 0; x < data.length; x++ ){
+                data[ x ] = (byte)x;
+            }
+
+            //More than a pseudo-terminal hands back in one read
+            pair.getMaster().getOutputStream().write( data );
+            Thread.sleep( 100 );
+
+            TimestampedChunks chunks = new TimestampedChunks( 8192, 16 );
+            int count = port.readChunks( chunks, -1 );
+            Checks.checkEquals( data.length, chunks.getTotalLength(), "bytes read" );
+
+            int total = 0;
+            for( int chunk = 0; chunk < count; chunk++ ){
+                for( int x = 0; x < chunks.getLength( chunk ); x++ ){
+                    Checks.checkEquals( data[ total ], chunks.getData()[ chunks.getOffset( chunk ) + x ],
+                            "byte " + total );
+                    total++;
+                }
+            }
+        }
+
+        Checks.passed( ReadChunksCheck.class );
+    }
+}
@@ -0,0 +1,194 @@
+package com.rm5248.serial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Take a device away from a ResilientSerialPort and bring it back, through a
+ * symbolic link to a pseudo-terminal.  Data written while the device is
+ * gone must come out of the new device once, and a write that fails part
+ * way through must not be sent again.  Needs Linux.
+ *
+ * @author rm5248
+ */
+public class ResilientReconnectCheck {
+
+    public static void main( String[] args ) throws Exception {
+        Path dir = Files.createTempDirectory( "resilient" );
+        Path link = dir.resolve( "port" );
+
+        try{
+            checkQueuedWhileGone( link );
+            checkFailedWrite( link );
+        }finally{
+            Files.deleteIfExists( link );
+            Files.delete( dir );
+        }
+
+        Checks.passed( ResilientReconnectCheck.class );
+    }
+
+    /**
+     * Write while the device is gone, and change the settings.
+     */
+    private static void checkQueuedWhileGone( Path link ) throws Exception {
+        PseudoTerminalPair first = Checks.openPair();
+        Files.createSymbolicLink( link, Paths.get( first.getSlaveName() ) );
+        first.getSlave().close();
+
+        ResilientSerialPort port = new SerialPortBuilder()
+                .setPort( link.toString() )
+                .setControlFlags( SerialPort.NO_CONTROL_LINE_CHANGE )
+                .buildResilient();
+        try{
+            unplug( link, first );
+            waitFor( port, false );
+
+            byte[] queued = "queued while gone".getBytes( "US-ASCII" );
+            port.getOutputStream().write( queued );
+            port.setBaudRate( SerialPort.BaudRate.B57600 );
+
+            try( PseudoTerminalPair second = Checks.openPair() ){
+                second.getSlave().close();
+                repoint( link, second );
+                waitFor( port, true );
+                port.getOutputStream().flush();
+
+                byte[] got = readAll( second.getMaster().getInputStream() );
+                Checks.checkEquals( new String( queued, "US-ASCII" ), new String( got, "US-ASCII" ),
+                        "data on the new device" );
+
+                try( SerialPort kept = new SerialPort( second.getSlaveName(), true, SerialPort.NO_CONTROL_LINE_CHANGE ) ){
+                    Checks.checkEquals( SerialPort.BaudRate.B57600, kept.getBaudRate(), "baud rate on the new device" );
+                }
+            }
+        }finally{
+            port.close();
+            Files.deleteIfExists( link );
+        }
+    }
+
+    /**
+     * Take the device away while a write to it is stuck, because nobody is
+     * reading the other end.
+     */
+    private static void checkFailedWrite( Path link ) throws Exception {
+        PseudoTerminalPair first = Checks.openPair();
+        Files.createSymbolicLink( link, Paths.get( first.getSlaveName() ) );
+        first.getSlave().close();
+
+        final ResilientSerialPort port = new SerialPortBuilder()
+                .setPort( link.toString() )
+                .setControlFlags( SerialPort.NO_CONTROL_LINE_CHANGE )
+                .buildResilient();
+        try{
+            //More than the pseudo-terminal and the write buffer hold together
+            final int total = 512 * 1024;
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread writer = new Thread( new Runnable(){
+                @Override
+                public void run(){
+                    try{
+                        OutputStream output = port.getOutputStream();
+                        byte[] data = new byte[ 1000 ];
+                        for( int sent = 0; sent < total; sent += data.length ){
+                            for( int x = 0; x < data.length; x++ ){
+                                data[ x ] = sequence( sent + x );
+                            }
+                            output.write( data, 0, Math.min( data.length, total - sent ) );
+                        }
+                        output.flush();
+                    }catch( IOException e ){
+                        failure.set( e );
+                    }
+                }
+            } );
+            writer.start();
+
+            Thread.sleep( 200 );
+            unplug( link, first );
+            waitFor( port, false );
+
+            try( PseudoTerminalPair second = Checks.openPair() ){
+                second.getSlave().close();
+                repoint( link, second );
+
+                //Read while the rest is written, so that the writer doesn't get stuck again
+                InputStream input = second.getMaster().getInputStream();
+                byte[] got = new byte[ total ];
+                int count = 0;
+                while( writer.isAlive() || input.available() > 0 ){
+                    if( input.available() > 0 ){
+                        count += input.read( got, count, got.length - count );
+                    }else{
+                        Thread.sleep( 10 );
+                    }
+                }
+                writer.join();
+                if( failure.get() != null ){
+                    throw new AssertionError( failure.get() );
+                }
+                byte[] rest = readAll( input );
+                System.arraycopy( rest, 0, got, count, rest.length );
+                count += rest.length;
+
+                Checks.check( port.getDroppedWriteCount() > 0, "Nothing was dropped when the write failed" );
+
+                //The new device gets the end of the data, once, with nothing missing
+                int start = total - count;
+                for( int x = 0; x < count; x++ ){
+                    Checks.checkEquals( sequence( start + x ), got[ x ], "byte " + ( start + x ) );
+                }
+            }
+        }finally{
+            port.close();
+            Files.deleteIfExists( link );
+        }
+    }
+
+    private static byte sequence( int position ){
+        return (byte)( position % 251 );
+    }
+
+    /**
+     * Take the link away along with the device, since the pseudo-terminal's
+     * name may be used again by the next one before it is set up.
+     */
+    private static void unplug( Path link, PseudoTerminalPair pair ) throws IOException {
+        Files.delete( link );
+        pair.getMaster().close();
+    }
+
+    private static void repoint( Path link, PseudoTerminalPair pair ) throws IOException {
+        Files.createSymbolicLink( link, Paths.get( pair.getSlaveName() ) );
+    }
+
+    private static void waitFor( ResilientSerialPort port, boolean connected ) throws InterruptedException {
+        for( int x = 0; x < 500 && port.isConnected() != connected; x++ ){
+            Thread.sleep( 10 );
+        }
+        Checks.checkEquals( connected, port.isConnected(), "connected" );
+    }
+
+    /**
+     * Read until nothing more comes in for a little while.
+     */
+    private static byte[] readAll( InputStream input ) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        for( int idle = 0; idle < 20; idle++ ){
+            while( input.available() > 0 ){
+                out.write( buffer, 0, input.read( buffer ) );
+                idle = 0;
+            }
+            Thread.sleep( 10 );
+        }
+        return out.toByteArray();
+    }
+}
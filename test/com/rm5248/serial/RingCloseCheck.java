@@ -0,0 +1,63 @@
+package com.rm5248.serial;
+
+import java.io.IOException;
+
+/**
+ * Close a port with a native receive buffer while subscribers are reading
+ * from it, over and over.  Every reader must wake up and stop, and the
+ * buffer must not be freed while one of them is still using it(which shows
+ * up as a crash).
+ *
+ * @author rm5248
+ */
+public class RingCloseCheck {
+
+    private static final int ROUNDS = 300;
+
+    public static void main( String[] args ) throws Exception {
+        for( int round = 0; round < ROUNDS; round++ ){
+            try( PseudoTerminalPair pair = SerialPort.openPseudoTerminalPair( new SerialPortBuilder()
+                    .setControlFlags( SerialPort.NO_CONTROL_LINE_CHANGE )
+                    .setNativeReceiveBufferSize( 4096 ) ) ){
+                final SerialPort port = pair.getSlave();
+                final ReceiveSubscriber peeker = port.subscribe( ReceiveSubscriber.SlowConsumerPolicy.BLOCK );
+                final ReceiveSubscriber reader = port.subscribe( ReceiveSubscriber.SlowConsumerPolicy.SKIP );
+
+                Thread peek = new Thread( new Runnable(){
+                    @Override
+                    public void run(){
+                        try{
+                            while( !port.isClosed() ){
+                                peeker.peek( 1 );
+                                peeker.available();
+                            }
+                        }catch( IOException | IllegalStateException e ){
+                            //Closed under us
+                        }
+                    }
+                } );
+                Thread read = new Thread( new Runnable(){
+                    @Override
+                    public void run(){
+                        try{
+                            while( reader.read() >= 0 ){
+                            }
+                        }catch( IOException e ){
+                            //Closed under us
+                        }
+                    }
+                } );
+                peek.start();
+                read.start();
+
+                pair.getMaster().getOutputStream().write( new byte[ 50 ] );
+                port.close();
+                peek.join( 5000 );
+                read.join( 5000 );
+                Checks.check( !peek.isAlive() && !read.isAlive(), "A subscriber was still waiting in round " + round );
+            }
+        }
+
+        Checks.passed( RingCloseCheck.class );
+    }
+}
@@ -0,0 +1,39 @@
+package com.rm5248.serial;
+
+/**
+ * A timestamped read with a timeout of 0 must still look at the port, and
+ * hand back whatever has already come in.
+ *
+ * @author rm5248
+ */
+public class ZeroTimeoutReadCheck {
+
+    public static void main( String[] args ) throws Exception {
+        try( PseudoTerminalPair pair = Checks.openPair();
+                SerialPort port = new SerialPort( pair.getSlaveName(), true, SerialPort.NO_CONTROL_LINE_CHANGE ) ){
+            byte[] buffer = new byte[ 100 ];
+            long[] timestamp = new long[ 1 ];
+
+            long start = System.nanoTime();
+            int got = port.readTimestamped( buffer, 0, buffer.length, 0, timestamp );
+            Checks.checkEquals( 0, got, "bytes read with nothing waiting" );
+            Checks.check( System.nanoTime() - start < 100000000L, "A read with a timeout of 0 blocked" );
+
+            pair.getMaster().getOutputStream().write( new byte[] { 'a', 'b', 'c' } );
+            Thread.sleep( 50 );
+            got = port.readTimestamped( buffer, 0, buffer.length, 0, timestamp );
+            Checks.checkEquals( 3, got, "bytes read with data waiting" );
+            Checks.checkEquals( "abc", new String( buffer, 0, got, "US-ASCII" ), "data read" );
+            Checks.check( timestamp[ 0 ] >= start && timestamp[ 0 ] <= System.nanoTime(),
+                    "The timestamp is not from System.nanoTime()" );
+
+            TimestampedChunks chunks = new TimestampedChunks( 100, 4 );
+            pair.getMaster().getOutputStream().write( new byte[] { 'd', 'e' } );
+            Thread.sleep( 50 );
+            Checks.check( port.readChunks( chunks, 0 ) > 0, "readChunks() with a timeout of 0 didn't read" );
+            Checks.checkEquals( 2, chunks.getTotalLength(), "bytes read into chunks" );
+        }
+
+        Checks.passed( ZeroTimeoutReadCheck.class );
+    }
+}
@@ -0,0 +1,275 @@
+package com.rm5248.serial.cmux;
+
+import com.rm5248.serial.Checks;
+import com.rm5248.serial.LoopbackSerialDevice;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Close the multiplexer from both ends.  When the modem sends DISC on
+ * DLCI 0 or CLD, the response must still go out even though the
+ * multiplexer stops straight after; when close() is called from two threads
+ * at once, the modem must only be told to close down once.
+ *
+ * @author rm5248
+ */
+public class CmuxCloseCheck {
+
+    private static final int[] FCS_TABLE = new int[ 256 ];
+
+    static{
+        for( int x = 0; x < 256; x++ ){
+            int crc = x;
+            for( int bit = 0; bit < 8; bit++ ){
+                crc = ( crc & 1 ) != 0 ? ( crc >> 1 ) ^ 0xE0 : crc >> 1;
+            }
+            FCS_TABLE[ x ] = crc;
+        }
+    }
+
+    /**
+     * One frame, as seen by the modem.
+     */
+    private static class Frame {
+        final int dlci;
+        final int control;
+        final byte[] data;
+
+        Frame( int dlci, int control, byte[] data ){
+            this.dlci = dlci;
+            this.control = control;
+            this.data = data;
+        }
+
+        boolean isCloseDown( boolean command ){
+            return dlci == 0 && ( control & ~CmuxMultiplexer.PF ) == CmuxMultiplexer.UIH &&
+                    data.length >= 1 && ( data[ 0 ] & 0xFF ) ==
+                    ( CmuxMultiplexer.MSG_CLD | ( command ? CmuxMultiplexer.CR : 0 ) | CmuxMultiplexer.EA );
+        }
+    }
+
+    /**
+     * The other end of the link.  It opens any DLCI that is asked for,
+     * acknowledges CLD, and keeps every frame that it gets.
+     */
+    private static class FakeModem implements Runnable {
+        private final InputStream input;
+        private final OutputStream output;
+        private final List<Frame> frames;
+
+        FakeModem( LoopbackSerialDevice device ){
+            input = device.getInputStream();
+            output = device.getOutputStream();
+            frames = new ArrayList<Frame>();
+        }
+
+        @Override
+        public void run(){
+            try{
+                while( true ){
+                    Frame frame = readFrame();
+                    if( frame == null ){
+                        return;
+                    }
+
+                    synchronized( frames ){
+                        frames.add( frame );
+                        frames.notifyAll();
+                    }
+
+                    if( ( frame.control & ~CmuxMultiplexer.PF ) == CmuxMultiplexer.SABM ){
+                        send( frame.dlci, true, CmuxMultiplexer.UA | CmuxMultiplexer.PF, new byte[ 0 ] );
+                    }else if( frame.isCloseDown( true ) ){
+                        byte[] response = frame.data.clone();
+                        response[ 0 ] &= ~CmuxMultiplexer.CR;
+                        send( 0, false, CmuxMultiplexer.UIH, response );
+                    }
+                }
+            }catch( IOException e ){
+                //Nothing more to read
+            }
+        }
+
+        synchronized void send( int dlci, boolean command, int control, byte[] data ) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int address = ( dlci << 2 ) | ( command ? CmuxMultiplexer.CR : 0 ) | CmuxMultiplexer.EA;
+            int length = ( data.length << 1 ) | CmuxMultiplexer.EA;
+            int fcs = FCS_TABLE[ 0xFF ^ address ];
+            fcs = FCS_TABLE[ fcs ^ control ];
+            fcs = FCS_TABLE[ fcs ^ length ];
+            if( ( control & ~CmuxMultiplexer.PF ) != CmuxMultiplexer.UIH ){
+                for( byte b : data ){
+                    fcs = FCS_TABLE[ fcs ^ ( b & 0xFF ) ];
+                }
+            }
+
+            out.write( CmuxMultiplexer.FLAG );
+            out.write( address );
+            out.write( control );
+            out.write( length );
+            out.write( data, 0, data.length );
+            out.write( 0xFF - fcs );
+            out.write( CmuxMultiplexer.FLAG );
+            output.write( out.toByteArray() );
+            output.flush();
+        }
+
+        /**
+         * Wait for a frame that matches.
+         *
+         * @return The frame, or null if none came in time
+         */
+        Frame waitFor( int dlci, int control, long timeoutMillis ) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            synchronized( frames ){
+                while( true ){
+                    for( Frame frame : frames ){
+                        if( frame.dlci == dlci && frame.control == control ){
+                            return frame;
+                        }
+                    }
+                    long remaining = end - System.currentTimeMillis();
+                    if( remaining <= 0 ){
+                        return null;
+                    }
+                    frames.wait( remaining );
+                }
+            }
+        }
+
+        int countCloseDowns(){
+            int count = 0;
+            synchronized( frames ){
+                for( Frame frame : frames ){
+                    if( frame.isCloseDown( true ) ){
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        private Frame readFrame() throws IOException {
+            int b;
+            do{
+                b = input.read();
+                if( b < 0 ){
+                    return null;
+                }
+            }while( b != CmuxMultiplexer.FLAG );
+
+            int address = input.read();
+            while( address == CmuxMultiplexer.FLAG ){
+                address = input.read();
+            }
+            int control = input.read();
+            int length = input.read() >> 1;
+            byte[] data = new byte[ length ];
+            for( int x = 0; x < length; x++ ){
+                data[ x ] = (byte)input.read();
+            }
+            //FCS and the closing flag
+            input.read();
+            input.read();
+
+            return new Frame( address >> 2, control, data );
+        }
+    }
+
+    private static final int ROUNDS = 20;
+
+    public static void main( String[] args ) throws Exception {
+        //Each of these is a race, so go around a few times
+        for( int round = 0; round < ROUNDS; round++ ){
+            checkDisconnect();
+            checkCloseDown();
+            checkConcurrentClose();
+        }
+
+        Checks.passed( CmuxCloseCheck.class );
+    }
+
+    /**
+     * The modem closes the link with DISC on DLCI 0.
+     */
+    private static void checkDisconnect() throws Exception {
+        LoopbackSerialDevice host = LoopbackSerialDevice.createPair();
+        FakeModem modem = start( host );
+        CmuxMultiplexer mux = new CmuxMultiplexer( host );
+        mux.open();
+
+        modem.send( 0, true, CmuxMultiplexer.DISC | CmuxMultiplexer.PF, new byte[ 0 ] );
+        Checks.check( modem.waitFor( 0, CmuxMultiplexer.UA | CmuxMultiplexer.PF, 1000 ) != null,
+                "No UA for DISC on DLCI 0" );
+        Checks.check( waitForClose( mux ), "The multiplexer is still open after DISC" );
+    }
+
+    /**
+     * The modem closes the link with CLD.
+     */
+    private static void checkCloseDown() throws Exception {
+        LoopbackSerialDevice host = LoopbackSerialDevice.createPair();
+        FakeModem modem = start( host );
+        CmuxMultiplexer mux = new CmuxMultiplexer( host );
+        mux.open();
+
+        modem.send( 0, true, CmuxMultiplexer.UIH, new byte[] {
+            (byte)( CmuxMultiplexer.MSG_CLD | CmuxMultiplexer.CR | CmuxMultiplexer.EA ),
+            (byte)CmuxMultiplexer.EA } );
+        Frame response = modem.waitFor( 0, CmuxMultiplexer.UIH, 1000 );
+        Checks.check( response != null && response.isCloseDown( false ), "No response to CLD" );
+        Checks.check( waitForClose( mux ), "The multiplexer is still open after CLD" );
+    }
+
+    /**
+     * We close the link from two threads at once.
+     */
+    private static void checkConcurrentClose() throws Exception {
+        LoopbackSerialDevice host = LoopbackSerialDevice.createPair();
+        FakeModem modem = start( host );
+        final CmuxMultiplexer mux = new CmuxMultiplexer( host );
+        mux.open();
+
+        Thread[] closers = new Thread[ 2 ];
+        for( int x = 0; x < closers.length; x++ ){
+            closers[ x ] = new Thread( new Runnable(){
+                @Override
+                public void run(){
+                    mux.close();
+                }
+            } );
+            closers[ x ].start();
+        }
+        for( Thread closer : closers ){
+            closer.join();
+        }
+
+        //The CLD response may come in after the first close() has given up
+        Thread.sleep( 50 );
+        Checks.checkEquals( 1, modem.countCloseDowns(), "CLD commands sent" );
+        Checks.check( !mux.isOpen(), "The multiplexer is still open after close()" );
+    }
+
+    /**
+     * The response goes out just before the multiplexer marks itself closed,
+     * so give it a moment.
+     */
+    private static boolean waitForClose( CmuxMultiplexer mux ) throws InterruptedException {
+        for( int x = 0; x < 100 && mux.isOpen(); x++ ){
+            Thread.sleep( 10 );
+        }
+        return !mux.isOpen();
+    }
+
+    private static FakeModem start( LoopbackSerialDevice host ){
+        FakeModem modem = new FakeModem( host.getPeer() );
+        Thread thread = new Thread( modem, "FakeModem" );
+        thread.setDaemon( true );
+        thread.start();
+        return modem;
+    }
+}
@@ -0,0 +1,208 @@
+package com.rm5248.serial.frame;
+
+import com.rm5248.serial.Checks;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Write messages with a FrameWriter and read them back with a FrameReader,
+ * for each codec.  The encoded data is handed to the reader 1, 3, 17 and
+ * 4096 bytes at a time, so that frames are split up at every point.  Doesn't
+ * need a serial port.
+ *
+ * @author rm5248
+ */
+public class FrameCodecCheck {
+
+    private static final int[] CHUNK_SIZES = { 1, 3, 17, 4096 };
+
+    /**
+     * Hands out the data a few bytes at a time.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+        private final int chunkSize;
+
+        ChunkedInputStream( byte[] data, int chunkSize ){
+            super( data );
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read( byte[] b, int off, int len ){
+            return super.read( b, off, Math.min( len, chunkSize ) );
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        List<byte[]> messages = messages();
+        List<byte[]> nonEmpty = new ArrayList<byte[]>();
+        List<byte[]> shortMessages = new ArrayList<byte[]>();
+        for( byte[] message : messages ){
+            if( message.length > 0 ){
+                nonEmpty.add( message );
+            }
+            if( message.length <= 0xFF ){
+                shortMessages.add( message );
+            }
+        }
+
+        //COBS and SLIP skip empty frames
+        roundTrip( "COBS", new CobsFrameCodec(), new CobsFrameCodec(), nonEmpty );
+        roundTrip( "SLIP", new SlipFrameCodec(), new SlipFrameCodec(), nonEmpty );
+        roundTrip( "1 byte length", new LengthPrefixFrameCodec( 1 ), new LengthPrefixFrameCodec( 1 ), shortMessages );
+        roundTrip( "2 byte length", new LengthPrefixFrameCodec( 2 ), new LengthPrefixFrameCodec( 2 ), messages );
+        roundTrip( "4 byte little endian length",
+                new LengthPrefixFrameCodec( 4, ByteOrder.LITTLE_ENDIAN, 8192 ),
+                new LengthPrefixFrameCodec( 4, ByteOrder.LITTLE_ENDIAN, 8192 ), messages );
+
+        byte[] crlf = new byte[]{ '\r', '\n' };
+        List<byte[]> text = textMessages();
+        roundTrip( "CRLF delimiter", new DelimiterFrameCodec( crlf ), new DelimiterFrameCodec( crlf ), text );
+        roundTrip( "NUL delimiter", new DelimiterFrameCodec( (byte)0 ), new DelimiterFrameCodec( (byte)0 ), text );
+
+        checkCobsEncoding();
+
+        Checks.passed( FrameCodecCheck.class );
+    }
+
+    /**
+     * Bytes that are never zero, counting up from 1.
+     */
+    private static byte[] nonZero( int length ){
+        byte[] data = new byte[ length ];
+        for( int x = 0; x < length; x++ ){
+            data[ x ] = (byte)( x % 255 + 1 );
+        }
+        return data;
+    }
+
+    private static byte[] concat( byte[] first, byte[] second ){
+        byte[] data = Arrays.copyOf( first, first.length + second.length );
+        System.arraycopy( second, 0, data, first.length, second.length );
+        return data;
+    }
+
+    private static List<byte[]> messages(){
+        List<byte[]> messages = new ArrayList<byte[]>();
+        Random random = new Random( 5248 );
+
+        messages.add( new byte[ 0 ] );
+        messages.add( new byte[]{ 0 } );
+        messages.add( new byte[]{ 0, 0 } );
+        messages.add( new byte[]{ 0x11 } );
+        //Around where COBS has to start a new block
+        for( int length = 252; length <= 256; length++ ){
+            messages.add( nonZero( length ) );
+        }
+        messages.add( concat( nonZero( 254 ), new byte[]{ 0 } ) );
+        messages.add( concat( new byte[]{ 0 }, nonZero( 254 ) ) );
+        messages.add( concat( nonZero( 253 ), new byte[]{ 0 } ) );
+        messages.add( nonZero( 508 ) );
+        messages.add( nonZero( 509 ) );
+        //Everything that SLIP escapes
+        messages.add( new byte[]{ SlipFrameCodec.END, SlipFrameCodec.ESC, SlipFrameCodec.ESC_END,
+            SlipFrameCodec.ESC_ESC, SlipFrameCodec.ESC, SlipFrameCodec.END } );
+        for( int length : new int[]{ 7, 100, 1000, 3000 } ){
+            byte[] data = new byte[ length ];
+            random.nextBytes( data );
+            messages.add( data );
+        }
+
+        return messages;
+    }
+
+    /**
+     * Messages that don't have a CR LF or a NUL in them.  Some have a CR or
+     * LF on its own, including at the end.
+     */
+    private static List<byte[]> textMessages() throws IOException {
+        List<byte[]> messages = new ArrayList<byte[]>();
+        Random random = new Random( 5248 );
+
+        for( String message : new String[]{ "", "OK", "a\rb", "a\nb", "ends with CR\r", "\n", "\n\r" } ){
+            messages.add( message.getBytes( "US-ASCII" ) );
+        }
+        for( int length : new int[]{ 17, 1000, 3000 } ){
+            byte[] data = new byte[ length ];
+            for( int x = 0; x < length; x++ ){
+                data[ x ] = (byte)( ' ' + random.nextInt( 95 ) );
+            }
+            messages.add( data );
+        }
+
+        return messages;
+    }
+
+    private static void roundTrip( String name, FrameEncoder encoder, FrameDecoder decoder, List<byte[]> messages )
+            throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter( encoded, encoder );
+        for( byte[] message : messages ){
+            int before = encoded.size();
+            writer.writeFrame( message );
+            Checks.check( encoded.size() - before <= encoder.maxEncodedLength( message.length ),
+                    name + ": a " + message.length + " byte message is longer than maxEncodedLength()" );
+        }
+
+        for( int chunkSize : CHUNK_SIZES ){
+            decoder.reset();
+            FrameReader reader = new FrameReader( new ChunkedInputStream( encoded.toByteArray(), chunkSize ),
+                    decoder, FrameReader.DEFAULT_BUFFER_SIZE );
+            String what = name + " in chunks of " + chunkSize;
+
+            for( int x = 0; x < messages.size(); x++ ){
+                ByteBuffer frame = reader.readFrame();
+                Checks.check( frame != null, what + ": the stream ended at message " + x );
+                checkFrame( messages.get( x ), frame, what + ", message " + x );
+            }
+            Checks.check( reader.readFrame() == null, what + ": there are more frames than messages" );
+        }
+    }
+
+    private static void checkFrame( byte[] expected, ByteBuffer frame, String what ){
+        byte[] got = new byte[ frame.remaining() ];
+        frame.get( got );
+        Checks.checkEquals( expected.length, got.length, what + " length" );
+        Checks.check( Arrays.equals( expected, got ), what + " is different" );
+    }
+
+    /**
+     * Frames from another COBS encoder, with 254 and 255 bytes that aren't
+     * zero.  The 254 byte frame has no trailing 0x01 block.
+     */
+    private static void checkCobsEncoding() throws IOException {
+        byte[] twoFiftyFour = new byte[ 256 ];
+        twoFiftyFour[ 0 ] = (byte)0xFF;
+        System.arraycopy( nonZero( 254 ), 0, twoFiftyFour, 1, 254 );
+
+        byte[] twoFiftyFive = new byte[ 258 ];
+        twoFiftyFive[ 0 ] = (byte)0xFF;
+        System.arraycopy( nonZero( 254 ), 0, twoFiftyFive, 1, 254 );
+        twoFiftyFive[ 255 ] = 0x02;
+        twoFiftyFive[ 256 ] = (byte)0xFF;
+
+        for( int chunkSize : CHUNK_SIZES ){
+            FrameReader reader = new FrameReader(
+                    new ChunkedInputStream( concat( twoFiftyFour, twoFiftyFive ), chunkSize ),
+                    new CobsFrameCodec(), FrameReader.DEFAULT_BUFFER_SIZE );
+            checkFrame( nonZero( 254 ), reader.readFrame(), "254 bytes of COBS in chunks of " + chunkSize );
+            checkFrame( concat( nonZero( 254 ), new byte[]{ (byte)0xFF } ), reader.readFrame(),
+                    "255 bytes of COBS in chunks of " + chunkSize );
+            Checks.check( reader.readFrame() == null, "There are more COBS frames" );
+        }
+
+        //Our encoder gives the same 255 bytes
+        byte[] message = concat( nonZero( 254 ), new byte[]{ (byte)0xFF } );
+        CobsFrameCodec codec = new CobsFrameCodec();
+        byte[] out = new byte[ codec.maxEncodedLength( message.length ) ];
+        int length = codec.encode( message, 0, message.length, out, 0 );
+        Checks.check( Arrays.equals( twoFiftyFive, Arrays.copyOf( out, length ) ), "COBS encoding of 255 bytes" );
+    }
+}
@@ -0,0 +1,429 @@
+package com.rm5248.serial.transfer;
+
+import com.rm5248.serial.Checks;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Check the CRC, and send with XMODEM and ZMODEM to a scripted receiver over
+ * piped streams.  The receiver checks every block and header that comes in,
+ * and NAKs or ignores some of them to make the sender try again.  Doesn't
+ * need a serial port.
+ *
+ * @author rm5248
+ */
+public class TransferCheck {
+
+    private static final Charset ISO_8859_1 = Charset.forName( "ISO-8859-1" );
+
+    /**
+     * The receiving end.  The script runs on its own thread, while the
+     * sender runs on the main thread.
+     */
+    private static abstract class Receiver implements Runnable {
+        private final PipedInputStream fromSender;
+        private final PipedOutputStream toSender;
+        private final Thread thread;
+        private volatile Throwable failure;
+        InputStream input;
+        OutputStream output;
+
+        Receiver() throws IOException {
+            fromSender = new PipedInputStream( 64 * 1024 );
+            toSender = new PipedOutputStream();
+            input = fromSender;
+            output = toSender;
+            thread = new Thread( this, "Receiver" );
+            thread.setDaemon( true );
+        }
+
+        /**
+         * Connect a sender to this receiver and start the script.
+         */
+        FileSender start( int timeoutMillis, int retries ) throws IOException {
+            PipedInputStream senderInput = new PipedInputStream( 64 * 1024 );
+            toSender.connect( senderInput );
+            FileSender sender = new FileSender( senderInput, new PipedOutputStream( fromSender ), "check" );
+            sender.setTimeout( timeoutMillis );
+            sender.setRetries( retries );
+            thread.start();
+            return sender;
+        }
+
+        @Override
+        public void run(){
+            try{
+                script();
+            }catch( Throwable t ){
+                failure = t;
+            }
+        }
+
+        abstract void script() throws Exception;
+
+        void finish() throws InterruptedException {
+            thread.join( 10000 );
+            Checks.check( !thread.isAlive(), "The receiver did not finish" );
+            if( failure != null ){
+                throw new AssertionError( failure );
+            }
+        }
+
+        void send( int... bytes ) throws IOException {
+            for( int b : bytes ){
+                output.write( b );
+            }
+            output.flush();
+        }
+
+        void send( String text ) throws IOException {
+            output.write( text.getBytes( ISO_8859_1 ) );
+            output.flush();
+        }
+
+        int read() throws IOException {
+            int b = input.read();
+            if( b < 0 ){
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        byte[] read( int length ) throws IOException {
+            byte[] data = new byte[ length ];
+            for( int x = 0; x < length; x++ ){
+                data[ x ] = (byte)read();
+            }
+            return data;
+        }
+    }
+
+    public static void main( String[] args ) throws Exception {
+        checkCrc();
+        checkXmodemCrc();
+        checkXmodemChecksum();
+        checkXmodemGivesUp();
+        checkZmodem();
+
+        Checks.passed( TransferCheck.class );
+    }
+
+    private static void checkCrc(){
+        byte[] data = "123456789".getBytes( ISO_8859_1 );
+        Checks.checkEquals( 0x31C3, Crc16.update( 0, data, 0, data.length ), "CRC-16/XMODEM of 123456789" );
+
+        int crc = 0;
+        for( byte b : data ){
+            crc = Crc16.update( crc, b & 0xFF );
+        }
+        Checks.checkEquals( 0x31C3, crc, "CRC-16/XMODEM of 123456789, a byte at a time" );
+    }
+
+    private static byte[] pattern( int length ){
+        byte[] data = new byte[ length ];
+        for( int x = 0; x < length; x++ ){
+            data[ x ] = (byte)( x * 31 + ( x >> 8 ) );
+        }
+        return data;
+    }
+
+    /**
+     * Read one XMODEM block, and check its header and CRC or checksum.
+     *
+     * @return The whole block, as it was sent
+     */
+    private static byte[] readBlock( Receiver receiver, int number, boolean crc ) throws IOException {
+        int start = receiver.read();
+        Checks.check( start == XmodemSender.STX || start == XmodemSender.SOH, "Bad block start " + start );
+        int size = start == XmodemSender.STX ? 1024 : 128;
+
+        byte[] block = new byte[ 3 + size + ( crc ? 2 : 1 ) ];
+        block[ 0 ] = (byte)start;
+        System.arraycopy( receiver.read( block.length - 1 ), 0, block, 1, block.length - 1 );
+
+        Checks.checkEquals( number, block[ 1 ] & 0xFF, "block number" );
+        Checks.checkEquals( ~number & 0xFF, block[ 2 ] & 0xFF, "inverted block number" );
+        if( crc ){
+            int value = ( ( block[ 3 + size ] & 0xFF ) << 8 ) | ( block[ 4 + size ] & 0xFF );
+            Checks.checkEquals( Crc16.update( 0, block, 3, size ), value, "CRC of block " + number );
+        }else{
+            int sum = 0;
+            for( int x = 3; x < 3 + size; x++ ){
+                sum += block[ x ];
+            }
+            Checks.checkEquals( (byte)sum, block[ 3 + size ], "checksum of block " + number );
+        }
+
+        return block;
+    }
+
+    private static void addData( ByteArrayOutputStream received, byte[] block, boolean crc ){
+        received.write( block, 3, block.length - 3 - ( crc ? 2 : 1 ) );
+    }
+
+    /**
+     * The data that came in must be what was sent, padded out with SUB.
+     */
+    private static void checkData( byte[] sent, byte[] received ){
+        Checks.check( received.length >= sent.length, "Only " + received.length + " bytes came in" );
+        Checks.check( Arrays.equals( sent, Arrays.copyOf( received, sent.length ) ), "The data is different" );
+        for( int x = sent.length; x < received.length; x++ ){
+            Checks.checkEquals( (byte)XmodemSender.SUB, received[ x ], "padding at " + x );
+        }
+    }
+
+    /**
+     * XMODEM-1K with a CRC.  The first block is NAKed, the second one is
+     * ignored until the sender times out, and the first EOT is NAKed.
+     */
+    private static void checkXmodemCrc() throws Exception {
+        final byte[] data = pattern( 1500 );
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Receiver receiver = new Receiver(){
+            @Override
+            void script() throws Exception {
+                send( XmodemSender.CRC_REQUEST );
+
+                byte[] first = readBlock( this, 1, true );
+                send( XmodemSender.NAK );
+                Checks.check( Arrays.equals( first, readBlock( this, 1, true ) ), "Block 1 changed when sent again" );
+                send( XmodemSender.ACK );
+                addData( received, first, true );
+
+                byte[] second = readBlock( this, 2, true );
+                Checks.checkEquals( XmodemSender.STX, second[ 0 ] & 0xFF, "start of the last block" );
+                //Say nothing, so that the sender times out
+                Checks.check( Arrays.equals( second, readBlock( this, 2, true ) ), "Block 2 changed when sent again" );
+                send( XmodemSender.ACK );
+                addData( received, second, true );
+
+                Checks.checkEquals( XmodemSender.EOT, read(), "first EOT" );
+                send( XmodemSender.NAK );
+                Checks.checkEquals( XmodemSender.EOT, read(), "second EOT" );
+                send( XmodemSender.ACK );
+            }
+        };
+
+        try( FileSender sender = receiver.start( 300, 5 ) ){
+            sender.setProtocol( TransferProtocol.XMODEM_1K );
+            Checks.checkEquals( (long)data.length, sender.send( "data.bin", data ), "bytes sent with XMODEM-1K" );
+        }
+        receiver.finish();
+        checkData( data, received.toByteArray() );
+    }
+
+    /**
+     * The original XMODEM, with 128-byte blocks and a checksum, when the
+     * receiver starts with a NAK.
+     */
+    private static void checkXmodemChecksum() throws Exception {
+        final byte[] data = pattern( 200 );
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Receiver receiver = new Receiver(){
+            @Override
+            void script() throws Exception {
+                send( XmodemSender.NAK );
+                for( int number = 1; number <= 2; number++ ){
+                    byte[] block = readBlock( this, number, false );
+                    Checks.checkEquals( XmodemSender.SOH, block[ 0 ] & 0xFF, "start of block " + number );
+                    addData( received, block, false );
+                    send( XmodemSender.ACK );
+                }
+                Checks.checkEquals( XmodemSender.EOT, read(), "EOT" );
+                send( XmodemSender.ACK );
+            }
+        };
+
+        try( FileSender sender = receiver.start( 1000, 5 ) ){
+            sender.setProtocol( TransferProtocol.XMODEM_1K );
+            Checks.checkEquals( (long)data.length, sender.send( "data.bin", data ), "bytes sent with XMODEM" );
+        }
+        receiver.finish();
+        checkData( data, received.toByteArray() );
+    }
+
+    /**
+     * A block that is NAKed every time is only sent so many times, and then
+     * the transfer is cancelled.
+     */
+    private static void checkXmodemGivesUp() throws Exception {
+        final int retries = 3;
+        Receiver receiver = new Receiver(){
+            @Override
+            void script() throws Exception {
+                send( XmodemSender.CRC_REQUEST );
+                for( int x = 0; x < retries; x++ ){
+                    readBlock( this, 1, true );
+                    send( XmodemSender.NAK );
+                }
+                for( int x = 0; x < 2; x++ ){
+                    Checks.checkEquals( XmodemSender.CAN, read(), "cancel after " + retries + " tries" );
+                }
+            }
+        };
+
+        try( FileSender sender = receiver.start( 1000, retries ) ){
+            sender.setProtocol( TransferProtocol.XMODEM_1K );
+            try{
+                sender.send( "data.bin", pattern( 100 ) );
+                throw new AssertionError( "The transfer did not fail" );
+            }catch( IOException e ){
+                //Expected
+            }
+        }
+        receiver.finish();
+    }
+
+    //
+    // ZMODEM
+    //
+
+    private static String hexHeader( int type, int p0, int p1, int p2, int p3 ){
+        byte[] header = new byte[] { (byte)type, (byte)p0, (byte)p1, (byte)p2, (byte)p3 };
+        int crc = Crc16.update( 0, header, 0, header.length );
+
+        StringBuilder sb = new StringBuilder( "**\u0018B" );
+        for( byte b : header ){
+            sb.append( String.format( "%02x", b & 0xFF ) );
+        }
+        sb.append( String.format( "%04x", crc ) );
+        sb.append( "\r\u008a" );
+        if( type != ZmodemSender.ZFIN && type != ZmodemSender.ZACK ){
+            sb.append( (char)ZmodemSender.XON );
+        }
+        return sb.toString();
+    }
+
+    private static byte[] bytes( int... values ){
+        byte[] data = new byte[ values.length ];
+        for( int x = 0; x < values.length; x++ ){
+            data[ x ] = (byte)values[ x ];
+        }
+        return data;
+    }
+
+    private static void checkBytes( byte[] expected, byte[] got, String what ){
+        Checks.check( Arrays.equals( expected, got ), what + ": expected " + Arrays.toString( expected ) +
+                " got " + Arrays.toString( got ) );
+    }
+
+    /**
+     * Read a binary header with a 16-bit CRC.
+     *
+     * @return The type and the four position bytes
+     */
+    private static byte[] readBinaryHeader( Receiver receiver ) throws IOException {
+        checkBytes( bytes( ZmodemSender.ZPAD, ZmodemSender.ZDLE, ZmodemSender.ZBIN ), receiver.read( 3 ),
+                "start of a binary header" );
+
+        byte[] header = new byte[ 7 ];
+        for( int x = 0; x < header.length; x++ ){
+            int b = receiver.read();
+            if( b == ZmodemSender.ZDLE ){
+                b = receiver.read() ^ 0x40;
+            }
+            header[ x ] = (byte)b;
+        }
+        Checks.checkEquals( 0, Crc16.update( 0, header, 0, header.length ), "CRC of a binary header" );
+
+        return Arrays.copyOf( header, 5 );
+    }
+
+    /**
+     * Read one data subpacket with a 16-bit CRC into data.
+     *
+     * @return How the subpacket ended(ZCRCE, ZCRCG, ZCRCQ or ZCRCW)
+     */
+    private static int readSubpacket( Receiver receiver, ByteArrayOutputStream data ) throws IOException {
+        int crc = 0;
+
+        while( true ){
+            int b = receiver.read();
+            if( b == ZmodemSender.ZDLE ){
+                b = receiver.read();
+                if( b >= ZmodemSender.ZCRCE && b <= ZmodemSender.ZCRCW ){
+                    crc = Crc16.update( crc, b );
+                    for( int x = 0; x < 2; x++ ){
+                        int c = receiver.read();
+                        if( c == ZmodemSender.ZDLE ){
+                            c = receiver.read() ^ 0x40;
+                        }
+                        crc = Crc16.update( crc, c );
+                    }
+                    Checks.checkEquals( 0, crc, "CRC of a subpacket" );
+                    if( b == ZmodemSender.ZCRCW ){
+                        Checks.checkEquals( ZmodemSender.XON, receiver.read(), "XON after ZCRCW" );
+                    }
+                    return b;
+                }
+                b ^= 0x40;
+            }else{
+                Checks.check( b != ZmodemSender.XON && b != ZmodemSender.XOFF && b != 0x10,
+                        "Byte " + b + " was not escaped" );
+            }
+            data.write( b );
+            crc = Crc16.update( crc, b );
+        }
+    }
+
+    /**
+     * Send a file with ZMODEM, checking the headers byte for byte.  The
+     * length is 0x1118, so the ZEOF header has bytes in it that must be
+     * escaped.
+     */
+    private static void checkZmodem() throws Exception {
+        final byte[] data = pattern( 0x1118 );
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Receiver receiver = new Receiver(){
+            @Override
+            void script() throws Exception {
+                checkBytes( "rz\r".getBytes( ISO_8859_1 ), read( 3 ), "rz" );
+                checkBytes( "**\u0018B00000000000000\r\u008a\u0011".getBytes( ISO_8859_1 ), read( 21 ), "ZRQINIT" );
+                send( hexHeader( ZmodemSender.ZRINIT, 0, 0, 0, ZmodemSender.CANFDX | ZmodemSender.CANOVIO ) );
+
+                checkBytes( bytes( ZmodemSender.ZPAD, ZmodemSender.ZDLE, ZmodemSender.ZBIN,
+                        ZmodemSender.ZFILE, 0, 0, 0, 0, 0x89, 0x06 ), read( 10 ), "ZFILE" );
+                ByteArrayOutputStream info = new ByteArrayOutputStream();
+                Checks.checkEquals( ZmodemSender.ZCRCW, readSubpacket( this, info ), "end of the file info" );
+                Checks.checkEquals( "data.bin\u00004376 0\u0000", new String( info.toByteArray(), ISO_8859_1 ),
+                        "file info" );
+                send( hexHeader( ZmodemSender.ZRPOS, 0, 0, 0, 0 ) );
+
+                checkBytes( bytes( ZmodemSender.ZDATA, 0, 0, 0, 0 ), readBinaryHeader( this ), "ZDATA" );
+                int end;
+                do{
+                    end = readSubpacket( this, received );
+                    Checks.check( end == ZmodemSender.ZCRCG || end == ZmodemSender.ZCRCE, "Bad subpacket end " + end );
+                }while( end != ZmodemSender.ZCRCE );
+
+                //0x18 and 0x11 in the position have to be escaped
+                checkBytes( bytes( ZmodemSender.ZPAD, ZmodemSender.ZDLE, ZmodemSender.ZBIN,
+                        ZmodemSender.ZEOF, ZmodemSender.ZDLE, 0x58, ZmodemSender.ZDLE, 0x51, 0, 0, 0x06, 0xC8 ),
+                        read( 12 ), "ZEOF" );
+                send( hexHeader( ZmodemSender.ZRINIT, 0, 0, 0, ZmodemSender.CANFDX | ZmodemSender.CANOVIO ) );
+
+                checkBytes( "**\u0018B0800000000022d\r\u008a".getBytes( ISO_8859_1 ), read( 20 ), "ZFIN" );
+                send( hexHeader( ZmodemSender.ZFIN, 0, 0, 0, 0 ) );
+                checkBytes( "OO".getBytes( ISO_8859_1 ), read( 2 ), "over and out" );
+            }
+        };
+
+        try( FileSender sender = receiver.start( 2000, 5 ) ){
+            sender.setProtocol( TransferProtocol.ZMODEM );
+            Checks.checkEquals( (long)data.length, sender.send( "data.bin", data ), "bytes sent with ZMODEM" );
+        }catch( IOException e ){
+            //The receiver giving up is what we want to know about
+            receiver.finish();
+            throw e;
+        }
+        receiver.finish();
+        Checks.check( Arrays.equals( data, received.toByteArray() ), "The ZMODEM data is different" );
+    }
+}